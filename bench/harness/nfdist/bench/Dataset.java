@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.bench;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Writes a synthetic netflow dataset laid out as nfdist expects it:
+ * root/ident/yyyy-MM-dd/nfcapd.yyyyMMddHHmm, one file per 5 minutes and
+ * ident. Any Hadoop file system can be used, e.g. file:///tmp/netflow for
+ * the local file system or a MiniDFSCluster.
+ * 
+ * Each file is seeded from the dataset's seed, its ident and time, so a
+ * file has the same content regardless of the dataset's span.
+ */
+public class Dataset {
+	private final FlowGenerator generator;
+	private final SimpleDateFormat fileFormat = new SimpleDateFormat("'nfcapd.'yyyyMMddHHmm");
+	private final SimpleDateFormat dirFormat = new SimpleDateFormat("yyyy-MM-dd");
+	private final long flows;
+	private final long seed;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param generator	Flow generator
+	 * @param flows		Flows per file
+	 * @param seed		Dataset's seed
+	 */
+	public Dataset(FlowGenerator generator, long flows, long seed) {
+		this.generator = generator;
+		this.flows = flows;
+		this.seed = seed;
+	}
+	
+	/**
+	 * @param ident	Ident name
+	 * @param time	File's interval start in ms since epoch
+	 * @return	Seed of the file
+	 */
+	private long fileSeed(String ident, long time) {
+		return seed * 31 + ident.hashCode() * 0x9E3779B97F4A7C15L + time / 1000;
+	}
+	
+	/**
+	 * @param root	Dataset's root directory
+	 * @param ident	Ident name
+	 * @param time	File's interval start in ms since epoch
+	 * @return	Path of the file
+	 */
+	public Path path(String root, String ident, long time) {
+		final Date date = new Date(time);
+		return new Path(root + "/" + ident + "/" + dirFormat.format(date) + "/" + fileFormat.format(date));
+	}
+	
+	/**
+	 * Write one file.
+	 * 
+	 * @param fs	File system
+	 * @param root	Dataset's root directory
+	 * @param ident	Ident name
+	 * @param time	File's interval start in ms since epoch
+	 * @return	File's size in bytes
+	 * @throws IOException
+	 */
+	public long write(FileSystem fs, String root, String ident, long time) throws IOException {
+		final Path path = path(root, ident, time);
+		final FSDataOutputStream out = fs.create(path, true);
+		try {
+			generator.write(out, time, flows, fileSeed(ident, time));
+		} finally {
+			out.close();
+		}
+		return fs.getFileStatus(path).getLen();
+	}
+	
+	/**
+	 * Write files of all idents for consecutive intervals.
+	 * 
+	 * @param fs		File system
+	 * @param root		Dataset's root directory
+	 * @param idents	Ident names
+	 * @param start		First interval's start in ms since epoch
+	 * @param files		Number of files per ident
+	 * @return	Total size in bytes
+	 * @throws IOException
+	 */
+	public long write(FileSystem fs, String root, String[] idents, long start, int files) throws IOException {
+		long bytes = 0;
+		for (int i=0; i<files; i++) {
+			final long time = start + i * FlowGenerator.INTERVAL * 1000L;
+			for (String ident: idents) {
+				bytes += write(fs, root, ident, time);
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Prints CLI usage information.
+	 */
+	private static void printUsage() {
+		System.err.println("Usage: " + Dataset.class.getName() + " [options] <root uri>");
+		System.err.println("  --idents <n>        Number of idents, named ident1..n (1)");
+		System.err.println("  --start <time>      First file, yyyyMMddHHmm (201301010000)");
+		System.err.println("  --hours <n>         Time span (24)");
+		System.err.println("  --flows <n>         Flows per file (20000)");
+		System.err.println("  --hosts <n>         Distinct addresses (65536)");
+		System.err.println("  --zipf <s>          Zipf exponent of address and port popularity (1.0)");
+		System.err.println("  --protocols <mix>   Protocol weights (tcp:80,udp:18,icmp:2)");
+		System.err.println("  --seed <n>          Random seed (1)");
+	}
+	
+	public static void main(String[] args) throws IOException {
+		int idents = 1, hours = 24, hosts = 65536;
+		long flows = 20000, seed = 1, start;
+		double zipf = 1.0;
+		String mix = "tcp:80,udp:18,icmp:2";
+		String root = null;
+		
+		try {
+			start = new SimpleDateFormat("yyyyMMddHHmm").parse("201301010000").getTime();
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--idents")) {
+					idents = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--start")) {
+					start = new SimpleDateFormat("yyyyMMddHHmm").parse(args[++i]).getTime();
+				} else if (args[i].equals("--hours")) {
+					hours = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--flows")) {
+					flows = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--hosts")) {
+					hosts = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--zipf")) {
+					zipf = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--protocols")) {
+					mix = args[++i];
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				} else {
+					root = args[i];
+				}
+			}
+		} catch (ParseException e) {
+			System.err.println("Invalid time: " + e.getMessage());
+			printUsage();
+			return;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			return;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			printUsage();
+			return;
+		}
+		if (null == root) {
+			printUsage();
+			return;
+		}
+		
+		final String[] names = new String[idents];
+		for (int i=0; i<idents; i++) {
+			names[i] = "ident" + (i + 1);
+		}
+		
+		final Path rootPath = new Path(root);
+		final FileSystem fs = rootPath.getFileSystem(new org.apache.hadoop.conf.Configuration());
+		final Dataset dataset = new Dataset(new FlowGenerator(hosts, zipf, mix), flows, seed);
+		final long bytes = dataset.write(fs, rootPath.toString(), names, start, hours * 3600 / FlowGenerator.INTERVAL);
+		System.out.println(idents * hours * 3600 / FlowGenerator.INTERVAL + " files, " + bytes + " bytes written to " + rootPath);
+		fs.close();
+	}
+}
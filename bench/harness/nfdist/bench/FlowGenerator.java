@@ -0,0 +1,294 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import nfdist.NfdumpFile;
+import nfdist.NfdumpWriter;
+
+/**
+ * Writes synthetic flows into uncompressed nfdump files. Flows are IPv4
+ * with 32 bit counters and no extensions.
+ * 
+ * Addresses and destination ports follow Zipf's law, so a few hosts and
+ * services get most of the flows as in real traffic, and protocols follow
+ * the given mix. Equal settings and seeds produce equal files.
+ */
+public class FlowGenerator {
+	//Common record header, addresses, packets and bytes
+	public static final int RECORD_SIZE = NfdumpFile.RECORD_DATA + 16;
+	//nfcapd rotates files every 5 minutes
+	public static final int INTERVAL = 300;
+	public static final int PROTO_ICMP = 1;
+	public static final int PROTO_TCP = 6;
+	public static final int PROTO_UDP = 17;
+	private static final int MAP_SIZE = 12;
+	private static final int RECORD_TCP_FLAGS = NfdumpFile.RECORD_PROTO - 1;
+	//Most popular services first, other ports follow in the tail
+	private static final int[] PORTS = {443, 80, 53, 22, 123, 25, 3389, 8080, 993, 445,
+		110, 143, 587, 21, 23, 161, 1194, 5060, 3306, 8443};
+	private static final int PORT_RANKS = 4096;
+	private static final int ICMP_ECHO_REQUEST = 8 << 8;
+	private static final int[] TCP_FLAGS = {0x1B, 0x1A, 0x02, 0x12, 0x14, 0x04, 0x1F};
+	
+	private final Random random = new Random();
+	private final ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+	private final byte[] record = new byte[RECORD_SIZE];
+	private final byte[] map = new byte[MAP_SIZE];
+	private final ByteBuffer view = ByteBuffer.wrap(record).order(order);
+	
+	private final Zipf addresses, ports;
+	private final int[] protocols;
+	private final double[] protocolCdf;
+	
+	/**
+	 * Samples ranks 0..n-1 where rank k has probability proportional to 1/(k+1)^s.
+	 */
+	static class Zipf {
+		private final double[] cdf;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param n	Number of ranks
+		 * @param s	Exponent, 0 is uniform, about 1 for real traffic
+		 */
+		public Zipf(int n, double s) {
+			cdf = new double[n];
+			double sum = 0;
+			for (int k=0; k<n; k++) {
+				sum += 1 / Math.pow(k + 1, s);
+				cdf[k] = sum;
+			}
+			for (int k=0; k<n; k++) {
+				cdf[k] /= sum;
+			}
+		}
+		
+		/**
+		 * @param random	Random source
+		 * @return	Sampled rank
+		 */
+		public int next(Random random) {
+			final int idx = Arrays.binarySearch(cdf, random.nextDouble());
+			return Math.min(idx < 0 ? -idx - 1 : idx, cdf.length - 1);
+		}
+	}
+	
+	/**
+	 * Constructor with the defaults: 65536 addresses with exponent 1.0 and
+	 * 80% TCP, 18% UDP, 2% ICMP.
+	 */
+	public FlowGenerator() {
+		this(65536, 1.0, "tcp:80,udp:18,icmp:2");
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param hosts		Number of distinct source and destination addresses
+	 * @param zipf		Zipf exponent of address and port popularity
+	 * @param mix		Protocol mix, comma separated name:weight pairs
+	 * 					(tcp, udp, icmp or a protocol number)
+	 * @throws IllegalArgumentException	If the mix can not be parsed
+	 */
+	public FlowGenerator(int hosts, double zipf, String mix) {
+		this.addresses = new Zipf(hosts, zipf);
+		this.ports = new Zipf(PORT_RANKS, zipf);
+		
+		final String[] parts = mix.split(",");
+		this.protocols = new int[parts.length];
+		this.protocolCdf = new double[parts.length];
+		double sum = 0;
+		for (int i=0; i<parts.length; i++) {
+			final String[] pair = parts[i].trim().split(":");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Invalid protocol mix entry " + parts[i]);
+			}
+			protocols[i] = protocol(pair[0]);
+			sum += Double.parseDouble(pair[1]);
+			protocolCdf[i] = sum;
+		}
+		for (int i=0; i<parts.length; i++) {
+			protocolCdf[i] /= sum;
+		}
+		
+		//Empty extension map
+		final ByteBuffer m = ByteBuffer.wrap(map).order(order);
+		m.putShort(NfdumpFile.RECORD_TYPE, (short) NfdumpFile.EXTENSION_MAP_TYPE);
+		m.putShort(NfdumpFile.RECORD_SIZE, (short) MAP_SIZE);
+		
+		view.putShort(NfdumpFile.RECORD_TYPE, (short) NfdumpFile.COMMON_RECORD_TYPE);
+		view.putShort(NfdumpFile.RECORD_SIZE, (short) RECORD_SIZE);
+	}
+	
+	/**
+	 * @param name	Protocol name or number
+	 * @return	Protocol number
+	 */
+	private static int protocol(String name) {
+		if (name.equalsIgnoreCase("tcp")) {
+			return PROTO_TCP;
+		} else if (name.equalsIgnoreCase("udp")) {
+			return PROTO_UDP;
+		} else if (name.equalsIgnoreCase("icmp")) {
+			return PROTO_ICMP;
+		}
+		return Integer.parseInt(name);
+	}
+	
+	/**
+	 * Spread a popularity rank over an address block, so popular hosts are
+	 * not neighbours.
+	 * 
+	 * @param net	Network address
+	 * @param bits	Host bits of the block
+	 * @param rank	Popularity rank
+	 * @return	Address
+	 */
+	private static int address(int net, int bits, int rank) {
+		return net | (((rank + 1) * 0x9E3779B1) >>> (32 - bits));
+	}
+	
+	/**
+	 * @param rank	Popularity rank
+	 * @return	Service port
+	 */
+	private static int port(int rank) {
+		return rank < PORTS.length ? PORTS[rank] : 1024 + rank;
+	}
+	
+	/**
+	 * Fill the record with a random flow.
+	 * 
+	 * @param start	File's interval start in seconds since epoch
+	 */
+	private void next(long start) {
+		final int first = (int) (start + random.nextInt(INTERVAL));
+		int proto = protocols[protocols.length - 1];
+		final double p = random.nextDouble();
+		for (int i=0; i<protocols.length; i++) {
+			if (p < protocolCdf[i]) {
+				proto = protocols[i];
+				break;
+			}
+		}
+		
+		view.putShort(NfdumpFile.RECORD_MSEC_FIRST, (short) random.nextInt(1000));
+		view.putShort(NfdumpFile.RECORD_MSEC_LAST, (short) random.nextInt(1000));
+		view.putInt(NfdumpFile.RECORD_FIRST, first);
+		view.putInt(NfdumpFile.RECORD_LAST, first + random.nextInt(60));
+		record[RECORD_TCP_FLAGS] = (byte) (PROTO_TCP == proto ? TCP_FLAGS[random.nextInt(TCP_FLAGS.length)] : 0);
+		record[NfdumpFile.RECORD_PROTO] = (byte) proto;
+		if (PROTO_ICMP == proto) {
+			view.putShort(NfdumpFile.RECORD_SRCPORT, (short) 0);
+			view.putShort(NfdumpFile.RECORD_DSTPORT, (short) ICMP_ECHO_REQUEST);
+		} else {
+			view.putShort(NfdumpFile.RECORD_SRCPORT, (short) (32768 + random.nextInt(28232)));
+			view.putShort(NfdumpFile.RECORD_DSTPORT, (short) port(ports.next(random)));
+		}
+		//Clients in 10.0.0.0/8, servers in 172.16.0.0/12
+		view.putInt(NfdumpFile.RECORD_DATA, address(0x0A000000, 24, addresses.next(random)));
+		view.putInt(NfdumpFile.RECORD_DATA + 4, address(0xAC100000, 20, addresses.next(random)));
+		//Mostly short flows with a long tail
+		final int packets = 1 + (int) Math.min(100000, -Math.log(1 - random.nextDouble()) * 20);
+		final int size = (PROTO_TCP == proto) ? 40 + random.nextInt(1460) : 28 + random.nextInt(512);
+		view.putInt(NfdumpFile.RECORD_DATA + 8, packets);
+		view.putInt(NfdumpFile.RECORD_DATA + 12, packets * size);
+	}
+	
+	/**
+	 * Build the stat record like nfcapd does, the flows are generated twice
+	 * so they need not be held in memory.
+	 * 
+	 * @param start	File's interval start in ms since epoch
+	 * @param flows	Number of flows
+	 * @param seed	Random seed of the file
+	 * @return	Stat record in the file's byte order
+	 */
+	private byte[] stat(long start, long flows, long seed) {
+		random.setSeed(seed);
+		final long[] counters = new long[15];
+		long first = Long.MAX_VALUE, last = 0;
+		for (long i=0; i<flows; i++) {
+			next(start / 1000);
+			final long packets = view.getInt(NfdumpFile.RECORD_DATA + 8) & 0xFFFFFFFFL;
+			final long bytes = view.getInt(NfdumpFile.RECORD_DATA + 12) & 0xFFFFFFFFL;
+			final int proto = record[NfdumpFile.RECORD_PROTO];
+			final int p = PROTO_TCP == proto ? 0 : PROTO_UDP == proto ? 1 : PROTO_ICMP == proto ? 2 : 3;
+			counters[0]++;
+			counters[1] += bytes;
+			counters[2] += packets;
+			counters[3 + p]++;
+			counters[7 + p] += bytes;
+			counters[11 + p] += packets;
+			first = Math.min(first, (view.getInt(NfdumpFile.RECORD_FIRST) & 0xFFFFFFFFL) * 1000
+					+ view.getShort(NfdumpFile.RECORD_MSEC_FIRST));
+			last = Math.max(last, (view.getInt(NfdumpFile.RECORD_LAST) & 0xFFFFFFFFL) * 1000
+					+ view.getShort(NfdumpFile.RECORD_MSEC_LAST));
+		}
+		
+		final ByteBuffer stat = ByteBuffer.allocate(NfdumpFile.STAT_SIZE).order(order);
+		for (long c: counters) {
+			stat.putLong(c);
+		}
+		if (flows > 0) {
+			stat.putInt((int) (first / 1000));
+			stat.putInt((int) (last / 1000));
+			stat.putShort((short) (first % 1000));
+			stat.putShort((short) (last % 1000));
+		}
+		return stat.array();
+	}
+	
+	/**
+	 * Write a nfdump file.
+	 * 
+	 * @param out	Output stream, it is not closed
+	 * @param start	File's interval start in ms since epoch
+	 * @param flows	Number of flows
+	 * @param seed	Random seed of the file
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, long start, long flows, long seed) throws IOException {
+		final NfdumpWriter writer = new NfdumpWriter(out, order, stat(start, flows, seed));
+		random.setSeed(seed);
+		for (long i=0; i<flows; i++) {
+			next(start / 1000);
+			writer.write(record, RECORD_SIZE, map);
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import nfdist.Manager;
+import nfdist.Worker;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * End to end performance harness. Runs a MiniDFSCluster with one datanode
+ * per Worker, an embedded ZooKeeper server, in-process Workers and a Manager
+ * in a single JVM, so nothing but the loopback interface is needed. The
+ * netflow files are written by Dataset.
+ * 
+ * Queries are timed while the number of files, Workers and jobs.max are
+ * swept. Workers run a nfdump stand-in (bench/harness/nfdump-stub.sh by
+ * default), so the measured time is spent in nfdist's data path and
+ * coordination rather than in nfdump.
+ */
+public class Harness {
+	private static final Logger log = Logger.getLogger(Harness.class);
+	private static final String PROFILE = "harness";
+	private static final String IDENT = "ident1";
+	private static final String START = "201301010000";
+	private static final String[] QUERY = {"-s", "srcip/bytes", "-n", "10", "any"};
+	
+	private final Configuration config;
+	private final File baseDir;
+	private final SimpleDateFormat fileFormat = new SimpleDateFormat("'nfcapd.'yyyyMMddHHmm");
+	private final PrintStream report;
+	private final PrintStream discard = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+	
+	private int[] files = {16, 64, 256};
+	private int[] workers = {1, 2, 4};
+	private int[] jobsMax = {4, 16, 64};
+	private long flows = 20000;
+	private long seed = 1;
+	private int repeat = 3;
+	private boolean adaptive = false;
+	private String[] query = QUERY;
+	
+	private ServerCnxnFactory zkFactory;
+	//Size of the first n files
+	private long[] bytes;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param config	Nfdist's configuration, servers and paths are overridden
+	 * @param baseDir	Directory for HDFS, ZooKeeper and temporary files
+	 * @param report	Where the results are printed
+	 */
+	public Harness(Configuration config, File baseDir, PrintStream report) {
+		this.config = config;
+		this.baseDir = baseDir;
+		this.report = report;
+	}
+	
+	/**
+	 * Parse a comma separated list of numbers.
+	 */
+	private static int[] parseList(String list) {
+		final String[] parts = list.split(",");
+		final int[] values = new int[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		Arrays.sort(values);
+		return values;
+	}
+	
+	/**
+	 * @param i	Worker's number
+	 * @return	Worker's and its datanode's name
+	 */
+	private static String host(int i) {
+		return "worker" + (i + 1);
+	}
+	
+	/**
+	 * @param i	File's number
+	 * @return	Start of the file's interval in ms since epoch
+	 */
+	private long fileTime(int i) throws java.text.ParseException {
+		return fileFormat.parse("nfcapd." + START).getTime() + i * FlowGenerator.INTERVAL * 1000L;
+	}
+	
+	/**
+	 * Start the ZooKeeper server on a free port.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void startZooKeeper() throws IOException, InterruptedException {
+		final File dir = new File(baseDir, "zookeeper");
+		final ZooKeeperServer server = new ZooKeeperServer(dir, dir, 2000);
+		//Workers, the Manager and their locks all connect from localhost
+		zkFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("localhost", 0), 0);
+		zkFactory.startup(server);
+		config.setProperty("zookeeper.server", "localhost:" + zkFactory.getLocalPort());
+	}
+	
+	/**
+	 * Start HDFS with a datanode for each Worker.
+	 * 
+	 * @param nodes	Number of datanodes
+	 * @return	Running cluster
+	 * @throws IOException
+	 */
+	private MiniDFSCluster startHdfs(int nodes) throws IOException {
+		final org.apache.hadoop.conf.Configuration conf = new org.apache.hadoop.conf.Configuration();
+		conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(baseDir, "hdfs").getAbsolutePath());
+		//Datanode names do not resolve, they only have to match the Workers
+		conf.setBoolean("dfs.namenode.datanode.registration.ip-hostname-check", false);
+		conf.setInt("dfs.replication", Math.min(3, nodes));
+		
+		final String[] hosts = new String[nodes];
+		for (int i=0; i<nodes; i++) {
+			hosts[i] = host(i);
+		}
+		final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+				.numDataNodes(nodes)
+				.hosts(hosts)
+				.format(true)
+				.build();
+		cluster.waitActive();
+		config.setProperty("hdfs.namenode", "localhost:" + cluster.getNameNodePort());
+		return cluster;
+	}
+	
+	/**
+	 * Write the netflow files of the largest run.
+	 * 
+	 * @param fs	HDFS handle
+	 * @throws Exception
+	 */
+	private void writeData(FileSystem fs) throws Exception {
+		final int count = files[files.length - 1];
+		final String root = config.getString("hdfs.path.root") + "/" + PROFILE;
+		final Dataset dataset = new Dataset(new FlowGenerator(), flows, seed);
+		
+		bytes = new long[count + 1];
+		for (int i=0; i<count; i++) {
+			bytes[i + 1] = bytes[i] + dataset.write(fs, root, IDENT, fileTime(i));
+		}
+		log.info(count + " files of " + flows + " flows written, " + bytes[count] + " bytes.");
+	}
+	
+	/**
+	 * Start the Workers, each in its own thread.
+	 * 
+	 * @param count		Number of Workers
+	 * @param threads	Where the threads are added
+	 * @return	Workers
+	 * @throws IOException
+	 */
+	private List<Worker> startWorkers(int count, List<Thread> threads) throws IOException {
+		final List<Worker> list = new ArrayList<Worker>();
+		for (int i=0; i<count; i++) {
+			final Worker worker = new Worker(config, host(i));
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						worker.run();
+					} catch (Exception e) {
+						log.error("Worker failed: " + e.getMessage());
+						e.printStackTrace();
+					}
+				}
+			}, host(i));
+			thread.start();
+			list.add(worker);
+			threads.add(thread);
+		}
+		return list;
+	}
+	
+	/**
+	 * Time a query over the first files.
+	 * 
+	 * @param manager	Connected Manager
+	 * @param count		Number of files
+	 * @return	Latency in ms, negative if the query failed
+	 * @throws Exception
+	 */
+	private double time(Manager manager, int count) throws Exception {
+		final List<String> args = new ArrayList<String>();
+		args.add("-M");
+		args.add("/" + PROFILE + "/" + IDENT);
+		args.add("-R");
+		args.add(fileFormat.format(new Date(fileTime(0))) + ":" + fileFormat.format(new Date(fileTime(count - 1))));
+		args.addAll(Arrays.asList(query));
+		
+		final long start = System.nanoTime();
+		final boolean ok = manager.query(args.toArray(new String[args.size()]), discard, discard);
+		final double latency = (System.nanoTime() - start) / 1e6;
+		return ok ? latency : -latency;
+	}
+	
+	/**
+	 * Run the sweep for one cluster size.
+	 * 
+	 * @param nodes	Number of Workers and datanodes
+	 * @throws Exception
+	 */
+	private void sweep(int nodes) throws Exception {
+		final MiniDFSCluster cluster = startHdfs(nodes);
+		final List<Thread> threads = new ArrayList<Thread>();
+		List<Worker> running = null;
+		Manager manager = null;
+		try {
+			writeData(cluster.getFileSystem());
+			running = startWorkers(nodes, threads);
+			manager = new Manager(config);
+			manager.connect();
+			
+			for (int max: jobsMax) {
+				config.setProperty("jobs.max", max);
+				if (!adaptive) {
+					//Measure the given window, not the congestion control
+					config.setProperty("jobs.window.min", max);
+					config.setProperty("jobs.window.max", max);
+				}
+				for (int count: files) {
+					//Warm up the JVM and the datanodes' caches
+					time(manager, count);
+					
+					final double[] latency = new double[repeat];
+					int failed = 0;
+					for (int r=0; r<repeat; r++) {
+						latency[r] = time(manager, count);
+						if (latency[r] < 0) {
+							failed++;
+							latency[r] = -latency[r];
+						}
+					}
+					Arrays.sort(latency);
+					final double median = latency[repeat / 2];
+					report.printf("%d\t%d\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%d%n",
+							nodes, max, count, bytes[count],
+							median, latency[repeat - 1],
+							count * 1000 / median,
+							bytes[count] * 1000 / median / 0x100000,
+							failed);
+					report.flush();
+				}
+			}
+		} finally {
+			if (null != running) {
+				for (Worker worker: running) {
+					worker.stop();
+				}
+				for (Thread thread: threads) {
+					thread.join();
+				}
+			}
+			if (null != manager) {
+				manager.close();
+			}
+			cluster.shutdown();
+		}
+	}
+	
+	/**
+	 * Run the whole sweep.
+	 * 
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+		final File tmp = new File(baseDir, "tmp");
+		tmp.mkdirs();
+		config.setProperty("local.path.tmp", tmp.getAbsolutePath());
+		
+		startZooKeeper();
+		try {
+			report.println("workers\tjobs.max\tfiles\tbytes\tmedian_ms\tmax_ms\tjobs/s\tMB/s\tfailed");
+			for (int nodes: workers) {
+				sweep(nodes);
+			}
+		} finally {
+			zkFactory.shutdown();
+		}
+	}
+	
+	/**
+	 * Prints CLI usage information.
+	 */
+	private static void printUsage() {
+		System.err.println("Usage: " + Harness.class.getName() + " [options] [nfdump arguments and filter]");
+		System.err.println("  --files <n,...>     Numbers of files per query (16,64,256)");
+		System.err.println("  --workers <n,...>   Numbers of Workers/datanodes (1,2,4)");
+		System.err.println("  --jobs-max <n,...>  Job windows (4,16,64)");
+		System.err.println("  --flows <n>         Flows per file (20000)");
+		System.err.println("  --seed <n>          Dataset's random seed (1)");
+		System.err.println("  --repeat <n>        Timed runs of each query (3)");
+		System.err.println("  --nfdump <path>     nfdump stand-in for Workers and the combiner");
+		System.err.println("  --adaptive          Let the window adapt from jobs.max");
+		System.err.println("  --dir <path>        Working directory (a new temporary one)");
+	}
+	
+	public static void main(String[] args) throws Exception {
+		final Configuration config;
+		try {
+			config = new PropertiesConfiguration("nfdist.properties");
+		} catch (ConfigurationException e) {
+			System.err.println("Can not load nfdist.properties: " + e.getMessage());
+			return;
+		}
+		config.setProperty("local.path.nfdump", new File("bench/harness/nfdump-stub.sh").getAbsolutePath());
+		
+		File baseDir = null;
+		boolean keep = false;
+		final List<String> query = new ArrayList<String>();
+		final List<String[]> settings = new ArrayList<String[]>();
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--nfdump")) {
+					config.setProperty("local.path.nfdump", new File(args[++i]).getAbsolutePath());
+				} else if (args[i].equals("--dir")) {
+					baseDir = new File(args[++i]);
+					keep = true;
+				} else if (args[i].equals("--adaptive")) {
+					settings.add(new String[] {args[i], null});
+				} else if (args[i].startsWith("--")) {
+					settings.add(new String[] {args[i], args[++i]});
+				} else {
+					query.add(args[i]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			printUsage();
+			return;
+		}
+		config.setProperty("local.path.nfcat", config.getString("local.path.nfdump"));
+		
+		if (null == baseDir) {
+			baseDir = new File(System.getProperty("java.io.tmpdir"), "nfdist-harness-" + System.currentTimeMillis());
+		}
+		final Harness harness = new Harness(config, baseDir, System.out);
+		try {
+			for (String[] setting: settings) {
+				if (setting[0].equals("--files")) {
+					harness.files = parseList(setting[1]);
+				} else if (setting[0].equals("--workers")) {
+					harness.workers = parseList(setting[1]);
+				} else if (setting[0].equals("--jobs-max")) {
+					harness.jobsMax = parseList(setting[1]);
+				} else if (setting[0].equals("--flows")) {
+					harness.flows = Long.parseLong(setting[1]);
+				} else if (setting[0].equals("--seed")) {
+					harness.seed = Long.parseLong(setting[1]);
+				} else if (setting[0].equals("--repeat")) {
+					harness.repeat = Math.max(1, Integer.parseInt(setting[1]));
+				} else if (setting[0].equals("--adaptive")) {
+					harness.adaptive = true;
+				} else {
+					throw new IllegalArgumentException("Unknown option " + setting[0]);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			return;
+		}
+		if (!query.isEmpty()) {
+			harness.query = query.toArray(new String[query.size()]);
+		}
+		
+		//Cluster daemons are noisy
+		Logger.getLogger("org.apache").setLevel(Level.WARN);
+		
+		try {
+			harness.run();
+		} finally {
+			if (!keep) {
+				FileUtil.fullyDelete(baseDir);
+			}
+		}
+	}
+}
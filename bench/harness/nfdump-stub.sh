@@ -0,0 +1,24 @@
+#!/bin/sh
+
+# Stand-in for nfdump and nfcat.sh used by the performance harness.
+# Like a filter matching every flow, it copies stdin into the -w file.
+# Without -w (the combiner) the input is consumed and its size printed.
+# STUB_DELAY adds the given number of seconds of "processing" to each call.
+
+OUT=""
+while [ $# -gt 0 ]; do
+	case "$1" in
+		-w) OUT="$2"; shift ;;
+	esac
+	shift
+done
+
+if [ -n "$STUB_DELAY" ]; then
+	sleep "$STUB_DELAY"
+fi
+
+if [ -n "$OUT" ]; then
+	cat > "$OUT"
+else
+	echo "Summary: $(wc -c | tr -d ' ') bytes"
+fi
@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Combiner's result copy loop, reading an 8MB result from memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CombinerCopyBench {
+	private static final int RESULT = 0x800000;
+	
+	@Param({"65536", "1048576"})
+	public int bufsize;
+	
+	private byte[] result;
+	private ByteBuffer buffer;
+	private OutputStream sink;
+	
+	/**
+	 * In-memory stream which HDFS input streams can wrap.
+	 */
+	private static class MemoryInput extends ByteArrayInputStream implements Seekable, PositionedReadable, ByteBufferReadable {
+		public MemoryInput(byte[] data) {
+			super(data);
+		}
+		
+		@Override
+		public synchronized int read(ByteBuffer dst) {
+			final int len = Math.min(dst.remaining(), count - pos);
+			if (len <= 0) {
+				return -1;
+			}
+			dst.put(buf, pos, len);
+			pos += len;
+			return len;
+		}
+		
+		@Override
+		public int read(long position, byte[] b, int off, int len) {
+			if (position >= count) {
+				return -1;
+			}
+			len = (int) Math.min(len, count - position);
+			System.arraycopy(buf, (int) position, b, off, len);
+			return len;
+		}
+		
+		@Override
+		public void readFully(long position, byte[] b, int off, int len) throws IOException {
+			if (position + len > count) {
+				throw new EOFException();
+			}
+			System.arraycopy(buf, (int) position, b, off, len);
+		}
+		
+		@Override
+		public void readFully(long position, byte[] b) throws IOException {
+			readFully(position, b, 0, b.length);
+		}
+		
+		@Override
+		public synchronized void seek(long position) {
+			pos = (int) position;
+		}
+		
+		@Override
+		public synchronized long getPos() {
+			return pos;
+		}
+		
+		@Override
+		public boolean seekToNewSource(long targetPos) {
+			return false;
+		}
+	}
+	
+	@Setup
+	public void setup() {
+		result = new byte[RESULT];
+		new Random(1).nextBytes(result);
+		buffer = ByteBuffer.allocate(bufsize);
+		sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+	}
+	
+	@Benchmark
+	public long copy() throws IOException {
+		buffer.clear();
+		return Combiner.copy(new FSDataInputStream(new MemoryInput(result)), sink, buffer);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.util.concurrent.TimeUnit;
+
+import nfdist.JobProto.JobInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JobInfo encoding (once per submitted job) and decoding (by every Worker
+ * scanning the queue).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JobInfoBench {
+	private JobInfo prototype;
+	private byte[] encoded;
+	
+	@Setup
+	public void setup() {
+		prototype = JobInfo.newBuilder()
+				.setFilter("proto tcp and dst port 22")
+				.addArgs("-s").addArgs("srcip/bytes").addArgs("-n").addArgs("10")
+				.setCodec("lzo")
+				.build();
+		encoded = encode();
+	}
+	
+	@Benchmark
+	public byte[] encode() {
+		return JobInfo.newBuilder(prototype)
+				.setNfFile("/netflow/ident1/2013-01-01/nfcapd.201301011205")
+				.addServer("datanode01.example.com").addServer("datanode02.example.com").addServer("datanode03.example.com")
+				.build().toByteArray();
+	}
+	
+	@Benchmark
+	public JobInfo decode() throws Exception {
+		return JobInfo.parseFrom(encoded);
+	}
+}
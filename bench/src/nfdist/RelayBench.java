@@ -0,0 +1,122 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Relaying process output: the sinks alone (one 1MB chunk per operation)
+ * and the Pump end to end with a child process producing 16MB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RelayBench extends Proc {
+	private static final int CHUNK = 0x100000;
+	private static final String PROCESS_BYTES = "16777216";
+	private static final String LINE = "2013-01-01 00:00:00.123     0.000 TCP     192.168.100.10:51234 ->    10.20.30.40:443          1       60     1\n";
+	
+	private byte[] binary;
+	private byte[] text;
+	private Pump.Sink std;
+	private LineSink lines;
+	private long chars;
+	
+	/**
+	 * Discards the output.
+	 */
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+	
+	@Setup
+	public void setup() {
+		binary = new byte[CHUNK];
+		new Random(1).nextBytes(binary);
+		
+		final StringBuilder sb = new StringBuilder();
+		while (sb.length() < CHUNK) {
+			sb.append(LINE);
+		}
+		text = sb.toString().getBytes();
+		
+		std = toStd(new PrintStream(new NullOutputStream()));
+		lines = new LineSink() {
+			@Override
+			protected void line(String line) {
+				chars += line.length();
+			}
+		};
+	}
+	
+	@Benchmark
+	public void stdSink() throws Exception {
+		std.write(binary, 0, binary.length);
+	}
+	
+	@Benchmark
+	public long lineSink() throws Exception {
+		lines.write(text, 0, text.length);
+		return chars;
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean pumpRelay() throws Exception {
+		final Process proc = new ProcessBuilder("head", "-c", PROCESS_BYTES, "/dev/zero").start();
+		proc.getOutputStream().close();
+		relay(proc.getInputStream(), proc, std);
+		relay(proc.getErrorStream(), proc, std);
+		return await(60000);
+	}
+}
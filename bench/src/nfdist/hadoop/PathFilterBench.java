@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.hadoop;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FileList's date filter over a listing of a month of 5 minute files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PathFilterBench {
+	//31 days of 5 minute files
+	private static final int FILES = 31 * 288;
+	
+	private Path[] listing;
+	private FileList.MyPathFilter filter;
+	
+	@Setup
+	public void setup() throws Exception {
+		final SimpleDateFormat format = new SimpleDateFormat("'nfcapd.'yyyyMMddHHmm");
+		final Calendar cal = Calendar.getInstance();
+		cal.setTime(new SimpleDateFormat("yyyy-MM-dd").parse("2013-01-01"));
+		
+		listing = new Path[FILES];
+		for (int i=0; i<FILES; i++) {
+			listing[i] = new Path("/netflow/ident1/2013-01-01/" + format.format(cal.getTime()));
+			cal.add(Calendar.MINUTE, 5);
+		}
+		
+		final Date start = format.parse("nfcapd.201301100000");
+		final Date end = format.parse("nfcapd.201301202355");
+		final FileList files = new FileList(null, "/netflow", new String[] {"ident1"}, start, end);
+		filter = files.new MyPathFilter(start, end);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public int accept() {
+		int accepted = 0;
+		for (Path path: listing) {
+			if (filter.accept(path)) {
+				accepted++;
+			}
+		}
+		return accepted;
+	}
+}
@@ -8,4 +8,11 @@ fi
 CONFDIR="${PREFIX}/etc"
 . ${CONFDIR}/env.sh
 
+# Send the query to the Manager daemon, start a standalone Manager if it is not running
+java -cp $CLASSPATH nfdist.Client "$@"
+STATUS=$?
+if [ $STATUS -ne 111 ]; then
+	exit $STATUS
+fi
+
 java -cp $CLASSPATH nfdist.Manager "$@"
@@ -0,0 +1,185 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+/**
+ * Number of permits which can be resized while permits are held.
+ * Shrinking takes effect as the held permits are released.
+ */
+public class AdaptiveLimit {
+	private final int min, max;
+	private int limit;
+	private int used = 0;
+	private int peak = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param initial	Initial limit
+	 * @param min		Lower bound of the limit
+	 * @param max		Upper bound of the limit
+	 */
+	public AdaptiveLimit(int initial, int min, int max) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("Invalid limit bounds: " + min + ".." + max);
+		}
+		this.min = min;
+		this.max = max;
+		this.limit = Math.max(min, Math.min(max, initial));
+	}
+	
+	/**
+	 * Take a permit, wait until one is available.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (used >= limit) {
+			wait();
+		}
+		take();
+	}
+	
+	/**
+	 * Wait until a permit is available without taking it.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitAvailable() throws InterruptedException {
+		while (used >= limit) {
+			wait();
+		}
+	}
+	
+	/**
+	 * Take a permit if one is available.
+	 * 
+	 * @return	True if the permit was taken
+	 */
+	public synchronized boolean tryAcquire() {
+		if (used >= limit) {
+			return false;
+		}
+		take();
+		return true;
+	}
+	
+	/**
+	 * Take a permit even if the limit was lowered since it was available,
+	 * the held permits exceed the limit until they are released.
+	 */
+	public synchronized void acquireNow() {
+		take();
+	}
+	
+	private void take() {
+		used++;
+		if (used > peak) {
+			peak = used;
+		}
+	}
+	
+	/**
+	 * Return a permit.
+	 */
+	public synchronized void release() {
+		if (used > 0) {
+			used--;
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * @return	Current limit
+	 */
+	public synchronized int getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * @return	Number of permits held
+	 */
+	public synchronized int getUsed() {
+		return used;
+	}
+	
+	/**
+	 * Highest number of held permits since the previous call.
+	 * 
+	 * @return	Number of permits
+	 */
+	public synchronized int takePeak() {
+		final int result = peak;
+		peak = used;
+		return result;
+	}
+	
+	/**
+	 * @return	True if all permits were held since the previous takePeak()
+	 */
+	public synchronized boolean isSaturated() {
+		return peak >= limit;
+	}
+	
+	/**
+	 * Set a new limit within the bounds.
+	 * 
+	 * @param value	New limit
+	 * @return	True if the limit has changed
+	 */
+	public synchronized boolean setLimit(int value) {
+		value = Math.max(min, Math.min(max, value));
+		if (value == limit) {
+			return false;
+		}
+		limit = value;
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Additive increase.
+	 * 
+	 * @param step	Number of permits to add
+	 * @return	True if the limit has changed
+	 */
+	public synchronized boolean increase(int step) {
+		return setLimit(limit + step);
+	}
+	
+	/**
+	 * Multiplicative decrease, at least by one permit.
+	 * 
+	 * @param factor	Fraction of the limit to keep
+	 * @return	True if the limit has changed
+	 */
+	public synchronized boolean decrease(double factor) {
+		return setLimit(Math.min(limit - 1, (int) (limit * factor)));
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Open addressing hash table of flow counters stored outside of the Java
+ * heap. A slot holds a key of a fixed number of longs followed by the
+ * flows, packets, bytes, first seen and last seen counters, an empty slot
+ * has no flows. Collisions are resolved by linear probing.
+ */
+public class AggregationTable {
+	public static final int FLOWS = 0;
+	public static final int PACKETS = 1;
+	public static final int BYTES = 2;
+	public static final int FIRST = 3;
+	public static final int LAST = 4;
+	public static final int COUNTERS = 5;
+	
+	private static final int MIN_CAPACITY = 1024;
+	private static final double LOAD = 0.7;
+	
+	private final int keyLongs;
+	private final int slotLongs;
+	private LongBuffer slots;
+	private int capacity;
+	private int size = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param keyLongs	Key size in longs
+	 */
+	public AggregationTable(int keyLongs) {
+		this.keyLongs = keyLongs;
+		this.slotLongs = keyLongs + COUNTERS;
+		allocate(MIN_CAPACITY);
+	}
+	
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		this.slots = ByteBuffer.allocateDirect(capacity * slotLongs * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+	
+	/**
+	 * @param key	Key
+	 * @return	Hash of the key, the low bits choose the slot
+	 */
+	public static long hash(long[] key) {
+		long h = 0;
+		for (long k: key) {
+			h = (h ^ k) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 32;
+		}
+		//MurmurHash3 finalizer
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * @return	True if a new key needs a larger table
+	 */
+	public boolean isFull() {
+		return size >= capacity * LOAD;
+	}
+	
+	/**
+	 * Double the capacity if it stays within the given memory limit.
+	 * 
+	 * @param limit	Memory limit in bytes
+	 * @return	False if the table can not grow
+	 */
+	public boolean grow(long limit) {
+		final long needed = 2L * capacity * slotLongs * 8;
+		if (needed > limit || needed > Integer.MAX_VALUE) {
+			return false;
+		}
+		final LongBuffer old = slots;
+		final int oldCapacity = capacity;
+		allocate(capacity * 2);
+		final long[] key = new long[keyLongs];
+		for (int slot=0; slot<oldCapacity; slot++) {
+			final int base = slot * slotLongs;
+			if (0 == old.get(base + keyLongs + FLOWS)) {
+				continue;
+			}
+			for (int i=0; i<keyLongs; i++) {
+				key[i] = old.get(base + i);
+			}
+			final int target = find(key, hash(key));
+			for (int i=0; i<slotLongs; i++) {
+				slots.put(target * slotLongs + i, old.get(base + i));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return	Slot of the key or the empty slot where it belongs
+	 */
+	private int find(long[] key, long hash) {
+		final int mask = capacity - 1;
+		int slot = (int) hash & mask;
+		while (true) {
+			final int base = slot * slotLongs;
+			if (0 == slots.get(base + keyLongs + FLOWS)) {
+				return slot;
+			}
+			boolean equal = true;
+			for (int i=0; i<keyLongs && equal; i++) {
+				equal = slots.get(base + i) == key[i];
+			}
+			if (equal) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	/**
+	 * Add the counters to the key's group. The table must not be full if
+	 * the key is new.
+	 * 
+	 * @param key		Key
+	 * @param hash		Hash of the key
+	 * @param flows		Number of flows, at least 1
+	 * @param packets	Number of packets
+	 * @param bytes		Number of bytes
+	 * @param first		First seen (ms)
+	 * @param last		Last seen (ms)
+	 */
+	public void add(long[] key, long hash, long flows, long packets, long bytes, long first, long last) {
+		final int base = find(key, hash) * slotLongs;
+		final int counters = base + keyLongs;
+		if (0 == slots.get(counters + FLOWS)) {
+			for (int i=0; i<keyLongs; i++) {
+				slots.put(base + i, key[i]);
+			}
+			slots.put(counters + FLOWS, flows);
+			slots.put(counters + PACKETS, packets);
+			slots.put(counters + BYTES, bytes);
+			slots.put(counters + FIRST, first);
+			slots.put(counters + LAST, last);
+			size++;
+			return;
+		}
+		slots.put(counters + FLOWS, slots.get(counters + FLOWS) + flows);
+		slots.put(counters + PACKETS, slots.get(counters + PACKETS) + packets);
+		slots.put(counters + BYTES, slots.get(counters + BYTES) + bytes);
+		slots.put(counters + FIRST, Math.min(slots.get(counters + FIRST), first));
+		slots.put(counters + LAST, Math.max(slots.get(counters + LAST), last));
+	}
+	
+	/**
+	 * @param slot	Slot to start from
+	 * @return	First used slot from the given one, -1 if there are no more
+	 */
+	public int next(int slot) {
+		for (; slot<capacity; slot++) {
+			if (0 != slots.get(slot * slotLongs + keyLongs + FLOWS)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param slot	Used slot
+	 * @param i		Index of the key's long
+	 * @return	Part of the slot's key
+	 */
+	public long key(int slot, int i) {
+		return slots.get(slot * slotLongs + i);
+	}
+	
+	/**
+	 * @param slot		Used slot
+	 * @param counter	Counter (FLOWS, PACKETS, BYTES, FIRST or LAST)
+	 * @return	Counter's value
+	 */
+	public long counter(int slot, int counter) {
+		return slots.get(slot * slotLongs + keyLongs + counter);
+	}
+	
+	/**
+	 * Remove all the groups, the memory is kept.
+	 */
+	public void clear() {
+		for (int i=0; i<capacity * slotLongs; i++) {
+			slots.put(i, 0);
+		}
+		size = 0;
+	}
+	
+	/**
+	 * @return	Number of groups
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return	Key size in longs
+	 */
+	public int getKeyLongs() {
+		return keyLongs;
+	}
+	
+	/**
+	 * @return	Memory used by the slots in bytes
+	 */
+	public long memory() {
+		return (long) capacity * slotLongs * 8;
+	}
+}
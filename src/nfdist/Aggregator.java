@@ -0,0 +1,506 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nfdist.hadoop.TmpPath;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import com.google.common.net.InetAddresses;
+
+/**
+ * Aggregates flows by the tags of nfdump's -A option (proto, srcip, dstip,
+ * srcport, dstport) and prints them like nfdump does. The groups are kept
+ * in off-heap tables, one for IPv4 flows (key of the addresses as ints and
+ * the protocol and ports in one long) and one for IPv6 flows (addresses as
+ * two longs). A group takes 56 (IPv4) or 80 (IPv6) bytes plus the free
+ * slots, several times less than nfdump needs for a flow record.
+ * 
+ * If the tables reach the memory limit, their groups are spilled to the
+ * local disk into partitions by hash. The partitions are aggregated and
+ * printed one by one at the end.
+ */
+public class Aggregator {
+	private static final Logger log = Logger.getLogger(Aggregator.class);
+	private static final Counter SPILLS = Metrics.counter("nfdist_manager_aggregate_spills_total",
+			"Aggregation tables spilled to the local disk");
+	private static final Counter GROUPS = Metrics.counter("nfdist_manager_aggregate_groups_total",
+			"Groups printed by the Manager's aggregation");
+	private static final Map<Integer, String> PROTOCOLS = new HashMap<Integer, String>();
+	static {
+		PROTOCOLS.put(1, "ICMP");
+		PROTOCOLS.put(2, "IGMP");
+		PROTOCOLS.put(6, "TCP");
+		PROTOCOLS.put(17, "UDP");
+		PROTOCOLS.put(41, "IPv6");
+		PROTOCOLS.put(47, "GRE");
+		PROTOCOLS.put(50, "ESP");
+		PROTOCOLS.put(51, "AH");
+		PROTOCOLS.put(58, "ICMP6");
+		PROTOCOLS.put(89, "OSPF");
+		PROTOCOLS.put(132, "SCTP");
+	}
+	private static final String HEADER = "Date first seen          Duration Proto      Src IP Addr:Port          Dst IP Addr:Port   Packets    Bytes Flows";
+	
+	private boolean proto = false, srcip = false, dstip = false, srcport = false, dstport = false;
+	private boolean quiet = false, scale = true, longV6 = false;
+	private final long memory;
+	private final int bits;
+	private final FileSystem localFs;
+	private final TmpPath localTmp;
+	private final String id;
+	private final Family v4 = new Family("v4", 2);
+	private final Family v6 = new Family("v6", 5);
+	private long records = 0, flows = 0, packets = 0, bytes = 0;
+	private long first = Long.MAX_VALUE, last = 0;
+	
+	/**
+	 * Groups of one address family and their spill files.
+	 */
+	private class Family {
+		private final String name;
+		private final AggregationTable table;
+		private final long[] key;
+		private DataOutputStream[] spills = null;
+		
+		public Family(String name, int keyLongs) {
+			this.name = name;
+			this.table = new AggregationTable(keyLongs);
+			this.key = new long[keyLongs];
+		}
+		
+		private Path spillPath(int partition) {
+			return localTmp.asPath(id + "-" + name + "-" + partition);
+		}
+		
+		/**
+		 * Add the counters to the group of the current key.
+		 */
+		private void add(Family other, long flows, long packets, long bytes, long first, long last) throws IOException {
+			if (table.isFull() && !table.grow(memory - other.table.memory())) {
+				spill();
+			}
+			table.add(key, AggregationTable.hash(key), flows, packets, bytes, first, last);
+		}
+		
+		/**
+		 * Append the groups to the partition files and clear the table.
+		 */
+		private void spill() throws IOException {
+			if (null == spills) {
+				spills = new DataOutputStream[1 << bits];
+				for (int p=0; p<spills.length; p++) {
+					spills[p] = new DataOutputStream(new BufferedOutputStream(localFs.create(spillPath(p), true), 0x10000));
+				}
+			}
+			writeTable(spills, 0, bits);
+			log.debug(table.size() + " " + name + " groups spilled.");
+			SPILLS.inc();
+			table.clear();
+		}
+		
+		/**
+		 * Write the groups of the table into partitions by their hash.
+		 * 
+		 * @param outs	Partition files
+		 * @param used	Hash bits used by the previous partitioning
+		 * @param bits	Hash bits choosing the partition
+		 */
+		private void writeTable(DataOutputStream[] outs, int used, int bits) throws IOException {
+			final long[] k = new long[key.length];
+			final long[] c = new long[AggregationTable.COUNTERS];
+			for (int slot=table.next(0); slot>=0; slot=table.next(slot + 1)) {
+				for (int i=0; i<k.length; i++) {
+					k[i] = table.key(slot, i);
+				}
+				for (int i=0; i<c.length; i++) {
+					c[i] = table.counter(slot, i);
+				}
+				write(outs[partition(AggregationTable.hash(k), used, bits)], k, c);
+			}
+		}
+		
+		private void write(DataOutputStream out, long[] k, long[] c) throws IOException {
+			for (long value: k) {
+				out.writeLong(value);
+			}
+			for (long value: c) {
+				out.writeLong(value);
+			}
+		}
+		
+		/**
+		 * Print the groups, partition by partition if they were spilled.
+		 * 
+		 * @param other	Family sharing the memory limit
+		 * @return	Number of groups
+		 */
+		private long print(PrintStream out, Family other) throws IOException {
+			if (null == spills) {
+				return printTable(out);
+			}
+			spill();
+			for (DataOutputStream spill: spills) {
+				spill.close();
+			}
+			long groups = 0;
+			for (int p=0; p<spills.length; p++) {
+				groups += printPartition(out, other, spillPath(p), bits);
+			}
+			spills = null;
+			return groups;
+		}
+		
+		/**
+		 * Aggregate and print a spilled partition. If its groups do not fit
+		 * into the memory limit, the partition is split again by the next
+		 * bits of the hash and the parts are printed one by one.
+		 * 
+		 * @param other	Family sharing the memory limit
+		 * @param path	Partition file, removed once printed
+		 * @param used	Hash bits used by the partitioning so far
+		 * @return	Number of groups
+		 */
+		private long printPartition(PrintStream out, Family other, Path path, int used) throws IOException {
+			final int split = Math.max(1, bits);
+			final long entries = localFs.getFileStatus(path).getLen() / ((key.length + AggregationTable.COUNTERS) * 8);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(localFs.open(path), 0x10000));
+			DataOutputStream[] parts = null;
+			try {
+				final long[] c = new long[AggregationTable.COUNTERS];
+				for (long e=0; e<entries; e++) {
+					for (int i=0; i<key.length; i++) {
+						key[i] = in.readLong();
+					}
+					for (int i=0; i<c.length; i++) {
+						c[i] = in.readLong();
+					}
+					final long hash = AggregationTable.hash(key);
+					if (null == parts && table.isFull() && !table.grow(memory - other.table.memory())) {
+						if (used + split > 64) {
+							throw new IOException("Aggregated groups of equal hashes exceed the memory limit");
+						}
+						log.debug(name + " partition " + path.getName() + " exceeds the memory limit, splitting it.");
+						parts = new DataOutputStream[1 << split];
+						for (int p=0; p<parts.length; p++) {
+							parts[p] = new DataOutputStream(new BufferedOutputStream(localFs.create(partPath(path, p), true), 0x10000));
+						}
+						writeTable(parts, used, split);
+						table.clear();
+					}
+					if (null != parts) {
+						write(parts[partition(hash, used, split)], key, c);
+					} else {
+						table.add(key, hash, c[AggregationTable.FLOWS], c[AggregationTable.PACKETS],
+								c[AggregationTable.BYTES], c[AggregationTable.FIRST], c[AggregationTable.LAST]);
+					}
+				}
+			} finally {
+				in.close();
+				if (null != parts) {
+					for (DataOutputStream part: parts) {
+						part.close();
+					}
+				}
+			}
+			localFs.delete(path, false);
+			
+			if (null == parts) {
+				final long groups = printTable(out);
+				table.clear();
+				return groups;
+			}
+			long groups = 0;
+			for (int p=0; p<parts.length; p++) {
+				groups += printPartition(out, other, partPath(path, p), used + split);
+			}
+			return groups;
+		}
+		
+		private Path partPath(Path path, int part) {
+			return new Path(path.getParent(), path.getName() + "-" + part);
+		}
+		
+		private long printTable(PrintStream out) {
+			for (int slot=table.next(0); slot>=0; slot=table.next(slot + 1)) {
+				printGroup(out, this, slot);
+			}
+			return table.size();
+		}
+		
+		/**
+		 * Remove the spill files.
+		 */
+		private void cleanup() {
+			if (null == spills) {
+				return;
+			}
+			for (int p=0; p<spills.length; p++) {
+				try {
+					spills[p].close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+			spills = null;
+			//Partitions and their parts if printing failed
+			final Path pattern = localTmp.asPath(id + "-" + name + "-*");
+			try {
+				final FileStatus[] files = localFs.globStatus(pattern);
+				if (null != files) {
+					for (FileStatus file: files) {
+						localFs.delete(file.getPath(), false);
+					}
+				}
+			} catch (IOException e) {
+				log.warn("Can not remove " + pattern.getName() + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @param hash	Group's hash
+	 * @param used	Hash bits used by the previous partitioning
+	 * @param bits	Hash bits choosing the partition
+	 * @return	Partition of the group
+	 */
+	private static int partition(long hash, int used, int bits) {
+		return 0 == bits ? 0 : (int) ((hash << used) >>> (64 - bits));
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param tags			Comma separated aggregation tags
+	 * @param args			Output options, -q, -N and -6 are used
+	 * @param memory		Memory limit of the tables in bytes
+	 * @param partitions	Number of spill partitions, rounded down to a power of 2
+	 * @param localFs		Local file system for spill files
+	 * @param localTmp		Directory for spill files
+	 * @param id			Unique name prefix of the spill files
+	 */
+	public Aggregator(String tags, List<String> args, long memory, int partitions,
+			FileSystem localFs, TmpPath localTmp, String id) {
+		for (String tag: tags.split(",")) {
+			tag = tag.trim().toLowerCase();
+			if (tag.equals("proto")) proto=true;
+			else if (tag.equals("srcip")) srcip=true;
+			else if (tag.equals("dstip")) dstip=true;
+			else if (tag.equals("srcport")) srcport=true;
+			else if (tag.equals("dstport")) dstport=true;
+			else {
+				throw new IllegalArgumentException("Unsupported aggregation tag '" + tag + "'");
+			}
+		}
+		quiet = args.contains("-q");
+		scale = !args.contains("-N");
+		longV6 = args.contains("-6");
+		
+		this.memory = memory;
+		this.bits = 31 - Integer.numberOfLeadingZeros(Math.max(1, partitions));
+		this.localFs = localFs;
+		this.localTmp = localTmp;
+		this.id = id;
+	}
+	
+	/**
+	 * @param tag	Aggregation tag
+	 * @return	True if the tag is supported
+	 */
+	public static boolean isTag(String tag) {
+		tag = tag.trim().toLowerCase();
+		return tag.equals("proto") || tag.equals("srcip") || tag.equals("dstip")
+				|| tag.equals("srcport") || tag.equals("dstport");
+	}
+	
+	/**
+	 * Add the reader's current record, which may be aggregated already.
+	 * 
+	 * @param reader	Reader positioned at a flow record
+	 * @throws IOException
+	 */
+	public void add(NfdumpReader reader) throws IOException {
+		final long flows = Math.max(1, reader.aggregatedFlows());
+		final long packets = reader.packets(), bytes = reader.bytes();
+		final long first = reader.firstSeen(), last = reader.lastSeen();
+		records++;
+		this.flows += flows;
+		this.packets += packets;
+		this.bytes += bytes;
+		this.first = Math.min(this.first, first);
+		this.last = Math.max(this.last, last);
+		
+		final ByteBuffer view = reader.view();
+		final long ports = (proto ? (long) reader.protocol() << 32 : 0)
+				| (srcport ? (long) reader.srcPort() << 16 : 0) | (dstport ? reader.dstPort() : 0);
+		if ((reader.record()[NfdumpFile.RECORD_FLAGS] & NfdumpFile.FLAG_IPV6_ADDR) != 0) {
+			final int data = NfdumpFile.RECORD_DATA;
+			v6.key[0] = srcip ? view.getLong(data) : 0;
+			v6.key[1] = srcip ? view.getLong(data + 8) : 0;
+			v6.key[2] = dstip ? view.getLong(data + 16) : 0;
+			v6.key[3] = dstip ? view.getLong(data + 24) : 0;
+			v6.key[4] = ports;
+			v6.add(v4, flows, packets, bytes, first, last);
+		} else {
+			v4.key[0] = (srcip ? (view.getInt(NfdumpFile.RECORD_DATA) & 0xFFFFFFFFL) << 32 : 0)
+					| (dstip ? view.getInt(NfdumpFile.RECORD_DATA + 4) & 0xFFFFFFFFL : 0);
+			v4.key[1] = ports;
+			v4.add(v6, flows, packets, bytes, first, last);
+		}
+	}
+	
+	/**
+	 * Format a counter like nfdump does.
+	 * 
+	 * @param value	Counter
+	 * @param fixed	Pad scaled values to a fixed width
+	 */
+	private String number(double value, boolean fixed) {
+		if (!scale) {
+			return String.format("%d", (long) value);
+		}
+		final String[] units = {"T", "G", "M"};
+		final double[] limits = {1e12, 1e9, 1e6};
+		for (int i=0; i<units.length; i++) {
+			if (value >= limits[i]) {
+				return String.format(fixed ? "%5.1f %s" : "%.1f %s", value / limits[i], units[i]);
+			}
+		}
+		return String.format(fixed ? "%4.0f" : "%.0f", value);
+	}
+	
+	/**
+	 * @param v6	Address is IPv6
+	 * @param hi	IPv4 address or the high half of IPv6
+	 * @param lo	Low half of IPv6
+	 * @param port	Port, or ICMP type and code
+	 */
+	private String addressPort(boolean v6, long hi, long lo, String port) {
+		final byte[] address = v6 ? ByteBuffer.allocate(16).putLong(hi).putLong(lo).array()
+				: ByteBuffer.allocate(4).putInt((int) hi).array();
+		String text;
+		try {
+			text = InetAddresses.toAddrString(InetAddress.getByAddress(address));
+		} catch (UnknownHostException e) {
+			text = "?";
+		}
+		if (v6 && !longV6 && text.length() > 16) {
+			//Condensed like nfdump does
+			text = text.substring(0, 7) + ".." + text.substring(text.length() - 7);
+		}
+		return String.format("%" + (v6 && longV6 ? 39 : 16) + "s%c%-5s", text, v6 ? '.' : ':', port);
+	}
+	
+	private void printGroup(PrintStream out, Family family, int slot) {
+		final AggregationTable table = family.table;
+		final boolean v6 = family == this.v6;
+		final long ports = table.key(slot, v6 ? 4 : 1);
+		final int protocol = (int) (ports >>> 32);
+		final int src = (int) (ports >>> 16) & 0xFFFF, dst = (int) ports & 0xFFFF;
+		final String dstPort = 1 == protocol || 58 == protocol ? (dst >>> 8) + "." + (dst & 0xFF) : String.valueOf(dst);
+		final String name = PROTOCOLS.get(protocol);
+		
+		final long first = table.counter(slot, AggregationTable.FIRST), last = table.counter(slot, AggregationTable.LAST);
+		final String srcAddr, dstAddr;
+		if (v6) {
+			srcAddr = addressPort(true, table.key(slot, 0), table.key(slot, 1), String.valueOf(src));
+			dstAddr = addressPort(true, table.key(slot, 2), table.key(slot, 3), dstPort);
+		} else {
+			srcAddr = addressPort(false, table.key(slot, 0) >>> 32, 0, String.valueOf(src));
+			dstAddr = addressPort(false, table.key(slot, 0) & 0xFFFFFFFFL, 0, dstPort);
+		}
+		out.printf("%s.%03d %9.3f %-5s %s -> %s %8s %8s %5d\n",
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(first)), first % 1000,
+				(last - first) / 1000.0, null != name ? name : String.valueOf(protocol), srcAddr, dstAddr,
+				number(table.counter(slot, AggregationTable.PACKETS), true),
+				number(table.counter(slot, AggregationTable.BYTES), true),
+				table.counter(slot, AggregationTable.FLOWS));
+	}
+	
+	/**
+	 * Print the groups and, unless -q was given, the header and the summary.
+	 * 
+	 * @param out		Output stream
+	 * @param bytesRead	Bytes of the results read, for the summary
+	 * @return	Number of groups
+	 * @throws IOException	If the spilled groups can not be read
+	 */
+	public long print(PrintStream out, long bytesRead) throws IOException {
+		if (!quiet) {
+			out.println(HEADER);
+		}
+		final long groups = v4.print(out, v6) + v6.print(out, v4);
+		GROUPS.add(groups);
+		
+		if (!quiet) {
+			final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			final double duration = records > 0 ? (last - first) / 1000.0 : 0;
+			out.printf("Aggregated flows %d\n", groups);
+			out.printf("Summary: total flows: %d, total bytes: %s, total packets: %s, avg bps: %s, avg pps: %s, avg bpp: %d\n",
+					flows, number(bytes, false), number(packets, false),
+					number(duration > 0 ? bytes * 8 / duration : 0, false),
+					number(duration > 0 ? packets / duration : 0, false),
+					packets > 0 ? bytes / packets : 0);
+			if (records > 0) {
+				out.printf("Time window: %s - %s\n", format.format(new Date(first)), format.format(new Date(last)));
+			}
+			out.printf("Total flows processed: %d, Blocks skipped: 0, Bytes read: %d\n", records, bytesRead);
+		}
+		out.flush();
+		return groups;
+	}
+	
+	/**
+	 * Remove the spill files, the tables are released with the object.
+	 */
+	public void cleanup() {
+		v4.cleanup();
+		v6.cleanup();
+	}
+}
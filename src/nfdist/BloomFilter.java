@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Bloom filter of byte strings. A negative answer is exact, a positive one
+ * is wrong with the probability given at construction.
+ */
+public class BloomFilter {
+	private static final HashFunction HASH = Hashing.murmur3_128();
+	private static final int MAX_HASHES = 16;
+	
+	private final long[] bits;
+	private final long size;
+	private final int hashes;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param expected	Number of distinct values to be added
+	 * @param fpp		False positive probability at that number of values
+	 */
+	public BloomFilter(long expected, double fpp) {
+		if (fpp <= 0 || fpp >= 1) {
+			throw new IllegalArgumentException("Bloom filter false positive probability must be between 0 and 1");
+		}
+		final long n = Math.max(1, expected);
+		final long m = Math.max(64, (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+		this.bits = new long[(int) ((m + 63) / 64)];
+		this.size = bits.length * 64L;
+		this.hashes = (int) Math.min(MAX_HASHES, Math.max(1, Math.round((double) size / n * Math.log(2))));
+	}
+	
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.size = bits.length * 64L;
+		this.hashes = hashes;
+	}
+	
+	/**
+	 * Add a value to the set.
+	 * 
+	 * @param value	Serialized value
+	 */
+	public void put(byte[] value) {
+		final byte[] hash = HASH.hashBytes(value).asBytes();
+		final long h1 = toLong(hash, 0), h2 = toLong(hash, 8);
+		for (int i=0; i<hashes; i++) {
+			final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+	
+	/**
+	 * @param value	Serialized value
+	 * @return	False if the value was never added
+	 */
+	public boolean mightContain(byte[] value) {
+		final byte[] hash = HASH.hashBytes(value).asBytes();
+		final long h1 = toLong(hash, 0), h2 = toLong(hash, 8);
+		for (int i=0; i<hashes; i++) {
+			final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static long toLong(byte[] b, int offset) {
+		long value = 0;
+		for (int i=offset+7; i>=offset; i--) {
+			value = (value << 8) | (b[i] & 0xFF);
+		}
+		return value;
+	}
+	
+	/**
+	 * @return	Size of the bit set in bytes
+	 */
+	public int sizeInBytes() {
+		return bits.length * 8;
+	}
+	
+	/**
+	 * Serialize the filter.
+	 * 
+	 * @param out	Output stream
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(hashes);
+		out.writeInt(bits.length);
+		for (long word: bits) {
+			out.writeLong(word);
+		}
+	}
+	
+	/**
+	 * Deserialize the filter.
+	 * 
+	 * @param in	Input stream
+	 * @return	Filter
+	 * @throws IOException
+	 */
+	public static BloomFilter read(DataInput in) throws IOException {
+		final int hashes = in.readUnsignedByte();
+		final int words = in.readInt();
+		if (hashes < 1 || hashes > MAX_HASHES || words < 1) {
+			throw new IOException("Corrupt bloom filter");
+		}
+		final long[] bits = new long[words];
+		for (int i=0; i<words; i++) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, hashes);
+	}
+}
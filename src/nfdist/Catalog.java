@@ -0,0 +1,332 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Summaries of the nfcapd files of a directory (a day), stored in the
+ * directory as ".catalog". An entry is valid while the length and the
+ * modification time of its file do not change.
+ * 
+ * Entries of files which were never indexed are created on their first use
+ * from the stat record in the file header. The Indexer adds the value
+ * ranges of the flows.
+ */
+public class Catalog {
+	private static final Logger log = Logger.getLogger(Catalog.class);
+	public static final String NAME = ".catalog";
+	private static final int MAGIC = 0x4E464343;
+	private static final int VERSION = 1;
+	
+	private static final Counter PRUNED = Metrics.counter("nfdist_manager_catalog_files_pruned_total",
+			"Files skipped because their summary rules out the filter");
+	private static final Counter HEADERS = Metrics.counter("nfdist_manager_catalog_headers_read_total",
+			"File headers read to fill the catalog");
+	private static final Counter ANSWERED = Metrics.counter("nfdist_manager_catalog_queries_total",
+			"Summary queries answered from the catalog");
+	
+	/**
+	 * Catalog entry.
+	 */
+	private static class Entry {
+		final long len, mtime;
+		final FileSummary summary;
+		
+		Entry(long len, long mtime, FileSummary summary) {
+			this.len = len;
+			this.mtime = mtime;
+			this.summary = summary;
+		}
+	}
+	
+	private final FileSystem fs;
+	private final boolean ENABLED;
+	private final int THREADS;
+	private final Map<Path, Map<String, Entry>> dirs = new HashMap<Path, Map<String, Entry>>();
+	private final Set<Path> dirty = new HashSet<Path>();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param fs		HDFS handle
+	 * @param config	Nfdist's configuration
+	 */
+	public Catalog(FileSystem fs, Configuration config) {
+		this.fs = fs;
+		this.ENABLED = config.getBoolean("catalog.enabled", true);
+		this.THREADS = config.getInt("index.threads", 8);
+	}
+	
+	/**
+	 * Read a directory's catalog.
+	 * 
+	 * @param dir	Directory
+	 * @return	Entries by file name, empty if there is no valid catalog
+	 */
+	private Map<String, Entry> read(Path dir) {
+		final Map<String, Entry> entries = new HashMap<String, Entry>();
+		final Path path = new Path(dir, NAME);
+		try {
+			final FSDataInputStream in = fs.open(path);
+			try {
+				final DataInputStream data = new DataInputStream(in);
+				if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION) {
+					log.warn("Ignoring catalog " + path + " of unknown version");
+					return entries;
+				}
+				final int count = data.readInt();
+				for (int i=0; i<count; i++) {
+					final String name = data.readUTF();
+					final long len = data.readLong();
+					final long mtime = data.readLong();
+					entries.put(name, new Entry(len, mtime, FileSummary.read(data)));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			//not created yet
+		} catch (IOException e) {
+			log.warn("Ignoring catalog " + path + ": " + e.getMessage());
+			entries.clear();
+		}
+		return entries;
+	}
+	
+	/**
+	 * @return	Cached entries of the directory
+	 */
+	private synchronized Map<String, Entry> load(Path dir) {
+		Map<String, Entry> entries = dirs.get(dir);
+		if (null == entries) {
+			entries = read(dir);
+			dirs.put(dir, entries);
+		}
+		return entries;
+	}
+	
+	/**
+	 * Get a file's summary from the catalog.
+	 * 
+	 * @param status	File's status object
+	 * @return	Summary or null if the catalog has no valid entry
+	 */
+	public synchronized FileSummary get(FileStatus status) {
+		final Entry e = load(status.getPath().getParent()).get(status.getPath().getName());
+		if (null == e || e.len != status.getLen() || e.mtime != status.getModificationTime()) {
+			return null;
+		}
+		return e.summary;
+	}
+	
+	/**
+	 * Add or replace a file's summary, see flush().
+	 * 
+	 * @param status	File's status object
+	 * @param summary	File's summary
+	 */
+	public synchronized void put(FileStatus status, FileSummary summary) {
+		final Path dir = status.getPath().getParent();
+		load(dir).put(status.getPath().getName(), new Entry(status.getLen(), status.getModificationTime(), summary));
+		dirty.add(dir);
+	}
+	
+	/**
+	 * Store the changed catalogs. Entries written by others in the meantime
+	 * are kept unless they were replaced here.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		for (Path dir: dirty) {
+			final Map<String, Entry> entries = read(dir);
+			entries.putAll(dirs.get(dir));
+			
+			final Path path = new Path(dir, NAME);
+			final Path tmp = new Path(dir, NAME + ".tmp");
+			final FSDataOutputStream out = fs.create(tmp, true);
+			try {
+				final DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(MAGIC);
+				data.writeByte(VERSION);
+				data.writeInt(entries.size());
+				for (Map.Entry<String, Entry> e: entries.entrySet()) {
+					data.writeUTF(e.getKey());
+					data.writeLong(e.getValue().len);
+					data.writeLong(e.getValue().mtime);
+					e.getValue().summary.write(data);
+				}
+				data.flush();
+			} finally {
+				out.close();
+			}
+			fs.delete(path, false);
+			if (!fs.rename(tmp, path)) {
+				throw new IOException("Can not rename " + tmp + " to " + path);
+			}
+		}
+		dirty.clear();
+	}
+	
+	/**
+	 * Get the summaries of the files. Missing entries are created from the
+	 * file headers, which are read concurrently, and stored.
+	 * 
+	 * @param stats	Status of the files
+	 * @return	Summaries in the order of the files, null if a header can not be read
+	 * @throws InterruptedException
+	 */
+	public List<FileSummary> summaries(List<FileStatus> stats) throws InterruptedException {
+		final List<FileSummary> result = new ArrayList<FileSummary>(stats.size());
+		final Map<Integer, Future<FileSummary>> missing = new HashMap<Integer, Future<FileSummary>>();
+		ExecutorService executor = null;
+		try {
+			for (final FileStatus s: stats) {
+				final FileSummary summary = get(s);
+				if (null == summary) {
+					if (null == executor) {
+						executor = Executors.newFixedThreadPool(THREADS);
+					}
+					missing.put(result.size(), executor.submit(new Callable<FileSummary>() {
+						@Override
+						public FileSummary call() throws IOException {
+							final byte[] header = new byte[NfdumpFile.DATA_OFFSET];
+							final FSDataInputStream in = fs.open(s.getPath());
+							try {
+								in.readFully(0, header);
+							} finally {
+								in.close();
+							}
+							HEADERS.inc();
+							return FileSummary.fromHeader(header);
+						}
+					}));
+				}
+				result.add(summary);
+			}
+			
+			for (Map.Entry<Integer, Future<FileSummary>> e: missing.entrySet()) {
+				final FileStatus s = stats.get(e.getKey());
+				try {
+					final FileSummary summary = e.getValue().get();
+					result.set(e.getKey(), summary);
+					put(s, summary);
+				} catch (ExecutionException ex) {
+					log.warn("Can not read the header of " + s.getPath() + ": " + ex.getCause().getMessage());
+				}
+			}
+		} finally {
+			if (null != executor) {
+				executor.shutdownNow();
+			}
+		}
+		
+		if (!missing.isEmpty()) {
+			try {
+				flush();
+			} catch (IOException e) {
+				log.warn("Can not store the catalog: " + e.getMessage());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Sum the stat records of the files.
+	 * 
+	 * @param stats	Status of the files
+	 * @return	Summary or null if it is disabled or some file has no summary
+	 * @throws InterruptedException
+	 */
+	public FileSummary summarize(List<FileStatus> stats) throws InterruptedException {
+		if (!ENABLED) {
+			return null;
+		}
+		final FileSummary total = new FileSummary();
+		for (FileSummary s: summaries(stats)) {
+			if (null == s) {
+				return null;
+			}
+			total.merge(s);
+		}
+		ANSWERED.inc();
+		return total;
+	}
+	
+	/**
+	 * Drop the files whose summary shows that the filter can not match.
+	 * 
+	 * @param stats		Status of the query's files
+	 * @param predicate	Query's filter
+	 * @return	Files to process, in the original order
+	 * @throws InterruptedException
+	 */
+	public List<FileStatus> prune(List<FileStatus> stats, FilterPredicate predicate) throws InterruptedException {
+		if (!ENABLED || stats.isEmpty() || !predicate.usesSummary()) {
+			return stats;
+		}
+		final List<FileSummary> summaries = summaries(stats);
+		final List<FileStatus> result = new ArrayList<FileStatus>(stats.size());
+		for (int i=0; i<stats.size(); i++) {
+			final FileSummary summary = summaries.get(i);
+			if (null == summary || predicate.mightMatch(summary)) {
+				result.add(stats.get(i));
+			}
+		}
+		PRUNED.add(stats.size() - result.size());
+		log.info("Catalog ruled out " + (stats.size() - result.size()) + " of " + stats.size() + " file(s)");
+		return result;
+	}
+}
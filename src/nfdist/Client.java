@@ -0,0 +1,109 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * Thin client for the ManagerServer. It forwards nfdump arguments and
+ * streams the output back. Only JDK classes are used, so it starts fast.
+ * 
+ * Protocol: the client sends the number of arguments followed by the
+ * arguments (DataOutput.writeUTF). The server replies with frames of a
+ * channel byte and a length, followed by the data. The exit frame carries
+ * the exit code instead of the length and ends the session.
+ */
+public class Client {
+	public static final int EXIT = 0;
+	public static final int STDOUT = 1;
+	public static final int STDERR = 2;
+	/** Exit code if the server is not available */
+	public static final int UNAVAILABLE = 111;
+	
+	public static void main(String[] args) throws IOException {
+		final Properties config = new Properties();
+		final InputStream configIn = Client.class.getClassLoader().getResourceAsStream("nfdist.properties");
+		if (null != configIn) {
+			config.load(configIn);
+			configIn.close();
+		}
+		final String host = config.getProperty("manager.address", "localhost").trim();
+		final int port = Integer.decode(config.getProperty("manager.port", "0").trim());
+		if (0 == port) {
+			System.exit(UNAVAILABLE);
+		}
+		
+		final Socket socket;
+		try {
+			socket = new Socket(host, port);
+		} catch (IOException e) {
+			System.exit(UNAVAILABLE);
+			return;
+		}
+		
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		out.writeInt(args.length);
+		for (String arg: args) {
+			out.writeUTF(arg);
+		}
+		out.flush();
+		
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		byte[] buffer = new byte[0x10000];
+		int channel, length;
+		try {
+			while (true) {
+				channel = in.readUnsignedByte();
+				length = in.readInt();
+				if (EXIT == channel) {
+					System.out.flush();
+					System.exit(length);
+				}
+				if (length > buffer.length) {
+					buffer = new byte[length];
+				}
+				in.readFully(buffer, 0, length);
+				final OutputStream std = (STDERR == channel) ? System.err : System.out;
+				std.write(buffer, 0, length);
+			}
+		} catch (EOFException e) {
+			System.err.println("Connection to the Manager was lost.");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Chooses the codec of each job's intermediate result.
+ * 
+ * Compression only pays off if the result is large enough to make the
+ * transfer through HDFS the bottleneck, and the Manager, which decompresses
+ * all results, has CPU to spare. In the auto mode a job's result size is
+ * estimated from its input size and the results of the query's completed
+ * jobs: small results are not compressed, large ones use bzip2 while the
+ * Manager is idle, everything else uses LZO.
+ */
+public class CodecPolicy {
+	public static final String NONE = "none";
+	public static final String LZO = "lzo";
+	public static final String BZ2 = "bz2";
+	public static final String AUTO = "auto";
+	
+	//Uncompressed size of a typical flow record
+	private static final int RECORD_BYTES = 64;
+	//Result size per input byte before any job is completed
+	private static final double PRIOR_RATIO = 0.5;
+	private static final double PRIOR_RATIO_AGGREGATED = 0.05;
+	//Share of the CPUs which must be idle to use bzip2
+	private static final double BZ2_HEADROOM = 0.5;
+	
+	private final String mode;
+	private final long SMALL;
+	private final long LARGE;
+	private final double LOAD;
+	private final double prior;
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	
+	private long inputBytes = 0, inputJobs = 0;
+	private long resultBytes = 0, resultJobs = 0;
+	private int none = 0, lzo = 0, bz2 = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param config		Nfdist's configuration
+	 * @param aggregated	True if Workers aggregate or summarize the flows,
+	 * 						so the results are much smaller than the input
+	 * @throws IllegalArgumentException	If jobs.codec is not known
+	 */
+	public CodecPolicy(Configuration config, boolean aggregated) {
+		this.mode = config.getString("jobs.codec", AUTO);
+		this.SMALL = config.getLong("jobs.codec.small", 0x100000);
+		this.LARGE = config.getLong("jobs.codec.large", 0x4000000);
+		this.LOAD = config.getDouble("jobs.codec.load", 0.75);
+		this.prior = aggregated ? PRIOR_RATIO_AGGREGATED : PRIOR_RATIO;
+		
+		if (!mode.equals(AUTO) && !mode.equals(NONE) && !mode.equals(LZO) && !mode.equals(BZ2)) {
+			throw new IllegalArgumentException("Unknown jobs.codec: " + mode);
+		}
+	}
+	
+	/**
+	 * @return	Load average per CPU, 0 if it is not available
+	 */
+	private double load() {
+		final double load = os.getSystemLoadAverage();
+		return load < 0 ? 0 : load / os.getAvailableProcessors();
+	}
+	
+	/**
+	 * Choose the codec of a job.
+	 * 
+	 * @param input	Size of the job's input file
+	 * @return	Codec name for JobInfo
+	 */
+	public synchronized String choose(long input) {
+		inputBytes += input;
+		inputJobs++;
+		
+		String codec = mode;
+		if (mode.equals(AUTO)) {
+			final double estimate = estimate(input);
+			final double load = load();
+			if (estimate < SMALL || load > LOAD) {
+				codec = NONE;
+			} else if (estimate > LARGE && load < 1 - BZ2_HEADROOM) {
+				codec = BZ2;
+			} else {
+				codec = LZO;
+			}
+		}
+		
+		if (codec.equals(NONE)) {
+			none++;
+		} else if (codec.equals(LZO)) {
+			lzo++;
+		} else {
+			bz2++;
+		}
+		return codec;
+	}
+	
+	/**
+	 * @param input	Size of a job's input file
+	 * @return	Estimated uncompressed result size
+	 */
+	private double estimate(long input) {
+		if (0 == resultJobs) {
+			return input * prior;
+		}
+		//Average result per average input of the query
+		return input * ((double) resultBytes / resultJobs) / ((double) inputBytes / inputJobs);
+	}
+	
+	/**
+	 * Learn from a completed job.
+	 * 
+	 * @param records	Number of records in the job's result
+	 */
+	public synchronized void observe(long records) {
+		resultBytes += records * RECORD_BYTES;
+		resultJobs++;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "none " + none + ", lzo " + lzo + ", bz2 " + bz2;
+	}
+}
@@ -29,18 +29,24 @@
 package nfdist;
 
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import nfdist.hadoop.TmpPath;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
 import nfdist.zookeeper.JobRequest;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.zookeeper.KeeperException;
@@ -49,14 +55,77 @@ import org.apache.zookeeper.KeeperException;
  * Provides methods for combiner control.
  */
 public class Combiner extends Proc {
+	//Read buffer of each merged result
+	private static final int MERGE_BUFSIZE = 0x10000;
+	private static final Counter RESULT_BYTES = Metrics.counter("nfdist_manager_result_bytes_total",
+			"Bytes of job results read by the Combiner");
+	private static final Counter RECORDS = Metrics.counter("nfdist_manager_result_records_total",
+			"Records in job results read by the Combiner");
 	private final int BUFSIZE;
 	private final String NFCAT;
+	private final int FANIN;
+	private final int PREFETCH;
+	private final long AGGREGATE_MEMORY;
+	private final int AGGREGATE_PARTITIONS;
 	
-	private final Thread procIn, procOut, procErr;
+	private final Thread procIn;
 	private final FileSystem fs;
 	private final JobRequest jobs;
+	private final FileSystem localFs;
 	private Process proc;
-	private TmpPath hdfsTmp;
+	private TmpPath hdfsTmp, localTmp;
+	private long limit = 0;
+	private RecordOrder order = null;
+	private String aggregateTags = null;
+	private List<String> aggregateArgs = null;
+	private CodecPolicy codecs = null;
+	private List<FileStatus> direct = Collections.emptyList();
+	private volatile long directBytes = 0, directTime = 0;
+	//Records of the job results passed to nfcat
+	private long records = 0;
+	
+	/**
+	 * Nfcat's stdin, remembers whether a write failed. Nfcat quitting early
+	 * (-c option) breaks the pipe, which unlike a failed read of a result
+	 * is not an error.
+	 */
+	private static class Pipe extends FilterOutputStream {
+		private boolean broken = false;
+		
+		public Pipe(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			}
+		}
+	}
 	
 	/**
 	 * Waits for job results, reads them from HDFS and writes into nfcat's stdin.
@@ -64,74 +133,31 @@ public class Combiner extends Proc {
 	private class ProcIn implements Runnable {
 		@Override
 		public void run() {
+			if (null != aggregateTags) {
+				aggregateResults();
+				return;
+			}
+			
 			//final WritableByteChannel inChannel = Channels.newChannel(proc.getOutputStream());
-			final OutputStream output = proc.getOutputStream();
+			final Pipe output = new Pipe(proc.getOutputStream());
 			final ByteBuffer dataBB = ByteBuffer.allocate(BUFSIZE);
 			
-			String id;
-			Path inFilePath;
-			FSDataInputStream hdfsIn = null;
+			if (null != order) {
+				mergeResults(output);
+				return;
+			}
 			
 			try {
+				if (!readDirect(output, dataBB)) {
+					finishEarly(output);
+					return;
+				}
+				
 				while (!jobs.allDone() || jobs.getCompletedCount() == 0) {
-					id = jobs.takeCompleted();
-					inFilePath = hdfsTmp.asPath(id);
-					log.debug(id + " reading results.");
-					try {
-						hdfsIn = fs.open(inFilePath);
-						while (hdfsIn.read(dataBB) > 0) {
-							dataBB.flip();
-							
-							/* * * * * * * * * * * * * * * * * * * * *   
-							ByteChannels do not notify when the stream is closed.
-							Copy the data to a byte array and write it directly to the stream.
-							 * * * * * * * * * * * * * * * * * * * * */
-							//inChannel.write(dataBB);
-							byte[] buff = new byte[dataBB.remaining()];
-							dataBB.get(buff);
-							output.write(buff);
-							output.flush();
-							
-							dataBB.clear();
-						}
-					}
-					catch (FileNotFoundException e) {
-						log.debug(id+" job has no data.");
-						continue;
-					}
-					catch (IOException e) {
-						//Process has quit on us, do the cleanup and exit.
-						//Broken pipe is normal when nfdump limits its output (-c option).
-						log.debug("Finishing early due to exception: "+e.getMessage());
-						
-						//close the current file
-						hdfsIn.close();
-						fs.delete(inFilePath, false);
-						
-						log.info("Early result, canceling remaining jobs.");
-						jobs.cancelAll();
-						
-						//remove remaining files
-						while (!jobs.allDone()) {
-							try {
-								id = jobs.takeCompleted();
-								inFilePath = hdfsTmp.asPath(id);
-								log.debug("Cleanup due to exception, removing: "+inFilePath.getName());
-								fs.delete(inFilePath, false);
-							}
-							catch (InterruptedException e2) {
-								log.warn("Interupted while cleaning: "+inFilePath.getName());
-								break;
-							}
-						}
-						//inChannel.close();
-						output.close();
-						log.debug("Cleanup finished successfully.");
+					if (!copyResult(jobs.takeCompleted(), output, dataBB)) {
+						finishEarly(output);
 						return;
 					}
-					log.debug("Closing & Removing: "+inFilePath.getName());
-					hdfsIn.close();
-					fs.delete(inFilePath, false);
 				}
 				//inChannel.close();
 				output.close();
@@ -140,34 +166,349 @@ public class Combiner extends Proc {
 				// this will force other channels to terminate
 				proc.destroy();
 			} catch (IOException e) {
-				log.error("Unhandled exception: "+e.getMessage());
-				e.printStackTrace();
+				fail("Can not combine the results: " + e.getMessage());
 			} catch (KeeperException e) {
-				log.error("Unhandled exception: "+e.getMessage());
-				e.printStackTrace();
+				fail("Can not combine the results: " + e.getMessage());
 			}
 			
 		}
 	}
 	
 	/**
-	 * Proxy nfcat's stdout.
+	 * Copy a completed job's result into nfcat's stdin and remove it.
+	 * 
+	 * @param id		Job id
+	 * @param output	Nfcat's stdin
+	 * @param dataBB	Read buffer
+	 * @return	False if nfcat has quit, the record limit is reached or the
+	 * 			result can not be read
+	 * @throws IOException
 	 */
-	private class ProcOut implements Runnable {
-		@Override
-		public void run() {
-			StreamToStd(proc.getInputStream(), System.out, BUFSIZE);
+	private boolean copyResult(String id, Pipe output, ByteBuffer dataBB) throws IOException {
+		final Path inFilePath = hdfsTmp.asPath(id);
+		final FSDataInputStream hdfsIn;
+		log.debug(id + " reading results.");
+		try {
+			hdfsIn = fs.open(inFilePath);
+		} catch (FileNotFoundException e) {
+			log.debug(id+" job has no data.");
+			return true;
+		}
+		try {
+			final long count = countRecords(hdfsIn, dataBB, id);
+			records += count;
+			if (null != codecs) {
+				codecs.observe(count);
+			}
+			RECORDS.add(count);
+			RESULT_BYTES.add(copy(hdfsIn, output, dataBB));
+		} catch (IOException e) {
+			if (output.broken) {
+				//Process has quit on us, do the cleanup and exit.
+				//Broken pipe is normal when nfdump limits its output (-c option).
+				log.debug("Finishing early due to exception: "+e.getMessage());
+			} else {
+				fail("Can not read the result of " + id + ": " + e.getMessage());
+			}
+			dataBB.clear();
+			return false;
+		} finally {
+			log.debug("Closing & Removing: "+inFilePath.getName());
+			hdfsIn.close();
+			fs.delete(inFilePath, false);
 		}
+		
+		if (limit > 0 && records >= limit) {
+			log.info("Record limit reached with " + records + " records.");
+			return false;
+		}
+		return true;
 	}
-
+	
 	/**
-	 * Proxy nfcat's stderr.
+	 * Pass the raw files of a hybrid plan into nfcat's stdin. They are
+	 * filtered by nfcat's nfdump, so they mix with the job results. The
+	 * results completed meanwhile are copied between the files, which
+	 * returns their window permits so the distributed part keeps running.
+	 * 
+	 * @param output	Nfcat's stdin
+	 * @param dataBB	Read buffer of the job results
+	 * @return	False if nfcat has quit, the record limit is reached or a
+	 * 			file can not be read
+	 * @throws InterruptedException
+	 * @throws IOException
 	 */
-	private class ProcErr implements Runnable {
-		@Override
-		public void run() {
-			StreamToStd(proc.getErrorStream(), System.err, BUFSIZE);
+	private boolean readDirect(Pipe output, ByteBuffer dataBB) throws InterruptedException, IOException {
+		if (direct.isEmpty()) {
+			return true;
 		}
+		final long start = System.currentTimeMillis();
+		long combined = 0;
+		final Prefetcher prefetcher = new Prefetcher(fs, direct, PREFETCH, BUFSIZE);
+		ByteBuffer chunk;
+		try {
+			while (true) {
+				try {
+					chunk = prefetcher.next();
+				} catch (IOException e) {
+					//Part of the file may have been written already, nfcat's input is corrupt
+					fail("Can not read " + e.getMessage());
+					return false;
+				}
+				if (null == chunk) {
+					break;
+				}
+				if (prefetcher.isFirstChunk()) {
+					final long combineStart = System.currentTimeMillis();
+					for (String id = jobs.pollCompleted(); null != id; id = jobs.pollCompleted()) {
+						if (!copyResult(id, output, dataBB)) {
+							return false;
+						}
+					}
+					combined += System.currentTimeMillis() - combineStart;
+				}
+				try {
+					output.write(chunk.array(), chunk.position(), chunk.remaining());
+					output.flush();
+				} catch (IOException e) {
+					log.debug("Finishing early due to exception: "+e.getMessage());
+					return false;
+				}
+				directBytes += chunk.remaining();
+				prefetcher.release(chunk);
+			}
+		} finally {
+			prefetcher.close();
+		}
+		directTime = System.currentTimeMillis() - start - combined;
+		return true;
+	}
+	
+	/**
+	 * Copy a job result into nfcat's stdin. Bytes already in the buffer are
+	 * copied first.
+	 * 
+	 * @param hdfsIn	Job result
+	 * @param output	Nfcat's stdin
+	 * @param dataBB	Read buffer
+	 * @return	Number of bytes copied
+	 * @throws IOException
+	 */
+	static long copy(FSDataInputStream hdfsIn, OutputStream output, ByteBuffer dataBB) throws IOException {
+		long total = 0;
+		while (hdfsIn.read(dataBB) > 0 || dataBB.position() > 0) {
+			dataBB.flip();
+			
+			/* * * * * * * * * * * * * * * * * * * * *   
+			ByteChannels do not notify when the stream is closed.
+			Copy the data to a byte array and write it directly to the stream.
+			 * * * * * * * * * * * * * * * * * * * * */
+			//inChannel.write(dataBB);
+			byte[] buff = new byte[dataBB.remaining()];
+			dataBB.get(buff);
+			output.write(buff);
+			output.flush();
+			
+			dataBB.clear();
+			total += buff.length;
+		}
+		return total;
+	}
+	
+	/**
+	 * Merges sorted job results as they come. The records which no
+	 * unfinished job can precede (see JobRequest.getWatermark()) are written
+	 * into nfcat's stdin right away, the rest once all jobs are finished.
+	 * Once the record limit is written this way the remaining jobs are
+	 * canceled.
+	 * 
+	 * @param output	Nfcat's stdin
+	 */
+	private void mergeResults(Pipe output) {
+		ExternalMerge merge = null;
+		String id;
+		Path inFilePath;
+		boolean full = false;
+		
+		try {
+			merge = new ExternalMerge(order, FANIN, MERGE_BUFSIZE, limit,
+					localFs, localTmp, "merge-" + UUID.randomUUID(), output);
+			while (!full && (!jobs.allDone() || jobs.getCompletedCount() == 0)) {
+				id = jobs.takeCompleted();
+				inFilePath = hdfsTmp.asPath(id);
+				if (fs.exists(inFilePath)) {
+					full = merge.add(fs, inFilePath, jobs.getWatermark());
+				} else {
+					log.debug(id+" job has no data.");
+				}
+			}
+			
+			final long count = merge.finish();
+			log.debug(count + " records merged.");
+			if (full) {
+				log.info("Record limit reached with " + count + " records.");
+				finishEarly(output);
+			}
+		} catch (KeeperException e) {
+			log.warn("Can not cancel the remaining jobs: " + e.getMessage());
+		} catch (InterruptedException e) {
+			log.info("Interrupted, quiting...");
+			// this will force other channels to terminate
+			proc.destroy();
+		} catch (IOException e) {
+			if (output.broken) {
+				log.debug("Merging finished early due to exception: "+e.getMessage());
+			} else {
+				fail("Can not merge the results: " + e.getMessage());
+			}
+			try {
+				cancelRemaining();
+			} catch (IOException e1) {
+				log.warn("Can not remove the remaining results: " + e1.getMessage());
+			} catch (KeeperException e1) {
+				log.warn("Can not cancel the remaining jobs: " + e1.getMessage());
+			}
+		} finally {
+			try {
+				output.close();
+			} catch (IOException e) {
+				//broken pipe, ignore
+			}
+			if (null != merge) {
+				merge.cleanup();
+			}
+		}
+	}
+	
+	/**
+	 * Aggregates uncompressed job results as they come and prints the groups
+	 * once all jobs are finished, nfcat is not used.
+	 */
+	private void aggregateResults() {
+		final Aggregator aggregator = new Aggregator(aggregateTags, aggregateArgs, AGGREGATE_MEMORY, AGGREGATE_PARTITIONS,
+				localFs, localTmp, "aggregate-" + UUID.randomUUID());
+		String id;
+		Path inFilePath;
+		FSDataInputStream hdfsIn;
+		long bytes = 0;
+		
+		try {
+			while (!jobs.allDone() || jobs.getCompletedCount() == 0) {
+				id = jobs.takeCompleted();
+				inFilePath = hdfsTmp.asPath(id);
+				try {
+					hdfsIn = fs.open(inFilePath);
+				} catch (FileNotFoundException e) {
+					log.debug(id+" job has no data.");
+					continue;
+				}
+				long count = 0;
+				try {
+					final NfdumpReader reader = new NfdumpReader(hdfsIn, MERGE_BUFSIZE);
+					while (reader.next()) {
+						aggregator.add(reader);
+						count++;
+					}
+					RECORDS.add(count);
+					RESULT_BYTES.add(hdfsIn.getPos());
+					bytes += hdfsIn.getPos();
+				} finally {
+					hdfsIn.close();
+					fs.delete(inFilePath, false);
+				}
+			}
+			
+			final long groups = aggregator.print(stdout, bytes);
+			log.debug(groups + " groups aggregated.");
+		} catch (InterruptedException e) {
+			log.info("Interrupted, quiting...");
+		} catch (IOException e) {
+			//Nothing or only a part of the groups is printed
+			fail("Can not aggregate the results: " + e.getMessage());
+			try {
+				cancelRemaining();
+			} catch (IOException e1) {
+				log.warn("Can not remove the remaining results: " + e1.getMessage());
+			} catch (KeeperException e1) {
+				log.warn("Can not cancel the remaining jobs: " + e1.getMessage());
+			}
+		} finally {
+			aggregator.cleanup();
+		}
+	}
+	
+	/**
+	 * Read the start of the result into the buffer and take the number of
+	 * records from its stat record. The buffer is copied to nfcat with the
+	 * rest of the result, so the header is read only once.
+	 * 
+	 * @param hdfsIn	Result file
+	 * @param dataBB	Empty read buffer
+	 * @param id		Job id
+	 * @return	Number of records, 0 if unknown
+	 * @throws IOException
+	 */
+	private long countRecords(FSDataInputStream hdfsIn, ByteBuffer dataBB, String id) throws IOException {
+		while (dataBB.position() < NfdumpFile.DATA_OFFSET && hdfsIn.read(dataBB) > 0) {
+			//fill the header
+		}
+		if (dataBB.position() < NfdumpFile.DATA_OFFSET) {
+			log.warn(id + " result is shorter than the nfdump header.");
+			return 0;
+		}
+		try {
+			return NfdumpFile.getFlows(dataBB.array());
+		} catch (IOException e) {
+			log.warn(id + " can not read the number of records: " + e.getMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * Stop feeding nfcat, cancel the remaining jobs and remove their results.
+	 * 
+	 * @param output	Nfcat's stdin
+	 * @throws IOException
+	 * @throws KeeperException
+	 */
+	private void finishEarly(OutputStream output) throws IOException, KeeperException {
+		//Let nfcat produce the output while cleaning up
+		try {
+			output.close();
+		} catch (IOException e) {
+			//broken pipe, ignore
+		}
+		cancelRemaining();
+	}
+	
+	/**
+	 * Cancel the remaining jobs and remove their results.
+	 * 
+	 * @throws IOException
+	 * @throws KeeperException
+	 */
+	private void cancelRemaining() throws IOException, KeeperException {
+		String id;
+		Path inFilePath;
+		
+		try {
+			log.info("Early result, canceling remaining jobs.");
+			for (String canceled: jobs.cancelAll()) {
+				fs.delete(hdfsTmp.asPath(canceled), false);
+			}
+			
+			//remove remaining files
+			while (!jobs.allDone()) {
+				id = jobs.takeCompleted();
+				inFilePath = hdfsTmp.asPath(id);
+				log.debug("Cleanup after early result, removing: "+inFilePath.getName());
+				fs.delete(inFilePath, false);
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interupted while cleaning.");
+			return;
+		}
+		log.debug("Cleanup finished successfully.");
 	}
 	
 	/**
@@ -176,22 +517,96 @@ public class Combiner extends Proc {
 	 * @param fs		Open HDFS handle
 	 * @param jobs		Job queue
 	 * @param config 	Nfdist's configuration parameters
+	 * @throws IOException
 	 */
-	public Combiner(FileSystem fs, JobRequest jobs, Configuration config) {
-		super(3); //Three sub-threads (std-in/out/err)
+	public Combiner(FileSystem fs, JobRequest jobs, Configuration config) throws IOException {
+		super(); //Only the stdin thread, the Pump relays std-out/err
 		
 		this.BUFSIZE = config.getInt("jobs.combiner.bufsize");
 		this.NFCAT = config.getString("local.path.nfcat");
 		this.hdfsTmp = new TmpPath(config.getString("hdfs.path.tmp"));
+		this.localTmp = new TmpPath(config.getString("local.path.tmp"));
+		this.FANIN = config.getInt("jobs.combiner.fanin");
+		this.PREFETCH = config.getInt("jobs.direct.prefetch", 4);
+		this.AGGREGATE_MEMORY = config.getLong("jobs.combiner.aggregate.memory", 0x10000000);
+		this.AGGREGATE_PARTITIONS = config.getInt("jobs.combiner.aggregate.partitions", 16);
 		
 		this.procIn = new Thread(new ProcIn());
-		this.procOut = new Thread(new ProcOut());
-		this.procErr = new Thread(new ProcErr());
 		
 		this.fs = fs;
+		this.localFs = FileSystem.getLocal(fs.getConf()).getRawFileSystem();
 		this.jobs = jobs;
 	}
 
+	/**
+	 * Read the given raw files along with the job results (hybrid plan).
+	 * Should be set only if Options.canCombineRaw() allows it.
+	 * 
+	 * @param direct	Files to read
+	 */
+	public void setDirect(List<FileStatus> direct) {
+		this.direct = direct;
+	}
+	
+	/**
+	 * @return	Bytes of raw files read
+	 */
+	public long getDirectBytes() {
+		return directBytes;
+	}
+	
+	/**
+	 * @return	Time spent reading raw files (ms)
+	 */
+	public long getDirectTime() {
+		return directTime;
+	}
+	
+	/**
+	 * Report the size of each result, so the codecs of the jobs which are
+	 * not submitted yet can be chosen better. Results may use different
+	 * codecs, each file's header tells nfcat how to read it.
+	 * 
+	 * @param codecs	Query's codec policy
+	 */
+	public void setCodecPolicy(CodecPolicy codecs) {
+		this.codecs = codecs;
+	}
+	
+	/**
+	 * Stop processing once the given number of records is passed to nfcat.
+	 * Should be set only if the output is not sorted or aggregated.
+	 * 
+	 * @param limit		Number of records
+	 */
+	public void setLimit(long limit) {
+		this.limit = limit;
+	}
+	
+	/**
+	 * Merge sorted results instead of passing them to nfcat as they come.
+	 * 
+	 * @param order		Record order of the results
+	 * @param limit		Number of records needed, 0 for all
+	 */
+	public void setMerge(RecordOrder order, long limit) {
+		this.order = order;
+		this.limit = limit;
+	}
+	
+	/**
+	 * Aggregate the results in the JVM and print them instead of running
+	 * nfcat. Should be set only if Options.canAggregate() allows it, the
+	 * results must not be compressed.
+	 * 
+	 * @param tags	Aggregation tags (-A option)
+	 * @param args	Combiner arguments, only the output options are used
+	 */
+	public void setAggregate(String tags, List<String> args) {
+		this.aggregateTags = tags;
+		this.aggregateArgs = args;
+	}
+	
 	/**
 	 * Starts the combiner and feeds it results as they come.
 	 * 
@@ -200,6 +615,12 @@ public class Combiner extends Proc {
 	 * @throws IOException
 	 */
 	public void start(List<String> args, String filter) throws IOException {
+		if (null != aggregateTags) {
+			log.info("Starting aggregation of the results by " + aggregateTags);
+			activate(procIn);
+			return;
+		}
+		
 		List<String> cmd = new ArrayList<String>();
 		cmd.add(NFCAT);
 		cmd.addAll(args);
@@ -215,13 +636,14 @@ public class Combiner extends Proc {
 		proc = new ProcessBuilder(cmd).start();
 		
 		activate(procIn);
-		activate(procOut);
-		activate(procErr);
+		relay(proc.getInputStream(), proc, toStd(stdout));
+		relay(proc.getErrorStream(), proc, toStd(stderr));
 	}
 	
 	/**
 	 * A method to stop combiner in case of error.
 	 */
+	@Override
 	public void stop() {
 		procIn.interrupt();
 	}
@@ -39,7 +39,6 @@ import nfdist.hadoop.FileList;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang.StringUtils;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 
@@ -48,8 +47,9 @@ import org.apache.hadoop.fs.FileSystem;
  */
 public class Direct extends Proc {
 	private final int BUFSIZE;
+	private final int PREFETCH;
 	private final String NFDUMP;
-	private final Thread procIn, procOut, procErr;
+	private final Thread procIn;
 	private final FileSystem fs;
 	private List<FileStatus> stats;
 	private Process proc;
@@ -61,19 +61,14 @@ public class Direct extends Proc {
 		@Override
 		public void run() {
 			final WritableByteChannel inChannel = Channels.newChannel(proc.getOutputStream());
-			final ByteBuffer dataBB = ByteBuffer.allocate(BUFSIZE);
-			
-			FSDataInputStream hdfsIn = null;
+			//Files are opened and read ahead while nfdump consumes the previous ones
+			final Prefetcher prefetcher = new Prefetcher(fs, stats, PREFETCH, BUFSIZE);
+			ByteBuffer chunk;
 			
 			try {
-				for (FileStatus s: stats) {
-					hdfsIn = fs.open(s.getPath());
-					while (hdfsIn.read(dataBB) > 0) {
-						dataBB.flip();
-						inChannel.write(dataBB);
-						dataBB.clear();
-					}
-					hdfsIn.close();
+				while (null != (chunk = prefetcher.next())) {
+					inChannel.write(chunk);
+					prefetcher.release(chunk);
 				}
 				inChannel.close();
 			} catch (IOException e) {
@@ -85,44 +80,41 @@ public class Direct extends Proc {
 				} catch (IOException e1) {
 					//ignore
 				}
+			} catch (InterruptedException e) {
+				log.info("Interrupted, quiting...");
+				proc.destroy();
+			} finally {
+				prefetcher.close();
 			}
 		}
 	}
 	
 	/**
-	 * Proxy nfdumps's stdout.
+	 * Class constructor
+	 * 
+	 * @param fs			Open HDFS handle
+	 * @param files			List of files to read
+	 * @param config		Nfdist's configuration
+	 * @throws IOException
 	 */
-	private class ProcOut implements Runnable {
-		@Override
-		public void run() {		
-			StreamToStd(proc.getInputStream(), System.out, BUFSIZE);
-		}
+	public Direct(FileSystem fs, FileList files, Configuration config) throws IOException {
+		this(fs, files.getStats(), config);
 	}
 	
-	/**
-	 * Proxy nfdumps's stderr.
-	 */
-	private class ProcErr implements Runnable {
-		@Override
-		public void run() {
-			StreamToStd(proc.getErrorStream(), System.err, BUFSIZE);
-		}
-	}
-
 	/**
 	 * Class constructor
 	 * 
 	 * @param fs			Open HDFS handle
-	 * @param files			List of files to read
+	 * @param stats			Files to read
 	 * @param config		Nfdist's configuration
-	 * @throws IOException
 	 */
-	public Direct(FileSystem fs, FileList files, Configuration config) throws IOException {
-		super(3); //Three sub-threads (std-in/out/err)
+	public Direct(FileSystem fs, List<FileStatus> stats, Configuration config) {
+		super(); //Only the stdin thread, the Pump relays std-out/err
 			
 		this.BUFSIZE = config.getInt("jobs.combiner.bufsize");
+		this.PREFETCH = config.getInt("jobs.direct.prefetch", 4);
 		
-		if (files.oneFile()) {
+		if (stats.size() == 1) {
 			// Only one file, use nfdump directly
 			this.NFDUMP = config.getString("local.path.nfdump");
 		} else {
@@ -131,11 +123,9 @@ public class Direct extends Proc {
 		}
 		
 		this.procIn = new Thread(new ProcIn());
-		this.procOut = new Thread(new ProcOut());
-		this.procErr = new Thread(new ProcErr());
 		
 		this.fs = fs;
-		this.stats = files.getStats();
+		this.stats = stats;
 	}
 	
 	/**
@@ -155,7 +145,7 @@ public class Direct extends Proc {
 		proc = new ProcessBuilder(cmd).start();
 		
 		activate(procIn);
-		activate(procOut);
-		activate(procErr);
+		relay(proc.getInputStream(), proc, toStd(stdout));
+		relay(proc.getErrorStream(), proc, toStd(stderr));
 	}
 }
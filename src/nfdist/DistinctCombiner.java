@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nfdist.hadoop.TmpPath;
+import nfdist.zookeeper.JobRequest;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Combines HyperLogLog registers returned by distinct count jobs and prints
+ * the estimated number of distinct keys (per time bucket if requested).
+ */
+public class DistinctCombiner extends Proc {
+	private final Thread procIn;
+	private final FileSystem fs;
+	private final JobRequest jobs;
+	private final TmpPath hdfsTmp;
+	private final int precision;
+	private final TreeMap<Long, HyperLogLog> buckets = new TreeMap<Long, HyperLogLog>();
+	private String key;
+	private boolean useBuckets;
+	
+	/**
+	 * Waits for job results, reads them from HDFS and merges the registers.
+	 */
+	private class ProcIn implements Runnable {
+		@Override
+		public void run() {
+			String id;
+			Path inFilePath;
+			FSDataInputStream hdfsIn;
+			
+			try {
+				while (!jobs.allDone() || jobs.getCompletedCount() == 0) {
+					id = jobs.takeCompleted();
+					inFilePath = hdfsTmp.asPath(id);
+					log.debug(id + " reading registers.");
+					try {
+						hdfsIn = fs.open(inFilePath);
+					} catch (FileNotFoundException e) {
+						log.warn(id + " job has no registers.");
+						continue;
+					}
+					try {
+						final long bucket = hdfsIn.readLong();
+						final HyperLogLog hll = HyperLogLog.read(hdfsIn);
+						final HyperLogLog current = buckets.get(bucket);
+						if (null == current) {
+							buckets.put(bucket, hll);
+						} else {
+							current.merge(hll);
+						}
+					} finally {
+						hdfsIn.close();
+						fs.delete(inFilePath, false);
+					}
+				}
+				print();
+			} catch (InterruptedException e) {
+				log.info("Interrupted, quiting...");
+			} catch (IOException e) {
+				fail("Can not combine the distinct counts: " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				//Registers of another precision or corrupt ones
+				fail("Can not combine the distinct counts: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Print the estimates.
+	 */
+	private void print() {
+		final HyperLogLog total = new HyperLogLog(precision);
+		for (HyperLogLog hll: buckets.values()) {
+			total.merge(hll);
+		}
+		
+		if (useBuckets) {
+			final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+			stdout.printf("%-20s %s\n", "Date bucket", "Distinct " + key);
+			for (Map.Entry<Long, HyperLogLog> e: buckets.entrySet()) {
+				stdout.printf("%-20s %d\n", format.format(new Date(e.getKey())), e.getValue().cardinality());
+			}
+			stdout.printf("%-20s %d\n", "Total", total.cardinality());
+		} else {
+			stdout.printf("Distinct %s: %d\n", key, total.cardinality());
+		}
+		stdout.flush();
+	}
+	
+	/**
+	 * Class constructor
+	 * 
+	 * @param fs		Open HDFS handle
+	 * @param jobs		Job queue
+	 * @param config 	Nfdist's configuration parameters
+	 */
+	public DistinctCombiner(FileSystem fs, JobRequest jobs, Configuration config) {
+		super(); //Only the reader thread
+		
+		this.hdfsTmp = new TmpPath(config.getString("hdfs.path.tmp"));
+		this.precision = config.getInt("jobs.distinct.precision");
+		this.procIn = new Thread(new ProcIn());
+		
+		this.fs = fs;
+		this.jobs = jobs;
+	}
+	
+	/**
+	 * @return	HyperLogLog precision the jobs should use
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+	
+	/**
+	 * Starts merging the results as they come.
+	 * 
+	 * @param key			Distinct count key tags
+	 * @param useBuckets	True if estimates per time bucket should be printed
+	 */
+	public void start(String key, boolean useBuckets) {
+		this.key = key;
+		this.useBuckets = useBuckets;
+		
+		log.info("Starting distinct count combiner for: "+key);
+		activate(procIn);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nfdist.zookeeper.JobData;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Filter for distinct count jobs. Nfdump aggregates the file by the distinct
+ * count key and prints only the key, which is added to a HyperLogLog. The
+ * registers are written as the job's result instead of the netflow data.
+ */
+public class DistinctFilter extends Filter {
+	private static final Map<String, String> FORMATS = new HashMap<String, String>();
+	static {
+		FORMATS.put("srcip", "%sa");
+		FORMATS.put("dstip", "%da");
+		FORMATS.put("srcport", "%sp");
+		FORMATS.put("dstport", "%dp");
+	}
+	
+	private final HyperLogLog hll;
+	private volatile boolean written;
+	
+	/**
+	 * @param tag	Aggregation tag
+	 * @return	True if the tag can be used as a distinct count key
+	 */
+	public static boolean isKey(String tag) {
+		return FORMATS.containsKey(tag);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param jobData	Data about a specific job
+	 * @param fs		Open HDFS handle
+	 * @param config	Nfdist configuration
+	 */
+	public DistinctFilter(JobData jobData, FileSystem fs, Configuration config) {
+		super(jobData, fs, config);
+		//The Manager's precision, its combiner can merge only equal registers
+		this.hll = new HyperLogLog(jobData.getPrecision() > 0 ? jobData.getPrecision()
+				: config.getInt("jobs.distinct.precision"));
+		this.written = false;
+	}
+	
+	@Override
+	protected List<String> command() {
+		final String key = jobData.getDistinct();
+		final List<String> cmd = new ArrayList<String>();
+		final List<String> format = new ArrayList<String>();
+		
+		for (String tag: key.split(",")) {
+			format.add(FORMATS.get(tag));
+		}
+		
+		cmd.add(NFDUMP);
+		cmd.add("-q");
+		cmd.add("-6"); //do not abbreviate IPv6 addresses
+		cmd.add("-A");
+		cmd.add(key);
+		cmd.add("-o");
+		cmd.add("fmt:" + StringUtils.join(format, ' '));
+		cmd.addAll(jobData.getArgs());
+		cmd.add(jobData.getFilter());
+		return cmd;
+	}
+	
+	/**
+	 * Read the distinct keys and store the registers into a temporary file.
+	 */
+	@Override
+	protected Pump.Sink output() {
+		return new LineSink() {
+			private long count = 0;
+			
+			@Override
+			protected void line(String line) {
+				line = line.trim().replaceAll("\\s+", " ");
+				if (!line.isEmpty()) {
+					hll.offer(line.getBytes());
+					count++;
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				super.close();
+				if (isCanceled()) {
+					//Partial registers would be taken for the whole job
+					log.debug(id + " canceled, distinct count not stored.");
+					return;
+				}
+				try {
+					final DataOutputStream out = new DataOutputStream(new FileOutputStream(localTmp.asString(id)));
+					try {
+						out.writeLong(jobData.getBucket());
+						hll.write(out);
+					} finally {
+						out.close();
+					}
+					written = true;
+					log.debug(id + " distinct keys: " + count);
+				} catch (IOException e) {
+					log.error(id + " failed to store distinct count: " + e.getMessage());
+				}
+			}
+		};
+	}
+	
+	@Override
+	public boolean success() {
+		return super.success() && written;
+	}
+}
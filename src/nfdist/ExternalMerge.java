@@ -0,0 +1,247 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nfdist.hadoop.TmpPath;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * External merge of sorted nfdump files with a bounded number of open
+ * files. Runs are merged as they are added: the records sorting below the
+ * given watermark, which no later run can precede, are written to the
+ * output right away. Once more than the fan-in of runs are open, the
+ * oldest ones are merged into a spill file on the local disk. Memory usage
+ * depends only on the fan-in and the buffer size.
+ */
+public class ExternalMerge {
+	private static final Logger log = Logger.getLogger(ExternalMerge.class);
+	
+	private final RecordOrder order;
+	private final int fanin;
+	private final int bufsize;
+	private final long limit;
+	private final FileSystem localFs;
+	private final TmpPath localTmp;
+	private final String id;
+	private final NfdumpWriter writer;
+	private final List<Run> runs = new ArrayList<Run>();
+	private RecordMerger merger;
+	private long written = 0;
+	private int spills = 0;
+	
+	/**
+	 * An open sorted nfdump file.
+	 */
+	private static class Run {
+		private final FileSystem fs;
+		private final Path path;
+		private NfdumpReader reader;
+		
+		public Run(FileSystem fs, Path path) {
+			this.fs = fs;
+			this.path = path;
+		}
+	}
+	
+	/**
+	 * Constructor. Writes the header of the output.
+	 * 
+	 * @param order		Record order of the inputs
+	 * @param fanin		Maximum number of files merged at once
+	 * @param bufsize	Read buffer size of each file
+	 * @param limit		Maximum number of records needed, 0 for no limit
+	 * @param localFs	Local file system for spill files
+	 * @param localTmp	Directory for spill files
+	 * @param id		Unique name prefix of the spill files
+	 * @param out		Output stream
+	 * @throws IOException
+	 */
+	public ExternalMerge(RecordOrder order, int fanin, int bufsize, long limit, FileSystem localFs, TmpPath localTmp,
+			String id, OutputStream out) throws IOException {
+		this.order = order;
+		this.fanin = Math.max(2, fanin);
+		this.bufsize = bufsize;
+		this.limit = limit;
+		this.localFs = localFs;
+		this.localTmp = localTmp;
+		this.id = id;
+		//The output is read by a local nfdump, use the native byte order
+		this.writer = new NfdumpWriter(out, ByteOrder.nativeOrder());
+		this.merger = new RecordMerger(new ArrayList<NfdumpReader>(), order);
+	}
+	
+	/**
+	 * @return	Number of records still needed, 0 for no limit
+	 */
+	private long remaining() {
+		return limit > 0 ? limit - written : 0;
+	}
+	
+	/**
+	 * @return	True if the limit is reached
+	 */
+	private boolean full() {
+		return limit > 0 && written >= limit;
+	}
+	
+	/**
+	 * Close the given runs and remove their files.
+	 */
+	private void delete(List<Run> list) {
+		for (Run run: list) {
+			if (null != run.reader) {
+				writer.release(run.reader);
+				try {
+					run.reader.close();
+				} catch (IOException e) {
+					//ignore
+				}
+				run.reader = null;
+			}
+			try {
+				run.fs.delete(run.path, false);
+			} catch (IOException e) {
+				log.warn("Can not remove "+run.path.getName()+": "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Open a run and add it to the merge.
+	 * 
+	 * @throws IOException
+	 */
+	private void open(Run run) throws IOException {
+		run.reader = new NfdumpReader(run.fs.open(run.path), bufsize);
+		runs.add(run);
+		merger.add(run.reader);
+	}
+	
+	/**
+	 * Merge the rest of the oldest runs into a spill file.
+	 * 
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		final List<Run> inputs = new ArrayList<Run>(runs.subList(0, fanin));
+		final List<NfdumpReader> readers = new ArrayList<NfdumpReader>();
+		for (Run run: inputs) {
+			readers.add(run.reader);
+		}
+		final Run output = new Run(localFs, localTmp.asPath(id + "-" + (spills++)));
+		
+		final FSDataOutputStream out = localFs.create(output.path, true);
+		try {
+			final NfdumpWriter spill = new NfdumpWriter(out, ByteOrder.nativeOrder());
+			final long count = merger.take(readers).merge(spill, remaining());
+			log.debug(inputs.size() + " runs (" + count + " records) spilled to " + output.path.getName());
+		} finally {
+			out.close();
+		}
+		runs.removeAll(inputs);
+		delete(inputs);
+		open(output);
+	}
+	
+	/**
+	 * Add a sorted run and write the records below the watermark. Runs are
+	 * spilled once the fan-in is reached.
+	 * 
+	 * @param fs		File system of the run
+	 * @param path		Path of the run
+	 * @param watermark	Sort key below which no later run has records,
+	 * 					Long.MIN_VALUE if it is unknown
+	 * @return	True if the limit is reached, later runs are not needed
+	 * @throws IOException
+	 */
+	public boolean add(FileSystem fs, Path path, long watermark) throws IOException {
+		final Run run = new Run(fs, path);
+		if (full()) {
+			delete(Collections.singletonList(run));
+			return true;
+		}
+		open(run);
+		if (Long.MIN_VALUE != watermark) {
+			written += merger.merge(writer, remaining(), watermark);
+		}
+		if (full()) {
+			cleanup();
+			return true;
+		} else if (runs.size() > fanin) {
+			spill();
+		}
+		return false;
+	}
+	
+	/**
+	 * Add a sorted run. Runs are spilled once the fan-in is reached.
+	 * 
+	 * @param fs	File system of the run
+	 * @param path	Path of the run
+	 * @return	True if the limit is reached, later runs are not needed
+	 * @throws IOException
+	 */
+	public boolean add(FileSystem fs, Path path) throws IOException {
+		return add(fs, path, Long.MIN_VALUE);
+	}
+	
+	/**
+	 * Merge the rest of all the runs into the output.
+	 * 
+	 * @return	Number of records written
+	 * @throws IOException
+	 */
+	public long finish() throws IOException {
+		log.debug("Merging " + runs.size() + " runs.");
+		if (!full()) {
+			written += merger.merge(writer, remaining());
+		}
+		writer.flush();
+		return written;
+	}
+	
+	/**
+	 * Close and remove all the remaining runs.
+	 */
+	public void cleanup() {
+		delete(runs);
+		runs.clear();
+	}
+}
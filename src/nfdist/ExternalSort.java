@@ -0,0 +1,222 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import nfdist.hadoop.TmpPath;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Sorts the records of an uncompressed nfdump file in bounded memory.
+ * Nfdump does not sort the files it writes (-w), so Workers sort the
+ * results which are merged by the Combiner. Records are collected into a
+ * chunk of the given size, a full chunk is sorted and written into a run
+ * on the local disk and the runs are merged by ExternalMerge. With a limit
+ * only the first records of each run and of the result are kept.
+ */
+public class ExternalSort {
+	private static final Logger log = Logger.getLogger(ExternalSort.class);
+	private static final Counter RUNS = Metrics.counter("nfdist_worker_sort_runs_total",
+			"Sorted runs of job results written to the local disk");
+	
+	private final RecordOrder order;
+	private final int fanin;
+	private final int bufsize;
+	private final long limit;
+	private final FileSystem localFs;
+	private final TmpPath localTmp;
+	private final String id;
+	private final byte[] chunk;
+	private int used = 0;
+	private int count = 0;
+	private long[] keys = new long[1024];
+	private int[] offsets = new int[1024];
+	private int[] sizes = new int[1024];
+	private byte[][] maps = new byte[1024][];
+	private int[] mapIds = new int[1024];
+	private final List<Path> runs = new ArrayList<Path>();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param order		Record order
+	 * @param memory	Size of the record chunk in bytes
+	 * @param fanin		Maximum number of runs merged at once
+	 * @param bufsize	Read buffer size of each file
+	 * @param limit		Maximum number of records needed, 0 for no limit
+	 * @param localFs	Local file system
+	 * @param localTmp	Directory for the runs
+	 * @param id		Unique name prefix of the runs
+	 */
+	public ExternalSort(RecordOrder order, int memory, int fanin, int bufsize, long limit, FileSystem localFs,
+			TmpPath localTmp, String id) {
+		this.order = order;
+		this.chunk = new byte[Math.max(memory, 0x10000)];
+		this.fanin = fanin;
+		this.bufsize = bufsize;
+		this.limit = limit;
+		this.localFs = localFs;
+		this.localTmp = localTmp;
+		this.id = id;
+	}
+	
+	/**
+	 * Add the reader's current record to the chunk, it must fit.
+	 * 
+	 * @throws IOException
+	 */
+	private void add(NfdumpReader reader) throws IOException {
+		if (count == keys.length) {
+			keys = Arrays.copyOf(keys, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2);
+			sizes = Arrays.copyOf(sizes, count * 2);
+			maps = Arrays.copyOf(maps, count * 2);
+			mapIds = Arrays.copyOf(mapIds, count * 2);
+		}
+		keys[count] = order.key(reader);
+		offsets[count] = used;
+		sizes[count] = reader.size();
+		maps[count] = reader.extensionMap();
+		mapIds[count] = reader.extensionMapId();
+		System.arraycopy(reader.record(), 0, chunk, used, reader.size());
+		used += reader.size();
+		count++;
+	}
+	
+	/**
+	 * Write the chunk's records in order and empty it.
+	 * 
+	 * @param out		Output stream
+	 * @param reader	Source of the records
+	 * @throws IOException
+	 */
+	private void write(OutputStream out, NfdumpReader reader) throws IOException {
+		final Integer[] sorted = new Integer[count];
+		for (int i=0; i<count; i++) {
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return (keys[a] < keys[b]) ? -1 : ((keys[a] == keys[b]) ? 0 : 1);
+			}
+		});
+		
+		final NfdumpWriter writer = new NfdumpWriter(out, reader.order());
+		final int n = (limit > 0) ? (int) Math.min(limit, count) : count;
+		final byte[] record = new byte[0x10000];
+		for (int i=0; i<n; i++) {
+			final int r = sorted[i];
+			System.arraycopy(chunk, offsets[r], record, 0, sizes[r]);
+			writer.write(record, sizes[r], maps[r], reader, mapIds[r]);
+		}
+		writer.flush();
+		Arrays.fill(maps, 0, count, null);
+		used = 0;
+		count = 0;
+	}
+	
+	/**
+	 * Write the chunk into a new run.
+	 * 
+	 * @param reader	Source of the records
+	 * @throws IOException
+	 */
+	private void spill(NfdumpReader reader) throws IOException {
+		final Path path = localTmp.asPath(id + "-run" + runs.size());
+		runs.add(path);
+		final OutputStream out = localFs.create(path, true);
+		try {
+			write(out, reader);
+		} finally {
+			out.close();
+		}
+		RUNS.inc();
+	}
+	
+	/**
+	 * Sort a file.
+	 * 
+	 * @param input		Uncompressed nfdump file
+	 * @param out		Output stream, it is not closed
+	 * @return	Number of records written
+	 * @throws IOException
+	 */
+	public long sort(Path input, OutputStream out) throws IOException {
+		final NfdumpReader reader = new NfdumpReader(localFs.open(input), bufsize);
+		long records = 0;
+		try {
+			try {
+				while (reader.next()) {
+					if (used + reader.size() > chunk.length) {
+						spill(reader);
+					}
+					add(reader);
+					records++;
+				}
+				
+				if (runs.isEmpty()) {
+					write(out, reader);
+					return (limit > 0) ? Math.min(limit, records) : records;
+				}
+				spill(reader);
+			} finally {
+				reader.close();
+			}
+			
+			log.debug(id + " " + records + " records sorted in " + runs.size() + " runs.");
+			final ExternalMerge merge = new ExternalMerge(order, fanin, bufsize, limit, localFs, localTmp, id + "-merge", out);
+			try {
+				for (Path run: runs) {
+					merge.add(localFs, run);
+				}
+				runs.clear();
+				return merge.finish();
+			} finally {
+				merge.cleanup();
+			}
+		} finally {
+			for (Path run: runs) {
+				localFs.delete(run, false);
+			}
+			runs.clear();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nfdist.columnar.ColumnarFile;
+import nfdist.hadoop.FileList;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.log4j.Logger;
+
+/**
+ * Splits nfdump files which span several HDFS blocks into byte ranges of
+ * whole nfdump data blocks, so one file can be filtered by several Workers.
+ * 
+ * A split starts at the first data block which begins in its HDFS block and
+ * ends where the next split starts, so apart from the tail of its last data
+ * block it is stored on the hosts of that HDFS block. Only the headers of
+ * the data blocks are read. The Worker prepends the file header to the
+ * range and finds the extension maps defined before it (see SplitMetadata).
+ * Files do not change once written, so the ranges of the recently split
+ * files are kept for the following queries.
+ * 
+ * Compressed files are not split: their maps can not be extracted without
+ * decompressing the first block. Columnar files are not split either.
+ */
+public class FileSplitter {
+	private static final Logger log = Logger.getLogger(FileSplitter.class);
+	
+	/**
+	 * Byte range of a file.
+	 */
+	public static class Split {
+		private final long offset;
+		private final long length;
+		private final List<String> hosts;
+		private final boolean cached;
+		
+		Split(long offset, long length, BlockLocation block) throws IOException {
+			this.offset = offset;
+			this.length = length;
+			this.hosts = null == block ? new ArrayList<String>() : FileList.getHosts(block);
+			this.cached = null != block && FileList.isCached(block);
+		}
+		
+		/**
+		 * @return	Offset of the first data block
+		 */
+		public long getOffset() {
+			return offset;
+		}
+		
+		/**
+		 * @return	Length of the range in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+		
+		/**
+		 * @return	Hosts storing the start of the range, those caching it
+		 * 			first
+		 */
+		public List<String> getHosts() {
+			return hosts;
+		}
+	}
+	
+	/**
+	 * Range of a file without its hosts.
+	 */
+	private static class Range {
+		private final long offset;
+		private final long length;
+		
+		Range(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	//Number of files whose ranges are kept
+	private static final int RECENT = 1024;
+	//File -> ranges, the least recently used are dropped
+	private static final Map<String, List<Range>> recent = Collections.synchronizedMap(
+			new LinkedHashMap<String, List<Range>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, List<Range>> eldest) {
+					return size() > RECENT;
+				}
+			});
+	
+	private final FileSystem fs;
+	private final int BLOCKS;
+	private int cached = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param fs		HDFS handle
+	 * @param config	Nfdist's configuration
+	 */
+	public FileSplitter(FileSystem fs, Configuration config) {
+		this.fs = fs;
+		this.BLOCKS = config.getInt("jobs.split.blocks", 1);
+	}
+	
+	/**
+	 * @return	Number of returned splits whose start is cached in memory
+	 */
+	public int getCachedCount() {
+		return cached;
+	}
+	
+	/**
+	 * @return	True if splitting is enabled
+	 */
+	public boolean isEnabled() {
+		return BLOCKS > 0;
+	}
+	
+	/**
+	 * Split a file.
+	 * 
+	 * @param status	File's status object
+	 * @return	Byte ranges or null if the file should be processed as a whole
+	 * @throws IOException
+	 */
+	public List<Split> split(FileStatus status) throws IOException {
+		if (!isEnabled() || ColumnarFile.isColumnar(status.getPath())) {
+			return null;
+		}
+		final long len = status.getLen();
+		final BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, len);
+		if (blocks.length <= BLOCKS) {
+			return null;
+		}
+		
+		final String key = status.getPath() + " " + len + " " + status.getModificationTime() + " " + BLOCKS;
+		List<Range> ranges = recent.get(key);
+		if (null == ranges) {
+			ranges = ranges(status, blocks);
+			if (null == ranges) {
+				return null;
+			}
+			recent.put(key, ranges);
+		}
+		
+		final List<Split> splits = new ArrayList<Split>(ranges.size());
+		for (Range r: ranges) {
+			final Split split = new Split(r.offset, r.length, block(blocks, r.offset));
+			if (split.cached) {
+				cached++;
+			}
+			splits.add(split);
+		}
+		return splits;
+	}
+	
+	/**
+	 * Find the ranges of a file by walking its data block headers.
+	 * 
+	 * @param status	File's status object
+	 * @param blocks	File's HDFS blocks
+	 * @return	Ranges or null if the file should be processed as a whole
+	 * @throws IOException
+	 */
+	private List<Range> ranges(FileStatus status, BlockLocation[] blocks) throws IOException {
+		final long len = status.getLen();
+		final FSDataInputStream in = fs.open(status.getPath());
+		try {
+			final byte[] header = new byte[NfdumpFile.DATA_OFFSET];
+			in.readFully(0, header);
+			final ByteBuffer headerBB = ByteBuffer.wrap(header);
+			final ByteOrder order = NfdumpFile.order(headerBB);
+			if ((headerBB.getShort(2) & 0xFFFF) != NfdumpFile.LAYOUT_VERSION
+					|| (headerBB.getInt(NfdumpFile.HEADER_FLAGS) & NfdumpFile.FLAG_COMPRESSED) != 0) {
+				return null;
+			}
+			
+			final byte[] blockHeader = new byte[NfdumpFile.BLOCK_HEADER_SIZE];
+			final ByteBuffer blockBB = ByteBuffer.wrap(blockHeader).order(order);
+			final List<Range> ranges = new ArrayList<Range>();
+			long pos = NfdumpFile.DATA_OFFSET;
+			long start = pos;
+			for (int b=BLOCKS; b<blocks.length; b+=BLOCKS) {
+				final long boundary = blocks[b].getOffset();
+				while (pos < boundary && pos + NfdumpFile.BLOCK_HEADER_SIZE <= len) {
+					in.readFully(pos, blockHeader);
+					pos += NfdumpFile.BLOCK_HEADER_SIZE + (blockBB.getInt(4) & 0xFFFFFFFFL);
+				}
+				if (pos > len) {
+					log.warn(status.getPath() + ": data block exceeds the file, not splitting it");
+					return null;
+				}
+				if (pos >= len) {
+					break;
+				}
+				//A data block may cover the whole HDFS block, then the next boundary is tried
+				if (pos > start) {
+					ranges.add(new Range(start, pos - start));
+					start = pos;
+				}
+			}
+			if (len > start) {
+				ranges.add(new Range(start, len - start));
+			}
+			return ranges.size() > 1 ? ranges : null;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @return	HDFS block holding the offset or null
+	 */
+	private static BlockLocation block(BlockLocation[] blocks, long offset) {
+		for (BlockLocation b: blocks) {
+			if (offset >= b.getOffset() && offset < b.getOffset() + b.getLength()) {
+				return b;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summary of a nfcapd file. The totals, the per protocol counters and the
+ * time window are copied from the file's stat record. The value ranges of
+ * the flows (bytes, packets, ports) and the exact protocol histogram are
+ * only known once the flows were scanned.
+ */
+public class FileSummary {
+	private static final int PROTO_ICMP = 1;
+	private static final int PROTO_TCP = 6;
+	private static final int PROTO_UDP = 17;
+	private static final int PROTO_ICMP6 = 58;
+	/** Counters of stat_record_t in their order */
+	private static final int COUNTERS = 15;
+	private static final int FLOWS = 0, BYTES = 1, PACKETS = 2;
+	private static final int FLOWS_TCP = 3, FLOWS_UDP = 4, FLOWS_ICMP = 5, FLOWS_OTHER = 6;
+	
+	private final long[] counters = new long[COUNTERS];
+	private long first = 0, last = 0;
+	private int msecFirst = 0, msecLast = 0;
+	private long sequenceFailures = 0;
+	
+	private boolean ranges = false;
+	private long minBytes = Long.MAX_VALUE, maxBytes = -1;
+	private long minPackets = Long.MAX_VALUE, maxPackets = -1;
+	private int minSrcPort = Integer.MAX_VALUE, maxSrcPort = -1;
+	private int minDstPort = Integer.MAX_VALUE, maxDstPort = -1;
+	private final Map<Integer, Long> protocols = new TreeMap<Integer, Long>();
+	
+	/**
+	 * Empty summary, see fromHeader() and merge().
+	 */
+	public FileSummary() {
+	}
+	
+	/**
+	 * Summary of the stat record.
+	 * 
+	 * @param header	First DATA_OFFSET bytes of the file
+	 * @return	Summary without the value ranges
+	 * @throws IOException	If the header is not valid
+	 */
+	public static FileSummary fromHeader(byte[] header) throws IOException {
+		if (header.length < NfdumpFile.DATA_OFFSET) {
+			throw new IOException("Nfdump header is too short");
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(header);
+		NfdumpFile.order(buffer);
+		final FileSummary summary = new FileSummary();
+		for (int i=0; i<COUNTERS; i++) {
+			summary.counters[i] = buffer.getLong(NfdumpFile.STAT_FLOWS + i * 8);
+		}
+		summary.first = buffer.getInt(NfdumpFile.STAT_FIRST) & 0xFFFFFFFFL;
+		summary.last = buffer.getInt(NfdumpFile.STAT_LAST) & 0xFFFFFFFFL;
+		summary.msecFirst = buffer.getShort(NfdumpFile.STAT_MSEC_FIRST) & 0xFFFF;
+		summary.msecLast = buffer.getShort(NfdumpFile.STAT_MSEC_LAST) & 0xFFFF;
+		summary.sequenceFailures = buffer.getInt(NfdumpFile.STAT_SEQUENCE_FAILURES) & 0xFFFFFFFFL;
+		return summary;
+	}
+	
+	/**
+	 * Add the value ranges of a flow, all flows of the file must be observed.
+	 * 
+	 * @param reader	Flow
+	 */
+	public void observe(FlowRecord reader) {
+		ranges = true;
+		final long bytes = reader.bytes(), packets = reader.packets();
+		minBytes = Math.min(minBytes, bytes);
+		maxBytes = Math.max(maxBytes, bytes);
+		minPackets = Math.min(minPackets, packets);
+		maxPackets = Math.max(maxPackets, packets);
+		final int src = reader.srcPort(), dst = reader.dstPort();
+		minSrcPort = Math.min(minSrcPort, src);
+		maxSrcPort = Math.max(maxSrcPort, src);
+		minDstPort = Math.min(minDstPort, dst);
+		maxDstPort = Math.max(maxDstPort, dst);
+		final Long flows = protocols.get(reader.protocol());
+		protocols.put(reader.protocol(), null == flows ? 1 : flows + 1);
+	}
+	
+	/**
+	 * Mark the flows as scanned, a file without flows has empty ranges.
+	 */
+	public void scanned() {
+		ranges = true;
+	}
+	
+	/**
+	 * @return	True if the value ranges are known
+	 */
+	public boolean hasRanges() {
+		return ranges;
+	}
+	
+	/**
+	 * Add another file's totals, like nfdump does for several files. The
+	 * value ranges are not merged.
+	 * 
+	 * @param other	Summary of another file
+	 */
+	public void merge(FileSummary other) {
+		if (0 == other.counters[FLOWS]) {
+			return;
+		}
+		if (0 == counters[FLOWS] || other.first < first || (other.first == first && other.msecFirst < msecFirst)) {
+			first = other.first;
+			msecFirst = other.msecFirst;
+		}
+		if (0 == counters[FLOWS] || other.last > last || (other.last == last && other.msecLast > msecLast)) {
+			last = other.last;
+			msecLast = other.msecLast;
+		}
+		for (int i=0; i<COUNTERS; i++) {
+			counters[i] += other.counters[i];
+		}
+		sequenceFailures += other.sequenceFailures;
+	}
+	
+	/**
+	 * @return	First seen time of the earliest flow in milliseconds
+	 */
+	public long getFirstSeen() {
+		return first * 1000 + msecFirst;
+	}
+	
+	/**
+	 * @return	Number of flows
+	 */
+	public long getFlows() {
+		return counters[FLOWS];
+	}
+	
+	/**
+	 * @param min	Smallest value (inclusive)
+	 * @param max	Largest value (inclusive)
+	 * @return	False if no flow has bytes within the range
+	 */
+	public boolean mightHaveBytes(long min, long max) {
+		return !ranges || (maxBytes >= min && minBytes <= max);
+	}
+	
+	/**
+	 * @param min	Smallest value (inclusive)
+	 * @param max	Largest value (inclusive)
+	 * @return	False if no flow has packets within the range
+	 */
+	public boolean mightHavePackets(long min, long max) {
+		return !ranges || (maxPackets >= min && minPackets <= max);
+	}
+	
+	/**
+	 * @param src	Check source ports
+	 * @param dst	Check destination ports
+	 * @param min	Smallest value (inclusive)
+	 * @param max	Largest value (inclusive)
+	 * @return	False if no flow has a port within the range
+	 */
+	public boolean mightHavePort(boolean src, boolean dst, int min, int max) {
+		if (!ranges) {
+			return true;
+		}
+		return (src && maxSrcPort >= min && minSrcPort <= max)
+				|| (dst && maxDstPort >= min && minDstPort <= max);
+	}
+	
+	/**
+	 * The stat record is only trusted if its protocol counters add up.
+	 * 
+	 * @param protocol	IP protocol number
+	 * @return	False if the file has no flow of the protocol
+	 */
+	public boolean mightHaveProtocol(int protocol) {
+		if (ranges) {
+			return protocols.containsKey(protocol);
+		}
+		if (0 == counters[FLOWS] || counters[FLOWS] != counters[FLOWS_TCP] + counters[FLOWS_UDP]
+				+ counters[FLOWS_ICMP] + counters[FLOWS_OTHER]) {
+			return true;
+		}
+		switch (protocol) {
+			case PROTO_TCP: return counters[FLOWS_TCP] > 0;
+			case PROTO_UDP: return counters[FLOWS_UDP] > 0;
+			case PROTO_ICMP: return counters[FLOWS_ICMP] > 0;
+			//Counted as ICMP or as other depending on the nfdump version
+			case PROTO_ICMP6: return counters[FLOWS_ICMP] > 0 || counters[FLOWS_OTHER] > 0;
+			default: return counters[FLOWS_OTHER] > 0;
+		}
+	}
+	
+	/**
+	 * Print the summary in the format of nfdump -I.
+	 * 
+	 * @param out	Output stream
+	 * @param ident	Ident of the files
+	 */
+	public void print(PrintStream out, String ident) {
+		final String[] names = {"Flows", "Bytes", "Packets"};
+		final String[] protos = {"tcp", "udp", "icmp", "other"};
+		out.println("Ident: " + ident);
+		for (int n: new int[] {FLOWS, PACKETS, BYTES}) {
+			out.println(names[n] + ": " + counters[n]);
+			for (int p=0; p<protos.length; p++) {
+				out.println(names[n] + "_" + protos[p] + ": " + counters[FLOWS_TCP + n * protos.length + p]);
+			}
+		}
+		out.println("First: " + first);
+		out.println("Last: " + last);
+		out.println("msec_first: " + msecFirst);
+		out.println("msec_last: " + msecLast);
+		out.println("Sequence failures: " + sequenceFailures);
+	}
+	
+	/**
+	 * Serialize the summary.
+	 * 
+	 * @param out	Output stream
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		for (long c: counters) {
+			out.writeLong(c);
+		}
+		out.writeInt((int) first);
+		out.writeInt((int) last);
+		out.writeChar(msecFirst);
+		out.writeChar(msecLast);
+		out.writeInt((int) sequenceFailures);
+		out.writeBoolean(ranges);
+		if (ranges) {
+			out.writeLong(minBytes);
+			out.writeLong(maxBytes);
+			out.writeLong(minPackets);
+			out.writeLong(maxPackets);
+			out.writeInt(minSrcPort);
+			out.writeInt(maxSrcPort);
+			out.writeInt(minDstPort);
+			out.writeInt(maxDstPort);
+			out.writeShort(protocols.size());
+			for (Map.Entry<Integer, Long> e: protocols.entrySet()) {
+				out.writeByte(e.getKey());
+				out.writeLong(e.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Deserialize the summary.
+	 * 
+	 * @param in	Input stream
+	 * @return	Summary
+	 * @throws IOException
+	 */
+	public static FileSummary read(DataInput in) throws IOException {
+		final FileSummary summary = new FileSummary();
+		for (int i=0; i<COUNTERS; i++) {
+			summary.counters[i] = in.readLong();
+		}
+		summary.first = in.readInt() & 0xFFFFFFFFL;
+		summary.last = in.readInt() & 0xFFFFFFFFL;
+		summary.msecFirst = in.readChar();
+		summary.msecLast = in.readChar();
+		summary.sequenceFailures = in.readInt() & 0xFFFFFFFFL;
+		summary.ranges = in.readBoolean();
+		if (summary.ranges) {
+			summary.minBytes = in.readLong();
+			summary.maxBytes = in.readLong();
+			summary.minPackets = in.readLong();
+			summary.maxPackets = in.readLong();
+			summary.minSrcPort = in.readInt();
+			summary.maxSrcPort = in.readInt();
+			summary.minDstPort = in.readInt();
+			summary.maxDstPort = in.readInt();
+			final int count = in.readUnsignedShort();
+			for (int i=0; i<count; i++) {
+				summary.protocols.put(in.readUnsignedByte(), in.readLong());
+			}
+		}
+		return summary;
+	}
+}
@@ -28,20 +28,34 @@
 
 package nfdist;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.client.HdfsDataInputStream;
 
+import nfdist.columnar.ColumnarFile;
+import nfdist.columnar.ColumnarReader;
 import nfdist.hadoop.TmpPath;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Histogram;
+import nfdist.metrics.Metrics;
+import nfdist.metrics.ProcessStats;
 import nfdist.zookeeper.JobData;
 
 /**
@@ -50,16 +64,36 @@ import nfdist.zookeeper.JobData;
  * where the Combiner can access them.
  */
 public class Filter extends Proc  {
-	private final String NFDUMP;
-	private final int BUFSIZE;
+	protected final String NFDUMP;
+	protected final int BUFSIZE;
+	//Bytes piped into nfdump by all Filters
+	private static final AtomicLong piped = new AtomicLong();
+	private static final Histogram READ_RATE = Metrics.histogram("nfdist_worker_hdfs_read_bytes_per_second",
+			"HDFS read throughput of a job, excluding the time spent writing to nfdump", Histogram.UNITS);
+	private static final Counter READ_BYTES = Metrics.counter("nfdist_worker_hdfs_read_bytes_total",
+			"Bytes read from HDFS");
+	private static final Counter LOCAL_BYTES = Metrics.counter("nfdist_worker_hdfs_local_bytes_total",
+			"Bytes read from HDFS replicas on the same node");
+	private static final Counter LOCAL_JOBS = Metrics.counter("nfdist_worker_local_jobs_total",
+			"Jobs which read all their data locally");
+	private static final Counter METADATA_BYTES = Metrics.counter("nfdist_worker_split_metadata_bytes_total",
+			"Bytes of the data blocks preceding a split read to find its extension maps");
+	private static final Counter GROUPS_READ = Metrics.counter("nfdist_worker_columnar_groups_read_total",
+			"Row groups of columnar files read");
+	private static final Counter GROUPS_SKIPPED = Metrics.counter("nfdist_worker_columnar_groups_skipped_total",
+			"Row groups of columnar files skipped because their statistics rule out the filter");
+	private static final Counter ROWS_SKIPPED = Metrics.counter("nfdist_worker_columnar_rows_skipped_total",
+			"Rows of columnar files not passed to nfdump because they can not match the filter");
 
-	private final Thread procIn, procOut, procErr;
-	private final JobData jobData;
+	private final Thread procIn;
+	protected final JobData jobData;
 	private final FileSystem fs;
-	private final String id;
+	protected final String id;
 	private Process proc;
-	private TmpPath localTmp;
+	private ProcessStats stats;
+	protected TmpPath localTmp;
 	private boolean success;
+	private volatile boolean canceled;
 	
 	/**
 	 * Reads netflow files stored in HDFS and writes the data into nfdump's stdin.
@@ -70,7 +104,16 @@ public class Filter extends Proc  {
 		public void run() {
 			final String id = jobData.getId();
 			final Path inFilePath = new Path(fs.getUri().toString()+jobData.getNfFile());
+			if (ColumnarFile.isColumnar(inFilePath)) {
+				pipeColumnar(inFilePath);
+				return;
+			} else if (jobData.isSplit()) {
+				pipeSplit(inFilePath);
+				return;
+			}
 			final ByteBuffer dataBB = ByteBuffer.allocate(BUFSIZE);
+			int read;
+			long start, readTime = 0, bytes = 0;
 			
 			try {
 				final WritableByteChannel inChannel = Channels.newChannel(proc.getOutputStream());
@@ -78,10 +121,18 @@ public class Filter extends Proc  {
 				
 				try {
 					log.debug(id + " data piping started");
-					while (hdfsIn.read(dataBB) > 0) {
+					start = System.nanoTime();
+					while (!canceled) {
+						if ((read = hdfsIn.read(dataBB)) <= 0) {
+							break;
+						}
+						readTime += System.nanoTime() - start;
+						bytes += read;
 						dataBB.flip();
 						inChannel.write(dataBB);
 						dataBB.clear();
+						piped.addAndGet(read);
+						start = System.nanoTime();
 					}
 					log.debug(id + " data piping completed.");
 					success=true;
@@ -91,6 +142,8 @@ public class Filter extends Proc  {
 					success=true;
 				}
 				inChannel.close();
+				stats.sample();
+				readStats(hdfsIn, bytes, readTime);
 				hdfsIn.close();
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -99,22 +152,164 @@ public class Filter extends Proc  {
 	}
 	
 	/**
-	 * Proxy nfdumps's stdout.
+	 * Rebuild the flows of a columnar file for nfdump. Row groups whose
+	 * statistics rule out the filter are skipped without decoding them, and
+	 * only the columns used by the filter are decoded for the rows which are
+	 * not passed. Nfdump still applies the whole filter.
+	 * 
+	 * @param path	Columnar file
 	 */
-	private class ProcOut implements Runnable {
-		@Override
-		public void run() {		
-			StreamToLog(proc.getInputStream(), BUFSIZE, id+" STDOUT");
+	private void pipeColumnar(Path path) {
+		final FilterPredicate predicate = new FilterPredicate(jobData.getFilter());
+		final OutputStream nfIn = proc.getOutputStream();
+		final long start = System.nanoTime();
+		long groups = 0, skipped = 0, rows = 0;
+		
+		try {
+			final FSDataInputStream hdfsIn = fs.open(path);
+			try {
+				final ColumnarReader reader = new ColumnarReader(hdfsIn, BUFSIZE);
+				log.debug(id + " columnar piping started");
+				final NfdumpWriter writer = new NfdumpWriter(nfIn, reader.order());
+				while (!canceled && reader.nextGroup()) {
+					if (!predicate.mightMatch(reader.bloom()) || !predicate.mightMatch(reader.summary())) {
+						reader.skipGroup();
+						skipped++;
+						continue;
+					}
+					reader.readGroup();
+					groups++;
+					while (reader.next()) {
+						if (predicate.matches(reader)) {
+							reader.write(writer);
+						} else {
+							rows++;
+						}
+					}
+				}
+				writer.flush();
+				log.debug(id + " columnar piping completed, " + skipped + " of " + (groups + skipped) + " row groups skipped.");
+				success = true;
+			} catch (IOException e) {
+				log.debug(id + " columnar piping interrupted by exception (" + e.getMessage() + ").");
+				//Most likely a broken pipe, but a truncated file fails the job
+				success = !(e instanceof EOFException);
+			} finally {
+				GROUPS_READ.add(groups);
+				GROUPS_SKIPPED.add(skipped);
+				ROWS_SKIPPED.add(rows);
+				nfIn.close();
+				stats.sample();
+				readStats(hdfsIn, hdfsIn.getPos(), System.nanoTime() - start);
+				hdfsIn.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Proxy nfdumps's stderr.
+	 * Pipe a range of a file's data blocks after the file header, with the
+	 * number of blocks cleared. The extension maps which the flows of a
+	 * block refer to before the range defines them are read from the
+	 * preceding blocks and passed ahead of the block.
+	 * 
+	 * @param path	Nfdump file
 	 */
-	private class ProcErr implements Runnable {
-		@Override
-		public void run() {
-			StreamToLog(proc.getErrorStream(), BUFSIZE, id+" STDERR");
+	private void pipeSplit(Path path) {
+		final OutputStream nfIn = proc.getOutputStream();
+		final Set<Integer> defined = new HashSet<Integer>();
+		final Set<Integer> missing = new HashSet<Integer>();
+		byte[] block = new byte[BUFSIZE];
+		long start = System.nanoTime(), readTime = 0, bytes = 0;
+		
+		try {
+			final FSDataInputStream hdfsIn = fs.open(path);
+			SplitMetadata metadata = null;
+			try {
+				final byte[] header = new byte[NfdumpFile.DATA_OFFSET];
+				hdfsIn.readFully(0, header);
+				final ByteBuffer headerBB = ByteBuffer.wrap(header);
+				final ByteOrder order = NfdumpFile.order(headerBB);
+				headerBB.putInt(NfdumpFile.HEADER_BLOCKS, 0);
+				metadata = new SplitMetadata(fs, path, order, jobData.getOffset());
+				hdfsIn.seek(jobData.getOffset());
+				readTime += System.nanoTime() - start;
+				bytes += header.length;
+				
+				log.debug(id + " split piping started");
+				nfIn.write(header);
+				ByteBuffer blockBB = ByteBuffer.wrap(block).order(order);
+				long remaining = jobData.getLength();
+				while (remaining >= NfdumpFile.BLOCK_HEADER_SIZE && !canceled) {
+					start = System.nanoTime();
+					hdfsIn.readFully(block, 0, NfdumpFile.BLOCK_HEADER_SIZE);
+					final long size = NfdumpFile.BLOCK_HEADER_SIZE + (blockBB.getInt(4) & 0xFFFFFFFFL);
+					if (size > remaining) {
+						throw new EOFException("Data block exceeds the split");
+					}
+					if (size > block.length) {
+						block = Arrays.copyOf(block, (int) size);
+						blockBB = ByteBuffer.wrap(block).order(order);
+					}
+					hdfsIn.readFully(block, NfdumpFile.BLOCK_HEADER_SIZE, (int) size - NfdumpFile.BLOCK_HEADER_SIZE);
+					if ((blockBB.getShort(8) & 0xFFFF) == NfdumpFile.DATA_BLOCK_TYPE) {
+						NfdumpFile.missingMaps(block, (int) size, order, defined, missing);
+						if (!missing.isEmpty()) {
+							final byte[] maps = metadata.find(missing);
+							if (null != maps) {
+								nfIn.write(maps);
+							}
+							//Maps which are not found are not looked for again, nfdump skips their flows
+							defined.addAll(missing);
+							missing.clear();
+						}
+					}
+					readTime += System.nanoTime() - start;
+					bytes += size;
+					remaining -= size;
+					nfIn.write(block, 0, (int) size);
+					piped.addAndGet(size);
+				}
+				log.debug(id + " split piping completed, " + metadata.getBytes() + " bytes read before the split.");
+				success = true;
+			} catch (IOException e) {
+				log.debug(id + " split piping interrupted by exception (" + e.getMessage() + ").");
+				//Most likely a broken pipe, but a truncated or corrupt file fails the job
+				success = !(e instanceof EOFException);
+			} finally {
+				if (null != metadata) {
+					METADATA_BYTES.add(metadata.getBytes());
+					metadata.close();
+				}
+				nfIn.close();
+				stats.sample();
+				readStats(hdfsIn, bytes, readTime);
+				hdfsIn.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Record the read throughput and locality of a job.
+	 * 
+	 * @param hdfsIn	Job's input
+	 * @param bytes		Bytes read
+	 * @param readTime	Time spent reading (ns)
+	 */
+	private static void readStats(FSDataInputStream hdfsIn, long bytes, long readTime) {
+		READ_BYTES.add(bytes);
+		if (readTime > 0) {
+			READ_RATE.record(bytes * 1000000000L / readTime);
+		}
+		if (hdfsIn instanceof HdfsDataInputStream) {
+			final long local = ((HdfsDataInputStream) hdfsIn).getReadStatistics().getTotalLocalBytesRead();
+			LOCAL_BYTES.add(local);
+			if (local >= bytes) {
+				LOCAL_JOBS.inc();
+			}
 		}
 	}
 	
@@ -126,46 +321,103 @@ public class Filter extends Proc  {
 	 * @param config	Nfdist configuration
 	 */
 	public Filter(JobData jobData, FileSystem fs, Configuration config) {
-		super(3); //Three sub-threads
+		super(); //Only the stdin thread, the Pump relays std-out/err
 		
 		this.BUFSIZE = config.getInt("jobs.filter.bufsize");
 		this.NFDUMP = config.getString("local.path.nfdump");
 		this.localTmp = new TmpPath(config.getString("local.path.tmp"));
 		
 		this.procIn = new Thread(new ProcIn());
-		this.procOut = new Thread(new ProcOut());
-		this.procErr = new Thread(new ProcErr());
 		
 		this.jobData = jobData;
 		this.fs = fs;
 		this.success = false;
+		this.canceled = false;
 		
 		this.id = jobData.getId();
 	}
 	
 	/**
-	 * Start the Filter.
+	 * Build nfdump's command line.
 	 * 
-	 * @throws IOException
+	 * @return	Command and its arguments
 	 */
-	public void start() throws IOException {
-		final String filter = jobData.getFilter();
-		final List<String> args = jobData.getArgs();
+	protected List<String> command() {
 		final List<String> cmd = new ArrayList<String>();
 		
 		cmd.add(NFDUMP);
-		cmd.add("-z");
+		final String codec = jobData.getCodec();
+		if (codec.equals(CodecPolicy.LZO)) {
+			cmd.add("-z");
+		} else if (codec.equals(CodecPolicy.BZ2)) {
+			cmd.add("-j");
+		}
 		cmd.add("-w");
 		cmd.add(localTmp.asString(id));
-		cmd.addAll(args);
-		cmd.add(filter);
+		cmd.addAll(jobData.getArgs());
+		cmd.add(jobData.getFilter());
+		return cmd;
+	}
+	
+	/**
+	 * Handle nfdump's stdout. Results are written into a file, so the output
+	 * is only logged.
+	 * 
+	 * @return	Sink of nfdump's stdout
+	 */
+	protected Pump.Sink output() {
+		return toLog(id+" STDOUT");
+	}
+	
+	/**
+	 * Start the Filter.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		final List<String> cmd = command();
+		
 		log.info(id + " filtering netflow file: " + jobData.getNfFile()
-				  + " args: '" + StringUtils.join(args, ' ') + "' filter: '" + filter + "'.");
+				  + " args: '" + StringUtils.join(jobData.getArgs(), ' ') + "' filter: '" + jobData.getFilter() + "'.");
 		proc = new ProcessBuilder(cmd).start();
+		stats = new ProcessStats(proc);
+		stats.start();
 		
 		activate(procIn);
-		activate(procOut);
-		activate(procErr);
+		relay(proc.getInputStream(), proc, output());
+		relay(proc.getErrorStream(), proc, toLog(id+" STDERR"));
+	}
+	
+	/**
+	 * Stop processing, the job was canceled by the Manager.
+	 */
+	public synchronized void cancel() {
+		canceled = true;
+		if (null != proc) {
+			log.info(id + " canceled, terminating nfdump.");
+			proc.destroy();
+		}
+	}
+	
+	/**
+	 * @return	True if the job was canceled.
+	 */
+	public boolean isCanceled() {
+		return canceled;
+	}
+	
+	/**
+	 * @return	Number of bytes piped into nfdump by all Filters of the JVM
+	 */
+	public static long getPipedBytes() {
+		return piped.get();
+	}
+	
+	/**
+	 * @return	Sampled CPU time and memory of nfdump
+	 */
+	public ProcessStats getProcessStats() {
+		return stats;
 	}
 	
 	/**
@@ -0,0 +1,510 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+
+import com.google.common.net.InetAddresses;
+
+/**
+ * Conditions of a nfdump filter which can be checked against the index and
+ * the summary of a file, used to skip files which can not match any flow,
+ * or against single flows.
+ * 
+ * Understood primitives are "[src|dst] host|ip <address>" (index),
+ * "[src|dst] port [=|==|>|<] <port>" (index for equality, summary),
+ * "bytes|packets [=|==|>|<] <number>" and "proto <protocol>" (summary),
+ * the "in [ ... ]" lists of hosts and ports, combined with and/or and
+ * parentheses. Every other primitive, including anything negated, may
+ * match any file. A filter which can not be parsed never prunes a file.
+ */
+public class FilterPredicate {
+	private static final List<String> AND = Arrays.asList("and", "&&");
+	private static final List<String> OR = Arrays.asList("or", "||");
+	private static final List<String> NOT = Arrays.asList("not", "!");
+	private static final List<String> EQ = Arrays.asList("=", "==", "eq");
+	private static final List<String> GT = Arrays.asList(">", "gt");
+	private static final List<String> LT = Arrays.asList("<", "lt");
+	private static final Map<String, Integer> PROTOCOLS = new HashMap<String, Integer>();
+	static {
+		PROTOCOLS.put("icmp", 1);
+		PROTOCOLS.put("tcp", 6);
+		PROTOCOLS.put("udp", 17);
+		PROTOCOLS.put("gre", 47);
+		PROTOCOLS.put("esp", 50);
+		PROTOCOLS.put("ah", 51);
+		PROTOCOLS.put("icmp6", 58);
+	}
+	
+	/**
+	 * Node of the filter expression.
+	 */
+	private static abstract class Node {
+		boolean mightMatch(BloomFilter index) {
+			return true;
+		}
+		boolean mightMatch(FileSummary summary) {
+			return true;
+		}
+		boolean matches(FlowRecord flow) {
+			return true;
+		}
+		boolean usesIndex() {
+			return false;
+		}
+		boolean usesSummary() {
+			return false;
+		}
+	}
+	
+	private static final Node ANY = new Node() {
+	};
+	
+	private static class Key extends Node {
+		private final byte[] key;
+		Key(byte[] key) {
+			this.key = key;
+		}
+		boolean mightMatch(BloomFilter index) {
+			return index.mightContain(key);
+		}
+		boolean usesIndex() {
+			return true;
+		}
+	}
+	
+	private static class Address extends Key {
+		private final byte[] address;
+		private final String direction;
+		Address(byte[] address, String direction) {
+			super(Indexer.addressKey(address));
+			this.address = address;
+			this.direction = direction;
+		}
+		boolean matches(FlowRecord flow) {
+			return (!"dst".equals(direction) && Arrays.equals(address, flow.srcAddress()))
+					|| (!"src".equals(direction) && Arrays.equals(address, flow.dstAddress()));
+		}
+	}
+	
+	/**
+	 * Value of a summarized field within [min, max].
+	 */
+	private static class Range extends Node {
+		static final int BYTES = 0, PACKETS = 1, PORT = 2, SRC_PORT = 3, DST_PORT = 4, PROTOCOL = 5;
+		private final int field;
+		private final long min, max;
+		Range(int field, long min, long max) {
+			this.field = field;
+			this.min = min;
+			this.max = max;
+		}
+		boolean mightMatch(FileSummary summary) {
+			switch (field) {
+				case BYTES: return summary.mightHaveBytes(min, max);
+				case PACKETS: return summary.mightHavePackets(min, max);
+				case PORT: return summary.mightHavePort(true, true, (int) min, (int) max);
+				case SRC_PORT: return summary.mightHavePort(true, false, (int) min, (int) max);
+				case DST_PORT: return summary.mightHavePort(false, true, (int) min, (int) max);
+				default: return summary.mightHaveProtocol((int) min);
+			}
+		}
+		boolean matches(FlowRecord flow) {
+			switch (field) {
+				case BYTES: return within(flow.bytes());
+				case PACKETS: return within(flow.packets());
+				case PORT: return within(flow.srcPort()) || within(flow.dstPort());
+				case SRC_PORT: return within(flow.srcPort());
+				case DST_PORT: return within(flow.dstPort());
+				default: return within(flow.protocol());
+			}
+		}
+		private boolean within(long value) {
+			return value >= min && value <= max;
+		}
+		boolean usesSummary() {
+			return true;
+		}
+	}
+	
+	private static class And extends Node {
+		private final Node left, right;
+		And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+		boolean mightMatch(BloomFilter index) {
+			return left.mightMatch(index) && right.mightMatch(index);
+		}
+		boolean mightMatch(FileSummary summary) {
+			return left.mightMatch(summary) && right.mightMatch(summary);
+		}
+		boolean matches(FlowRecord flow) {
+			return left.matches(flow) && right.matches(flow);
+		}
+		boolean usesIndex() {
+			return left.usesIndex() || right.usesIndex();
+		}
+		boolean usesSummary() {
+			return left.usesSummary() || right.usesSummary();
+		}
+	}
+	
+	private static class Or extends Node {
+		private final Node left, right;
+		Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+		boolean mightMatch(BloomFilter index) {
+			return left.mightMatch(index) || right.mightMatch(index);
+		}
+		boolean mightMatch(FileSummary summary) {
+			return left.mightMatch(summary) || right.mightMatch(summary);
+		}
+		boolean matches(FlowRecord flow) {
+			return left.matches(flow) || right.matches(flow);
+		}
+		boolean usesIndex() {
+			return left.usesIndex() && right.usesIndex();
+		}
+		boolean usesSummary() {
+			return left.usesSummary() && right.usesSummary();
+		}
+	}
+	
+	private final List<String> tokens;
+	private int pos = 0;
+	private final Node root;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param filter	Nfdump filter
+	 */
+	public FilterPredicate(String filter) {
+		this.tokens = tokenize(null == filter ? "" : filter);
+		Node node;
+		try {
+			node = tokens.isEmpty() ? ANY : parseOr();
+			if (pos < tokens.size()) {
+				node = ANY;
+			}
+		} catch (IllegalArgumentException e) {
+			node = ANY;
+		}
+		this.root = node;
+	}
+	
+	/**
+	 * @return	True if some files may be ruled out by their index
+	 */
+	public boolean usesIndex() {
+		return root.usesIndex();
+	}
+	
+	/**
+	 * @return	True if some files may be ruled out by their summary
+	 */
+	public boolean usesSummary() {
+		return root.usesSummary();
+	}
+	
+	/**
+	 * @param index	File's index
+	 * @return	False if no flow of the file can match the filter
+	 */
+	public boolean mightMatch(BloomFilter index) {
+		return root.mightMatch(index);
+	}
+	
+	/**
+	 * @param summary	File's summary
+	 * @return	False if no flow of the file can match the filter
+	 */
+	public boolean mightMatch(FileSummary summary) {
+		return root.mightMatch(summary);
+	}
+	
+	/**
+	 * Evaluate the understood conditions on a flow, the others are assumed
+	 * to match. Nfdump still applies the whole filter to the flows passed.
+	 * 
+	 * @param flow	Flow record
+	 * @return	False if the flow can not match the filter
+	 */
+	public boolean matches(FlowRecord flow) {
+		return root.matches(flow);
+	}
+	
+	/**
+	 * Split the filter into words, parentheses and brackets.
+	 */
+	private static List<String> tokenize(String filter) {
+		final List<String> result = new ArrayList<String>();
+		final StringBuilder word = new StringBuilder();
+		for (char c: filter.toCharArray()) {
+			if (Character.isWhitespace(c) || c == '(' || c == ')' || c == '[' || c == ']' || c == ',') {
+				if (word.length() > 0) {
+					result.add(word.toString().toLowerCase(Locale.ENGLISH));
+					word.setLength(0);
+				}
+				if (!Character.isWhitespace(c) && c != ',') {
+					result.add(String.valueOf(c));
+				}
+			} else if (c == '!' && word.length() == 0) {
+				result.add("!");
+			} else {
+				word.append(c);
+			}
+		}
+		if (word.length() > 0) {
+			result.add(word.toString().toLowerCase(Locale.ENGLISH));
+		}
+		return result;
+	}
+	
+	private String peek() {
+		return pos < tokens.size() ? tokens.get(pos) : null;
+	}
+	
+	private String next() {
+		if (pos >= tokens.size()) {
+			throw new IllegalArgumentException("Unexpected end of the filter");
+		}
+		return tokens.get(pos++);
+	}
+	
+	private Node parseOr() {
+		Node node = parseAnd();
+		while (OR.contains(peek())) {
+			next();
+			node = new Or(node, parseAnd());
+		}
+		return node;
+	}
+	
+	private Node parseAnd() {
+		Node node = parseUnary();
+		while (null != peek() && !OR.contains(peek()) && !")".equals(peek())) {
+			if (AND.contains(peek())) {
+				next();
+			}
+			node = new And(node, parseUnary());
+		}
+		return node;
+	}
+	
+	private Node parseUnary() {
+		final String token = next();
+		if (NOT.contains(token)) {
+			parseUnary();
+			return ANY;
+		}
+		if ("(".equals(token)) {
+			final Node node = parseOr();
+			if (!")".equals(next())) {
+				throw new IllegalArgumentException("Unbalanced parentheses");
+			}
+			return node;
+		}
+		pos--;
+		return parsePrimitive();
+	}
+	
+	/**
+	 * A primitive ends before the next and/or/not or parenthesis.
+	 */
+	private Node parsePrimitive() {
+		final List<String> words = new ArrayList<String>();
+		int depth = 0;
+		while (null != peek()) {
+			final String token = peek();
+			if (0 == depth && (AND.contains(token) || OR.contains(token) || NOT.contains(token)
+					|| "(".equals(token) || ")".equals(token))) {
+				break;
+			}
+			if ("[".equals(token)) {
+				depth++;
+			} else if ("]".equals(token)) {
+				depth--;
+			}
+			words.add(next());
+		}
+		if (words.isEmpty()) {
+			throw new IllegalArgumentException("Empty filter primitive");
+		}
+		
+		int i = 0;
+		String direction = "";
+		if ("src".equals(words.get(0)) || "dst".equals(words.get(0))) {
+			direction = words.get(i++);
+		}
+		if (words.size() < i + 2) {
+			return ANY;
+		}
+		final String kind = words.get(i++);
+		final List<String> args = words.subList(i, words.size());
+		if ("host".equals(kind) || "ip".equals(kind)) {
+			return parseValues(args, false, direction);
+		} else if ("port".equals(kind)) {
+			return parseValues(args, true, direction);
+		} else if (!direction.isEmpty()) {
+			return ANY;
+		} else if ("bytes".equals(kind)) {
+			return parseRange(args, Range.BYTES, Long.MAX_VALUE);
+		} else if ("packets".equals(kind)) {
+			return parseRange(args, Range.PACKETS, Long.MAX_VALUE);
+		} else if ("proto".equals(kind) && 1 == args.size()) {
+			Integer protocol = PROTOCOLS.get(args.get(0));
+			if (null == protocol) {
+				final long value = parseNumber(args.get(0));
+				protocol = value >= 0 && value <= 0xFF ? (int) value : null;
+			}
+			return null == protocol ? ANY : new Range(Range.PROTOCOL, protocol, protocol);
+		}
+		return ANY;
+	}
+	
+	/**
+	 * Parse the value of a host or port primitive, or an "in [ ... ]" list.
+	 */
+	private static Node parseValues(List<String> args, boolean port, String direction) {
+		final List<String> values;
+		if ("in".equals(args.get(0))) {
+			if (args.size() < 3 || !"[".equals(args.get(1)) || !"]".equals(args.get(args.size() - 1))) {
+				return ANY;
+			}
+			values = args.subList(2, args.size() - 1);
+		} else if (port) {
+			return parseRange(args, portField(direction), 0xFFFF);
+		} else {
+			values = args;
+		}
+		if (values.isEmpty() || (values.size() > 1 && !"in".equals(args.get(0)))) {
+			return ANY;
+		}
+		
+		Node node = null;
+		for (String value: values) {
+			final Node term = port ? portTerm(value, direction) : addressTerm(value, direction);
+			if (null == term) {
+				return ANY;
+			}
+			node = null == node ? term : new Or(node, term);
+		}
+		return node;
+	}
+	
+	/**
+	 * Parse "[comparison] <number>" of a summarized field.
+	 */
+	private static Node parseRange(List<String> args, int field, long limit) {
+		String op = "=";
+		String value = args.get(0);
+		if (2 == args.size()) {
+			op = args.get(0);
+			value = args.get(1);
+		} else if (1 != args.size()) {
+			return ANY;
+		}
+		final long number = parseNumber(value);
+		if (number < 0 || number > limit) {
+			return ANY;
+		}
+		if (EQ.contains(op)) {
+			if (Range.PORT <= field && field <= Range.DST_PORT) {
+				return portTerm(value, field);
+			}
+			return new Range(field, number, number);
+		} else if (GT.contains(op) && number < limit) {
+			return new Range(field, number + 1, limit);
+		} else if (LT.contains(op) && number > 0) {
+			return new Range(field, 0, number - 1);
+		}
+		return ANY;
+	}
+	
+	private static int portField(String direction) {
+		return "src".equals(direction) ? Range.SRC_PORT : "dst".equals(direction) ? Range.DST_PORT : Range.PORT;
+	}
+	
+	/**
+	 * A port is looked up in the index and checked against the port range.
+	 */
+	private static Node portTerm(String value, String direction) {
+		return portTerm(value, portField(direction));
+	}
+	
+	private static Node portTerm(String value, int field) {
+		final long port = parseNumber(value);
+		if (port < 0 || port > 0xFFFF) {
+			return null;
+		}
+		return new And(new Key(Indexer.portKey((int) port)), new Range(field, port, port));
+	}
+	
+	private static Node addressTerm(String value, String direction) {
+		if (!InetAddresses.isInetAddress(value)) {
+			//Host names are resolved by nfdump, they can not be looked up here
+			return null;
+		}
+		return new Address(InetAddresses.forString(value).getAddress(), direction);
+	}
+	
+	/**
+	 * Parse a number with nfdump's k, m or g scale.
+	 * 
+	 * @return	Number or -1 if it is not valid
+	 */
+	private static long parseNumber(String value) {
+		long scale = 1;
+		if (value.endsWith("k")) {
+			scale = 1000L;
+		} else if (value.endsWith("m")) {
+			scale = 1000L * 1000;
+		} else if (value.endsWith("g")) {
+			scale = 1000L * 1000 * 1000;
+		}
+		if (scale > 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		try {
+			final long number = Long.parseLong(value);
+			return number >= 0 && number <= Long.MAX_VALUE / scale ? number * scale : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HyperLogLog cardinality estimator. Workers fill the registers and the
+ * Manager unions them, so only the registers are moved over the network.
+ */
+public class HyperLogLog {
+	private static final HashFunction HASH = Hashing.murmur3_128();
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 16;
+
+	private final int precision;
+	private final int size;
+	private final byte[] registers;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param precision	Number of index bits, 2^precision registers are used.
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("HyperLogLog precision must be between "
+					+ MIN_PRECISION + " and " + MAX_PRECISION);
+		}
+		this.precision = precision;
+		this.size = 1 << precision;
+		this.registers = new byte[size];
+	}
+
+	/**
+	 * Add a value to the set.
+	 *
+	 * @param value	Serialized value
+	 */
+	public void offer(byte[] value) {
+		final long hash = HASH.hashBytes(value).asLong();
+		final int idx = (int) (hash >>> (64 - precision));
+		//Guard bit limits the rank when the remaining bits are all zeros
+		final long rest = (hash << precision) | (1L << (precision - 1));
+		final byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+		if (rank > registers[idx]) {
+			registers[idx] = rank;
+		}
+	}
+
+	/**
+	 * Union with another estimator of the same precision.
+	 *
+	 * @param other	Estimator to merge into this one
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("Can not merge HyperLogLog of precision "
+					+ other.precision + " into " + precision);
+		}
+		for (int i=0; i<size; i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	/**
+	 * @return	Estimated number of distinct values
+	 */
+	public long cardinality() {
+		double sum = 0;
+		int zeros = 0;
+		for (byte r: registers) {
+			sum += 1.0 / (1L << r);
+			if (0 == r) {
+				zeros++;
+			}
+		}
+
+		final double alpha;
+		switch (size) {
+			case 16: alpha = 0.673; break;
+			case 32: alpha = 0.697; break;
+			case 64: alpha = 0.709; break;
+			default: alpha = 0.7213 / (1 + 1.079 / size);
+		}
+
+		final double estimate = alpha * size * size / sum;
+		if (estimate <= 2.5 * size && zeros > 0) {
+			//Small range correction (linear counting)
+			return Math.round(size * Math.log((double) size / zeros));
+		}
+		//64 bit hash, large range correction is not needed
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Serialize the registers. Sparse register sets are stored as index/value
+	 * pairs to keep small results small.
+	 *
+	 * @param out	Output stream
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		int used = 0;
+		for (byte r: registers) {
+			if (0 != r) {
+				used++;
+			}
+		}
+
+		out.writeByte(precision);
+		out.writeInt(used);
+		if (used * 3 < size) {
+			for (int i=0; i<size; i++) {
+				if (0 != registers[i]) {
+					out.writeChar(i);
+					out.writeByte(registers[i]);
+				}
+			}
+		} else {
+			out.write(registers);
+		}
+	}
+
+	/**
+	 * Deserialize the registers.
+	 *
+	 * @param in	Input stream
+	 * @return	Estimator
+	 * @throws IOException
+	 */
+	public static HyperLogLog read(DataInput in) throws IOException {
+		final HyperLogLog hll = new HyperLogLog(in.readUnsignedByte());
+		final int used = in.readInt();
+		if (used * 3 < hll.size) {
+			for (int i=0; i<used; i++) {
+				hll.registers[in.readChar()] = in.readByte();
+			}
+		} else {
+			in.readFully(hll.registers);
+		}
+		return hll;
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Bloom filter index of the addresses and ports of a nfcapd file. The index
+ * is stored next to the file as ".nfcapd.YYYYMMDDhhmm.bloom", which is not
+ * listed as a netflow file. It records the length and modification time of
+ * the indexed file, a stale index is ignored.
+ * 
+ * The Manager drops the files whose index rules out the query's filter
+ * before planning the query. Only uncompressed files can be indexed.
+ */
+public class Indexer {
+	private static final Logger log = Logger.getLogger(Indexer.class);
+	private static final int MAGIC = 0x4E464249;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".bloom";
+	private static final byte ADDRESS = 'a';
+	private static final byte PORT = 'p';
+	
+	private static final Counter CHECKED = Metrics.counter("nfdist_manager_index_files_checked_total",
+			"Files whose index was consulted");
+	private static final Counter PRUNED = Metrics.counter("nfdist_manager_index_files_pruned_total",
+			"Files skipped because their index rules out the filter");
+	private static final Counter MISSING = Metrics.counter("nfdist_manager_index_files_missing_total",
+			"Files without an up to date index");
+	
+	private final FileSystem fs;
+	private final boolean ENABLED;
+	private final double FPP;
+	private final int THREADS;
+	private final int BUFSIZE;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param fs		HDFS handle
+	 * @param config	Nfdist's configuration
+	 */
+	public Indexer(FileSystem fs, Configuration config) {
+		this.fs = fs;
+		this.ENABLED = config.getBoolean("index.enabled", true);
+		this.FPP = config.getDouble("index.fpp", 0.01);
+		this.THREADS = config.getInt("index.threads", 8);
+		this.BUFSIZE = config.getInt("jobs.filter.bufsize", 0x100000);
+	}
+	
+	/**
+	 * @param file	Netflow file
+	 * @return	Path of the file's index
+	 */
+	public static Path indexPath(Path file) {
+		return new Path(file.getParent(), "." + file.getName() + SUFFIX);
+	}
+	
+	/**
+	 * @param address	IPv4 or IPv6 address in network byte order
+	 * @return	Index key of the address
+	 */
+	public static byte[] addressKey(byte[] address) {
+		final byte[] key = new byte[address.length + 1];
+		key[0] = ADDRESS;
+		System.arraycopy(address, 0, key, 1, address.length);
+		return key;
+	}
+	
+	/**
+	 * @param port	Port number
+	 * @return	Index key of the port
+	 */
+	public static byte[] portKey(int port) {
+		return new byte[] {PORT, (byte) (port >>> 8), (byte) port};
+	}
+	
+	/**
+	 * Index a file, replacing its previous index.
+	 * 
+	 * @param status	File's status object
+	 * @param catalog	Catalog to store the file's summary in, or null
+	 * @return	Number of distinct keys
+	 * @throws IOException	If the file can not be read or is compressed
+	 */
+	public int index(FileStatus status, Catalog catalog) throws IOException {
+		final Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+		final FSDataInputStream in = fs.open(status.getPath());
+		final byte[] header = new byte[NfdumpFile.DATA_OFFSET];
+		final FileSummary summary;
+		final NfdumpReader reader;
+		try {
+			in.readFully(0, header);
+			summary = FileSummary.fromHeader(header);
+			reader = new NfdumpReader(in, BUFSIZE);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		try {
+			summary.scanned();
+			while (reader.next()) {
+				keys.add(ByteBuffer.wrap(addressKey(reader.srcAddress())));
+				keys.add(ByteBuffer.wrap(addressKey(reader.dstAddress())));
+				keys.add(ByteBuffer.wrap(portKey(reader.srcPort())));
+				keys.add(ByteBuffer.wrap(portKey(reader.dstPort())));
+				summary.observe(reader);
+			}
+		} finally {
+			reader.close();
+		}
+		if (null != catalog) {
+			catalog.put(status, summary);
+		}
+		
+		final BloomFilter bloom = new BloomFilter(keys.size(), FPP);
+		for (ByteBuffer key: keys) {
+			bloom.put(key.array());
+		}
+		
+		final Path path = indexPath(status.getPath());
+		final Path tmp = new Path(path.getParent(), path.getName() + ".tmp");
+		final FSDataOutputStream out = fs.create(tmp, true);
+		try {
+			final DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeByte(VERSION);
+			data.writeLong(status.getLen());
+			data.writeLong(status.getModificationTime());
+			bloom.write(data);
+			data.flush();
+		} finally {
+			out.close();
+		}
+		fs.delete(path, false);
+		if (!fs.rename(tmp, path)) {
+			throw new IOException("Can not rename " + tmp + " to " + path);
+		}
+		return keys.size();
+	}
+	
+	/**
+	 * Read a file's index.
+	 * 
+	 * @param status	File's status object
+	 * @return	Bloom filter or null if the file has no up to date index
+	 * @throws IOException
+	 */
+	public BloomFilter read(FileStatus status) throws IOException {
+		final FSDataInputStream in;
+		try {
+			in = fs.open(indexPath(status.getPath()));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			final DataInputStream data = new DataInputStream(in);
+			if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION
+					|| data.readLong() != status.getLen() || data.readLong() != status.getModificationTime()) {
+				return null;
+			}
+			return BloomFilter.read(data);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Drop the files which can not match the filter. Files without an up to
+	 * date index are kept. The indexes are read concurrently.
+	 * 
+	 * @param stats		Status of the query's files
+	 * @param predicate	Query's filter
+	 * @return	Files to process, in the original order
+	 * @throws InterruptedException
+	 */
+	public List<FileStatus> prune(List<FileStatus> stats, final FilterPredicate predicate) throws InterruptedException {
+		if (!ENABLED || stats.isEmpty() || !predicate.usesIndex()) {
+			return stats;
+		}
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, stats.size()));
+		try {
+			final List<Future<Boolean>> checks = new ArrayList<Future<Boolean>>(stats.size());
+			for (final FileStatus s: stats) {
+				checks.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						try {
+							final BloomFilter bloom = read(s);
+							if (null == bloom) {
+								MISSING.inc();
+								return true;
+							}
+							CHECKED.inc();
+							return predicate.mightMatch(bloom);
+						} catch (IOException e) {
+							log.warn("Can not read the index of " + s.getPath() + ": " + e.getMessage());
+							return true;
+						}
+					}
+				}));
+			}
+			
+			final List<FileStatus> result = new ArrayList<FileStatus>(stats.size());
+			for (int i=0; i<stats.size(); i++) {
+				boolean keep = true;
+				try {
+					keep = checks.get(i).get();
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+				if (keep) {
+					result.add(stats.get(i));
+				}
+			}
+			PRUNED.add(stats.size() - result.size());
+			log.info("Index ruled out " + (stats.size() - result.size()) + " of " + stats.size() + " file(s)");
+			return result;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Index the netflow files in the given directories (relative to
+	 * hdfs.path.root) which have no up to date index or summary ranges.
+	 * The catalogs are stored after each directory.
+	 * 
+	 * Usage: Indexer [--force] <dir> [<dir> ...]
+	 * 
+	 * @param args	Command line arguments
+	 * @throws ConfigurationException
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws ConfigurationException, IOException {
+		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
+		hdfsConf.set("fs.defaultFS", "hdfs://" + config.getString("hdfs.namenode"));
+		final FileSystem fs = FileSystem.get(hdfsConf);
+		final Indexer indexer = new Indexer(fs, config);
+		final Catalog catalog = new Catalog(fs, config);
+		
+		boolean force = false;
+		final List<Path> dirs = new ArrayList<Path>();
+		for (String arg: args) {
+			if (arg.equals("--force")) {
+				force = true;
+			} else if (arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			} else {
+				dirs.add(new Path(config.getString("hdfs.path.root") + "/" + arg));
+			}
+		}
+		if (dirs.isEmpty()) {
+			System.err.println("Usage: Indexer [--force] <dir> [<dir> ...]");
+			System.exit(1);
+		}
+		
+		int indexed = 0, skipped = 0, failed = 0;
+		while (!dirs.isEmpty()) {
+			for (FileStatus s: fs.listStatus(dirs.remove(dirs.size() - 1))) {
+				final String name = s.getPath().getName();
+				if (s.isDirectory()) {
+					dirs.add(s.getPath());
+				} else if (name.startsWith("nfcapd.") && !name.startsWith("nfcapd.current")) {
+					final FileSummary summary = catalog.get(s);
+					if (!force && null != summary && summary.hasRanges() && null != indexer.read(s)) {
+						skipped++;
+						continue;
+					}
+					try {
+						final int keys = indexer.index(s, catalog);
+						log.debug(s.getPath() + ": " + keys + " keys");
+						indexed++;
+					} catch (IOException e) {
+						log.warn("Can not index " + s.getPath() + ": " + e.getMessage());
+						failed++;
+					}
+				}
+			}
+			catalog.flush();
+		}
+		System.out.println("Indexed " + indexed + " file(s), " + skipped + " up to date, " + failed + " failed.");
+		fs.close();
+	}
+}
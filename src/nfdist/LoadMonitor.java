@@ -0,0 +1,245 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import nfdist.zookeeper.JobQueue;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Adjusts the number of concurrent Filters of a Worker.
+ * 
+ * Each interval the throughput of the Filters and the CPU and disk
+ * utilization (Linux /proc) are sampled. The limit grows by one while
+ * all permits are used and the throughput keeps up (additive increase).
+ * It is cut by a quarter once the CPU or disk is saturated
+ * (multiplicative decrease) and stepped back if the last increase
+ * lowered the throughput.
+ */
+public class LoadMonitor implements Runnable {
+	private static final Logger log = Logger.getLogger(LoadMonitor.class);
+	private static final String PROC_STAT = "/proc/stat";
+	private static final String PROC_SELF_STAT = "/proc/self/stat";
+	//Saturation thresholds (fraction of all CPU time)
+	private static final double MAX_CPU = 0.9;
+	private static final double MAX_IOWAIT = 0.25;
+	//Throughput drop which reverts the last increase
+	private static final double RATE_DROP = 0.9;
+	private static final double DECREASE = 0.75;
+	
+	private final AdaptiveLimit limit;
+	private final long interval;
+	private volatile JobQueue queue;
+	
+	//Previous sample
+	private long[] cpu = null;
+	private long children = 0;
+	private long bytes = 0;
+	private long time = 0;
+	private double rate = 0;
+	private boolean increased = false;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param limit		Worker's limit of concurrent Filters
+	 * @param config	Nfdist's configuration
+	 */
+	public LoadMonitor(AdaptiveLimit limit, Configuration config) {
+		this.limit = limit;
+		this.interval = config.getInt("jobs.filter.threads.interval") * 1000L;
+	}
+	
+	/**
+	 * Set the queue where the limit is published.
+	 * 
+	 * @param queue	Worker's job queue
+	 */
+	public void setQueue(JobQueue queue) {
+		this.queue = queue;
+	}
+	
+	@Override
+	public void run() {
+		sample();
+		while (true) {
+			try {
+				Thread.sleep(interval);
+				adjust();
+			} catch (InterruptedException e) {
+				log.info("Interrupted, quiting...");
+				return;
+			} catch (RuntimeException e) {
+				log.error("Unhandled exception: "+e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Take a new sample, compare it to the previous one and adjust the limit.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void adjust() throws InterruptedException {
+		final long[] prevCpu = cpu;
+		final long prevChildren = children, prevBytes = bytes, prevTime = time;
+		sample();
+		
+		final double newRate = (bytes - prevBytes) * 1000.0 / Math.max(1, time - prevTime);
+		double busy = 0, iowait = 0, nfdump = 0;
+		if (null != prevCpu && null != cpu) {
+			long total = 0;
+			for (int i=0; i<cpu.length; i++) {
+				total += cpu[i] - prevCpu[i];
+			}
+			if (total > 0) {
+				//user nice system idle iowait ...
+				iowait = (double) (cpu[4] - prevCpu[4]) / total;
+				busy = 1 - (double) (cpu[3] - prevCpu[3]) / total - iowait;
+				nfdump = (double) (children - prevChildren) / total;
+			}
+		}
+		
+		final int old = limit.getLimit();
+		final boolean saturated = limit.isSaturated();
+		final int peak = limit.takePeak();
+		boolean changed = false;
+		if (busy > MAX_CPU || iowait > MAX_IOWAIT) {
+			changed = limit.decrease(DECREASE);
+			increased = false;
+		} else if (increased && newRate < rate * RATE_DROP) {
+			changed = limit.setLimit(old - 1);
+			increased = false;
+		} else if (saturated) {
+			changed = limit.increase(1);
+			increased = changed;
+		} else {
+			increased = false;
+		}
+		rate = newRate;
+		
+		final String status = String.format("limit=%d peak=%d rate=%.1fMB/s cpu=%.0f%% iowait=%.0f%% nfdump=%.0f%%",
+				limit.getLimit(), peak, newRate / 0x100000, busy * 100, iowait * 100, nfdump * 100);
+		if (changed) {
+			log.info("Filter limit changed from " + old + ": " + status);
+		} else {
+			log.debug("Filter limit kept: " + status);
+		}
+		publish(status);
+	}
+	
+	/**
+	 * Publish the status for operators.
+	 * 
+	 * @param status	Status line
+	 * @throws InterruptedException
+	 */
+	private void publish(String status) throws InterruptedException {
+		final JobQueue q = queue;
+		if (null == q) {
+			return;
+		}
+		try {
+			q.publish(status);
+		} catch (KeeperException e) {
+			log.warn("Can not publish the Worker status: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Read the current counters.
+	 */
+	private void sample() {
+		time = System.currentTimeMillis();
+		bytes = Filter.getPipedBytes();
+		cpu = readCpu();
+		children = readChildrenCpu();
+	}
+	
+	/**
+	 * @return	Aggregated CPU times of the system (clock ticks) or null if unknown
+	 */
+	private static long[] readCpu() {
+		final String line = readLine(PROC_STAT);
+		if (null == line || !line.startsWith("cpu ")) {
+			return null;
+		}
+		final String[] fields = line.substring(4).trim().split("\\s+");
+		if (fields.length < 5) {
+			return null;
+		}
+		final long[] result = new long[fields.length];
+		for (int i=0; i<fields.length; i++) {
+			result[i] = Long.parseLong(fields[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * CPU time of the terminated child processes, i.e. nfdump.
+	 * 
+	 * @return	User and system time in clock ticks or 0 if unknown
+	 */
+	private static long readChildrenCpu() {
+		final String line = readLine(PROC_SELF_STAT);
+		if (null == line) {
+			return 0;
+		}
+		//Fields after the command name: state ppid ... cutime(13) cstime(14)
+		final String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+		if (fields.length < 15) {
+			return 0;
+		}
+		return Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+	}
+	
+	/**
+	 * @param file	File name
+	 * @return	First line of the file or null if it can not be read
+	 */
+	private static String readLine(String file) {
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				return reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -29,41 +29,91 @@
 package nfdist;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.cli.MissingArgumentException;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
 
 import nfdist.JobProto.JobInfo;
+import nfdist.columnar.ColumnarFile;
 import nfdist.hadoop.FileList;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Histogram;
+import nfdist.metrics.Metrics;
 import nfdist.zookeeper.JobRequest;
 import nfdist.zookeeper.ReconnectingZooKeeper;
 
 /**
  * Manager submits job requests, processes the results and provides the final output.
+ * 
+ * A Manager keeps its HDFS and ZooKeeper connections open, so it can run
+ * any number of queries, also concurrently (see ManagerServer).
  */
 public class Manager {
 	private static final Logger log = Logger.getLogger(Manager.class);
-	private static JobRequest jobs;
+	private static final Histogram QUERY_TIME = Metrics.histogram("nfdist_manager_query_seconds",
+			"Time to run a query", Histogram.MICROS);
+	private static final Histogram SUBMIT_TIME = Metrics.histogram("nfdist_manager_submit_seconds",
+			"Time from the query start until all jobs were submitted", Histogram.MICROS);
+	private static final Counter QUERIES = Metrics.counter("nfdist_manager_queries_total",
+			"Queries run");
+	private static final Counter JOBS_CACHED = Metrics.counter("nfdist_manager_jobs_cached_total",
+			"Jobs whose data is cached in the memory of a datanode");
+	private static final Counter JOBS_UNCACHED = Metrics.counter("nfdist_manager_jobs_uncached_total",
+			"Jobs whose data is read from datanode disks");
+	private final Configuration config;
+	private final ManagerWatcher watcher = new ManagerWatcher();
+	private final List<JobRequest> requests = new CopyOnWriteArrayList<JobRequest>();
+	private final Planner planner;
+	private final ResultCache cache;
+	private FileSystem fs = null;
+	private ReconnectingZooKeeper zk = null;
 	
 
 	/**
 	 * ZooKeeper event monitor.
 	 */
-	private static class ManagerWatcher implements Watcher {
+	private class ManagerWatcher implements Watcher {
+		
+		/**
+		 * @param path	Job's node path
+		 * @return	Job queue of the query which registered the job or null
+		 */
+		private JobRequest owner(String path) {
+			for (JobRequest jobs: requests) {
+				if (jobs.isRegistered(path)) {
+					return jobs;
+				}
+			}
+			return null;
+		}
 
 		/**
 		 * Monitors states of submitted jobs.
@@ -72,28 +122,30 @@ public class Manager {
 		public void process(WatchedEvent event) {
 			String path = event.getPath();
 			EventType type = event.getType();
+			JobRequest jobs;
 			
 			switch (type) {
 				case None:
-					log.debug("Connected.");
+					if (event.getState() == KeeperState.Expired) {
+						log.warn("ZooKeeper session expired.");
+						expired();
+					} else {
+						log.debug("Connected.");
+					}
 					break;
 				case NodeDataChanged:
-					try {
-						jobs.completeIfFinished(path);
-					} catch (Exception e) {
-						e.printStackTrace();
+					jobs = owner(path);
+					if (null != jobs) {
+						jobs.signal(path);
 					}
 					break;
 				case NodeCreated:
-					if (jobs.isRegistered(path)) {
+					jobs = owner(path);
+					if (null != jobs) {
 						log.debug("My job was taken: "+path);
 
 						// Activate the watch
-						try {
-							jobs.completeIfFinished(path);
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
+						jobs.signal(path);
 					}
 					break;
 				default:
@@ -107,45 +159,217 @@ public class Manager {
 	}
 
 	/**
-	 * Creates job for each file in the list.
+	 * Get the start of a time bucket the given date belongs to.
+	 * 
+	 * @param date		File's date
+	 * @param minutes	Bucket size in minutes, 0 if buckets are not used
+	 * @return	Bucket start in ms since epoch
+	 */
+	private static long getBucket(Date date, int minutes) {
+		if (0 == minutes || null == date) {
+			return 0;
+		}
+		//Align buckets to the local time as the file names are
+		final long size = minutes * 60000L;
+		final long offset = TimeZone.getDefault().getOffset(date.getTime());
+		final long local = date.getTime() + offset;
+		return local - local % size - offset;
+	}
+	
+	/**
+	 * Lower bounds of the first seen times of the files' flows, taken from
+	 * their stat records. A columnar file gets the lowest bound of the
+	 * files of its hour.
+	 * 
+	 * @param catalog	Summaries of the files
+	 * @param files		Query's files
+	 * @param stats		Status of the nfcapd files to process
+	 * @return	Bounds (ms) by file path and by directory and hour
+	 * @throws InterruptedException
+	 */
+	private static Map<String, Long> getFirstSeen(Catalog catalog, FileList files, List<FileStatus> stats)
+			throws InterruptedException {
+		final SimpleDateFormat hourFormat = new SimpleDateFormat("yyyyMMddHH");
+		final List<FileSummary> summaries = catalog.summaries(stats);
+		final Map<String, Long> bounds = new HashMap<String, Long>();
+		for (int i=0; i<stats.size(); i++) {
+			final FileStatus s = stats.get(i);
+			final long first = (null != summaries.get(i)) ? summaries.get(i).getFirstSeen() : Long.MIN_VALUE;
+			bounds.put(s.getPath().toString(), first);
+			final Date date = files.getDate(s);
+			if (null != date) {
+				final String hour = s.getPath().getParent() + "/" + hourFormat.format(date);
+				final Long other = bounds.get(hour);
+				bounds.put(hour, (null == other) ? first : Math.min(first, other));
+			}
+		}
+		return bounds;
+	}
+	
+	/**
+	 * @param bounds	See getFirstSeen()
+	 * @param status	File or columnar file
+	 * @return	Lower bound of the first seen times of the file's flows
+	 */
+	private static long getFirstSeen(Map<String, Long> bounds, FileStatus status) {
+		Long bound = bounds.get(status.getPath().toString());
+		if (null == bound && ColumnarFile.isColumnar(status.getPath())) {
+			try {
+				final Date hour = ColumnarFile.getHour(status.getPath().getName());
+				bound = bounds.get(status.getPath().getParent() + "/" + new SimpleDateFormat("yyyyMMddHH").format(hour));
+			} catch (ParseException e) {
+				//unknown
+			}
+		}
+		return (null == bound) ? Long.MIN_VALUE : bound;
+	}
+	
+	/**
+	 * Creates job for each file in the list, or for each split of a large file.
 	 * 
 	 * @param jobs		Job queue
-	 * @param files		List of files to process
-	 * @param args		Nfdump arguments
-	 * @param filter	Netflow filter string
+	 * @param files		Query's files
+	 * @param stats		Status of the files to process
+	 * @param prototype	Job parameters common to all files
+	 * @param bucket	Distinct count time bucket in minutes
+	 * @param codecs	Chooses each job's codec, null to keep the prototype's
+	 * @param splitter	Splits large files into several jobs
+	 * @param bounds	First seen bounds of the files (see getFirstSeen()), the
+	 * 					files must be sorted by them, or null
 	 * @return	Number of jobs activated
 	 * @throws IOException
 	 * @throws KeeperException
 	 * @throws InterruptedException
 	 */
-	private static int submitJobs(JobRequest jobs, FileList files, List<String> args, String filter) throws IOException, KeeperException, InterruptedException {
-		int count = 0;
-		final List<FileStatus> stats = files.getStats();
+	private static int submitJobs(JobRequest jobs, FileList files, List<FileStatus> stats, JobInfo prototype, int bucket,
+			CodecPolicy codecs, FileSplitter splitter, Map<String, Long> bounds)
+			throws IOException, KeeperException, InterruptedException {
+		int count = 0, split = 0;
 		for (FileStatus s: stats) {
 			if (jobs.isCanceled()) {
 				break;
 			}
-			JobInfo.Builder job = JobInfo.newBuilder();
+			final long bound = (null != bounds) ? getFirstSeen(bounds, s) : Long.MIN_VALUE;
+			JobInfo.Builder job = JobInfo.newBuilder(prototype);
 			job.setNfFile(s.getPath().toUri().getPath());
-			job.addAllServer(files.getServers(s));
-			job.setFilter(filter);
-			job.addAllArgs(args);
+			if (prototype.hasDistinct()) {
+				job.setBucket(getBucket(files.getDate(s), bucket));
+			}
 			
-			jobs.create(job.build().toByteArray());
-			count++;
+			final List<FileSplitter.Split> splits = splitter.split(s);
+			if (null == splits) {
+				job.addAllServer(files.getJobServers(s));
+				if (null != codecs) {
+					job.setCodec(codecs.choose(s.getLen()));
+				}
+				if (jobs.create(job.build().toByteArray(), bound)) {
+					count++;
+				}
+				continue;
+			}
+			
+			split++;
+			for (FileSplitter.Split r: splits) {
+				job.clearServer();
+				job.addAllServer(r.getHosts());
+				job.setOffset(r.getOffset());
+				job.setLength(r.getLength());
+				if (null != codecs) {
+					job.setCodec(codecs.choose(r.getLength()));
+				}
+				if (jobs.create(job.build().toByteArray(), bound)) {
+					count++;
+				}
+			}
 		}
-		log.debug("Jobs submitted: " + count + "/" + stats.size());
+		log.debug("Jobs submitted: " + count + " for " + stats.size() + " file(s), " + split + " split");
 		return count;
 	}
 	
-	public static void main(String[] args) throws ConfigurationException, IOException, KeeperException, InterruptedException, IllegalArgumentException, MissingArgumentException {
+	/**
+	 * Constructor.
+	 * 
+	 * @param config	Nfdist's configuration
+	 */
+	public Manager(Configuration config) {
+		this.config = config;
+		this.planner = new Planner(config);
+		this.cache = new ResultCache(config);
+	}
+	
+	/**
+	 * @return	HDFS handle, it is opened on the first use
+	 * @throws IOException
+	 */
+	private synchronized FileSystem getFileSystem() throws IOException {
+		if (null == fs) {
+			final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
+			try {
+				final URI hdfsURI = new URI("hdfs", config.getString("hdfs.namenode"), null, null);
+				hdfsConf.set("fs.defaultFS", hdfsURI.toString());
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid namenode address: "+e.getMessage());
+			}
+			fs = FileSystem.get(hdfsConf);
+		}
+		return fs;
+	}
+	
+	/**
+	 * @return	ZooKeeper handle, it is opened on the first use
+	 * @throws IOException
+	 */
+	private synchronized ReconnectingZooKeeper getZooKeeper() throws IOException {
+		if (null == zk) {
+			zk = new ReconnectingZooKeeper(config, watcher);
+		}
+		return zk;
+	}
+	
+	/**
+	 * Open HDFS and ZooKeeper connections in advance.
+	 * 
+	 * @throws IOException
+	 */
+	public void connect() throws IOException {
+		getFileSystem();
+		getZooKeeper();
+	}
+	
+	/**
+	 * Forget an expired ZooKeeper session, the next query opens a new one.
+	 */
+	private synchronized void expired() {
+		if (null != zk) {
+			try {
+				zk.close();
+			} catch (InterruptedException e) {
+				//ignore
+			}
+			zk = null;
+		}
+	}
+	
+	/**
+	 * Run a query.
+	 * 
+	 * @param args	Nfdump arguments
+	 * @param out	Standard output of the query
+	 * @param err	Standard error of the query
+	 * @return	True if the query completed in time
+	 * @throws IOException
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 * @throws IllegalArgumentException
+	 * @throws MissingArgumentException
+	 */
+	public boolean query(String[] args, PrintStream out, PrintStream err) throws IOException, KeeperException, InterruptedException, IllegalArgumentException, MissingArgumentException {
 		final long start = System.currentTimeMillis();
-		long stop;
-
-		Thread.currentThread().setName("Manager#"+new Random().nextInt(Integer.MAX_VALUE));
-		
-		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		final long startNanos = System.nanoTime();
 		final int JOBTIMEOUT = config.getInt("jobs.timeout")*1000;
+		QUERIES.inc();
+		long stop;
+		boolean result = true;
 		
 		// Options
 		final Options opts = new Options(config);
@@ -157,11 +381,13 @@ public class Manager {
 		//If no files are accessed (e.g. filter syntax check)
 		if (opts.noFiles()) {
 			NoFiles nofiles = new NoFiles(config);
+			nofiles.setOutput(out, err);
 			nofiles.start(allArgs, filter);  
-			nofiles.await(JOBTIMEOUT);
+			result = nofiles.await(JOBTIMEOUT);
 			stop = System.currentTimeMillis();
 			log.info("+" + (stop-start)/1000f + "s. \tfinished.");
-			return;
+			QUERY_TIME.recordSince(startNanos);
+			return result;
 		}
 		
 		// More options
@@ -171,24 +397,57 @@ public class Manager {
 		final Date endDate = opts.getEnd();
 		
 		//HDFS
-		final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
-		try {
-			final URI hdfsURI = new URI("hdfs", config.getString("hdfs.namenode"), null, null);
-			hdfsConf.set("fs.defaultFS", hdfsURI.toString());
-		} catch (URISyntaxException e1) {
-			e1.printStackTrace();
-			return;
-		}
-		final FileSystem fs = FileSystem.get(hdfsConf);
+		final FileSystem fs = getFileSystem();
 		
+		final long listStart = System.currentTimeMillis();
 		final FileList files = new FileList(fs, path, idents, startDate, endDate);
+		final List<FileStatus> listed = files.getStats();
 		
-		if (files.oneFile()) {
-			final Direct direct = new Direct(fs, files, config);
+		//Repeated queries of unchanged files are answered from the cache
+		String cacheKey = null;
+		ResultCache.Capture outCapture = null, errCapture = null;
+		if (cache.isEnabled()) {
+			cacheKey = ResultCache.key(opts, listed);
+			final byte[] cached = cache.get(cacheKey);
+			if (null != cached) {
+				out.write(cached);
+				out.flush();
+				stop = System.currentTimeMillis();
+				log.info("+" + (stop-start)/1000f + "s. \tanswered from the result cache (" + listed.size() + " file(s)).");
+				QUERY_TIME.recordSince(startNanos);
+				return true;
+			}
+			outCapture = cache.capture(out);
+			errCapture = new ResultCache.Capture(err, 0);
+			out = new PrintStream(outCapture);
+			err = new PrintStream(errCapture);
+		}
+		final Catalog catalog = new Catalog(fs, config);
+		if (opts.isSummaryOnly()) {
+			final FileSummary summary = catalog.summarize(listed);
+			if (null != summary) {
+				summary.print(out, StringUtils.join(idents, ":"));
+				stop = System.currentTimeMillis();
+				log.info("+" + (stop-start)/1000f + "s. \tanswered from the catalog (" + listed.size() + " file(s)).");
+				QUERY_TIME.recordSince(startNanos);
+				return true;
+			}
+		}
+		final FilterPredicate predicate = new FilterPredicate(filter);
+		final List<FileStatus> stats = new Indexer(fs, config).prune(catalog.prune(listed, predicate), predicate);
+		final long listEnd = System.currentTimeMillis();
+		
+		final Planner.Plan plan = planner.plan(files, stats, opts);
+		if (plan.isDirect()) {
+			final Direct direct = new Direct(fs, plan.getDirect(), config);
 			
+			direct.setOutput(out, err);
 			direct.start(allArgs, filter);
-			direct.await(JOBTIMEOUT);
+			result = direct.await(JOBTIMEOUT);
 			stop = System.currentTimeMillis();
+			if (result) {
+				planner.observeDirect(Planner.bytes(plan.getDirect()), stop - listEnd);
+			}
 			log.info("+" + (stop-start)/1000f + "s. \tcombiner finished.");
 			
 		} else {
@@ -198,45 +457,216 @@ public class Manager {
 			final List<String> workerArgs = opts.getWorkerArgs();
 			
 			//ZooKeeper
-			final ManagerWatcher watcher = new ManagerWatcher();
-			final ReconnectingZooKeeper zk = new ReconnectingZooKeeper(config, watcher);
-
-			jobs = new JobRequest(zk, config);
+			final JobRequest jobs = new JobRequest(getZooKeeper(), config);
+			requests.add(jobs);
+			
+			//Tracing
+			final String tracePath = config.getString("trace.path", "");
+			final Trace trace = tracePath.isEmpty() ? null : new Trace(UUID.randomUUID().toString());
+			if (null != trace) {
+				trace.add("list", JobRequest.MANAGER, Trace.NONE, listStart, listEnd);
+				jobs.setTrace(trace);
+			}
 			
-			//Result combiner thread
-			Combiner comb = new Combiner(fs, jobs, config);
-			comb.start(combinerArgs, filter);
-
 			try {
-				final int numOfJobs = submitJobs(jobs, files, workerArgs, filter);
-				if (0 == numOfJobs) {
+				//Result combiner thread
+				final Proc comb;
+				Combiner hybrid = null;
+				CodecPolicy codecs = null;
+				final JobInfo.Builder prototype = JobInfo.newBuilder();
+				prototype.setFilter(filter);
+				prototype.setQuery(jobs.getQuery());
+				if (null != trace) {
+					prototype.setTrace(trace.getId());
+				}
+				if (opts.doDistinct()) {
+					final DistinctCombiner distinct = new DistinctCombiner(fs, jobs, config);
+					distinct.setOutput(out, err);
+					distinct.start(opts.getDistinct(), opts.getDistinctBucket() > 0);
+					comb = distinct;
+					prototype.addAllArgs(opts.getDistinctArgs());
+					prototype.setDistinct(opts.getDistinct());
+					prototype.setPrecision(distinct.getPrecision());
+				} else {
+					final Combiner combiner = new Combiner(fs, jobs, config);
+					combiner.setOutput(out, err);
+					if (opts.canStopEarly()) {
+						combiner.setLimit(opts.getLimit());
+					}
+					if (opts.canMerge()) {
+						//Results are merged in the JVM, which reads only uncompressed files
+						combiner.setMerge(opts.getOrder(), opts.getLimit());
+						combiner.start(opts.getMergedCombinerArgs(), filter);
+						prototype.addAllArgs(opts.getMergedWorkerArgs());
+						prototype.setCodec("none");
+						prototype.setOrder(opts.getOrder().name());
+						if (opts.getLimit() > 0) {
+							prototype.setLimit(opts.getLimit());
+						}
+					} else if (opts.canAggregate()) {
+						//Results are aggregated in the JVM, which reads only uncompressed files
+						combiner.setAggregate(opts.getAggregateTags(), combinerArgs);
+						combiner.start(combinerArgs, filter);
+						prototype.addAllArgs(workerArgs);
+						prototype.setCodec("none");
+					} else {
+						codecs = new CodecPolicy(config, opts.doesAggregate());
+						combiner.setCodecPolicy(codecs);
+						if (!plan.getDirect().isEmpty()) {
+							combiner.setDirect(plan.getDirect());
+							hybrid = combiner;
+						}
+						combiner.start(combinerArgs, filter);
+						prototype.addAllArgs(workerArgs);
+					}
+					comb = combiner;
+				}
+	
+				final long submitStart = System.currentTimeMillis();
+				final FileSplitter splitter = new FileSplitter(fs, config);
+				int numOfJobs = 0;
+				try {
+					List<FileStatus> distributed = plan.getDistributed();
+					//Time ordered results are merged up to the earliest flow of unfinished jobs
+					Map<String, Long> bounds = null;
+					if (!opts.doDistinct() && opts.canMerge() && opts.getOrder().isTime()) {
+						bounds = getFirstSeen(catalog, files, distributed);
+					}
+					//Columnar files hold whole hours, finer distinct buckets need the nfcapd files
+					if (config.getBoolean("columnar.enabled", true) && 0 == opts.getDistinctBucket() % 60) {
+						distributed = files.columnar(listed, distributed, plan.getDirect());
+					}
+					if (null != bounds) {
+						final Map<String, Long> firstSeen = bounds;
+						distributed = new ArrayList<FileStatus>(distributed);
+						Collections.sort(distributed, new Comparator<FileStatus>() {
+							@Override
+							public int compare(FileStatus a, FileStatus b) {
+								final long x = getFirstSeen(firstSeen, a), y = getFirstSeen(firstSeen, b);
+								return (x < y) ? -1 : ((x == y) ? 0 : 1);
+							}
+						});
+					}
+					numOfJobs = submitJobs(jobs, files, distributed, prototype.build(), opts.getDistinctBucket(), codecs,
+							splitter, bounds);
+					if (0 == numOfJobs) {
+						comb.stop();
+					}
+				} catch (IOException e) {
+					log.error(e.getMessage());
 					comb.stop();
 				}
-			} catch (IOException e) {
-				log.error(e.getMessage());
-				comb.stop();
-			}
-					
-			//--- Time info ---
-			stop = System.currentTimeMillis();
-			log.info("+" + (stop-start)/1000f + "s. \tcompleted job submission.");
-			
-			if (!jobs.await(JOBTIMEOUT)) {
-				log.error("Timeout while waiting for all jobs to finish!");
-				comb.await(1000);
-			} else {
+						
+				//--- Time info ---
+				SUBMIT_TIME.recordSince(startNanos);
 				stop = System.currentTimeMillis();
-				log.info("+" + (stop-start)/1000f + "s. \tcompleted " + jobs.getCompletedCount() + " job(s).");
+				if (null != trace) {
+					trace.add("submit", JobRequest.MANAGER, Trace.NONE, submitStart, stop);
+				}
+				//Jobs of a canceled query may have been counted but not created
+				final int cached = Math.min(numOfJobs, files.getCachedCount() + splitter.getCachedCount());
+				JOBS_CACHED.add(cached);
+				JOBS_UNCACHED.add(numOfJobs - cached);
+				log.info("+" + (stop-start)/1000f + "s. \tcompleted job submission, " + cached + " of " + numOfJobs + " job(s) cached.");
 				
-				if (!comb.await(JOBTIMEOUT)) {
-					log.error("Timeout while waiting for combiner to finish!");
+				if (!jobs.await(JOBTIMEOUT)) {
+					log.error("Timeout while waiting for all jobs to finish!");
+					comb.await(1000);
+					result = false;
 				} else {
 					stop = System.currentTimeMillis();
-					log.info("+" + (stop-start)/1000f + "s. \tcombiner finished.");
+					log.info("+" + (stop-start)/1000f + "s. \tcompleted " + jobs.getCompletedCount() + " job(s), final window " + jobs.getWindow()
+							+ (null != codecs ? ", codecs: " + codecs : "") + ".");
+					if (!jobs.isCanceled() && !opts.doDistinct()) {
+						planner.observeDistributed(numOfJobs, Planner.bytes(plan.getDistributed()), plan.getSlots(), stop - submitStart);
+					}
+					
+					final long combineStart = stop;
+					if (!comb.await(JOBTIMEOUT)) {
+						log.error("Timeout while waiting for combiner to finish!");
+						result = false;
+					} else if (comb.isFailed()) {
+						result = false;
+					} else {
+						stop = System.currentTimeMillis();
+						log.info("+" + (stop-start)/1000f + "s. \tcombiner finished.");
+						if (null != hybrid) {
+							planner.observeDirect(hybrid.getDirectBytes(), hybrid.getDirectTime());
+						}
+					}
+					if (jobs.getFailedCount() > 0) {
+						log.error(jobs.getFailedCount() + " job(s) failed.");
+						err.println("Error: " + jobs.getFailedCount() + " job(s) failed, the output is incomplete.");
+						result = false;
+					}
+					if (null != trace) {
+						trace.add("combine", JobRequest.MANAGER, Trace.NONE, combineStart, System.currentTimeMillis());
+					}
 				}
+			} finally {
+				requests.remove(jobs);
+				jobs.close();
+			}
+			
+			if (null != trace) {
+				trace.add("query", JobRequest.MANAGER, Trace.NONE, start, System.currentTimeMillis());
+				writeTrace(fs, new Path(tracePath, trace.getId()), trace);
+			}
+		}
+		if (null != outCapture) {
+			out.flush();
+			err.flush();
+			//Outputs of failed queries or with warnings are not reused
+			if (result && errCapture.isEmpty()) {
+				cache.put(cacheKey, outCapture.getOutput());
 			}
+		}
+		QUERY_TIME.recordSince(startNanos);
+		return result;
+	}
+	
+	/**
+	 * Store a query's trace, failures are only logged.
+	 * 
+	 * @param fs	HDFS handle
+	 * @param path	Trace file
+	 * @param trace	Query's trace
+	 */
+	private static void writeTrace(FileSystem fs, Path path, Trace trace) {
+		try {
+			trace.write(fs.create(path, true));
+			log.info("Trace " + trace.getId() + " written to " + path);
+		} catch (IOException e) {
+			log.warn("Can not write trace " + trace.getId() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Close HDFS and ZooKeeper connections.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public synchronized void close() throws IOException, InterruptedException {
+		if (null != zk) {
 			zk.close();
+			zk = null;
+		}
+		if (null != fs) {
+			fs.close();
+			fs = null;
+		}
+	}
+	
+	public static void main(String[] args) throws ConfigurationException, IOException, KeeperException, InterruptedException, IllegalArgumentException, MissingArgumentException {
+		Thread.currentThread().setName("Manager#"+new Random().nextInt(Integer.MAX_VALUE));
+		
+		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		final Manager manager = new Manager(config);
+		try {
+			manager.query(args, System.out, System.err);
+		} finally {
+			manager.close();
 		}
-		fs.close();
 	}
 }
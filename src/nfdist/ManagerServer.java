@@ -0,0 +1,187 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nfdist.metrics.Metrics;
+
+import org.apache.commons.cli.MissingArgumentException;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Long running Manager which keeps HDFS and ZooKeeper connections open
+ * and runs queries received from Clients (bin/manager.sh).
+ */
+public class ManagerServer {
+	private static final Logger log = Logger.getLogger(ManagerServer.class);
+	private static Manager manager;
+	
+	/**
+	 * Writes the data as frames of a single channel.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final int channel;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param out		Connection's output, shared by all channels
+		 * @param channel	Channel id
+		 */
+		public FrameOutputStream(DataOutputStream out, int channel) {
+			this.out = out;
+			this.channel = channel;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (0 == len) {
+				return;
+			}
+			synchronized (out) {
+				out.writeByte(channel);
+				out.writeInt(len);
+				out.write(b, off, len);
+				out.flush();
+			}
+		}
+	}
+	
+	/**
+	 * Runs a query of one client connection.
+	 */
+	private static class Session implements Runnable {
+		private final Socket socket;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param socket	Client's connection
+		 */
+		public Session(Socket socket) {
+			this.socket = socket;
+		}
+		
+		@Override
+		public void run() {
+			Thread.currentThread().setName("Manager#"+new Random().nextInt(Integer.MAX_VALUE));
+			try {
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				final PrintStream stdout = new PrintStream(new FrameOutputStream(out, Client.STDOUT));
+				final PrintStream stderr = new PrintStream(new FrameOutputStream(out, Client.STDERR));
+				
+				final String[] args = new String[in.readInt()];
+				for (int i=0; i<args.length; i++) {
+					args[i] = in.readUTF();
+				}
+				
+				int code = 0;
+				try {
+					if (!manager.query(args, stdout, stderr)) {
+						code = 1;
+					}
+				} catch (IllegalArgumentException e) {
+					stderr.println(e.getMessage());
+					code = 1;
+				} catch (MissingArgumentException e) {
+					stderr.println(e.getMessage());
+					code = 1;
+				} catch (KeeperException e) {
+					log.error("Unhandled exception: "+e.getMessage());
+					stderr.println(e.getMessage());
+					code = 1;
+				}
+				stdout.flush();
+				stderr.flush();
+				
+				synchronized (out) {
+					out.writeByte(Client.EXIT);
+					out.writeInt(code);
+					out.flush();
+				}
+			} catch (IOException e) {
+				log.warn("Client session failed: "+e.getMessage());
+			} catch (InterruptedException e) {
+				log.info("Interrupted, quiting...");
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws ConfigurationException, IOException {
+		Thread.currentThread().setName("ManagerServer");
+		
+		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		final InetAddress address = InetAddress.getByName(config.getString("manager.address"));
+		final int port = config.getInt("manager.port");
+		final ExecutorService executor = Executors.newFixedThreadPool(config.getInt("manager.queries"));
+		
+		manager = new Manager(config);
+		manager.connect();
+		Metrics.expose(config.getString("metrics.address", "127.0.0.1"), config.getInt("metrics.manager.port"));
+		
+		final ServerSocket server = new ServerSocket(port, 50, address);
+		log.info("Listening for queries on " + address + ":" + port);
+		while (true) {
+			try {
+				executor.execute(new Session(server.accept()));
+			} catch (IOException e) {
+				log.error("Unhandled exception: "+e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Layout of nfdump (1.6) binary files. A file starts with a file header
+ * which is followed by a stat record and data blocks. Nfdump writes the
+ * file in the host byte order, it is detected from the magic number.
+ */
+public class NfdumpFile {
+	public static final int MAGIC = 0xA50C;
+	/** Size of file_header_t */
+	public static final int HEADER_SIZE = 140;
+	/** Size of stat_record_t */
+	public static final int STAT_SIZE = 136;
+	/** Offset of the first data block */
+	public static final int DATA_OFFSET = HEADER_SIZE + STAT_SIZE;
+	
+	/** Offsets of the fields in file_header_t */
+	public static final int HEADER_FLAGS = 4;
+	public static final int HEADER_BLOCKS = 8;
+	
+	/** Offsets of the fields in stat_record_t */
+	public static final int STAT_FLOWS = HEADER_SIZE;
+	public static final int STAT_BYTES = HEADER_SIZE + 8;
+	public static final int STAT_PACKETS = HEADER_SIZE + 16;
+	/** Flows, bytes and packets of tcp, udp, icmp and other protocols */
+	public static final int STAT_FLOWS_PROTO = HEADER_SIZE + 24;
+	public static final int STAT_BYTES_PROTO = HEADER_SIZE + 56;
+	public static final int STAT_PACKETS_PROTO = HEADER_SIZE + 88;
+	public static final int STAT_FIRST = HEADER_SIZE + 120;
+	public static final int STAT_LAST = HEADER_SIZE + 124;
+	public static final int STAT_MSEC_FIRST = HEADER_SIZE + 128;
+	public static final int STAT_MSEC_LAST = HEADER_SIZE + 130;
+	public static final int STAT_SEQUENCE_FAILURES = HEADER_SIZE + 132;
+	
+	/** File header flags */
+	public static final int FLAG_LZO_COMPRESSED = 0x1;
+	public static final int FLAG_BZ2_COMPRESSED = 0x8;
+	public static final int FLAG_COMPRESSED = FLAG_LZO_COMPRESSED | FLAG_BZ2_COMPRESSED;
+	public static final int LAYOUT_VERSION = 1;
+	public static final int IDENT_SIZE = 128;
+	
+	/** Data block header (data_block_header_t) */
+	public static final int BLOCK_HEADER_SIZE = 12;
+	public static final int DATA_BLOCK_TYPE = 2;
+	
+	/** Record types */
+	public static final int COMMON_RECORD_V0_TYPE = 1;
+	public static final int EXTENSION_MAP_TYPE = 2;
+	public static final int COMMON_RECORD_TYPE = 10;
+	
+	/** Offsets of the fields in common_record_t */
+	public static final int RECORD_TYPE = 0;
+	public static final int RECORD_SIZE = 2;
+	public static final int RECORD_FLAGS = 4;
+	public static final int RECORD_EXT_MAP = 6;
+	public static final int RECORD_MSEC_FIRST = 8;
+	public static final int RECORD_MSEC_LAST = 10;
+	public static final int RECORD_FIRST = 12;
+	public static final int RECORD_LAST = 16;
+	public static final int RECORD_PROTO = 22;
+	public static final int RECORD_SRCPORT = 24;
+	public static final int RECORD_DSTPORT = 26;
+	public static final int RECORD_DATA = 28;
+	
+	/** Common record flags */
+	public static final int FLAG_IPV6_ADDR = 0x1;
+	public static final int FLAG_PKG_64 = 0x2;
+	public static final int FLAG_BYTES_64 = 0x4;
+	
+	/** Offsets of the fields in extension_map_t */
+	public static final int MAP_ID = 4;
+	public static final int MAP_EXTENSIONS = 8;
+	
+	/** Extension ids of the number of aggregated flows (nfdump -A output) */
+	public static final int EX_AGGR_FLOWS_4 = 18;
+	public static final int EX_AGGR_FLOWS_8 = 19;
+	/** Sizes of the record extensions by id (nfx.c), -1 if not known */
+	private static final int[] EXTENSION_SIZES = {
+		0, 0, 0, 0, 4, 8, 4, 8, 4, 4,			//0-9, 1-3 are part of the common record
+		16, 4, 16, 4, 4, 8, 4, 8, 4, 8,			//10-19
+		16, 16, 40, 4, 16, 4, 8, 8, -1, -1,		//20-29
+		-1, -1, -1, -1, -1, -1, -1, 20, 4, 8,	//30-39
+		32, 24, 24, 72, -1, 24, 12				//40-46
+	};
+	
+	/**
+	 * @param id	Extension id from an extension map
+	 * @return	Size of the extension in a record, -1 if not known
+	 */
+	public static int extensionSize(int id) {
+		return id < EXTENSION_SIZES.length ? EXTENSION_SIZES[id] : -1;
+	}
+	
+	/**
+	 * Detect file's byte order and set it on the buffer.
+	 * 
+	 * @param buffer	Buffer holding the file header at position 0
+	 * @return	Byte order of the file
+	 * @throws IOException	If the buffer does not start with a nfdump header
+	 */
+	public static ByteOrder order(ByteBuffer buffer) throws IOException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if ((buffer.getShort(0) & 0xFFFF) == MAGIC) {
+			return ByteOrder.LITTLE_ENDIAN;
+		}
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if ((buffer.getShort(0) & 0xFFFF) == MAGIC) {
+			return ByteOrder.BIG_ENDIAN;
+		}
+		throw new IOException("Not a nfdump file");
+	}
+	
+	/**
+	 * Get the number of flows from the stat record.
+	 * 
+	 * @param header	First DATA_OFFSET bytes of the file
+	 * @return	Number of flows in the file
+	 * @throws IOException	If the header is not valid
+	 */
+	public static long getFlows(byte[] header) throws IOException {
+		if (header.length < DATA_OFFSET) {
+			throw new IOException("Nfdump header is too short");
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(header);
+		order(buffer);
+		return buffer.getLong(STAT_FLOWS);
+	}
+	
+	/**
+	 * Collect the records which are not flows (extension maps, exporter
+	 * information) of a data block. Flows of a data block range taken from
+	 * the middle of a file refer to the records of the blocks before it. A
+	 * redefined extension map replaces its previous definition, other
+	 * records are kept once.
+	 * 
+	 * @param block		Uncompressed data block including its header
+	 * @param order		Byte order of the file
+	 * @param records	Records of the previous blocks, new ones are added
+	 * @throws IOException	If the block is corrupt
+	 */
+	public static void collectMetadata(byte[] block, ByteOrder order, Map<String, byte[]> records) throws IOException {
+		final ByteBuffer in = ByteBuffer.wrap(block).order(order);
+		final long count = in.getInt(0) & 0xFFFFFFFFL;
+		int pos = BLOCK_HEADER_SIZE;
+		for (long i=0; i<count && pos < block.length; i++) {
+			if (pos + 4 > block.length) {
+				throw new IOException("Corrupt nfdump data block");
+			}
+			final int type = in.getShort(pos + RECORD_TYPE) & 0xFFFF;
+			final int size = in.getShort(pos + RECORD_SIZE) & 0xFFFF;
+			if (size < 4 || pos + size > block.length) {
+				throw new IOException("Corrupt nfdump data block");
+			}
+			if (COMMON_RECORD_TYPE != type && COMMON_RECORD_V0_TYPE != type) {
+				final byte[] record = Arrays.copyOfRange(block, pos, pos + size);
+				if (EXTENSION_MAP_TYPE == type && size >= MAP_EXTENSIONS) {
+					records.put("map " + (in.getShort(pos + MAP_ID) & 0xFFFF), record);
+				} else {
+					records.put(Arrays.toString(record), record);
+				}
+			}
+			pos += size;
+		}
+	}
+	
+	/**
+	 * Find the extension maps the flows of a data block refer to before
+	 * they are defined.
+	 * 
+	 * @param block		Uncompressed data block including its header
+	 * @param length	Length of the block in the array
+	 * @param order		Byte order of the file
+	 * @param defined	Ids of the maps defined before the block, the block's
+	 * 					maps are added
+	 * @param missing	Ids of the undefined maps are added
+	 * @throws IOException	If the block is corrupt
+	 */
+	public static void missingMaps(byte[] block, int length, ByteOrder order, Set<Integer> defined,
+			Set<Integer> missing) throws IOException {
+		final ByteBuffer in = ByteBuffer.wrap(block, 0, length).order(order);
+		final long count = in.getInt(0) & 0xFFFFFFFFL;
+		int pos = BLOCK_HEADER_SIZE;
+		for (long i=0; i<count && pos < length; i++) {
+			if (pos + 4 > length) {
+				throw new IOException("Corrupt nfdump data block");
+			}
+			final int type = in.getShort(pos + RECORD_TYPE) & 0xFFFF;
+			final int size = in.getShort(pos + RECORD_SIZE) & 0xFFFF;
+			if (size < 4 || pos + size > length) {
+				throw new IOException("Corrupt nfdump data block");
+			}
+			if (EXTENSION_MAP_TYPE == type && size >= MAP_EXTENSIONS) {
+				defined.add(in.getShort(pos + MAP_ID) & 0xFFFF);
+			} else if (COMMON_RECORD_TYPE == type && size > RECORD_EXT_MAP + 1) {
+				final int map = in.getShort(pos + RECORD_EXT_MAP) & 0xFFFF;
+				if (!defined.contains(map)) {
+					missing.add(map);
+				}
+			}
+			pos += size;
+		}
+	}
+	
+	/**
+	 * @param records	Records which are not flows (see collectMetadata())
+	 * @param order		Byte order of the file
+	 * @return	Data block holding the records or null if there are none
+	 */
+	public static byte[] metadataBlock(Collection<byte[]> records, ByteOrder order) {
+		if (records.isEmpty()) {
+			return null;
+		}
+		int size = BLOCK_HEADER_SIZE;
+		for (byte[] record: records) {
+			size += record.length;
+		}
+		final ByteBuffer out = ByteBuffer.allocate(size).order(order);
+		out.putInt(records.size());
+		out.putInt(size - BLOCK_HEADER_SIZE);
+		out.putShort((short) DATA_BLOCK_TYPE);
+		out.putShort((short) 0);
+		for (byte[] record: records) {
+			out.put(record);
+		}
+		return out.array();
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sequential reader of flow records stored in an uncompressed nfdump file.
+ * Only one record is held in memory. Extension maps are collected on the way
+ * as the records refer to them. Other record types (e.g. exporter
+ * information) are skipped.
+ */
+public class NfdumpReader implements FlowRecord {
+	private final DataInputStream in;
+	private final ByteOrder order;
+	private final Map<Integer, byte[]> maps = new HashMap<Integer, byte[]>();
+	private byte[] record = new byte[1024];
+	private ByteBuffer view = ByteBuffer.wrap(record);
+	private long blockLeft = 0;
+	private int size = 0;
+	
+	/**
+	 * Constructor. Reads and validates the file header.
+	 * 
+	 * @param stream	Nfdump file stream
+	 * @param bufsize	Read buffer size in bytes
+	 * @throws IOException	If the stream is not an uncompressed nfdump file
+	 */
+	public NfdumpReader(InputStream stream, int bufsize) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(stream, bufsize));
+		
+		final byte[] header = new byte[NfdumpFile.DATA_OFFSET];
+		in.readFully(header);
+		final ByteBuffer buffer = ByteBuffer.wrap(header);
+		this.order = NfdumpFile.order(buffer);
+		if ((buffer.getInt(NfdumpFile.HEADER_FLAGS) & NfdumpFile.FLAG_COMPRESSED) != 0) {
+			throw new IOException("Compressed nfdump files are not supported");
+		}
+		view.order(order);
+	}
+	
+	/**
+	 * Read an unsigned 32bit integer in file's byte order.
+	 */
+	private long readUInt() throws IOException {
+		final int value = in.readInt();
+		return (order == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value)) & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * Read an unsigned 16bit integer in file's byte order.
+	 */
+	private int readUShort() throws IOException {
+		final short value = in.readShort();
+		return (order == ByteOrder.BIG_ENDIAN ? value : Short.reverseBytes(value)) & 0xFFFF;
+	}
+	
+	/**
+	 * Position the stream at the start of the next data block's records.
+	 * 
+	 * @return	False at the end of the file
+	 */
+	private boolean nextBlock() throws IOException {
+		while (true) {
+			try {
+				readUInt(); //number of records
+			} catch (EOFException e) {
+				return false;
+			}
+			final long length = readUInt();
+			final int id = readUShort();
+			readUShort(); //flags
+			if (NfdumpFile.DATA_BLOCK_TYPE == id) {
+				blockLeft = length;
+				return true;
+			}
+			skip(length);
+		}
+	}
+	
+	/**
+	 * Skip the given number of bytes.
+	 */
+	private void skip(long length) throws IOException {
+		while (length > 0) {
+			final int skipped = in.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				in.readByte();
+				length--;
+			} else {
+				length -= skipped;
+			}
+		}
+	}
+	
+	/**
+	 * Advance to the next flow record.
+	 * 
+	 * @return	False if there are no more records
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (blockLeft <= 0 && !nextBlock()) {
+				size = 0;
+				return false;
+			}
+			
+			final int type = readUShort();
+			final int length = readUShort();
+			if (length < 4 || length > blockLeft) {
+				throw new IOException("Corrupt record of size " + length);
+			}
+			blockLeft -= length;
+			
+			if (length > record.length) {
+				record = new byte[Math.max(length, record.length * 2)];
+				view = ByteBuffer.wrap(record).order(order);
+			}
+			view.putShort(NfdumpFile.RECORD_TYPE, (short) type);
+			view.putShort(NfdumpFile.RECORD_SIZE, (short) length);
+			in.readFully(record, 4, length - 4);
+			
+			if (NfdumpFile.COMMON_RECORD_TYPE == type) {
+				size = length;
+				return true;
+			} else if (NfdumpFile.EXTENSION_MAP_TYPE == type) {
+				final byte[] map = new byte[length];
+				System.arraycopy(record, 0, map, 0, length);
+				maps.put(view.getShort(NfdumpFile.MAP_ID) & 0xFFFF, map);
+			}
+		}
+	}
+	
+	/**
+	 * @return	Current record's data, valid until the next call of next()
+	 */
+	public byte[] record() {
+		return record;
+	}
+	
+	/**
+	 * @return	Current record's size in bytes
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return	Current record's data in file's byte order
+	 */
+	public ByteBuffer view() {
+		return view;
+	}
+	
+	/**
+	 * @return	Id of the extension map used by the current record
+	 */
+	public int extensionMapId() {
+		return view.getShort(NfdumpFile.RECORD_EXT_MAP) & 0xFFFF;
+	}
+	
+	/**
+	 * @return	Extension map record used by the current record, a map
+	 * 			redefined later in the file is a new array
+	 * @throws IOException	If the map was not defined
+	 */
+	public byte[] extensionMap() throws IOException {
+		final byte[] map = maps.get(extensionMapId());
+		if (null == map) {
+			throw new IOException("Record refers to an unknown extension map");
+		}
+		return map;
+	}
+	
+	/**
+	 * @return	First seen time of the current record in milliseconds
+	 */
+	public long firstSeen() {
+		return (view.getInt(NfdumpFile.RECORD_FIRST) & 0xFFFFFFFFL) * 1000
+				+ (view.getShort(NfdumpFile.RECORD_MSEC_FIRST) & 0xFFFF);
+	}
+	
+	/**
+	 * @return	Last seen time of the current record in milliseconds
+	 */
+	public long lastSeen() {
+		return (view.getInt(NfdumpFile.RECORD_LAST) & 0xFFFFFFFFL) * 1000
+				+ (view.getShort(NfdumpFile.RECORD_MSEC_LAST) & 0xFFFF);
+	}
+	
+	/**
+	 * @return	IP protocol of the current record
+	 */
+	public int protocol() {
+		return record[NfdumpFile.RECORD_PROTO] & 0xFF;
+	}
+	
+	/**
+	 * @return	Source port of the current record
+	 */
+	public int srcPort() {
+		return view.getShort(NfdumpFile.RECORD_SRCPORT) & 0xFFFF;
+	}
+	
+	/**
+	 * @return	Destination port (ICMP type and code) of the current record
+	 */
+	public int dstPort() {
+		return view.getShort(NfdumpFile.RECORD_DSTPORT) & 0xFFFF;
+	}
+	
+	/**
+	 * @return	Source address of the current record in network byte order
+	 */
+	public byte[] srcAddress() {
+		return address(0);
+	}
+	
+	/**
+	 * @return	Destination address of the current record in network byte order
+	 */
+	public byte[] dstAddress() {
+		return address(1);
+	}
+	
+	/**
+	 * Nfdump keeps the addresses as host order 32bit (IPv4) or two 64bit
+	 * (IPv6) integers.
+	 * 
+	 * @param index	0 for the source, 1 for the destination
+	 */
+	private byte[] address(int index) {
+		if ((record[NfdumpFile.RECORD_FLAGS] & NfdumpFile.FLAG_IPV6_ADDR) != 0) {
+			final int offset = NfdumpFile.RECORD_DATA + index * 16;
+			return ByteBuffer.allocate(16).putLong(view.getLong(offset)).putLong(view.getLong(offset + 8)).array();
+		}
+		return ByteBuffer.allocate(4).putInt(view.getInt(NfdumpFile.RECORD_DATA + index * 4)).array();
+	}
+	
+	/**
+	 * @return	Offset of the packet counter in the current record
+	 */
+	private int packetsOffset() {
+		final boolean v6 = (record[NfdumpFile.RECORD_FLAGS] & NfdumpFile.FLAG_IPV6_ADDR) != 0;
+		return NfdumpFile.RECORD_DATA + (v6 ? 32 : 8);
+	}
+	
+	/**
+	 * @return	Number of packets of the current record
+	 */
+	public long packets() {
+		if ((record[NfdumpFile.RECORD_FLAGS] & NfdumpFile.FLAG_PKG_64) != 0) {
+			return view.getLong(packetsOffset());
+		}
+		return view.getInt(packetsOffset()) & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * @return	Number of bytes of the current record
+	 */
+	public long bytes() {
+		final int flags = record[NfdumpFile.RECORD_FLAGS];
+		final int offset = packetsOffset() + ((flags & NfdumpFile.FLAG_PKG_64) != 0 ? 8 : 4);
+		if ((flags & NfdumpFile.FLAG_BYTES_64) != 0) {
+			return view.getLong(offset);
+		}
+		return view.getInt(offset) & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * Nfdump stores the number of flows of an aggregated record in an
+	 * extension, the extensions of the map before it are skipped.
+	 * 
+	 * @return	Number of flows of the current record, 1 if it is not aggregated
+	 * @throws IOException	If the map is unknown or has an extension of unknown size
+	 */
+	public long aggregatedFlows() throws IOException {
+		final ByteBuffer map = ByteBuffer.wrap(extensionMap()).order(order);
+		final int flags = record[NfdumpFile.RECORD_FLAGS];
+		int offset = packetsOffset() + ((flags & NfdumpFile.FLAG_PKG_64) != 0 ? 8 : 4)
+				+ ((flags & NfdumpFile.FLAG_BYTES_64) != 0 ? 8 : 4);
+		for (int pos = NfdumpFile.MAP_EXTENSIONS; pos + 2 <= map.limit(); pos += 2) {
+			final int id = map.getShort(pos) & 0xFFFF;
+			if (0 == id) {
+				break;
+			} else if (NfdumpFile.EX_AGGR_FLOWS_4 == id) {
+				return view.getInt(offset) & 0xFFFFFFFFL;
+			} else if (NfdumpFile.EX_AGGR_FLOWS_8 == id) {
+				return view.getLong(offset);
+			}
+			final int size = NfdumpFile.extensionSize(id);
+			if (size < 0) {
+				throw new IOException("Record has an extension of unknown size (" + id + ")");
+			}
+			offset += size;
+		}
+		return 1;
+	}
+	
+	/**
+	 * @return	File's byte order
+	 */
+	public ByteOrder order() {
+		return order;
+	}
+	
+	/**
+	 * Close the underlying stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
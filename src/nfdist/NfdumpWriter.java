@@ -0,0 +1,296 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes flow records into an uncompressed nfdump file. Records may come
+ * from different files, their extension maps are renumbered so that equal
+ * maps share one id. The output id of each source's map id is remembered
+ * until the source is released.
+ */
+public class NfdumpWriter {
+	private static final int BLOCK_SIZE = 0x100000;
+	
+	private final OutputStream out;
+	private final ByteOrder order;
+	private final ByteBuffer block;
+	private final Map<MapKey, Integer> maps = new HashMap<MapKey, Integer>();
+	private final Map<Object, Map<Integer, SourceMap>> sources = new IdentityHashMap<Object, Map<Integer, SourceMap>>();
+	private int records = 0;
+	private long written = 0;
+	
+	/**
+	 * Extension map content without its id.
+	 */
+	private static class MapKey {
+		private final byte[] map;
+		
+		public MapKey(byte[] map) {
+			this.map = Arrays.copyOfRange(map, NfdumpFile.MAP_EXTENSIONS - 2, map.length);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof MapKey) && Arrays.equals(map, ((MapKey) o).map);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(map);
+		}
+	}
+	
+	/**
+	 * Output id of a source's extension map.
+	 */
+	private static class SourceMap {
+		private final byte[] map;
+		private final int id;
+		
+		public SourceMap(byte[] map, int id) {
+			this.map = map;
+			this.id = id;
+		}
+	}
+	
+	/**
+	 * Constructor. Writes the file header.
+	 * 
+	 * @param out	Output stream
+	 * @param order	Byte order of the records which will be written
+	 * @throws IOException
+	 */
+	public NfdumpWriter(OutputStream out, ByteOrder order) throws IOException {
+		this(out, order, null);
+	}
+	
+	/**
+	 * Constructor. Writes the file header.
+	 * 
+	 * @param out	Output stream
+	 * @param order	Byte order of the records which will be written
+	 * @param stat	Stat record (STAT_SIZE bytes in the given order) or null
+	 * 				for an empty one, nfdump does not need it to read the file
+	 * @throws IOException
+	 */
+	public NfdumpWriter(OutputStream out, ByteOrder order, byte[] stat) throws IOException {
+		this.out = out;
+		this.order = order;
+		this.block = ByteBuffer.allocate(BLOCK_SIZE).order(order);
+		
+		final ByteBuffer header = ByteBuffer.allocate(NfdumpFile.DATA_OFFSET).order(order);
+		header.putShort((short) NfdumpFile.MAGIC);
+		header.putShort((short) NfdumpFile.LAYOUT_VERSION);
+		header.putInt(0); //flags, uncompressed
+		header.putInt(0); //number of blocks is unknown while streaming
+		header.put("nfdist".getBytes());
+		if (null != stat) {
+			header.position(NfdumpFile.HEADER_SIZE);
+			header.put(stat, 0, NfdumpFile.STAT_SIZE);
+		}
+		out.write(header.array());
+		
+		clearBlock();
+	}
+	
+	/**
+	 * Start a new data block.
+	 */
+	private void clearBlock() {
+		block.clear();
+		block.position(NfdumpFile.BLOCK_HEADER_SIZE);
+		records = 0;
+	}
+	
+	/**
+	 * Write the current data block.
+	 * 
+	 * @throws IOException
+	 */
+	private void flushBlock() throws IOException {
+		if (records == 0) {
+			return;
+		}
+		final int size = block.position();
+		block.putInt(0, records);
+		block.putInt(4, size - NfdumpFile.BLOCK_HEADER_SIZE);
+		block.putShort(8, (short) NfdumpFile.DATA_BLOCK_TYPE);
+		block.putShort(10, (short) 0);
+		out.write(block.array(), 0, size);
+		written += size;
+		clearBlock();
+	}
+	
+	/**
+	 * Make sure a record of the given size fits into the current block.
+	 */
+	private void reserve(int size) throws IOException {
+		if (block.remaining() < size) {
+			flushBlock();
+		}
+	}
+	
+	/**
+	 * Get the output id of an extension map, the map is written if it is new.
+	 * 
+	 * @param map	Extension map record
+	 * @return	Map id in the output file
+	 * @throws IOException
+	 */
+	private int mapId(byte[] map) throws IOException {
+		final MapKey key = new MapKey(map);
+		Integer id = maps.get(key);
+		if (null == id) {
+			id = maps.size();
+			reserve(map.length);
+			final int start = block.position();
+			block.put(map);
+			block.putShort(start + NfdumpFile.MAP_ID, (short) (int) id);
+			records++;
+			maps.put(key, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Get the output id of a source's extension map without comparing the
+	 * map's content again.
+	 * 
+	 * @param map		Extension map record
+	 * @param source	Source of the map, e.g. its reader
+	 * @param sourceId	Map id in the source
+	 * @return	Map id in the output file
+	 * @throws IOException
+	 */
+	private int mapId(byte[] map, Object source, int sourceId) throws IOException {
+		Map<Integer, SourceMap> known = sources.get(source);
+		if (null == known) {
+			known = new HashMap<Integer, SourceMap>();
+			sources.put(source, known);
+		}
+		final SourceMap last = known.get(sourceId);
+		//A map redefined by the source comes as a new array
+		if (null != last && last.map == map) {
+			return last.id;
+		}
+		final int id = mapId(map);
+		known.put(sourceId, new SourceMap(map, id));
+		return id;
+	}
+	
+	/**
+	 * Write a flow record.
+	 * 
+	 * @param record	Record data
+	 * @param size		Record size in bytes
+	 * @param map		Extension map record the record refers to
+	 * @throws IOException
+	 */
+	public void write(byte[] record, int size, byte[] map) throws IOException {
+		write(record, size, mapId(map));
+	}
+	
+	/**
+	 * Write a flow record of a source which numbers its extension maps.
+	 * 
+	 * @param record	Record data
+	 * @param size		Record size in bytes
+	 * @param map		Extension map record the record refers to
+	 * @param source	Source of the record, see release()
+	 * @param sourceId	Id of the map in the source
+	 * @throws IOException
+	 */
+	public void write(byte[] record, int size, byte[] map, Object source, int sourceId) throws IOException {
+		write(record, size, mapId(map, source, sourceId));
+	}
+	
+	/**
+	 * Write a flow record.
+	 * 
+	 * @param record	Record data
+	 * @param size		Record size in bytes
+	 * @param id		Output id of its extension map
+	 * @throws IOException
+	 */
+	private void write(byte[] record, int size, int id) throws IOException {
+		reserve(size);
+		final int start = block.position();
+		block.put(record, 0, size);
+		block.putShort(start + NfdumpFile.RECORD_EXT_MAP, (short) id);
+		records++;
+	}
+	
+	/**
+	 * Write a record from the reader.
+	 * 
+	 * @param reader	Reader positioned at a flow record
+	 * @throws IOException
+	 */
+	public void write(NfdumpReader reader) throws IOException {
+		if (reader.order() != order) {
+			throw new IOException("Byte order of the records does not match");
+		}
+		write(reader.record(), reader.size(), reader.extensionMap(), reader, reader.extensionMapId());
+	}
+	
+	/**
+	 * Forget the maps of a source which will not write any more records.
+	 * 
+	 * @param source	Source of the records
+	 */
+	public void release(Object source) {
+		sources.remove(source);
+	}
+	
+	/**
+	 * @return	Number of bytes written (excluding the current block)
+	 */
+	public long getWritten() {
+		return written;
+	}
+	
+	/**
+	 * Write the remaining records. The stream is not closed.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		flushBlock();
+		out.flush();
+	}
+}
@@ -39,31 +39,9 @@ import org.apache.commons.lang.StringUtils;
  * Class for nfdump calls where no files need to be processed.
  */
 public class NoFiles extends Proc {
-	private final int BUFSIZE;
 	private final String NFDUMP;
-	private final Thread procOut, procErr;
 	private Process proc;
 	
-	/**
-	 * Proxy nfdumps's stdout.
-	 */
-	private class ProcOut implements Runnable {
-		@Override
-		public void run() {		
-			StreamToStd(proc.getInputStream(), System.out, BUFSIZE);
-		}
-	}
-	
-	/**
-	 * Proxy nfdumps's stderr.
-	 */
-	private class ProcErr implements Runnable {
-		@Override
-		public void run() {
-			StreamToStd(proc.getErrorStream(), System.err, BUFSIZE);
-		}
-	}
-
 	/**
 	 * Constructor.
 	 * 
@@ -71,13 +49,9 @@ public class NoFiles extends Proc {
 	 * @throws IOException
 	 */
 	public NoFiles(Configuration config) throws IOException {
-		super(2); //Two sub-threads
+		super(); //No sub-threads, the Pump relays std-out/err
 		
-		this.BUFSIZE = config.getInt("jobs.combiner.bufsize");
 		this.NFDUMP = config.getString("local.path.nfdump");
-		
-		this.procOut = new Thread(new ProcOut());
-		this.procErr = new Thread(new ProcErr());
 	}
 	
 	/**
@@ -95,8 +69,8 @@ public class NoFiles extends Proc {
 		log.info("Using nfdump passthrough: "+StringUtils.join(cmd, ' '));
 		proc = new ProcessBuilder(cmd).start();
 		
-		activate(procOut);
-		activate(procErr);
+		relay(proc.getInputStream(), proc, toStd(stdout));
+		relay(proc.getErrorStream(), proc, toStd(stderr));
 		
 	}
 }
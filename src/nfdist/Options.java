@@ -36,6 +36,7 @@ import java.util.List;
 
 import org.apache.commons.cli.MissingArgumentException;
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
 /**
@@ -46,8 +47,10 @@ public class Options {
 	private final List<String> filterArgs = new ArrayList<String>();
 	private final List<String> combinerArgs = new ArrayList<String>();
 	private final List<String> allArgs = new ArrayList<String>();
+	private final List<String> distinctArgs = new ArrayList<String>();
 	private final SimpleDateFormat format = new SimpleDateFormat("'nfcapd.'yyyyMMddHHmm");
 	private final String prefix;
+	private final boolean jvmAggregate;
 	private String idents="", filter="", path="";
 	private Date start=null, end=null;
 	private boolean noFiles=false;
@@ -55,6 +58,13 @@ public class Options {
 	private String statsType="";
 	private boolean doAggregate=false;
 	private String aggregateTags="";
+	private String distinct="";
+	private int distinctBucket=0;
+	private long limit=0;
+	private String order="";
+	private boolean summary=false;
+	private boolean doFlowAggregate=false;
+	private boolean workerOnly=false;
 	
 	/**
 	 * Convert netflow data filename to date.
@@ -68,6 +78,37 @@ public class Options {
 		return format.parse(file);
 	}
 	
+	/**
+	 * Parse the argument of --distinct option
+	 * 
+	 * @param opt	Option string in format "tag[,tag...][/minutes]"
+	 * @throws IllegalArgumentException
+	 */
+	private void parseDistinct(String opt) throws IllegalArgumentException {
+		final String[] parts = opt.split("/");
+		final List<String> tags = new ArrayList<String>();
+		
+		for (String tag: parts[0].split(",")) {
+			tag = tag.trim().toLowerCase();
+			if (!DistinctFilter.isKey(tag)) {
+				throw new IllegalArgumentException("Unsupported distinct count key '"+tag+"'");
+			}
+			tags.add(tag);
+		}
+		distinct = StringUtils.join(tags, ",");
+		
+		if (parts.length > 1) {
+			try {
+				distinctBucket = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid time bucket for option --distinct");
+			}
+			if (distinctBucket <= 0) {
+				throw new IllegalArgumentException("Invalid time bucket for option --distinct");
+			}
+		}
+	}
+	
 	/**
 	 * Constructor.
 	 * 
@@ -75,6 +116,7 @@ public class Options {
 	 */
 	public Options(Configuration config) {
 		prefix = config.getString("local.path.datadir");
+		jvmAggregate = config.getBoolean("jobs.combiner.aggregate", true);
 	}
 	
 	/**
@@ -126,6 +168,10 @@ public class Options {
 						
 					//Unhandled single argument options
 					case 'I':
+						summary=true;
+						combinerArgs.add(args[i]);
+						allArgs.add(args[i]);
+						break;
 					case 'q':
 					case 'N':
 					case 'T':
@@ -135,9 +181,15 @@ public class Options {
 						allArgs.add(args[i]);
 						break;
 					case 'm':
+						order="tstart";
+						filterArgs.add(args[i]);
+						combinerArgs.add(args[i]);
+						allArgs.add(args[i]);
+						break;
 					case 'a':
 					case 'b':
 					case 'B':
+						doFlowAggregate=true;
 						filterArgs.add(args[i]);
 						combinerArgs.add(args[i]);
 						allArgs.add(args[i]);
@@ -147,8 +199,11 @@ public class Options {
 					case 't':
 					case 'l':
 					case 'L':
+						workerOnly=true;
 						filterArgs.add(args[i]);
 						filterArgs.add(args[i+1]);
+						distinctArgs.add(args[i]);
+						distinctArgs.add(args[i+1]);
 						allArgs.add(args[i]);
 						allArgs.add(args[i+1]);
 						i++;
@@ -174,9 +229,16 @@ public class Options {
 						allArgs.add(args[i+1]);
 						i++;
 						break;
+					case 'O':
+						order=args[i+1];
+						combinerArgs.add(args[i]);
+						combinerArgs.add(args[i+1]);
+						allArgs.add(args[i]);
+						allArgs.add(args[i+1]);
+						i++;
+						break;
 					case 'w':
 					case 'D':
-					case 'O':
 					case 'n':
 					case 'o':
 						combinerArgs.add(args[i]);
@@ -186,6 +248,11 @@ public class Options {
 						i++;
 						break;
 					case 'c':
+						try {
+							limit = Long.parseLong(args[i+1]);
+						} catch (NumberFormatException e) {
+							throw new IllegalArgumentException("Invalid number for option -c");
+						}
 						filterArgs.add(args[i]);
 						filterArgs.add(args[i+1]);
 						combinerArgs.add(args[i]);
@@ -212,6 +279,17 @@ public class Options {
 							log.info("Skipping argument "+args[i]+" "+args[++i]);
 							break;
 							
+					//Nfdist specific long options
+					case '-':
+						if (args[i].equals("--distinct")) {
+							if (i+1 >= args.length) {
+								throw new MissingArgumentException("Option --distinct requires a key");
+							}
+							parseDistinct(args[++i]);
+							break;
+						}
+						throw new IllegalArgumentException("Argument '"+args[i]+"' is not supported");
+						
 					//Other unknown args
 					default:
 						throw new IllegalArgumentException("Argument '"+args[i]+"' is not supported");
@@ -295,6 +373,183 @@ public class Options {
 		return allArgs;
 	}
 	
+	/**
+	 * @return Arguments which still apply to a distinct count query.
+	 */
+	public List<String> getDistinctArgs() {
+		return distinctArgs;
+	}
+	
+	/**
+	 * @return True if a distinct count was requested.
+	 */
+	public boolean doDistinct() {
+		return !distinct.isEmpty();
+	}
+	
+	/**
+	 * @return Comma separated distinct count key tags.
+	 */
+	public String getDistinct() {
+		return distinct;
+	}
+	
+	/**
+	 * @return Distinct count time bucket in minutes, 0 if not used.
+	 */
+	public int getDistinctBucket() {
+		return distinctBucket;
+	}
+
+	/**
+	 * Queries of equal keys print the same output for the same files.
+	 *
+	 * @return Normalized query: profile, sources, period, arguments and filter.
+	 */
+	public String getCacheKey() {
+		final StringBuilder key = new StringBuilder();
+		key.append(path).append('/').append(idents);
+		key.append('|').append(null == start ? 0 : start.getTime());
+		key.append('-').append(null == end ? 0 : end.getTime());
+		for (String arg: allArgs) {
+			key.append('|').append(arg);
+		}
+		key.append("|distinct=").append(distinct).append('/').append(distinctBucket);
+		key.append('|').append(filter.replaceAll("\\s+", " "));
+		return key.toString();
+	}
+	
+	/**
+	 * @return Record limit (-c option), 0 if not set.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * @return True if Workers aggregate or summarize the flows, so their
+	 * results are much smaller than the input.
+	 */
+	public boolean doesAggregate() {
+		return doStat || doAggregate || doFlowAggregate;
+	}
+	
+	/**
+	 * Without a filter nfdump -I prints the sum of the files' stat records,
+	 * which the Manager can read from the catalog instead.
+	 * 
+	 * @return True if only the summary of the unfiltered files is requested.
+	 */
+	public boolean isSummaryOnly() {
+		return summary && (filter.isEmpty() || filter.equalsIgnoreCase("any")) && !workerOnly
+				&& !doDistinct() && !doStat && !doAggregate && !doFlowAggregate;
+	}
+	
+	/**
+	 * Options applied only by the Workers (-t, -l, -L) would be lost if the
+	 * Combiner processed raw files. Merged and distinct count results are
+	 * not processed by nfdump at all.
+	 * 
+	 * @return True if the Combiner can read raw netflow files along with job results.
+	 */
+	public boolean canCombineRaw() {
+		return !workerOnly && !doDistinct() && !canMerge() && !canAggregate();
+	}
+	
+	/**
+	 * Combined output can be cut after the first records only if they are
+	 * printed as they are, i.e. not sorted, aggregated or summarized.
+	 * 
+	 * @return True if processing can stop once the record limit is reached.
+	 */
+	public boolean canStopEarly() {
+		return limit > 0 && order.isEmpty() && !summary && !doStat && !doAggregate && !doFlowAggregate;
+	}
+	
+	/**
+	 * Workers sort their results (-m or -O), so the Combiner can merge them
+	 * instead of sorting everything in nfdump. Aggregated or summarized
+	 * results are not merged, they are processed by nfdump anyway.
+	 * 
+	 * @return True if results can be merged in the requested order.
+	 */
+	public boolean canMerge() {
+		return null != getOrder() && !summary && !doStat && !doAggregate && !doFlowAggregate;
+	}
+	
+	/**
+	 * Plain -A output is aggregated by the Manager, which needs much less
+	 * memory per group than nfcat. Other output options, statistics and
+	 * orders are left to nfcat.
+	 * 
+	 * @return True if the Combiner can aggregate the results itself.
+	 */
+	public boolean canAggregate() {
+		if (!jvmAggregate || !doAggregate || summary || doStat || doFlowAggregate || limit > 0 || !order.isEmpty()) {
+			return false;
+		}
+		for (String tag: aggregateTags.split(",")) {
+			if (!Aggregator.isTag(tag)) {
+				return false;
+			}
+		}
+		for (int i=0; i<combinerArgs.size(); i++) {
+			final String arg = combinerArgs.get(i);
+			if (arg.equals("-A")) {
+				i++;
+			} else if (!arg.equals("-q") && !arg.equals("-N") && !arg.equals("-6")) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return Aggregation tags of the -A option.
+	 */
+	public String getAggregateTags() {
+		return aggregateTags;
+	}
+	
+	/**
+	 * @return Requested record order or null if it is not set or can not be merged.
+	 */
+	public RecordOrder getOrder() {
+		return RecordOrder.parse(order);
+	}
+	
+	/**
+	 * Nfdump does not sort the files it writes and its -c would keep the
+	 * first records read instead of the first ones in order, so the Workers
+	 * sort the results themselves (see ExternalSort).
+	 * 
+	 * @return Arguments for the Workers if the results are going to be merged.
+	 */
+	public List<String> getMergedWorkerArgs() {
+		final List<String> args = new ArrayList<String>(filterArgs);
+		args.remove("-m");
+		final int idx = args.indexOf("-c");
+		if (idx >= 0) {
+			args.remove(idx+1);
+			args.remove(idx);
+		}
+		return args;
+	}
+	
+	/**
+	 * @return Arguments for the Combiner if the results are already merged in order.
+	 */
+	public List<String> getMergedCombinerArgs() {
+		final List<String> args = new ArrayList<String>(combinerArgs);
+		args.remove("-m");
+		final int idx = args.indexOf("-O");
+		if (idx >= 0) {
+			args.remove(idx+1);
+			args.remove(idx);
+		}
+		return args;
+	}
+	
 	/**
 	 * @return True if no files are to be processed.
 	 */
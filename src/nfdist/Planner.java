@@ -0,0 +1,422 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import nfdist.hadoop.FileList;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses how a query is executed, from the sizes and locations of its files
+ * and the rates measured in previous queries:
+ * 
+ * direct: the Manager streams all files into the local nfcat.
+ * distributed: each file is a job for the Workers.
+ * hybrid: the smallest files are streamed into the Combiner directly, the
+ * others are distributed.
+ * 
+ * Direct reading costs the data size over the Manager's read rate (reads
+ * without a local replica cost more). Distribution costs a fixed
+ * coordination overhead, a small overhead per job and the data size over
+ * the rate of all Worker slots. A hybrid plan costs the slower of its parts.
+ */
+public class Planner {
+	private static final Logger log = Logger.getLogger(Planner.class);
+	public static final String AUTO = "auto";
+	public static final String DIRECT = "direct";
+	public static final String DISTRIBUTED = "distributed";
+	public static final String HYBRID = "hybrid";
+	
+	//Remote reads are slower than local ones
+	private static final double REMOTE_PENALTY = 1.5;
+	//Weight of a new measurement
+	private static final double ALPHA = 0.3;
+	//Rates are not learned from queries shorter than this (ms)
+	private static final long MIN_ELAPSED = 200;
+	
+	private final String mode;
+	private final double QUERY_OVERHEAD;
+	private final double JOB_OVERHEAD;
+	private final int THREADS;
+	private final File history;
+	private final Set<String> localNames = new HashSet<String>();
+	
+	//Learned rates in bytes/s
+	private double directRate;
+	private double workerRate;
+	
+	/**
+	 * Execution plan of a query.
+	 */
+	public static class Plan {
+		private final String mode;
+		private final List<FileStatus> direct;
+		private final List<FileStatus> distributed;
+		private final double cost;
+		private final int slots;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param mode			Plan's mode
+		 * @param direct		Files read by the Manager
+		 * @param distributed	Files processed by the Workers
+		 * @param cost			Estimated time in seconds
+		 * @param slots			Worker slots expected to process the jobs
+		 */
+		public Plan(String mode, List<FileStatus> direct, List<FileStatus> distributed, double cost, int slots) {
+			this.mode = mode;
+			this.direct = direct;
+			this.distributed = distributed;
+			this.cost = cost;
+			this.slots = slots;
+		}
+		
+		/**
+		 * @return	Plan's mode: direct, distributed or hybrid
+		 */
+		public String getMode() {
+			return mode;
+		}
+		
+		/**
+		 * @return	True if the Workers are not used
+		 */
+		public boolean isDirect() {
+			return mode.equals(DIRECT);
+		}
+		
+		/**
+		 * @return	Files read by the Manager
+		 */
+		public List<FileStatus> getDirect() {
+			return direct;
+		}
+		
+		/**
+		 * @return	Files processed by the Workers
+		 */
+		public List<FileStatus> getDistributed() {
+			return distributed;
+		}
+		
+		/**
+		 * @return	Estimated time in seconds
+		 */
+		public double getCost() {
+			return cost;
+		}
+		
+		/**
+		 * @return	Worker slots expected to process the jobs
+		 */
+		public int getSlots() {
+			return slots;
+		}
+	}
+	
+	/**
+	 * Constructor. Loads the rates learned by previous Managers.
+	 * 
+	 * @param config	Nfdist's configuration
+	 * @throws IllegalArgumentException	If planner.mode is not known
+	 */
+	public Planner(Configuration config) {
+		this.mode = config.getString("planner.mode", AUTO);
+		this.QUERY_OVERHEAD = config.getDouble("planner.overhead.query", 0.5);
+		this.JOB_OVERHEAD = config.getDouble("planner.overhead.job", 0.05);
+		this.THREADS = config.getInt("jobs.filter.threads");
+		this.directRate = config.getDouble("planner.rate.direct", 1e8);
+		this.workerRate = config.getDouble("planner.rate.worker", 5e7);
+		
+		final String path = config.getString("planner.history", "");
+		this.history = path.isEmpty() ? null : new File(path);
+		
+		if (!mode.equals(AUTO) && !mode.equals(DIRECT) && !mode.equals(DISTRIBUTED) && !mode.equals(HYBRID)) {
+			throw new IllegalArgumentException("Unknown planner.mode: " + mode);
+		}
+		
+		try {
+			final InetAddress local = InetAddress.getLocalHost();
+			localNames.add(local.getHostName());
+			localNames.add(local.getCanonicalHostName());
+		} catch (UnknownHostException e) {
+			log.warn("Can not resolve the local host name, all reads are considered remote.");
+		}
+		load();
+	}
+	
+	/**
+	 * Read the learned rates, missing or broken history is ignored.
+	 */
+	private synchronized void load() {
+		if (null == history || !history.exists()) {
+			return;
+		}
+		final Properties props = new Properties();
+		try {
+			final InputStream in = new FileInputStream(history);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			directRate = Double.parseDouble(props.getProperty("direct", Double.toString(directRate)));
+			workerRate = Double.parseDouble(props.getProperty("worker", Double.toString(workerRate)));
+		} catch (IOException e) {
+			log.warn("Can not read planner history " + history + ": " + e.getMessage());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid planner history " + history + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Keep the learned rates for the next Managers.
+	 */
+	private synchronized void save() {
+		if (null == history) {
+			return;
+		}
+		final Properties props = new Properties();
+		props.setProperty("direct", Double.toString(directRate));
+		props.setProperty("worker", Double.toString(workerRate));
+		try {
+			final File tmp = new File(history.getPath() + ".tmp");
+			final OutputStream out = new FileOutputStream(tmp);
+			try {
+				props.store(out, "nfdist planner rates, bytes/s");
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(history)) {
+				log.warn("Can not replace planner history " + history);
+			}
+		} catch (IOException e) {
+			log.warn("Can not write planner history " + history + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @param hosts	Hosts storing the file
+	 * @return	True if the Manager's host stores a replica
+	 */
+	private boolean isLocal(List<String> hosts) {
+		if (null != hosts) {
+			for (String host: hosts) {
+				if (localNames.contains(host)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param local		Bytes with a local replica
+	 * @param remote	Bytes without a local replica
+	 * @return	Time (s) to read them directly
+	 */
+	private synchronized double directCost(long local, long remote) {
+		return (local + remote * REMOTE_PENALTY) / directRate;
+	}
+	
+	/**
+	 * @param jobs	Number of jobs
+	 * @param bytes	Bytes to process
+	 * @param slots	Worker slots
+	 * @return	Time (s) to process them by the Workers
+	 */
+	private synchronized double distributedCost(int jobs, long bytes, int slots) {
+		if (0 == jobs) {
+			return 0;
+		}
+		final int parallel = Math.max(1, Math.min(jobs, slots));
+		return QUERY_OVERHEAD + JOB_OVERHEAD * Math.ceil((double) jobs / parallel) + bytes / (parallel * workerRate);
+	}
+	
+	/**
+	 * Plan a query.
+	 * 
+	 * @param files	Query's files
+	 * @param stats	Status of the files (FileList.getStats())
+	 * @param opts	Query's options
+	 * @return	Execution plan
+	 * @throws IOException
+	 */
+	public Plan plan(FileList files, List<FileStatus> stats, Options opts) throws IOException {
+		final int n = stats.size();
+		final List<FileStatus> none = Collections.emptyList();
+		
+		//Distinct counts are always combined from HyperLogLog registers
+		if (opts.doDistinct() || 0 == n) {
+			return new Plan(DISTRIBUTED, none, stats, 0, 0);
+		}
+		
+		//Smallest files first, the direct part of a hybrid plan is a prefix
+		final List<FileStatus> sorted = new ArrayList<FileStatus>(stats);
+		Collections.sort(sorted, new Comparator<FileStatus>() {
+			@Override
+			public int compare(FileStatus a, FileStatus b) {
+				return a.getLen() < b.getLen() ? -1 : (a.getLen() == b.getLen() ? 0 : 1);
+			}
+		});
+		final long[] local = new long[n + 1], remote = new long[n + 1];
+		final Set<String> hosts = new HashSet<String>();
+		for (int i=0; i<n; i++) {
+			final FileStatus s = sorted.get(i);
+			final List<String> servers = files.getServers(s);
+			if (null != servers) {
+				hosts.addAll(servers);
+			}
+			final boolean isLocal = isLocal(servers);
+			local[i + 1] = local[i] + (isLocal ? s.getLen() : 0);
+			remote[i + 1] = remote[i] + (isLocal ? 0 : s.getLen());
+		}
+		final int slots = Math.max(1, hosts.size()) * THREADS;
+		final long total = local[n] + remote[n];
+		
+		final double direct = directCost(local[n], remote[n]);
+		final double distributed = distributedCost(n, total, slots);
+		
+		//The cheapest split, the parts run concurrently
+		int split = 0;
+		double hybrid = distributed;
+		if (opts.canCombineRaw()) {
+			for (int k=1; k<n; k++) {
+				final double cost = Math.max(directCost(local[k], remote[k]),
+						distributedCost(n - k, total - local[k] - remote[k], slots));
+				if (cost < hybrid) {
+					hybrid = cost;
+					split = k;
+				}
+			}
+		}
+		
+		String chosen = mode;
+		if (mode.equals(AUTO)) {
+			if (direct <= distributed && direct <= hybrid) {
+				chosen = DIRECT;
+			} else if (split > 0) {
+				chosen = HYBRID;
+			} else {
+				chosen = DISTRIBUTED;
+			}
+		} else if (mode.equals(HYBRID) && 0 == split) {
+			//Not possible for this query or no split is cheaper
+			chosen = DISTRIBUTED;
+		}
+		
+		final Plan plan;
+		if (chosen.equals(DIRECT)) {
+			plan = new Plan(DIRECT, stats, none, direct, 0);
+		} else if (chosen.equals(HYBRID)) {
+			plan = new Plan(HYBRID, sorted.subList(0, split), sorted.subList(split, n), hybrid, slots);
+		} else {
+			plan = new Plan(DISTRIBUTED, none, stats, distributed, slots);
+		}
+		log.info(String.format("Plan: %s, %d file(s) %d bytes direct, %d file(s) distributed to %d slot(s), estimated %.2fs"
+				+ " (direct %.2fs, distributed %.2fs, hybrid %.2fs).",
+				plan.getMode(), plan.getDirect().size(), bytes(plan.getDirect()), plan.getDistributed().size(), slots,
+				plan.getCost(), direct, distributed, hybrid));
+		return plan;
+	}
+	
+	/**
+	 * @param stats	File statuses
+	 * @return	Total size of the files
+	 */
+	public static long bytes(List<FileStatus> stats) {
+		long bytes = 0;
+		for (FileStatus s: stats) {
+			bytes += s.getLen();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Learn the Manager's read rate.
+	 * 
+	 * @param bytes		Bytes read directly
+	 * @param elapsed	Time spent (ms)
+	 */
+	public void observeDirect(long bytes, long elapsed) {
+		if (elapsed < MIN_ELAPSED || 0 == bytes) {
+			return;
+		}
+		synchronized (this) {
+			directRate += ALPHA * (bytes * 1000.0 / elapsed - directRate);
+			log.debug("Direct rate " + (long) directRate + " bytes/s.");
+		}
+		save();
+	}
+	
+	/**
+	 * Learn the rate of a Worker slot, net of the coordination overhead.
+	 * 
+	 * @param jobs		Number of jobs
+	 * @param bytes		Bytes processed by the Workers
+	 * @param slots		Worker slots the plan expected
+	 * @param elapsed	Time from the submission until the last job finished (ms)
+	 */
+	public void observeDistributed(int jobs, long bytes, int slots, long elapsed) {
+		//Plans without slots (distinct counts) do not tell the parallelism
+		if (elapsed < MIN_ELAPSED || 0 == bytes || 0 == jobs || slots <= 0) {
+			return;
+		}
+		final int parallel = Math.max(1, Math.min(jobs, slots));
+		final double net = elapsed / 1000.0 - QUERY_OVERHEAD - JOB_OVERHEAD * Math.ceil((double) jobs / parallel);
+		//Mostly overhead, the rate can not be told
+		if (net < elapsed / 10000.0) {
+			return;
+		}
+		synchronized (this) {
+			workerRate += ALPHA * (bytes / (parallel * net) - workerRate);
+			log.debug("Worker slot rate " + (long) workerRate + " bytes/s.");
+		}
+		save();
+	}
+}
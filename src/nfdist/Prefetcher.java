@@ -0,0 +1,237 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a list of HDFS files ahead, so opening a file and waiting for its
+ * first bytes overlaps with consuming the previous ones. Up to depth files
+ * are read concurrently into a fixed pool of buffers, while the chunks are
+ * returned strictly in order of the files.
+ * 
+ * Each file may hold only its share of the pool, so the files read ahead
+ * can not starve the one being consumed.
+ */
+public class Prefetcher {
+	private static final Logger log = Logger.getLogger(Prefetcher.class);
+	//Buffers a file may hold
+	private static final int SHARE = 2;
+	//Marks the end of a file
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+	
+	private final FileSystem fs;
+	private final List<FileStatus> stats;
+	private final int depth;
+	private final BlockingQueue<ByteBuffer> pool;
+	private final Stream[] streams;
+	private final ExecutorService executor;
+	private int current = 0;
+	private Stream last = null;
+	private boolean first = false;
+	
+	/**
+	 * Chunks of a file in order.
+	 */
+	private static class Stream {
+		private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<ByteBuffer>();
+		private final Semaphore share = new Semaphore(SHARE);
+		private volatile IOException error = null;
+	}
+	
+	/**
+	 * Reads a file into the buffers of its stream.
+	 */
+	private class Reader implements Runnable {
+		private final FileStatus status;
+		private final Stream stream;
+		
+		public Reader(FileStatus status, Stream stream) {
+			this.status = status;
+			this.stream = stream;
+		}
+		
+		@Override
+		public void run() {
+			FSDataInputStream in = null;
+			try {
+				in = fs.open(status.getPath());
+				boolean eof = false;
+				while (!eof) {
+					stream.share.acquire();
+					final ByteBuffer buffer = pool.take();
+					buffer.clear();
+					
+					//Fill the whole buffer, fewer and larger writes into the pipe
+					while (buffer.hasRemaining()) {
+						final int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+						if (read < 0) {
+							eof = true;
+							break;
+						}
+						buffer.position(buffer.position() + read);
+					}
+					
+					buffer.flip();
+					if (buffer.hasRemaining()) {
+						stream.chunks.put(buffer);
+					} else {
+						pool.put(buffer);
+						stream.share.release();
+					}
+				}
+			} catch (IOException e) {
+				stream.error = e;
+			} catch (InterruptedException e) {
+				//Closed
+				return;
+			} finally {
+				if (null != in) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						//ignore
+					}
+				}
+			}
+			stream.chunks.add(EOF);
+		}
+	}
+	
+	/**
+	 * Constructor. Starts reading the first files.
+	 * 
+	 * @param fs		Open HDFS handle
+	 * @param stats		Files to read
+	 * @param depth		Number of files read concurrently
+	 * @param bufsize	Buffer size
+	 */
+	public Prefetcher(FileSystem fs, List<FileStatus> stats, int depth, int bufsize) {
+		this.fs = fs;
+		this.stats = stats;
+		this.depth = Math.max(1, Math.min(depth, stats.size()));
+		this.streams = new Stream[stats.size()];
+		
+		this.pool = new ArrayBlockingQueue<ByteBuffer>(this.depth * SHARE);
+		for (int i=0; i<this.depth * SHARE; i++) {
+			pool.add(ByteBuffer.allocate(bufsize));
+		}
+		
+		this.executor = Executors.newFixedThreadPool(this.depth, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Prefetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i=0; i<this.depth; i++) {
+			schedule(i);
+		}
+	}
+	
+	/**
+	 * Start reading a file.
+	 * 
+	 * @param i	File's index
+	 */
+	private void schedule(int i) {
+		if (i < streams.length) {
+			streams[i] = new Stream();
+			executor.execute(new Reader(stats.get(i), streams[i]));
+		}
+	}
+	
+	/**
+	 * Get the next chunk. It must be released once consumed, before the
+	 * next one is taken.
+	 * 
+	 * @return	Chunk or null after the last file
+	 * @throws IOException	If a file could not be read, the next call continues with the following file
+	 * @throws InterruptedException
+	 */
+	public ByteBuffer next() throws IOException, InterruptedException {
+		while (current < streams.length) {
+			final Stream stream = streams[current];
+			final ByteBuffer chunk = stream.chunks.take();
+			if (chunk != EOF) {
+				first = stream != last;
+				last = stream;
+				return chunk;
+			}
+			final int done = current;
+			streams[current] = null;
+			schedule(current + depth);
+			current++;
+			if (null != stream.error) {
+				throw new IOException(stats.get(done).getPath() + ": " + stream.error.getMessage(), stream.error);
+			}
+			log.debug(stats.get(done).getPath() + " read.");
+		}
+		return null;
+	}
+	
+	/**
+	 * @return	True if the chunk returned by next() is the first one of its file
+	 */
+	public boolean isFirstChunk() {
+		return first;
+	}
+	
+	/**
+	 * Return a consumed chunk into the pool.
+	 * 
+	 * @param chunk	Chunk returned by next()
+	 */
+	public void release(ByteBuffer chunk) {
+		last.share.release();
+		pool.add(chunk);
+	}
+	
+	/**
+	 * Stop reading, the remaining chunks are dropped.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -31,91 +31,162 @@ package nfdist;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
 /**
- * A generic pipe class to handle std-in/out/err streams.
+ * A generic pipe class to handle std-in/out/err streams. Own threads are
+ * used only to feed the stdin, stdout and stderr are relayed by the Pump.
  */
 public class Proc {
 	protected static Logger log = Logger.getLogger(Proc.class);
-	private final ArrayBlockingQueue<Thread> threads;
+	private final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<Thread>();
+	private final ConcurrentLinkedQueue<Pump.Relay> relays = new ConcurrentLinkedQueue<Pump.Relay>();
+	protected PrintStream stdout = System.out;
+	protected PrintStream stderr = System.err;
+	private volatile boolean failed = false;
 	
 	/**
-	 * Generic method for writing a stream to a log file.
-	 * 
-	 * @param stream	Stream handle
-	 * @param bufsize	Buffer size in bytes
-	 * @param prefix	Prepend each output with this string.
+	 * Splits the relayed bytes into lines. Lines are decoded as a whole,
+	 * so multi-byte characters are never split.
 	 */
-	private void ToLog(InputStream stream, int bufsize, String prefix) {
-		final ReadableByteChannel channel = Channels.newChannel(stream);
-		final ByteBuffer buffer = ByteBuffer.allocate(bufsize);
+	protected static abstract class LineSink implements Pump.Sink {
+		private byte[] pending = new byte[256];
+		private int length = 0;
+		
+		/**
+		 * Process a line.
+		 * 
+		 * @param line	Line without the line terminator
+		 * @throws IOException
+		 */
+		protected abstract void line(String line) throws IOException;
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			final int end = off + len;
+			int start = off;
+			for (int i=off; i<end; i++) {
+				if ('\n' == b[i]) {
+					append(b, start, i - start);
+					emit();
+					start = i + 1;
+				}
+			}
+			append(b, start, end - start);
+		}
+		
+		/**
+		 * Append bytes to the current line.
+		 */
+		private void append(byte[] b, int off, int len) {
+			if (length + len > pending.length) {
+				pending = Arrays.copyOf(pending, Math.max(length + len, pending.length * 2));
+			}
+			System.arraycopy(b, off, pending, length, len);
+			length += len;
+		}
+		
+		/**
+		 * Pass the current line on.
+		 */
+		private void emit() throws IOException {
+			int end = length;
+			if (end > 0 && '\r' == pending[end - 1]) {
+				end--;
+			}
+			length = 0;
+			line(new String(pending, 0, end));
+		}
 		
-		int read;
-		try {
-			while ((read = channel.read(buffer)) > 0 && channel.isOpen()) {
-				buffer.flip();
-				log.info(prefix + ": " + new String(buffer.array(), 0, read));
-				buffer.clear();
+		@Override
+		public void close() throws IOException {
+			if (length > 0) {
+				emit();
 			}
-			channel.close();
-		} catch (AsynchronousCloseException e) {
-			log.debug("Channel was asynchronously closed...");
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 	}
-
+	
 	/**
-	 * Write a stream to a log file.
-	 * @param stream	Stream handle
-	 * @param bufsize	Buffer size in bytes
+	 * Sink writing the stream to a log file.
+	 * 
+	 * @param prefix	Prepend each line with this string.
+	 * @return	Sink
 	 */
-	protected void StreamToLog(InputStream stream, int bufsize) {
-		ToLog(stream, bufsize, "");
+	protected Pump.Sink toLog(final String prefix) {
+		return new LineSink() {
+			@Override
+			protected void line(String line) {
+				log.info(prefix + ": " + line);
+			}
+		};
 	}
 	
 	/**
-	 * Write a stream to a log file with prefix string.
-	 * @param stream	Stream handle
-	 * @param bufsize	Buffer size in bytes
-	 * @param prefix	Prepend each output with this string.
-	 * @see ToLog()
+	 * Sink writing the raw stream to a standard output/error stream.
+	 * 
+	 * @param out	Output or error stream handle
+	 * @return	Sink
 	 */
-	protected void StreamToLog(InputStream stream, int bufsize, String prefix) {
-		ToLog(stream, bufsize, prefix);
+	protected Pump.Sink toStd(final PrintStream out) {
+		return new Pump.Sink() {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				if (out.checkError()) {
+					//Nobody reads the output anymore
+					throw new IOException("Output stream failed.");
+				}
+			}
+			
+			@Override
+			public void close() {
+				out.flush();
+			}
+		};
 	}
 	
 	/**
-	 * Write a stream to a standard output/error stream
-	 * @param stream	Stream handle
-	 * @param out		Output or error stream handle
-	 * @param bufsize	Buffer size in bytes
+	 * Relay a stream of a process with the Pump.
+	 * 
+	 * @param stream	Process' stdout or stderr
+	 * @param proc		Process
+	 * @param sink		Destination of the stream
 	 */
-	protected void StreamToStd(InputStream stream, PrintStream out, int bufsize) {
-		final ReadableByteChannel channel = Channels.newChannel(stream);
-		final ByteBuffer buffer = ByteBuffer.allocate(bufsize);
-		
-		int read;
-		try {
-			while ((read = channel.read(buffer)) > 0 && channel.isOpen()) {
-				buffer.flip();
-				out.print(new String(buffer.array(), 0, read));
-				buffer.clear();
-			}
-			channel.close();
-		} catch (AsynchronousCloseException e) {
-			log.debug("Channel was asynchronously closed...");
-		} catch (IOException e) {
-			//e.printStackTrace();
-		}
+	protected void relay(InputStream stream, Process proc, Pump.Sink sink) {
+		relays.add(Pump.relay(stream, proc, sink));
+	}
+	
+	/**
+	 * Redirect the output, System.out and System.err are used by default.
+	 * 
+	 * @param out	Standard output stream
+	 * @param err	Standard error stream
+	 */
+	public void setOutput(PrintStream out, PrintStream err) {
+		this.stdout = out;
+		this.stderr = err;
+	}
+	
+	/**
+	 * Report an error which makes the output incomplete, the query fails.
+	 * 
+	 * @param message	Error message
+	 */
+	protected void fail(String message) {
+		log.error(message);
+		stderr.println("Error: " + message);
+		failed = true;
+	}
+	
+	/**
+	 * @return	True if the output is incomplete due to an error
+	 */
+	public boolean isFailed() {
+		return failed;
 	}
 	
 	/**
@@ -128,11 +199,12 @@ public class Proc {
 	}
 	
 	/**
-	 * Constructor
-	 * @param num	Thread pool size.
+	 * Stop processing in case of error.
 	 */
-	public Proc(int num) {
-		this.threads = new ArrayBlockingQueue<Thread>(num);
+	public void stop() {
+		for (Thread thread: threads) {
+			thread.interrupt();
+		}
 	}
 
 	/**
@@ -175,6 +247,19 @@ public class Proc {
 	        	e.printStackTrace();
 			}
 	    }
+		
+		Pump.Relay relay;
+		while (null != (relay = relays.poll())) {
+			try {
+				if (!relay.await(Math.max(0, deadline - System.currentTimeMillis()))) {
+					log.debug("Relay timeout, discarding the remaining output...");
+					relay.cancel();
+					result = false;
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 		return result;
 	}
 
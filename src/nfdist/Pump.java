@@ -0,0 +1,340 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Relays the output of child processes with a fixed number of threads
+ * shared by the whole JVM.
+ * 
+ * Process pipes can not be registered with a Selector, so in each pass a
+ * pump thread reads every stream at most once, only the bytes available
+ * without blocking. The chunks are queued per stream and written into its
+ * sink by one thread at a time. A slow sink holds only the thread writing
+ * into it, the other threads keep relaying the other streams. Once the
+ * queue of a stream is full, the stream is not read until the sink catches
+ * up and the process blocks on a full pipe.
+ * 
+ * A child of the process may keep the pipe open after the process has
+ * exited, so a stream ends once the process has exited and nothing is left
+ * to read. Idle threads poll with a growing delay, without streams they
+ * wait for a new one.
+ */
+public class Pump {
+	private static final Logger log = Logger.getLogger(Pump.class);
+	private static final int THREADS = 4;
+	private static final int BUFSIZE = 0x10000;
+	//Chunks of a stream waiting for its sink
+	private static final int QUEUED = 16;
+	//Sleep between polls of idle streams (ms)
+	private static final int MIN_IDLE = 1;
+	private static final int MAX_IDLE = 16;
+	private static final List<Relay> relays = new CopyOnWriteArrayList<Relay>();
+	private static final Object idle = new Object();
+	static {
+		for (int i=0; i<THREADS; i++) {
+			final Thread thread = new Thread(new PumpThread(), "Pump#" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Destination of the relayed bytes.
+	 */
+	public interface Sink {
+		/**
+		 * Write a chunk of the stream.
+		 * 
+		 * @param b		Buffer
+		 * @param off	Offset of the chunk
+		 * @param len	Length of the chunk
+		 * @throws IOException	Stops the relay and closes the stream
+		 */
+		void write(byte[] b, int off, int len) throws IOException;
+		
+		/**
+		 * The stream has ended or the relay was stopped.
+		 * 
+		 * @throws IOException
+		 */
+		void close() throws IOException;
+	}
+	
+	/**
+	 * A relayed stream.
+	 */
+	public static class Relay {
+		private final InputStream in;
+		private final Process proc;
+		private final Sink sink;
+		private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUED);
+		private final AtomicBoolean reading = new AtomicBoolean(false);
+		private final AtomicBoolean writing = new AtomicBoolean(false);
+		//Set by the reading thread, nothing is read afterwards
+		private volatile boolean ended = false;
+		private volatile boolean canceled = false;
+		private volatile boolean failed = false;
+		private volatile boolean done = false;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param in	Process' stdout or stderr
+		 * @param proc	Process writing the stream
+		 * @param sink	Destination of the bytes
+		 */
+		private Relay(InputStream in, Process proc, Sink sink) {
+			this.in = in;
+			this.proc = proc;
+			this.sink = sink;
+		}
+		
+		/**
+		 * Read the available bytes of the stream once, unless another thread
+		 * is reading it or its queue is full.
+		 * 
+		 * @param buffer	Read buffer of the pump thread
+		 * @return	True if anything was read or the stream has ended
+		 */
+		private boolean read(byte[] buffer) {
+			if (ended || !reading.compareAndSet(false, true)) {
+				return false;
+			}
+			try {
+				if (ended) {
+					return false;
+				} else if (canceled || failed) {
+					ended = true;
+					return true;
+				} else if (0 == queue.remainingCapacity()) {
+					return false;
+				}
+				
+				int available = in.available();
+				if (available <= 0) {
+					if (isAlive()) {
+						return false;
+					}
+					//Bytes written just before the exit are read first
+					available = in.available();
+					if (available <= 0) {
+						ended = true;
+						return true;
+					}
+				}
+				final int read = in.read(buffer, 0, Math.min(available, buffer.length));
+				if (read < 0) {
+					ended = true;
+				} else if (read > 0) {
+					queue.add(Arrays.copyOf(buffer, read));
+				}
+				return true;
+			} catch (IOException e) {
+				log.debug("Relay stopped: " + e.getMessage());
+				ended = true;
+				return true;
+			} finally {
+				reading.set(false);
+			}
+		}
+		
+		/**
+		 * Write the queued chunks into the sink, unless another thread is
+		 * writing them. Finishes the relay once the stream has ended.
+		 * 
+		 * @return	True if anything was written or the relay has finished
+		 */
+		private boolean write() {
+			if (done || !writing.compareAndSet(false, true)) {
+				return false;
+			}
+			boolean progress = false;
+			try {
+				if (done) {
+					return false;
+				}
+				byte[] chunk;
+				while (!canceled && !failed && null != (chunk = queue.poll())) {
+					try {
+						sink.write(chunk, 0, chunk.length);
+					} catch (IOException e) {
+						log.debug("Relay stopped: " + e.getMessage());
+						failed = true;
+					}
+					progress = true;
+				}
+				//The chunks read before the end are queued by now
+				if (ended && (queue.isEmpty() || canceled || failed)) {
+					finish();
+					progress = true;
+				}
+			} finally {
+				writing.set(false);
+			}
+			return progress;
+		}
+		
+		/**
+		 * @return	True if the process is still running
+		 */
+		private boolean isAlive() {
+			try {
+				proc.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+		
+		/**
+		 * Close the stream and the sink.
+		 */
+		private void finish() {
+			relays.remove(this);
+			queue.clear();
+			try {
+				in.close();
+			} catch (IOException e) {
+				//ignore
+			}
+			try {
+				sink.close();
+			} catch (IOException e) {
+				log.debug("Sink failed to close: " + e.getMessage());
+			}
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+		}
+		
+		/**
+		 * @return	True if the stream was fully relayed or the relay was stopped
+		 */
+		public boolean isDone() {
+			return done;
+		}
+		
+		/**
+		 * Stop relaying, the remaining output is discarded.
+		 */
+		public void cancel() {
+			canceled = true;
+		}
+		
+		/**
+		 * Wait for the relay to finish.
+		 * 
+		 * @param timeout	Time in milliseconds
+		 * @return	True if finished in time
+		 * @throws InterruptedException
+		 */
+		public synchronized boolean await(long timeout) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeout;
+			long wait;
+			while (!done) {
+				wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				wait(wait);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Passes over all the streams until the JVM exits.
+	 */
+	private static class PumpThread implements Runnable {
+		private final byte[] buffer = new byte[BUFSIZE];
+		
+		@Override
+		public void run() {
+			int delay = MIN_IDLE;
+			boolean progress;
+			
+			while (true) {
+				progress = false;
+				for (Relay relay: relays) {
+					progress |= relay.read(buffer);
+					progress |= relay.write();
+				}
+				if (progress) {
+					delay = MIN_IDLE;
+					continue;
+				}
+				
+				synchronized (idle) {
+					try {
+						if (relays.isEmpty()) {
+							idle.wait();
+						} else {
+							idle.wait(delay);
+							delay = Math.min(delay * 2, MAX_IDLE);
+						}
+					} catch (InterruptedException e) {
+						log.debug("Pump thread interrupted.");
+						return;
+					}
+				}
+			}
+		}
+	}
+	
+	private Pump() {
+	}
+	
+	/**
+	 * Relay a stream of a process.
+	 * 
+	 * @param in	Process' stdout or stderr
+	 * @param proc	Process writing the stream
+	 * @param sink	Destination of the bytes
+	 * @return	Handle of the relay
+	 */
+	public static Relay relay(InputStream in, Process proc, Sink sink) {
+		final Relay relay = new Relay(in, proc, sink);
+		relays.add(relay);
+		synchronized (idle) {
+			idle.notifyAll();
+		}
+		return relay;
+	}
+}
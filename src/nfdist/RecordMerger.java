@@ -0,0 +1,170 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges already sorted nfdump files into one sorted stream. Only the
+ * current record of each file is kept in memory. Files can be added while
+ * merging as long as their records do not sort before the ones written.
+ */
+public class RecordMerger {
+	private final PriorityQueue<Input> queue;
+	private final RecordOrder order;
+	
+	/**
+	 * A reader with the sort key of its current record.
+	 */
+	private class Input {
+		private final NfdumpReader reader;
+		private long key;
+		
+		public Input(NfdumpReader reader) {
+			this.reader = reader;
+		}
+		
+		/**
+		 * @return	False if there are no more records
+		 */
+		public boolean next() throws IOException {
+			if (!reader.next()) {
+				return false;
+			}
+			key = order.key(reader);
+			return true;
+		}
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param readers	Inputs sorted in the given order
+	 * @param order		Record order
+	 * @throws IOException
+	 */
+	public RecordMerger(List<NfdumpReader> readers, RecordOrder order) throws IOException {
+		this(readers.size(), order);
+		for (NfdumpReader reader: readers) {
+			add(reader);
+		}
+	}
+	
+	/**
+	 * Constructor of an empty merger.
+	 * 
+	 * @param capacity	Expected number of inputs
+	 * @param order		Record order
+	 */
+	private RecordMerger(int capacity, RecordOrder order) {
+		this.order = order;
+		queue = new PriorityQueue<Input>(Math.max(1, capacity), new Comparator<Input>() {
+			@Override
+			public int compare(Input a, Input b) {
+				return (a.key < b.key) ? -1 : ((a.key == b.key) ? 0 : 1);
+			}
+		});
+	}
+	
+	/**
+	 * Move some of the inputs, which may be partly merged already, into a
+	 * merger of their own.
+	 * 
+	 * @param readers	Inputs to move
+	 * @return	Merger of the remaining records of the inputs
+	 */
+	public RecordMerger take(Collection<NfdumpReader> readers) {
+		final RecordMerger taken = new RecordMerger(readers.size(), order);
+		final Iterator<Input> it = queue.iterator();
+		while (it.hasNext()) {
+			final Input input = it.next();
+			if (readers.contains(input.reader)) {
+				it.remove();
+				taken.queue.add(input);
+			}
+		}
+		return taken;
+	}
+	
+	/**
+	 * Add a sorted file.
+	 * 
+	 * @param reader	Input sorted in the merger's order
+	 * @throws IOException
+	 */
+	public void add(NfdumpReader reader) throws IOException {
+		final Input input = new Input(reader);
+		if (input.next()) {
+			queue.add(input);
+		}
+	}
+	
+	/**
+	 * Write the records in order.
+	 * 
+	 * @param writer	Output
+	 * @param limit		Maximum number of records to write, 0 for no limit
+	 * @return	Number of records written
+	 * @throws IOException
+	 */
+	public long merge(NfdumpWriter writer, long limit) throws IOException {
+		return merge(writer, limit, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Write the records whose sort key is below the bound in order.
+	 * 
+	 * @param writer	Output
+	 * @param limit		Maximum number of records to write, 0 for no limit
+	 * @param bound		Records with this or a larger key are kept
+	 * @return	Number of records written
+	 * @throws IOException
+	 */
+	public long merge(NfdumpWriter writer, long limit, long bound) throws IOException {
+		long count = 0;
+		Input input;
+		
+		while ((limit <= 0 || count < limit) && (input = queue.peek()) != null
+				&& (input.key < bound || Long.MAX_VALUE == bound)) {
+			queue.poll();
+			writer.write(input.reader);
+			count++;
+			if (input.next()) {
+				queue.add(input);
+			}
+		}
+		writer.flush();
+		return count;
+	}
+}
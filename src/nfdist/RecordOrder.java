@@ -0,0 +1,90 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+/**
+ * Record orders (nfdump's -O option) which can be used to merge sorted results.
+ * Time orders are ascending, counter orders are descending like in nfdump.
+ */
+public enum RecordOrder {
+	TSTART {
+		@Override
+		public long key(NfdumpReader reader) {
+			return reader.firstSeen();
+		}
+	},
+	TEND {
+		@Override
+		public long key(NfdumpReader reader) {
+			return reader.lastSeen();
+		}
+	},
+	PACKETS {
+		@Override
+		public long key(NfdumpReader reader) {
+			return -reader.packets();
+		}
+	},
+	BYTES {
+		@Override
+		public long key(NfdumpReader reader) {
+			return -reader.bytes();
+		}
+	};
+	
+	/**
+	 * Sort key of the reader's current record, smaller keys go first.
+	 * 
+	 * @param reader	Reader positioned at a flow record
+	 * @return	Sort key
+	 */
+	public abstract long key(NfdumpReader reader);
+	
+	/**
+	 * A record's first seen time is a lower bound of its key in time orders.
+	 * 
+	 * @return	True if the order is by time
+	 */
+	public boolean isTime() {
+		return this == TSTART || this == TEND;
+	}
+	
+	/**
+	 * @param name	Order name as used by nfdump
+	 * @return	Record order or null if merging in this order is not supported
+	 */
+	public static RecordOrder parse(String name) {
+		for (RecordOrder order: values()) {
+			if (order.name().equalsIgnoreCase(name)) {
+				return order;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package nfdist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.log4j.Logger;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Final outputs of recent queries, kept by a long running Manager.
+ * 
+ * An entry is found by the normalized query and a fingerprint of its files
+ * (paths, lengths and modification times), so a new or rewritten file makes
+ * a new key. Entries expire after a TTL and the least recently used ones are
+ * evicted when the total size exceeds the limit.
+ */
+public class ResultCache {
+	private static final Logger log = Logger.getLogger(ResultCache.class);
+	private static final Counter HITS = Metrics.counter("nfdist_manager_result_cache_hits_total",
+			"Queries answered from the result cache");
+	private static final Counter MISSES = Metrics.counter("nfdist_manager_result_cache_misses_total",
+			"Cacheable queries which were not in the result cache");
+	private static final Counter EVICTIONS = Metrics.counter("nfdist_manager_result_cache_evictions_total",
+			"Result cache entries removed because of the size limit");
+	
+	/**
+	 * Cached output.
+	 */
+	private static class Entry {
+		final byte[] output;
+		final long created;
+		
+		Entry(byte[] output, long created) {
+			this.output = output;
+			this.created = created;
+		}
+	}
+	
+	/**
+	 * Passes the data through and keeps a copy of it up to a limit.
+	 */
+	public static class Capture extends OutputStream {
+		private final OutputStream out;
+		private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		private final long limit;
+		private long count = 0;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param out	Output stream
+		 * @param limit	Maximum size of the copy
+		 */
+		public Capture(OutputStream out, long limit) {
+			this.out = out;
+			this.limit = limit;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+			if (count <= limit) {
+				copy.write(b, off, len);
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		/**
+		 * @return	True if nothing was written
+		 */
+		public boolean isEmpty() {
+			return 0 == count;
+		}
+		
+		/**
+		 * @return	Written data or null if it exceeded the limit
+		 */
+		public byte[] getOutput() {
+			return count <= limit ? copy.toByteArray() : null;
+		}
+	}
+	
+	private final long TTL;
+	private final long MAX_SIZE;
+	private final long MAX_ENTRY;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param config	Nfdist's configuration
+	 */
+	public ResultCache(Configuration config) {
+		this.TTL = config.getLong("manager.cache.ttl", 60) * 1000;
+		this.MAX_SIZE = config.getLong("manager.cache.size", 0x4000000);
+		this.MAX_ENTRY = Math.min(MAX_SIZE, config.getLong("manager.cache.entry", 0x400000));
+	}
+	
+	/**
+	 * @return	True if outputs are cached
+	 */
+	public boolean isEnabled() {
+		return TTL > 0 && MAX_ENTRY > 0;
+	}
+	
+	/**
+	 * @param opts	Query's options
+	 * @param files	Files the query reads
+	 * @return	Cache key of the query
+	 */
+	public static String key(Options opts, List<FileStatus> files) {
+		final Hasher hasher = Hashing.murmur3_128().newHasher();
+		for (FileStatus s: files) {
+			hasher.putString(s.getPath().toUri().getPath());
+			hasher.putLong(s.getLen());
+			hasher.putLong(s.getModificationTime());
+		}
+		return opts.getCacheKey() + "#" + files.size() + ":" + hasher.hash();
+	}
+	
+	/**
+	 * Find a query's output.
+	 * 
+	 * @param key	Query's cache key
+	 * @return	Output or null if it is not cached or has expired
+	 */
+	public synchronized byte[] get(String key) {
+		final Entry e = entries.get(key);
+		if (null != e && System.currentTimeMillis() - e.created < TTL) {
+			HITS.inc();
+			return e.output;
+		}
+		if (null != e) {
+			entries.remove(key);
+			size -= e.output.length;
+		}
+		MISSES.inc();
+		return null;
+	}
+	
+	/**
+	 * Store a query's output, evicting the least recently used ones.
+	 * 
+	 * @param key		Query's cache key
+	 * @param output	Query's output, null if it was too large
+	 */
+	public synchronized void put(String key, byte[] output) {
+		if (null == output || output.length > MAX_ENTRY) {
+			return;
+		}
+		final Entry old = entries.put(key, new Entry(output, System.currentTimeMillis()));
+		if (null != old) {
+			size -= old.output.length;
+		}
+		size += output.length;
+		
+		final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > MAX_SIZE && it.hasNext()) {
+			final Entry e = it.next().getValue();
+			it.remove();
+			size -= e.output.length;
+			EVICTIONS.inc();
+		}
+		log.debug("Result cache: " + entries.size() + " entries, " + size + " bytes");
+	}
+	
+	/**
+	 * @param out	Query's output
+	 * @return	Stream which keeps a copy of the output for put()
+	 */
+	public Capture capture(OutputStream out) {
+		return new Capture(out, MAX_ENTRY);
+	}
+}
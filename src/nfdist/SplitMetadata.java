@@ -0,0 +1,137 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Records which are not flows (extension maps, exporter information) of the
+ * data blocks preceding a split, read by the Worker on demand. The blocks
+ * are read from the start of the file only until the maps the split refers
+ * to are found, usually in the first block where nfcapd writes the maps
+ * known when the file is opened. Nfcapd and nfdump do not reuse map ids
+ * within a file, so the first definition found is the one the split uses.
+ */
+public class SplitMetadata {
+	private final FileSystem fs;
+	private final Path path;
+	private final ByteOrder order;
+	private final long end;
+	private final Set<Integer> maps = new HashSet<Integer>();
+	//Records read since the previous find()
+	private final Map<String, byte[]> records = new LinkedHashMap<String, byte[]>();
+	private FSDataInputStream in = null;
+	private long pos = NfdumpFile.DATA_OFFSET;
+	private long bytes = 0;
+	
+	/**
+	 * Constructor. The file is opened once the maps are looked for.
+	 * 
+	 * @param fs		HDFS handle
+	 * @param path		Nfdump file
+	 * @param order		Byte order of the file
+	 * @param end		Offset of the split
+	 */
+	public SplitMetadata(FileSystem fs, Path path, ByteOrder order, long end) {
+		this.fs = fs;
+		this.path = path;
+		this.order = order;
+		this.end = end;
+	}
+	
+	/**
+	 * Read the preceding data blocks until the given maps are found or the
+	 * split is reached.
+	 * 
+	 * @param missing	Ids of the maps the split refers to before defining them
+	 * @return	Data block of the records read since the previous call or null
+	 * 			if there are none
+	 * @throws IOException
+	 */
+	public byte[] find(Set<Integer> missing) throws IOException {
+		if (null == in && !maps.containsAll(missing)) {
+			in = fs.open(path);
+			in.seek(pos);
+		}
+		
+		final byte[] header = new byte[NfdumpFile.BLOCK_HEADER_SIZE];
+		final ByteBuffer headerBB = ByteBuffer.wrap(header).order(order);
+		final Set<Integer> ignored = new HashSet<Integer>();
+		while (!maps.containsAll(missing) && pos + NfdumpFile.BLOCK_HEADER_SIZE <= end) {
+			in.readFully(header);
+			final long size = NfdumpFile.BLOCK_HEADER_SIZE + (headerBB.getInt(4) & 0xFFFFFFFFL);
+			if (pos + size > end) {
+				throw new IOException("Data block exceeds the start of the split");
+			}
+			if ((headerBB.getShort(8) & 0xFFFF) == NfdumpFile.DATA_BLOCK_TYPE) {
+				final byte[] block = new byte[(int) size];
+				System.arraycopy(header, 0, block, 0, header.length);
+				in.readFully(block, header.length, block.length - header.length);
+				NfdumpFile.collectMetadata(block, order, records);
+				NfdumpFile.missingMaps(block, block.length, order, maps, ignored);
+			} else {
+				in.seek(pos + size);
+			}
+			pos += size;
+			bytes += size;
+		}
+		
+		final byte[] block = NfdumpFile.metadataBlock(records.values(), order);
+		records.clear();
+		return block;
+	}
+	
+	/**
+	 * @return	Bytes read before the split
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Close the file.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (null != in) {
+			in.close();
+		}
+	}
+}
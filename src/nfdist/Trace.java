@@ -0,0 +1,250 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timeline of a query. Spans are recorded by the Manager and by the Workers,
+ * which return theirs together with the job's finished state. The Manager
+ * writes the whole trace as a small text file, one span per line:
+ * <name> <host> <job> <start ms> <end ms>
+ */
+public class Trace {
+	public static final String NONE = "-";
+	//Tolerated overlap of consecutive spans (clock skew between hosts)
+	private static final long SKEW = 50;
+	
+	private final String id;
+	private final List<Span> spans = new ArrayList<Span>();
+	
+	/**
+	 * Time interval of a single processing stage.
+	 */
+	public static class Span implements Comparable<Span> {
+		public final String name;
+		public final String host;
+		public final String job;
+		public final long start;
+		public final long end;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name	Stage name
+		 * @param host	Host where the stage ran
+		 * @param job	Job id or Trace.NONE for query wide stages
+		 * @param start	Start (ms since epoch)
+		 * @param end	End (ms since epoch)
+		 */
+		public Span(String name, String host, String job, long start, long end) {
+			this.name = name;
+			this.host = host;
+			this.job = job;
+			this.start = start;
+			this.end = Math.max(start, end);
+		}
+		
+		public long getDuration() {
+			return end - start;
+		}
+		
+		@Override
+		public int compareTo(Span other) {
+			if (start != other.start) {
+				return (start < other.start) ? -1 : 1;
+			}
+			return (end < other.end) ? -1 : ((end == other.end) ? 0 : 1);
+		}
+		
+		@Override
+		public String toString() {
+			return name + " " + host + " " + job + " " + start + " " + end;
+		}
+		
+		/**
+		 * @param line	Encoded span
+		 * @return	Span or null if the line is malformed
+		 */
+		public static Span parse(String line) {
+			final String[] fields = line.trim().split(" ");
+			if (fields.length != 5) {
+				return null;
+			}
+			try {
+				return new Span(fields[0], fields[1], fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param id	Trace id
+	 */
+	public Trace(String id) {
+		this.id = id;
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	/**
+	 * Record a span.
+	 * 
+	 * @param name	Stage name
+	 * @param host	Host where the stage ran
+	 * @param job	Job id or Trace.NONE
+	 * @param start	Start (ms since epoch)
+	 * @param end	End (ms since epoch)
+	 */
+	public synchronized void add(String name, String host, String job, long start, long end) {
+		spans.add(new Span(name, host, job, start, end));
+	}
+	
+	/**
+	 * Add encoded spans, malformed lines are skipped.
+	 * 
+	 * @param encoded	Spans, one per line
+	 */
+	public synchronized void addAll(String encoded) {
+		Span span;
+		for (String line: encoded.split("\n")) {
+			if (null != (span = Span.parse(line))) {
+				spans.add(span);
+			}
+		}
+	}
+	
+	/**
+	 * @return	Spans sorted by their start
+	 */
+	public synchronized List<Span> getSpans() {
+		final List<Span> result = new ArrayList<Span>(spans);
+		Collections.sort(result);
+		return result;
+	}
+	
+	/**
+	 * @return	Spans, one per line
+	 */
+	public synchronized String encode() {
+		final StringBuilder out = new StringBuilder();
+		for (Span span: spans) {
+			out.append(span).append('\n');
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Write the trace.
+	 * 
+	 * @param out	Output stream, it is closed
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		try {
+			out.write(encode().getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Read a trace.
+	 * 
+	 * @param id	Trace id
+	 * @param in	Input stream, it is closed
+	 * @return	Trace
+	 * @throws IOException
+	 */
+	public static Trace read(String id, InputStream in) throws IOException {
+		final Trace trace = new Trace(id);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			Span span;
+			String line;
+			while (null != (line = reader.readLine())) {
+				if (null != (span = Span.parse(line))) {
+					trace.spans.add(span);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+	
+	/**
+	 * Critical path: starting from the span which ends last, repeatedly step
+	 * to the span which ended last before the current one started. Spans of
+	 * the same job are preferred on ties.
+	 * 
+	 * @return	Spans of the critical path in time order
+	 */
+	public List<Span> criticalPath() {
+		final List<Span> all = getSpans();
+		final List<Span> path = new ArrayList<Span>();
+		
+		Span current = null;
+		for (Span span: all) {
+			if (!"query".equals(span.name) && (null == current || span.end > current.end)) {
+				current = span;
+			}
+		}
+		
+		while (null != current) {
+			path.add(current);
+			Span next = null;
+			for (Span span: all) {
+				if (span == current || "query".equals(span.name)
+						|| span.end > current.start + SKEW || span.start >= current.start) {
+					continue;
+				}
+				if (null == next || span.end > next.end
+						|| (span.end == next.end && span.job.equals(current.job) && !next.job.equals(current.job))) {
+					next = span;
+				}
+			}
+			current = next;
+		}
+		Collections.reverse(path);
+		return path;
+	}
+}
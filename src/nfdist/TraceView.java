@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nfdist.Trace.Span;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Renders a query's trace as a Gantt chart and prints its critical path.
+ */
+public class TraceView {
+	private static final int WIDTH = 50;
+	
+	/**
+	 * Prints CLI usage information.
+	 */
+	private static void printUsage() {
+		System.err.printf("Usage: java %s <trace id|trace file>\n", TraceView.class.getName());
+	}
+	
+	/**
+	 * @param ms	Time in milliseconds
+	 * @return	Time in seconds
+	 */
+	private static String seconds(long ms) {
+		return String.format("%.3fs", ms / 1000.0);
+	}
+	
+	/**
+	 * Print the spans as a time line.
+	 * 
+	 * @param trace	Query's trace
+	 */
+	private static void render(Trace trace) {
+		final List<Span> spans = trace.getSpans();
+		if (spans.isEmpty()) {
+			System.out.println("Trace " + trace.getId() + " has no spans.");
+			return;
+		}
+		
+		long begin = Long.MAX_VALUE, end = Long.MIN_VALUE;
+		for (Span span: spans) {
+			begin = Math.min(begin, span.start);
+			end = Math.max(end, span.end);
+		}
+		final long total = Math.max(1, end - begin);
+		
+		System.out.println("Trace " + trace.getId() + ": " + spans.size() + " spans, " + seconds(total));
+		System.out.printf("%-8s %-16s %-12s %9s %9s  %s\n", "stage", "host", "job", "start", "duration", "timeline");
+		for (Span span: spans) {
+			final int from = (int) ((span.start - begin) * WIDTH / total);
+			final int to = Math.max(from + 1, (int) ((span.end - begin) * WIDTH / total));
+			final StringBuilder bar = new StringBuilder();
+			for (int i=0; i<WIDTH; i++) {
+				bar.append((i >= from && i < to) ? '#' : ' ');
+			}
+			System.out.printf("%-8s %-16s %-12s %9s %9s  |%s|\n", span.name, span.host, span.job,
+					seconds(span.start - begin), seconds(span.getDuration()), bar);
+		}
+		
+		final List<Span> path = trace.criticalPath();
+		final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+		long busy = 0;
+		System.out.println();
+		System.out.println("Critical path:");
+		for (Span span: path) {
+			System.out.printf("  %-8s %-16s %-12s %9s +%s\n", span.name, span.host, span.job,
+					seconds(span.start - begin), seconds(span.getDuration()));
+			final Long sum = stages.get(span.name);
+			stages.put(span.name, (null == sum ? 0 : sum) + span.getDuration());
+			busy += span.getDuration();
+		}
+		System.out.println();
+		System.out.println("Critical path time by stage (gaps " + seconds(Math.max(0, total - busy)) + "):");
+		for (Map.Entry<String, Long> e: stages.entrySet()) {
+			System.out.printf("  %-8s %9s %3d%%\n", e.getKey(), seconds(e.getValue()), e.getValue() * 100 / total);
+		}
+	}
+	
+	public static void main(String[] args) throws ConfigurationException, IOException, URISyntaxException {
+		if (args.length < 1) {
+			printUsage();
+			return;
+		}
+		
+		final File file = new File(args[0]);
+		final InputStream in;
+		if (file.isFile()) {
+			in = new FileInputStream(file);
+		} else {
+			final Configuration config = new PropertiesConfiguration("nfdist.properties");
+			final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
+			final URI hdfsURI = new URI("hdfs", config.getString("hdfs.namenode"), null, null);
+			hdfsConf.set("fs.defaultFS", hdfsURI.toString());
+			final FileSystem fs = FileSystem.get(hdfsConf);
+			in = fs.open(new Path(config.getString("trace.path"), args[0]));
+		}
+		render(Trace.read(file.getName(), in));
+	}
+}
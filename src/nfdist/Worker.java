@@ -28,16 +28,22 @@
 
 package nfdist;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import nfdist.hadoop.TmpPath;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Histogram;
+import nfdist.metrics.Metrics;
+import nfdist.metrics.ProcessStats;
 import nfdist.zookeeper.JobData;
 import nfdist.zookeeper.JobQueue;
 import nfdist.zookeeper.ReconnectingZooKeeper;
@@ -63,10 +69,38 @@ import org.apache.log4j.Logger;
 public class Worker {
 	private static final Logger log = Logger.getLogger(Worker.class);
 	
-	private static Configuration config;
-	private static int JOBTIMEOUT;
-	private static TmpPath localTmp, hdfsTmp;
-	private static Semaphore limit; 
+	private final Configuration config;
+	private final int JOBTIMEOUT;
+	private final int MAX_THREADS;
+	private final TmpPath localTmp, hdfsTmp;
+	private final int SORT_MEMORY, SORT_FANIN;
+	//Read buffer of each sorted run
+	private static final int SORT_BUFSIZE = 0x10000;
+	private final AdaptiveLimit limit;
+	private final String hostname;
+	private final FileSystem fs, localFs;
+	private final WorkerWatcher watcher = new WorkerWatcher();
+	private volatile boolean stopped = false;
+	private Thread runner = null;
+	
+	private static final Histogram QUEUE_WAIT = Metrics.histogram("nfdist_worker_queue_wait_seconds",
+			"Time from the job request creation until a Worker claimed it", Histogram.MICROS);
+	private static final Histogram FILTER_TIME = Metrics.histogram("nfdist_worker_filter_seconds",
+			"Time spent by nfdump filtering a job", Histogram.MICROS);
+	private static final Histogram NFDUMP_CPU = Metrics.histogram("nfdist_worker_nfdump_cpu_seconds",
+			"Sampled CPU time of nfdump per job", Histogram.MICROS);
+	private static final Histogram NFDUMP_RSS = Metrics.histogram("nfdist_worker_nfdump_rss_bytes",
+			"Sampled peak resident memory of nfdump per job", Histogram.UNITS);
+	private static final Histogram SORT_TIME = Metrics.histogram("nfdist_worker_sort_seconds",
+			"Time to sort a job result which is merged by the Manager", Histogram.MICROS);
+	private static final Histogram UPLOAD_TIME = Metrics.histogram("nfdist_worker_upload_seconds",
+			"Time to move a job result into HDFS", Histogram.MICROS);
+	private static final Counter FINISHED = Metrics.counter("nfdist_worker_jobs_finished_total",
+			"Jobs finished successfully");
+	private static final Counter FAILED = Metrics.counter("nfdist_worker_jobs_failed_total",
+			"Jobs failed");
+	private static final Counter CANCELED = Metrics.counter("nfdist_worker_jobs_canceled_total",
+			"Jobs canceled by the Manager or because its query ended");
 	
 
 	/**
@@ -87,10 +121,52 @@ public class Worker {
 		}
 	}
 	
+	/**
+	 * Stops a Filter once its active job node or its query node is removed.
+	 */
+	private static class CancelWatcher implements Watcher {
+		private final Filter filter;
+		private volatile boolean canceled = false;
+		private volatile boolean finished = false;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param filter	Filter to stop
+		 */
+		public CancelWatcher(Filter filter) {
+			this.filter = filter;
+		}
+		
+		@Override
+		public void process(WatchedEvent event) {
+			if (event.getType() == Event.EventType.NodeDeleted) {
+				canceled = true;
+				if (!finished) {
+					filter.cancel();
+				}
+			}
+		}
+		
+		/**
+		 * The Filter has finished, later removals only cancel the upload.
+		 */
+		public void finish() {
+			finished = true;
+		}
+		
+		/**
+		 * @return	True if a watched node was removed
+		 */
+		public boolean isCanceled() {
+			return canceled;
+		}
+	}
+	
 	/**
 	 * Worker's job execution thread.
 	 */
-	private static class Job implements Runnable {
+	private class Job implements Runnable {
 		private JobQueue job;
 		private JobData jobData;
 		private FileSystem fs;
@@ -117,13 +193,63 @@ public class Worker {
 			try {
 				id = jobData.getId();
 				log.debug(id + " starting a job.");
+				if (jobData.getCreated() > 0) {
+					QUEUE_WAIT.record((System.currentTimeMillis() - jobData.getCreated()) * 1000);
+				}
+				long start = System.nanoTime();
+				long startMs = System.currentTimeMillis();
 				
-				Filter filter = new Filter(jobData, fs, config);
+				//Spans returned to a tracing Manager
+				final Trace trace = (null != jobData.getTrace()) ? new Trace(jobData.getTrace()) : null;
+				if (null != trace) {
+					if (jobData.getCreated() > 0) {
+						trace.add("queue", hostname, id, jobData.getCreated(), jobData.getClaimStart());
+					}
+					trace.add("claim", hostname, id, jobData.getClaimStart(), jobData.getClaimEnd());
+				}
+				
+				Filter filter;
+				if (jobData.isDistinct()) {
+					filter = new DistinctFilter(jobData, fs, config);
+				} else {
+					filter = new Filter(jobData, fs, config);
+				}
+				final CancelWatcher canceler = new CancelWatcher(filter);
 				filter.start();
+				if (!job.watch(id, canceler) || !job.watchQuery(jobData.getQuery(), canceler)) {
+					filter.cancel();
+				}
+				
+				final boolean completed = filter.await(JOBTIMEOUT);
+				canceler.finish();
+				FILTER_TIME.recordSince(start);
+				if (null != trace) {
+					trace.add("filter", hostname, id, startMs, System.currentTimeMillis());
+				}
+				final ProcessStats stats = filter.getProcessStats();
+				stats.stop();
+				NFDUMP_CPU.record(stats.getCpuMillis() * 1000);
+				NFDUMP_RSS.record(stats.getPeakRss());
+				
+				boolean success = completed && filter.success();
+				if (success && !filter.isCanceled() && null != jobData.getOrder()) {
+					start = System.nanoTime();
+					startMs = System.currentTimeMillis();
+					success = sort(jobData);
+					SORT_TIME.recordSince(start);
+					if (null != trace) {
+						trace.add("sort", hostname, id, startMs, System.currentTimeMillis());
+					}
+				}
 				
-				if (filter.await(JOBTIMEOUT) && filter.success()) {
+				if (filter.isCanceled()) {
+					new File(localTmp.asString(id)).delete();
+					canceled(job, id, null);
+				} else if (success) {
 					final Path srcFile = localTmp.asPath(id);
 					final Path dstFile = hdfsTmp.asPath(id);
+					start = System.nanoTime();
+					startMs = System.currentTimeMillis();
 					try {
 						log.debug(id + " moving to hdfs");
 						fs.moveFromLocalFile(srcFile, dstFile);
@@ -132,10 +258,27 @@ public class Worker {
 						log.debug(id + " no file, moving canceled.");
 						//ignore
 					}
-					job.finish(id);
-					log.info(id + " job finished successfully.");
+					UPLOAD_TIME.recordSince(start);
+					try {
+						if (canceler.isCanceled()) {
+							throw new KeeperException.NoNodeException(id);
+						}
+						if (null != trace) {
+							trace.add("upload", hostname, id, startMs, System.currentTimeMillis());
+							job.finish(id, trace.encode());
+						} else {
+							job.finish(id);
+						}
+						FINISHED.inc();
+						log.info(id + " job finished successfully.");
+					} catch (KeeperException.NoNodeException e) {
+						//Canceled while uploading, nobody will read the results
+						canceled(job, id, dstFile);
+					}
 				} else {
+					new File(localTmp.asString(id)).delete();
 					job.failed(id);
+					FAILED.inc();
 					log.error(id + " job failed.");
 				}
 					
@@ -150,30 +293,80 @@ public class Worker {
 	}
 	
 	/**
-	 * Prints CLI usage information.
+	 * Sort a job's result in place, nfdump writes it unsorted.
+	 * 
+	 * @param jobData	Job's information
+	 * @return	False if the result can not be sorted
 	 */
-	private static void printUsage() {
-		System.err.printf("Usage: java -jar %s <fqdn>\n", Worker.class.getSimpleName());
+	private boolean sort(JobData jobData) {
+		final String id = jobData.getId();
+		final Path result = localTmp.asPath(id);
+		final Path sorted = localTmp.asPath(id + "-sorted");
+		try {
+			if (!localFs.exists(result)) {
+				return true;
+			}
+			final OutputStream out = localFs.create(sorted, true);
+			try {
+				final long records = new ExternalSort(jobData.getOrder(), SORT_MEMORY, SORT_FANIN, SORT_BUFSIZE,
+						jobData.getLimit(), localFs, localTmp, id + "-sort").sort(result, out);
+				log.debug(id + " " + records + " records sorted.");
+			} finally {
+				out.close();
+			}
+			localFs.delete(result, false);
+			if (!localFs.rename(sorted, result)) {
+				throw new IOException("Can not rename " + sorted);
+			}
+			return true;
+		} catch (IOException e) {
+			log.error(id + " sorting the result failed: " + e.getMessage());
+			try {
+				localFs.delete(sorted, false);
+			} catch (IOException e2) {
+				//ignore
+			}
+			return false;
+		}
 	}
 	
-	public static void main(String[] args) throws IOException, KeeperException, InterruptedException, ConfigurationException {
-		String hostname;
-		JobData jobData;
-		
-		if (args.length < 1) {
-			printUsage();
-			return;
-		} else {
-			hostname = args[0];
+	/**
+	 * Clean up after a canceled job.
+	 * 
+	 * @param job		Job queue
+	 * @param id		Job id
+	 * @param result	Result already moved into HDFS or null
+	 * @throws IOException
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	private void canceled(JobQueue job, String id, Path result) throws IOException, KeeperException, InterruptedException {
+		if (null != result) {
+			fs.delete(result, false);
 		}
-		
-		Thread.currentThread().setName("Worker#"+new Random().nextInt(Integer.MAX_VALUE));
-		
-		config = new PropertiesConfiguration("nfdist.properties");
-		JOBTIMEOUT = config.getInt("jobs.timeout")*1000;
-		localTmp = new TmpPath(config.getString("local.path.tmp"));
-		hdfsTmp = new TmpPath(config.getString("hdfs.path.tmp"));
-		final int THREADS = config.getInt("jobs.filter.threads");
+		job.remove(id);
+		CANCELED.inc();
+		log.info(id + " job canceled.");
+	}
+	
+	/**
+	 * Constructor. Opens a HDFS connection of its own.
+	 * 
+	 * @param config	Nfdist's configuration
+	 * @param hostname	Worker node name. Must be the same as datanode name.
+	 * @throws IOException
+	 */
+	public Worker(Configuration config, String hostname) throws IOException {
+		this.config = config;
+		this.hostname = hostname;
+		this.JOBTIMEOUT = config.getInt("jobs.timeout")*1000;
+		this.localTmp = new TmpPath(config.getString("local.path.tmp"));
+		this.hdfsTmp = new TmpPath(config.getString("hdfs.path.tmp"));
+		this.MAX_THREADS = config.getInt("jobs.filter.threads.max");
+		this.SORT_MEMORY = config.getInt("jobs.filter.sort.memory", 0x2000000);
+		this.SORT_FANIN = config.getInt("jobs.combiner.fanin");
+		this.limit = new AdaptiveLimit(config.getInt("jobs.filter.threads"),
+				config.getInt("jobs.filter.threads.min"), MAX_THREADS);
 		
 		//HDFS
 		final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
@@ -183,39 +376,115 @@ public class Worker {
 			
 			// Prevent temporary file replication
 			hdfsConf.setInt("dfs.replication", 1);
-		} catch (URISyntaxException e1) {
-			e1.printStackTrace();
-			return;
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid namenode address: "+e.getMessage());
+		}
+		//Not shared with other Workers or a Manager of the same JVM
+		this.fs = FileSystem.newInstance(hdfsConf);
+		this.localFs = FileSystem.getLocal(hdfsConf).getRawFileSystem();
+	}
+	
+	/**
+	 * Take and execute jobs until stopped.
+	 * 
+	 * @throws IOException
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void run() throws IOException, KeeperException, InterruptedException {
+		JobData jobData;
+		
+		synchronized (this) {
+			runner = Thread.currentThread();
 		}
-		final FileSystem fs = FileSystem.get(hdfsConf);
 		
-		final WorkerWatcher watcher = new WorkerWatcher();
 		ReconnectingZooKeeper zk = new ReconnectingZooKeeper(config, watcher);
 		JobQueue queue = new JobQueue(zk, config, hostname); 
 		
-		limit = new Semaphore(THREADS);
-		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
 		
-		while (true) {
-			limit.acquire();
-			try {
-				jobData = queue.take();
-				Job job = new Job(queue, jobData, fs);
-				executor.execute(job);
-			} catch (KeeperException.SessionExpiredException e) {
-				//Create a new ZooKeeper session
-				log.warn("ZooKeeper session expired, reconnecting...");
-				zk = new ReconnectingZooKeeper(config, watcher);
-				queue = new JobQueue(zk, config, hostname);
-				limit.release();
-				Thread.sleep(100);
-			} catch (Exception e) {
-				log.error("Unhandled exception: "+e.getMessage());
-				e.printStackTrace();
-				limit.release();
-				Thread.sleep(100);
+		//Adjusts the limit to the node's load
+		final LoadMonitor monitor = new LoadMonitor(limit, config);
+		monitor.setQueue(queue);
+		final Thread monitorThread = new Thread(monitor, "LoadMonitor-"+hostname);
+		monitorThread.setDaemon(true);
+		monitorThread.start();
+		
+		try {
+			while (!stopped) {
+				//A permit is held only once there is a job, waiting for one is not load
+				limit.awaitAvailable();
+				try {
+					jobData = queue.take();
+					//The job is active already, it runs even if the limit was lowered meanwhile
+					limit.acquireNow();
+					try {
+						executor.execute(new Job(queue, jobData, fs));
+					} catch (RuntimeException e) {
+						limit.release();
+						queue.failed(jobData.getId());
+						throw e;
+					}
+				} catch (KeeperException.SessionExpiredException e) {
+					//Create a new ZooKeeper session
+					log.warn("ZooKeeper session expired, reconnecting...");
+					zk = new ReconnectingZooKeeper(config, watcher);
+					queue = new JobQueue(zk, config, hostname);
+					monitor.setQueue(queue);
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					if (!stopped) {
+						throw e;
+					}
+				} catch (Exception e) {
+					log.error("Unhandled exception: "+e.getMessage());
+					e.printStackTrace();
+					Thread.sleep(100);
+				}
+			}
+		} catch (InterruptedException e) {
+			if (!stopped) {
+				throw e;
 			}
+		} finally {
+			log.info("Stopping, waiting for running jobs...");
+			monitorThread.interrupt();
+			executor.shutdown();
+			executor.awaitTermination(JOBTIMEOUT, TimeUnit.MILLISECONDS);
+			zk.close();
+			fs.close();
+		}
+	}
+	
+	/**
+	 * Stop taking jobs. Running jobs are completed before run() returns.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (null != runner) {
+			runner.interrupt();
 		}
 	}
+	
+	/**
+	 * Prints CLI usage information.
+	 */
+	private static void printUsage() {
+		System.err.printf("Usage: java -jar %s <fqdn>\n", Worker.class.getSimpleName());
+	}
+	
+	public static void main(String[] args) throws IOException, KeeperException, InterruptedException, ConfigurationException {
+		if (args.length < 1) {
+			printUsage();
+			return;
+		}
+		
+		Thread.currentThread().setName("Worker#"+new Random().nextInt(Integer.MAX_VALUE));
+		
+		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		Metrics.expose(config.getString("metrics.address", "127.0.0.1"), config.getInt("metrics.worker.port"));
+		
+		new Worker(config, args[0]).run();
+	}
 
 }
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.columnar;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Layout of the columnar flow files. A file holds the flows of one hour of
+ * a source, converted from its nfcapd files, and is stored next to them as
+ * "flows.YYYYMMDDhh.N" where N is the number of the converted files.
+ * 
+ * The file header (magic, version, byte order of the records) is followed
+ * by row groups and a zero row count. A row group starts with its row
+ * count, the length and content of its statistics (summary of the value
+ * ranges, bloom filter of the addresses and ports, extension maps) and the
+ * lengths of its columns, so it can be skipped without decoding it.
+ */
+public class ColumnarFile {
+	public static final String PREFIX = "flows.";
+	static final int MAGIC = 0x4E46434C;
+	static final int VERSION = 1;
+	
+	/** Columns */
+	static final int FIRST = 0;
+	static final int DURATION = 1;
+	/** Record flags and exporter sysid */
+	static final int FLAGS = 2;
+	static final int MAP = 3;
+	static final int FWD_STATUS = 4;
+	static final int TCP_FLAGS = 5;
+	static final int PROTOCOL = 6;
+	static final int TOS = 7;
+	static final int SRC_PORT = 8;
+	static final int DST_PORT = 9;
+	static final int SRC_ADDR = 10;
+	static final int DST_ADDR = 11;
+	static final int PACKETS = 12;
+	static final int BYTES = 13;
+	/** Remaining record bytes (extensions) in the records' byte order */
+	static final int EXTRA = 14;
+	static final int COLUMNS = 15;
+	
+	/** Offsets of the single byte fields in common_record_t */
+	static final int RECORD_FWD_STATUS = 20;
+	static final int RECORD_TCP_FLAGS = 21;
+	static final int RECORD_TOS = 23;
+	
+	private ColumnarFile() {
+	}
+	
+	/**
+	 * @param path	File path
+	 * @return	True if the file is a columnar flow file
+	 */
+	public static boolean isColumnar(Path path) {
+		return path.getName().startsWith(PREFIX);
+	}
+	
+	/**
+	 * @param hour		Start of the hour
+	 * @param sources	Number of converted nfcapd files
+	 * @return	File name
+	 */
+	public static String name(Date hour, int sources) {
+		return PREFIX + new SimpleDateFormat("yyyyMMddHH").format(hour) + "." + sources;
+	}
+	
+	/**
+	 * @param name	File name
+	 * @return	Start of the hour
+	 * @throws ParseException
+	 */
+	public static Date getHour(String name) throws ParseException {
+		return new SimpleDateFormat("'" + PREFIX + "'yyyyMMddHH").parse(name);
+	}
+	
+	/**
+	 * @param name	File name
+	 * @return	Number of converted nfcapd files
+	 * @throws ParseException
+	 */
+	public static int getSources(String name) throws ParseException {
+		try {
+			return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+		} catch (NumberFormatException e) {
+			throw new ParseException(name, 0);
+		}
+	}
+}
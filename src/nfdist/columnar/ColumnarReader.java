@@ -0,0 +1,307 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.columnar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nfdist.BloomFilter;
+import nfdist.FileSummary;
+import nfdist.FlowRecord;
+import nfdist.NfdumpFile;
+import nfdist.NfdumpWriter;
+
+/**
+ * Reads columnar flow files row group by row group. The statistics of a
+ * group are read first so it can be skipped, the columns are decoded only
+ * when a field of the column is accessed.
+ */
+public class ColumnarReader implements FlowRecord {
+	private final DataInputStream in;
+	private final ByteOrder order;
+	
+	private int rows = 0;
+	private int row = -1;
+	private FileSummary summary;
+	private BloomFilter bloom;
+	private byte[][] maps;
+	private final int[] lengths = new int[ColumnarFile.COLUMNS];
+	private final byte[][] raw = new byte[ColumnarFile.COLUMNS][];
+	private final long[][] longs = new long[ColumnarFile.COLUMNS][];
+	private final byte[][][] bytes = new byte[ColumnarFile.COLUMNS][][];
+	private byte[] record = new byte[1024];
+	
+	/**
+	 * Constructor. Reads the file header.
+	 * 
+	 * @param stream	Input stream
+	 * @param bufsize	Buffer size
+	 * @throws IOException
+	 */
+	public ColumnarReader(InputStream stream, int bufsize) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(stream, bufsize));
+		if (in.readInt() != ColumnarFile.MAGIC) {
+			throw new IOException("Not a columnar flow file");
+		}
+		final int version = in.readUnsignedByte();
+		if (version != ColumnarFile.VERSION) {
+			throw new IOException("Unsupported columnar file version " + version);
+		}
+		this.order = 0 == in.readUnsignedByte() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+	
+	/**
+	 * Advance to the next row group and read its statistics. The previous
+	 * group must have been read or skipped.
+	 * 
+	 * @return	False if there are no more groups
+	 * @throws IOException
+	 */
+	public boolean nextGroup() throws IOException {
+		rows = in.readInt();
+		row = -1;
+		if (0 == rows) {
+			return false;
+		}
+		final byte[] stats = new byte[in.readInt()];
+		in.readFully(stats);
+		final DataInputStream data = new DataInputStream(new ByteArrayInputStream(stats));
+		summary = FileSummary.read(data);
+		bloom = BloomFilter.read(data);
+		maps = new byte[data.readInt()][];
+		for (int i=0; i<maps.length; i++) {
+			maps[i] = new byte[data.readUnsignedShort()];
+			data.readFully(maps[i]);
+		}
+		for (int c=0; c<ColumnarFile.COLUMNS; c++) {
+			lengths[c] = in.readInt();
+			raw[c] = null;
+			longs[c] = null;
+			bytes[c] = null;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return	Value ranges of the current group
+	 */
+	public FileSummary summary() {
+		return summary;
+	}
+	
+	/**
+	 * @return	Bloom filter of the addresses and ports of the current group
+	 */
+	public BloomFilter bloom() {
+		return bloom;
+	}
+	
+	/**
+	 * @return	Number of rows in the current group
+	 */
+	public int rows() {
+		return rows;
+	}
+	
+	/**
+	 * Skip the columns of the current group.
+	 * 
+	 * @throws IOException
+	 */
+	public void skipGroup() throws IOException {
+		for (int length: lengths) {
+			in.skipBytes(length);
+		}
+		rows = 0;
+	}
+	
+	/**
+	 * Read the columns of the current group, they are decoded on first access.
+	 * 
+	 * @throws IOException
+	 */
+	public void readGroup() throws IOException {
+		for (int c=0; c<ColumnarFile.COLUMNS; c++) {
+			raw[c] = new byte[lengths[c]];
+			in.readFully(raw[c]);
+		}
+	}
+	
+	/**
+	 * Advance to the next row of the current group.
+	 * 
+	 * @return	False if there are no more rows in the group
+	 */
+	public boolean next() {
+		return ++row < rows;
+	}
+	
+	private long[] longs(int column) {
+		if (null == longs[column]) {
+			try {
+				longs[column] = Encoding.readLongs(new DataInputStream(new ByteArrayInputStream(raw[column])), rows);
+			} catch (IOException e) {
+				throw new IllegalStateException("Corrupt column " + column, e);
+			}
+		}
+		return longs[column];
+	}
+	
+	private byte[][] bytes(int column) {
+		if (null == bytes[column]) {
+			try {
+				bytes[column] = Encoding.readBytes(new DataInputStream(new ByteArrayInputStream(raw[column])), rows);
+			} catch (IOException e) {
+				throw new IllegalStateException("Corrupt column " + column, e);
+			}
+		}
+		return bytes[column];
+	}
+	
+	@Override
+	public byte[] srcAddress() {
+		return bytes(ColumnarFile.SRC_ADDR)[row];
+	}
+	
+	@Override
+	public byte[] dstAddress() {
+		return bytes(ColumnarFile.DST_ADDR)[row];
+	}
+	
+	@Override
+	public int srcPort() {
+		return (int) longs(ColumnarFile.SRC_PORT)[row];
+	}
+	
+	@Override
+	public int dstPort() {
+		return (int) longs(ColumnarFile.DST_PORT)[row];
+	}
+	
+	@Override
+	public int protocol() {
+		return (int) longs(ColumnarFile.PROTOCOL)[row];
+	}
+	
+	@Override
+	public long packets() {
+		return longs(ColumnarFile.PACKETS)[row];
+	}
+	
+	@Override
+	public long bytes() {
+		return longs(ColumnarFile.BYTES)[row];
+	}
+	
+	/**
+	 * @return	First seen time of the current row in milliseconds
+	 */
+	public long firstSeen() {
+		return longs(ColumnarFile.FIRST)[row];
+	}
+	
+	/**
+	 * @return	Byte order of the records
+	 */
+	public ByteOrder order() {
+		return order;
+	}
+	
+	/**
+	 * Rebuild the nfdump record of the current row and write it.
+	 * 
+	 * @param writer	Writer using the file's byte order
+	 * @throws IOException
+	 */
+	public void write(NfdumpWriter writer) throws IOException {
+		final int flags = (int) longs(ColumnarFile.FLAGS)[row] >> 8;
+		final byte[] src = srcAddress(), dst = dstAddress(), extra = bytes(ColumnarFile.EXTRA)[row];
+		final boolean pkg64 = (flags & NfdumpFile.FLAG_PKG_64) != 0;
+		final boolean bytes64 = (flags & NfdumpFile.FLAG_BYTES_64) != 0;
+		final int size = NfdumpFile.RECORD_DATA + src.length * 2 + (pkg64 ? 8 : 4) + (bytes64 ? 8 : 4) + extra.length;
+		if (size > record.length) {
+			record = new byte[Math.max(size, record.length * 2)];
+		}
+		
+		final ByteBuffer view = ByteBuffer.wrap(record).order(order);
+		final long first = firstSeen(), last = first + longs(ColumnarFile.DURATION)[row];
+		view.putShort(NfdumpFile.RECORD_TYPE, (short) NfdumpFile.COMMON_RECORD_TYPE);
+		view.putShort(NfdumpFile.RECORD_SIZE, (short) size);
+		record[NfdumpFile.RECORD_FLAGS] = (byte) flags;
+		record[NfdumpFile.RECORD_FLAGS + 1] = (byte) longs(ColumnarFile.FLAGS)[row];
+		view.putShort(NfdumpFile.RECORD_MSEC_FIRST, (short) (first % 1000));
+		view.putShort(NfdumpFile.RECORD_MSEC_LAST, (short) (last % 1000));
+		view.putInt(NfdumpFile.RECORD_FIRST, (int) (first / 1000));
+		view.putInt(NfdumpFile.RECORD_LAST, (int) (last / 1000));
+		record[ColumnarFile.RECORD_FWD_STATUS] = (byte) longs(ColumnarFile.FWD_STATUS)[row];
+		record[ColumnarFile.RECORD_TCP_FLAGS] = (byte) longs(ColumnarFile.TCP_FLAGS)[row];
+		record[NfdumpFile.RECORD_PROTO] = (byte) protocol();
+		record[ColumnarFile.RECORD_TOS] = (byte) longs(ColumnarFile.TOS)[row];
+		view.putShort(NfdumpFile.RECORD_SRCPORT, (short) srcPort());
+		view.putShort(NfdumpFile.RECORD_DSTPORT, (short) dstPort());
+		
+		//Addresses are kept in network order, nfdump uses host order integers
+		view.position(NfdumpFile.RECORD_DATA);
+		final ByteBuffer srcBuffer = ByteBuffer.wrap(src), dstBuffer = ByteBuffer.wrap(dst);
+		if (16 == src.length) {
+			view.putLong(srcBuffer.getLong()).putLong(srcBuffer.getLong());
+			view.putLong(dstBuffer.getLong()).putLong(dstBuffer.getLong());
+		} else {
+			view.putInt(srcBuffer.getInt()).putInt(dstBuffer.getInt());
+		}
+		if (pkg64) {
+			view.putLong(packets());
+		} else {
+			view.putInt((int) packets());
+		}
+		if (bytes64) {
+			view.putLong(bytes());
+		} else {
+			view.putInt((int) bytes());
+		}
+		view.put(extra);
+		
+		final int map = (int) longs(ColumnarFile.MAP)[row];
+		writer.write(record, size, maps[map], this, map);
+	}
+	
+	/**
+	 * Close the underlying stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
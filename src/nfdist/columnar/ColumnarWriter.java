@@ -0,0 +1,219 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.columnar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nfdist.BloomFilter;
+import nfdist.FileSummary;
+import nfdist.Indexer;
+import nfdist.NfdumpFile;
+import nfdist.NfdumpReader;
+
+/**
+ * Writes flows read from nfcapd files into a columnar flow file, see
+ * ColumnarFile for the layout.
+ */
+public class ColumnarWriter {
+	private final DataOutputStream out;
+	private final ByteOrder order;
+	private final int groupSize;
+	private final double fpp;
+	
+	private final long[][] longs = new long[ColumnarFile.COLUMNS][];
+	private final byte[][][] bytes = new byte[ColumnarFile.COLUMNS][][];
+	private final Map<ByteBuffer, Integer> mapIndex = new HashMap<ByteBuffer, Integer>();
+	private final List<byte[]> maps = new ArrayList<byte[]>();
+	private final Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+	private FileSummary summary = new FileSummary();
+	private int rows = 0;
+	private long total = 0;
+	
+	/**
+	 * Constructor. Writes the file header.
+	 * 
+	 * @param out		Output stream
+	 * @param order		Byte order of the records
+	 * @param groupSize	Rows per row group
+	 * @param fpp		False positive probability of the row group bloom filters
+	 * @throws IOException
+	 */
+	public ColumnarWriter(OutputStream out, ByteOrder order, int groupSize, double fpp) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.order = order;
+		this.groupSize = groupSize;
+		this.fpp = fpp;
+		for (int c=0; c<ColumnarFile.COLUMNS; c++) {
+			if (ColumnarFile.SRC_ADDR == c || ColumnarFile.DST_ADDR == c || ColumnarFile.EXTRA == c) {
+				bytes[c] = new byte[groupSize][];
+			} else {
+				longs[c] = new long[groupSize];
+			}
+		}
+		
+		this.out.writeInt(ColumnarFile.MAGIC);
+		this.out.writeByte(ColumnarFile.VERSION);
+		this.out.writeByte(ByteOrder.BIG_ENDIAN == order ? 1 : 0);
+	}
+	
+	/**
+	 * Add the reader's current flow.
+	 * 
+	 * @param reader	Reader positioned at a flow record
+	 * @throws IOException
+	 */
+	public void add(NfdumpReader reader) throws IOException {
+		if (reader.order() != order) {
+			throw new IOException("Byte order of the records does not match");
+		}
+		final byte[] record = reader.record();
+		final int flags = record[NfdumpFile.RECORD_FLAGS];
+		
+		final ByteBuffer map = ByteBuffer.wrap(reader.extensionMap());
+		Integer index = mapIndex.get(map);
+		if (null == index) {
+			index = maps.size();
+			mapIndex.put(map, index);
+			maps.add(map.array());
+		}
+		
+		final long first = reader.firstSeen();
+		longs[ColumnarFile.FIRST][rows] = first;
+		longs[ColumnarFile.DURATION][rows] = reader.lastSeen() - first;
+		longs[ColumnarFile.FLAGS][rows] = (flags & 0xFF) << 8 | (record[NfdumpFile.RECORD_FLAGS + 1] & 0xFF);
+		longs[ColumnarFile.MAP][rows] = index;
+		longs[ColumnarFile.FWD_STATUS][rows] = record[ColumnarFile.RECORD_FWD_STATUS] & 0xFF;
+		longs[ColumnarFile.TCP_FLAGS][rows] = record[ColumnarFile.RECORD_TCP_FLAGS] & 0xFF;
+		longs[ColumnarFile.PROTOCOL][rows] = reader.protocol();
+		longs[ColumnarFile.TOS][rows] = record[ColumnarFile.RECORD_TOS] & 0xFF;
+		longs[ColumnarFile.SRC_PORT][rows] = reader.srcPort();
+		longs[ColumnarFile.DST_PORT][rows] = reader.dstPort();
+		bytes[ColumnarFile.SRC_ADDR][rows] = reader.srcAddress();
+		bytes[ColumnarFile.DST_ADDR][rows] = reader.dstAddress();
+		longs[ColumnarFile.PACKETS][rows] = reader.packets();
+		longs[ColumnarFile.BYTES][rows] = reader.bytes();
+		
+		int extra = NfdumpFile.RECORD_DATA + ((flags & NfdumpFile.FLAG_IPV6_ADDR) != 0 ? 32 : 8);
+		extra += (flags & NfdumpFile.FLAG_PKG_64) != 0 ? 8 : 4;
+		extra += (flags & NfdumpFile.FLAG_BYTES_64) != 0 ? 8 : 4;
+		bytes[ColumnarFile.EXTRA][rows] = Arrays.copyOfRange(record, extra, Math.max(extra, reader.size()));
+		
+		summary.observe(reader);
+		keys.add(ByteBuffer.wrap(Indexer.addressKey(bytes[ColumnarFile.SRC_ADDR][rows])));
+		keys.add(ByteBuffer.wrap(Indexer.addressKey(bytes[ColumnarFile.DST_ADDR][rows])));
+		keys.add(ByteBuffer.wrap(Indexer.portKey(reader.srcPort())));
+		keys.add(ByteBuffer.wrap(Indexer.portKey(reader.dstPort())));
+		
+		if (++rows == groupSize) {
+			flushGroup();
+		}
+	}
+	
+	/**
+	 * Write the current row group.
+	 * 
+	 * @throws IOException
+	 */
+	private void flushGroup() throws IOException {
+		if (0 == rows) {
+			return;
+		}
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final DataOutputStream data = new DataOutputStream(buffer);
+		
+		summary.write(data);
+		final BloomFilter bloom = new BloomFilter(keys.size(), fpp);
+		for (ByteBuffer key: keys) {
+			bloom.put(key.array());
+		}
+		bloom.write(data);
+		data.writeInt(maps.size());
+		for (byte[] map: maps) {
+			data.writeShort(map.length);
+			data.write(map);
+		}
+		data.flush();
+		out.writeInt(rows);
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+		
+		final byte[][] columns = new byte[ColumnarFile.COLUMNS][];
+		for (int c=0; c<ColumnarFile.COLUMNS; c++) {
+			buffer.reset();
+			if (null != longs[c]) {
+				Encoding.writeLongs(data, longs[c], rows, ColumnarFile.FIRST == c);
+			} else {
+				Encoding.writeBytes(data, bytes[c], rows);
+			}
+			data.flush();
+			columns[c] = buffer.toByteArray();
+			out.writeInt(columns[c].length);
+		}
+		for (byte[] column: columns) {
+			out.write(column);
+		}
+		
+		total += rows;
+		rows = 0;
+		summary = new FileSummary();
+		keys.clear();
+		mapIndex.clear();
+		maps.clear();
+	}
+	
+	/**
+	 * @return	Number of rows written
+	 */
+	public long getRows() {
+		return total + rows;
+	}
+	
+	/**
+	 * Write the remaining rows and the end of the file. The stream is not closed.
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		flushGroup();
+		out.writeInt(0);
+		out.flush();
+	}
+}
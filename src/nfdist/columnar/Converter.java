@@ -0,0 +1,276 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.columnar;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nfdist.NfdumpReader;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Converts the nfcapd files of each closed hour into a columnar flow file
+ * stored next to them. The nfcapd files are kept, the Manager uses the
+ * columnar file only while it is up to date with them.
+ * 
+ * An hour is closed when a file of a later hour exists in the directory or
+ * columnar.delay seconds have passed since its end. Hours with compressed
+ * files or files of different byte orders are not converted.
+ */
+public class Converter {
+	private static final Logger log = Logger.getLogger(Converter.class);
+	
+	private final FileSystem fs;
+	private final int ROWGROUP;
+	private final long DELAY;
+	private final double FPP;
+	private final int BUFSIZE;
+	private final SimpleDateFormat fileFormat = new SimpleDateFormat("'nfcapd.'yyyyMMddHHmm");
+	private final SimpleDateFormat hourFormat = new SimpleDateFormat("yyyyMMddHH");
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param fs		HDFS handle
+	 * @param config	Nfdist's configuration
+	 */
+	public Converter(FileSystem fs, Configuration config) {
+		this.fs = fs;
+		this.ROWGROUP = config.getInt("columnar.rowgroup", 65536);
+		this.DELAY = config.getLong("columnar.delay", 600) * 1000;
+		this.FPP = config.getDouble("index.fpp", 0.01);
+		this.BUFSIZE = config.getInt("jobs.filter.bufsize", 0x100000);
+	}
+	
+	/**
+	 * Group a directory's nfcapd files by hour.
+	 * 
+	 * @param stats	Directory listing
+	 * @return	Files of each hour, by hour in the format yyyyMMddHH
+	 */
+	private Map<String, List<FileStatus>> hours(FileStatus[] stats) {
+		final Map<String, List<FileStatus>> hours = new TreeMap<String, List<FileStatus>>();
+		for (FileStatus s: stats) {
+			final Date date;
+			try {
+				date = fileFormat.parse(s.getPath().getName());
+			} catch (ParseException e) {
+				continue;
+			}
+			final String hour = hourFormat.format(date);
+			List<FileStatus> files = hours.get(hour);
+			if (null == files) {
+				files = new ArrayList<FileStatus>();
+				hours.put(hour, files);
+			}
+			files.add(s);
+		}
+		return hours;
+	}
+	
+	/**
+	 * @param hour		Start of the hour
+	 * @param files		Hour's nfcapd files
+	 * @param columnar	Columnar files of the directory
+	 * @return	True if there is a columnar file of all the files, written after them
+	 */
+	private static boolean isConverted(Date hour, List<FileStatus> files, List<FileStatus> columnar) {
+		final String name = ColumnarFile.name(hour, files.size());
+		for (FileStatus c: columnar) {
+			if (!c.getPath().getName().equals(name)) {
+				continue;
+			}
+			for (FileStatus s: files) {
+				if (s.getModificationTime() > c.getModificationTime()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Convert an hour's files, replacing its previous columnar files.
+	 * 
+	 * @param dir		Directory of the files
+	 * @param hour		Start of the hour
+	 * @param files		Hour's nfcapd files
+	 * @param columnar	Columnar files of the directory
+	 * @return	Number of flows converted
+	 * @throws IOException	If a file can not be read or the files can not be combined
+	 */
+	public long convert(Path dir, Date hour, List<FileStatus> files, List<FileStatus> columnar) throws IOException {
+		Collections.sort(files, new Comparator<FileStatus>() {
+			@Override
+			public int compare(FileStatus a, FileStatus b) {
+				return a.getPath().getName().compareTo(b.getPath().getName());
+			}
+		});
+		final String name = ColumnarFile.name(hour, files.size());
+		final Path tmp = new Path(dir, "." + name + ".tmp");
+		final FSDataOutputStream out = fs.create(tmp, true);
+		long rows = 0;
+		try {
+			ColumnarWriter writer = null;
+			ByteOrder order = null;
+			for (FileStatus s: files) {
+				final NfdumpReader reader = new NfdumpReader(fs.open(s.getPath()), BUFSIZE);
+				try {
+					if (null == writer) {
+						order = reader.order();
+						writer = new ColumnarWriter(out, order, ROWGROUP, FPP);
+					} else if (reader.order() != order) {
+						throw new IOException(s.getPath() + " has a different byte order");
+					}
+					while (reader.next()) {
+						writer.add(reader);
+					}
+				} finally {
+					reader.close();
+				}
+			}
+			writer.finish();
+			rows = writer.getRows();
+			out.close();
+			
+			for (FileStatus c: columnar) {
+				if (c.getPath().getName().startsWith(ColumnarFile.PREFIX + hourFormat.format(hour) + ".")) {
+					fs.delete(c.getPath(), false);
+				}
+			}
+			if (!fs.rename(tmp, new Path(dir, name))) {
+				throw new IOException("Can not rename " + tmp + " to " + name);
+			}
+		} catch (IOException e) {
+			out.close();
+			fs.delete(tmp, false);
+			throw e;
+		}
+		return rows;
+	}
+	
+	/**
+	 * Convert the closed hours of the given directories (relative to
+	 * hdfs.path.root) and their subdirectories. Hours with an up to date
+	 * columnar file are skipped unless --force is given.
+	 * 
+	 * Usage: Converter [--force] <dir> [<dir> ...]
+	 * 
+	 * @param args	Command line arguments
+	 * @throws ConfigurationException
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws ConfigurationException, IOException {
+		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
+		hdfsConf.set("fs.defaultFS", "hdfs://" + config.getString("hdfs.namenode"));
+		final FileSystem fs = FileSystem.get(hdfsConf);
+		final Converter converter = new Converter(fs, config);
+		
+		boolean force = false;
+		final List<Path> dirs = new ArrayList<Path>();
+		for (String arg: args) {
+			if (arg.equals("--force")) {
+				force = true;
+			} else if (arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			} else {
+				dirs.add(new Path(config.getString("hdfs.path.root") + "/" + arg));
+			}
+		}
+		if (dirs.isEmpty()) {
+			System.err.println("Usage: Converter [--force] <dir> [<dir> ...]");
+			System.exit(1);
+		}
+		
+		int converted = 0, skipped = 0, failed = 0;
+		final long now = System.currentTimeMillis();
+		while (!dirs.isEmpty()) {
+			final Path dir = dirs.remove(dirs.size() - 1);
+			final FileStatus[] stats = fs.listStatus(dir);
+			final List<FileStatus> columnar = new ArrayList<FileStatus>();
+			for (FileStatus s: stats) {
+				if (s.isDirectory()) {
+					dirs.add(s.getPath());
+				} else if (ColumnarFile.isColumnar(s.getPath())) {
+					columnar.add(s);
+				}
+			}
+			
+			final Map<String, List<FileStatus>> hours = converter.hours(stats);
+			String last = null;
+			for (String hour: hours.keySet()) {
+				last = hour;
+			}
+			for (Map.Entry<String, List<FileStatus>> e: hours.entrySet()) {
+				final Date hour;
+				try {
+					hour = converter.hourFormat.parse(e.getKey());
+				} catch (ParseException ex) {
+					continue;
+				}
+				if (e.getKey().equals(last) && hour.getTime() + 3600000L + converter.DELAY > now) {
+					continue;
+				}
+				if (!force && isConverted(hour, e.getValue(), columnar)) {
+					skipped++;
+					continue;
+				}
+				try {
+					final long rows = converter.convert(dir, hour, e.getValue(), columnar);
+					log.debug(dir + "/" + e.getKey() + ": " + rows + " flows");
+					converted++;
+				} catch (IOException ex) {
+					log.warn("Can not convert " + dir + "/" + e.getKey() + ": " + ex.getMessage());
+					failed++;
+				}
+			}
+		}
+		System.out.println("Converted " + converted + " hour(s), " + skipped + " up to date, " + failed + " failed.");
+		fs.close();
+	}
+}
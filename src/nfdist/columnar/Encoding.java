@@ -0,0 +1,301 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.columnar;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column encodings. Integer columns are stored bit-packed, as bit-packed
+ * deltas or as a dictionary with bit-packed indices, whichever is smaller.
+ * Byte string columns are stored as a dictionary or as plain values.
+ */
+class Encoding {
+	static final int PACKED = 0;
+	static final int DELTA = 1;
+	static final int DICTIONARY = 2;
+	static final int PLAIN = 3;
+	
+	//Larger dictionaries are not considered
+	private static final int MAX_DICTIONARY = 0x10000;
+	
+	private Encoding() {
+	}
+	
+	/**
+	 * @return	Number of bits needed for the unsigned value
+	 */
+	private static int width(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+	
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Write values of the given bit width.
+	 */
+	private static void pack(DataOutput out, long[] values, int offset, int n, int width) throws IOException {
+		out.writeByte(width);
+		if (0 == width) {
+			return;
+		}
+		long word = 0;
+		int used = 0;
+		for (int i=offset; i<offset+n; i++) {
+			final long v = values[i];
+			word |= v << used;
+			used += width;
+			if (used >= 64) {
+				out.writeLong(word);
+				used -= 64;
+				word = used > 0 ? v >>> (width - used) : 0;
+			}
+		}
+		if (used > 0) {
+			out.writeLong(word);
+		}
+	}
+	
+	private static long[] unpack(DataInput in, int n) throws IOException {
+		final int width = in.readUnsignedByte();
+		final long[] values = new long[n];
+		if (0 == width) {
+			return values;
+		}
+		final long mask = 64 == width ? -1L : (1L << width) - 1;
+		long word = 0;
+		int left = 0;
+		for (int i=0; i<n; i++) {
+			if (left >= width) {
+				values[i] = word & mask;
+				word = 64 == width ? 0 : word >>> width;
+				left -= width;
+			} else {
+				//The unused bits of the word are zero
+				final long next = in.readLong();
+				values[i] = (word | next << left) & mask;
+				final int taken = width - left;
+				word = 64 == taken ? 0 : next >>> taken;
+				left = 64 - taken;
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Write an integer column in the smallest encoding.
+	 * 
+	 * @param out		Output
+	 * @param values	Values, treated as unsigned unless delta encoded
+	 * @param n			Number of values
+	 * @param delta		Consider the delta encoding (for sorted-ish values)
+	 * @throws IOException
+	 */
+	static void writeLongs(DataOutput out, long[] values, int n, boolean delta) throws IOException {
+		long or = 0;
+		for (int i=0; i<n; i++) {
+			or |= values[i];
+		}
+		final int packedWidth = width(or);
+		long best = (long) n * packedWidth;
+		int encoding = PACKED;
+		
+		long[] deltas = null;
+		int deltaWidth = 0;
+		if (delta && n > 1) {
+			deltas = new long[n];
+			long dor = 0;
+			for (int i=1; i<n; i++) {
+				deltas[i] = zigzag(values[i] - values[i - 1]);
+				dor |= deltas[i];
+			}
+			deltaWidth = width(dor);
+			if (64 + (long) (n - 1) * deltaWidth < best) {
+				best = 64 + (long) (n - 1) * deltaWidth;
+				encoding = DELTA;
+			}
+		}
+		
+		final Map<Long, Integer> dictionary = new HashMap<Long, Integer>();
+		final List<Long> entries = new ArrayList<Long>();
+		for (int i=0; i<n && entries.size() <= MAX_DICTIONARY; i++) {
+			if (!dictionary.containsKey(values[i])) {
+				dictionary.put(values[i], entries.size());
+				entries.add(values[i]);
+			}
+		}
+		final int indexWidth = width(Math.max(0, entries.size() - 1));
+		if (entries.size() <= MAX_DICTIONARY && (long) entries.size() * packedWidth + (long) n * indexWidth < best) {
+			encoding = DICTIONARY;
+		}
+		
+		out.writeByte(encoding);
+		switch (encoding) {
+			case DELTA:
+				out.writeLong(values[0]);
+				pack(out, deltas, 1, n - 1, deltaWidth);
+				break;
+			case DICTIONARY:
+				final long[] dict = new long[entries.size()];
+				for (int i=0; i<dict.length; i++) {
+					dict[i] = entries.get(i);
+				}
+				out.writeInt(dict.length);
+				pack(out, dict, 0, dict.length, packedWidth);
+				final long[] indices = new long[n];
+				for (int i=0; i<n; i++) {
+					indices[i] = dictionary.get(values[i]);
+				}
+				pack(out, indices, 0, n, indexWidth);
+				break;
+			default:
+				pack(out, values, 0, n, packedWidth);
+		}
+	}
+	
+	/**
+	 * Read an integer column.
+	 * 
+	 * @param in	Input
+	 * @param n		Number of values
+	 * @return	Values
+	 * @throws IOException
+	 */
+	static long[] readLongs(DataInput in, int n) throws IOException {
+		final int encoding = in.readUnsignedByte();
+		switch (encoding) {
+			case PACKED:
+				return unpack(in, n);
+			case DELTA:
+				final long[] values = new long[n];
+				if (n > 0) {
+					values[0] = in.readLong();
+					final long[] deltas = unpack(in, n - 1);
+					for (int i=1; i<n; i++) {
+						values[i] = values[i - 1] + unzigzag(deltas[i - 1]);
+					}
+				}
+				return values;
+			case DICTIONARY:
+				final long[] dict = unpack(in, in.readInt());
+				final long[] indices = unpack(in, n);
+				for (int i=0; i<n; i++) {
+					indices[i] = dict[(int) indices[i]];
+				}
+				return indices;
+			default:
+				throw new IOException("Unknown integer column encoding " + encoding);
+		}
+	}
+	
+	/**
+	 * Write a byte string column as a dictionary if at most half of the
+	 * values are distinct.
+	 * 
+	 * @param out		Output
+	 * @param values	Values
+	 * @param n			Number of values
+	 * @throws IOException
+	 */
+	static void writeBytes(DataOutput out, byte[][] values, int n) throws IOException {
+		final Map<ByteBuffer, Integer> dictionary = new HashMap<ByteBuffer, Integer>();
+		final List<byte[]> entries = new ArrayList<byte[]>();
+		final long[] indices = new long[n];
+		for (int i=0; i<n && entries.size() <= n / 2; i++) {
+			final ByteBuffer key = ByteBuffer.wrap(values[i]);
+			Integer index = dictionary.get(key);
+			if (null == index) {
+				index = entries.size();
+				dictionary.put(key, index);
+				entries.add(values[i]);
+			}
+			indices[i] = index;
+		}
+		
+		if (entries.size() <= n / 2) {
+			out.writeByte(DICTIONARY);
+			out.writeInt(entries.size());
+			for (byte[] e: entries) {
+				out.writeShort(e.length);
+				out.write(e);
+			}
+			pack(out, indices, 0, n, width(Math.max(0, entries.size() - 1)));
+		} else {
+			out.writeByte(PLAIN);
+			for (int i=0; i<n; i++) {
+				out.writeShort(values[i].length);
+				out.write(values[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Read a byte string column.
+	 * 
+	 * @param in	Input
+	 * @param n		Number of values
+	 * @return	Values
+	 * @throws IOException
+	 */
+	static byte[][] readBytes(DataInput in, int n) throws IOException {
+		final int encoding = in.readUnsignedByte();
+		final byte[][] values = new byte[n][];
+		if (DICTIONARY == encoding) {
+			final byte[][] dict = new byte[in.readInt()][];
+			for (int i=0; i<dict.length; i++) {
+				dict[i] = new byte[in.readUnsignedShort()];
+				in.readFully(dict[i]);
+			}
+			final long[] indices = unpack(in, n);
+			for (int i=0; i<n; i++) {
+				values[i] = dict[(int) indices[i]];
+			}
+		} else if (PLAIN == encoding) {
+			for (int i=0; i<n; i++) {
+				values[i] = new byte[in.readUnsignedShort()];
+				in.readFully(values[i]);
+			}
+		} else {
+			throw new IOException("Unknown byte column encoding " + encoding);
+		}
+		return values;
+	}
+}
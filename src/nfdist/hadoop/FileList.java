@@ -34,10 +34,17 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+
+import nfdist.columnar.ColumnarFile;
 
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
@@ -54,11 +61,12 @@ public class FileList {
     private final String root;
     private final String[] idents;
     private final Date start, end;
+    private int cached = 0;
 
 	/**
 	 * Filters netflow files by date
 	 */
-	private class MyPathFilter implements PathFilter {
+	class MyPathFilter implements PathFilter {
 		private final Calendar startFull, startDay, endFull, endDay;
 		
 		/**
@@ -141,22 +149,88 @@ public class FileList {
 	}
 
 	/**
-	 * Get servers names which store the first block.
+	 * Get servers names which store the first block. Servers caching the
+	 * block (see HotCache) are listed first.
 	 * @param status	file's status object
 	 * @return	Server list
 	 * @throws IOException
 	 */
 	public List<String> getServers(FileStatus status) throws IOException {
+		return getServers(status, false);
+	}
+	
+	/**
+	 * Get the servers of a file's job, see getServers(). The file is counted
+	 * by getCachedCount() if its first block is cached, so it should be
+	 * called once per job.
+	 * @param status	file's status object
+	 * @return	Server list
+	 * @throws IOException
+	 */
+	public List<String> getJobServers(FileStatus status) throws IOException {
+		return getServers(status, true);
+	}
+	
+	private List<String> getServers(FileStatus status, boolean count) throws IOException {
 		//Only first block is considered.
 		BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, 0);
 		if (blocks.length > 0) {
-			List<String> hosts = new ArrayList<String>(Arrays.asList(blocks[0].getHosts()));
-			return hosts;
+			if (count && isCached(blocks[0])) {
+				cached++;
+			}
+			return getHosts(blocks[0]);
 		} else {
 			return null;
 		}
 	}
 	
+	/**
+	 * @param block	Block's location
+	 * @return	True if a replica of the block is cached in memory
+	 * @throws IOException
+	 */
+	public static boolean isCached(BlockLocation block) throws IOException {
+		return block.getCachedHosts().length > 0;
+	}
+	
+	/**
+	 * @param block	Block's location
+	 * @return	Servers storing the block, those caching it in memory first
+	 * @throws IOException
+	 */
+	public static List<String> getHosts(BlockLocation block) throws IOException {
+		final List<String> hosts = new ArrayList<String>(Arrays.asList(block.getCachedHosts()));
+		for (String host: block.getHosts()) {
+			if (!hosts.contains(host)) {
+				hosts.add(host);
+			}
+		}
+		return hosts;
+	}
+	
+	/**
+	 * @return	Number of files whose first block was cached in getJobServers()
+	 */
+	public int getCachedCount() {
+		return cached;
+	}
+	
+	/**
+	 * Get file's timestamp from its name.
+	 * @param status	file's status object
+	 * @return	Date or null if the name can not be parsed
+	 */
+	public Date getDate(FileStatus status) {
+		try {
+			if (ColumnarFile.isColumnar(status.getPath())) {
+				return ColumnarFile.getHour(status.getPath().getName());
+			}
+			return fileFormat.parse(status.getPath().getName());
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Get status objects of matching files
 	 * @return
@@ -189,6 +263,96 @@ public class FileList {
 		return list;
 	}
 
+	/**
+	 * Replace the nfcapd files of whole hours by the columnar files converted
+	 * from them. A columnar file is used only if all the files it was
+	 * converted from are listed and none of them changed after the conversion.
+	 * 
+	 * @param stats	Status of the listed files
+	 * @return	Status of the files to process
+	 * @throws IOException
+	 */
+	public List<FileStatus> columnar(List<FileStatus> stats) throws IOException {
+		return columnar(stats, stats, Collections.<FileStatus>emptyList());
+	}
+	
+	/**
+	 * Replace the nfcapd files of whole hours by the columnar files converted
+	 * from them. The hour is checked against the whole listing, so files
+	 * pruned by the filter (their flows do not match it) do not prevent the
+	 * replacement. Hours with a file read by the Manager keep their nfcapd
+	 * files, the columnar file would repeat its flows.
+	 * 
+	 * @param listed	Status of all listed files
+	 * @param stats		Status of the files left to process, a subset of listed
+	 * @param direct	Status of the files read by the Manager
+	 * @return	Status of the files to process
+	 * @throws IOException
+	 */
+	public List<FileStatus> columnar(List<FileStatus> listed, List<FileStatus> stats, List<FileStatus> direct)
+			throws IOException {
+		final SimpleDateFormat hourFormat = new SimpleDateFormat("yyyyMMddHH");
+		final Map<String, List<FileStatus>> hours = new HashMap<String, List<FileStatus>>();
+		final Set<Path> parents = new HashSet<Path>();
+		final Set<FileStatus> processed = new HashSet<FileStatus>(stats);
+		final Set<FileStatus> read = new HashSet<FileStatus>(direct);
+		for (FileStatus s: listed) {
+			final Date date = getDate(s);
+			if (null == date || ColumnarFile.isColumnar(s.getPath())) {
+				continue;
+			}
+			final String key = s.getPath().getParent() + "/" + hourFormat.format(date);
+			List<FileStatus> hour = hours.get(key);
+			if (null == hour) {
+				hour = new ArrayList<FileStatus>();
+				hours.put(key, hour);
+			}
+			hour.add(s);
+			if (processed.contains(s)) {
+				parents.add(s.getPath().getParent());
+			}
+		}
+		
+		final Set<FileStatus> replaced = new HashSet<FileStatus>();
+		final List<FileStatus> list = new ArrayList<FileStatus>();
+		for (Path parent: parents) {
+			final FileStatus[] columnar = fs.listStatus(parent, new PathFilter() {
+				@Override
+				public boolean accept(Path path) {
+					return ColumnarFile.isColumnar(path);
+				}
+			});
+			for (FileStatus c: columnar) {
+				final List<FileStatus> hour;
+				try {
+					final String name = c.getPath().getName();
+					hour = hours.get(parent + "/" + hourFormat.format(ColumnarFile.getHour(name)));
+					if (null == hour || hour.size() != ColumnarFile.getSources(name)) {
+						continue;
+					}
+				} catch (ParseException e) {
+					continue;
+				}
+				boolean current = true, needed = false;
+				for (FileStatus s: hour) {
+					current &= s.getModificationTime() <= c.getModificationTime() && !read.contains(s);
+					needed |= processed.contains(s);
+				}
+				if (current && needed) {
+					replaced.addAll(hour);
+					list.add(c);
+				}
+			}
+		}
+		
+		for (FileStatus s: stats) {
+			if (!replaced.contains(s)) {
+				list.add(s);
+			}
+		}
+		return list;
+	}
+
 	/**
 	 * @return	True if there is only one file to be analyzed
 	 */
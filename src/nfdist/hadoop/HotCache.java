@@ -0,0 +1,221 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package nfdist.hadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveEntry;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveInfo;
+import org.apache.hadoop.hdfs.protocol.CachePoolEntry;
+import org.apache.hadoop.hdfs.protocol.CachePoolInfo;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the files of the recent hours of each source in the datanodes'
+ * memory using HDFS centralized cache directives of the cache.pool pool.
+ * 
+ * Each run pins the files of the source's window (cache.window hours, or
+ * cache.window.<ident>) which are not pinned yet and unpins the files which
+ * left it or were removed. The columnar file is pinned instead of the
+ * nfcapd files of an hour it replaces. Directives expire when their file
+ * leaves the window, so nothing stays pinned if the runs stop.
+ */
+public class HotCache {
+	private static final Logger log = Logger.getLogger(HotCache.class);
+	
+	private final DistributedFileSystem dfs;
+	private final Configuration config;
+	private final String POOL;
+	private final short REPLICATION;
+	private final boolean COLUMNAR;
+	private int pinned = 0, unpinned = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param dfs		HDFS handle
+	 * @param config	Nfdist's configuration
+	 */
+	public HotCache(DistributedFileSystem dfs, Configuration config) {
+		this.dfs = dfs;
+		this.config = config;
+		this.POOL = config.getString("cache.pool", "nfdist");
+		this.REPLICATION = config.getShort("cache.replication", (short) 1);
+		this.COLUMNAR = config.getBoolean("columnar.enabled", true);
+	}
+	
+	/**
+	 * Create the cache pool unless it exists.
+	 * 
+	 * @throws IOException
+	 */
+	public void createPool() throws IOException {
+		final RemoteIterator<CachePoolEntry> pools = dfs.listCachePools();
+		while (pools.hasNext()) {
+			if (pools.next().getInfo().getPoolName().equals(POOL)) {
+				return;
+			}
+		}
+		dfs.addCachePool(new CachePoolInfo(POOL));
+		log.info("Created cache pool " + POOL);
+	}
+	
+	/**
+	 * @return	Directive ids of the pool by path
+	 * @throws IOException
+	 */
+	private Map<String, Long> directives() throws IOException {
+		final Map<String, Long> ids = new HashMap<String, Long>();
+		final RemoteIterator<CacheDirectiveEntry> entries = dfs.listCacheDirectives(
+				new CacheDirectiveInfo.Builder().setPool(POOL).build());
+		while (entries.hasNext()) {
+			final CacheDirectiveInfo info = entries.next().getInfo();
+			ids.put(info.getPath().toUri().getPath(), info.getId());
+		}
+		return ids;
+	}
+	
+	/**
+	 * @param ident	Source name
+	 * @return	Window of the source in hours, 0 if nothing is cached
+	 */
+	private int window(String ident) {
+		return config.getInt("cache.window." + ident, config.getInt("cache.window", 24));
+	}
+	
+	/**
+	 * Pin the files of a source's window and unpin the others.
+	 * 
+	 * @param root	Profile directory
+	 * @param ident	Source name
+	 * @param now	Current time in ms since epoch
+	 * @throws IOException
+	 */
+	public void update(String root, String ident, long now) throws IOException {
+		final long window = window(ident) * 3600000L;
+		final FileList files = new FileList(dfs, root, new String[] {ident}, new Date(now - window), new Date(now));
+		List<FileStatus> hot = new ArrayList<FileStatus>();
+		if (window > 0) {
+			hot = files.getStats();
+			if (COLUMNAR) {
+				hot = files.columnar(hot);
+			}
+		}
+		
+		final Map<String, Long> ids = directives();
+		final Set<String> wanted = new HashSet<String>();
+		for (FileStatus s: hot) {
+			final String path = s.getPath().toUri().getPath();
+			final Date date = files.getDate(s);
+			wanted.add(path);
+			if (ids.containsKey(path) || null == date) {
+				continue;
+			}
+			final long ttl = date.getTime() + window - now;
+			if (ttl <= 0) {
+				continue;
+			}
+			dfs.addCacheDirective(new CacheDirectiveInfo.Builder()
+					.setPath(new Path(path))
+					.setPool(POOL)
+					.setReplication(REPLICATION)
+					.setExpiration(CacheDirectiveInfo.Expiration.newRelative(ttl))
+					.build());
+			log.debug("Pinned " + path);
+			pinned++;
+		}
+		
+		final String prefix = new Path(root + "/" + ident).toUri().getPath() + "/";
+		for (Map.Entry<String, Long> e: ids.entrySet()) {
+			if (e.getKey().startsWith(prefix) && !wanted.contains(e.getKey())) {
+				dfs.removeCacheDirective(e.getValue());
+				log.debug("Unpinned " + e.getKey());
+				unpinned++;
+			}
+		}
+	}
+	
+	/**
+	 * Update the cache directives of the given sources (<profile>/<ident>
+	 * relative to hdfs.path.root). Run it after new files are stored, e.g.
+	 * from cron.
+	 * 
+	 * Usage: HotCache <profile>/<ident> [...]
+	 * 
+	 * @param args	Command line arguments
+	 * @throws ConfigurationException
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws ConfigurationException, IOException {
+		final Configuration config = new PropertiesConfiguration("nfdist.properties");
+		final org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
+		hdfsConf.set("fs.defaultFS", "hdfs://" + config.getString("hdfs.namenode"));
+		final FileSystem fs = FileSystem.get(hdfsConf);
+		if (!(fs instanceof DistributedFileSystem)) {
+			throw new IOException("Cache directives need HDFS, not " + fs.getUri());
+		}
+		if (0 == args.length) {
+			System.err.println("Usage: HotCache <profile>/<ident> [<profile>/<ident> ...]");
+			System.exit(1);
+		}
+		
+		final HotCache cache = new HotCache((DistributedFileSystem) fs, config);
+		cache.createPool();
+		final long now = System.currentTimeMillis();
+		int failed = 0;
+		for (String arg: args) {
+			final int idx = arg.lastIndexOf("/");
+			if (idx <= 0) {
+				throw new IllegalArgumentException("Invalid source " + arg + ", expected <profile>/<ident>");
+			}
+			try {
+				cache.update(config.getString("hdfs.path.root") + "/" + arg.substring(0, idx), arg.substring(idx + 1), now);
+			} catch (IOException e) {
+				log.warn("Can not update the cache of " + arg + ": " + e.getMessage());
+				failed++;
+			}
+		}
+		System.out.println("Pinned " + cache.pinned + " file(s), unpinned " + cache.unpinned + ", " + failed + " source(s) failed.");
+		fs.close();
+	}
+}
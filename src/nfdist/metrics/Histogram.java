@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram with power of two buckets. Bucket i counts the values
+ * in (2^(i-1), 2^i], so recording a value costs a few atomic increments.
+ */
+public class Histogram {
+	private static final int BUCKETS = 64;
+	
+	/** Values in microseconds, exported in seconds */
+	public static final double MICROS = 1e-6;
+	/** Values exported as they are */
+	public static final double UNITS = 1;
+	
+	private final String name;
+	private final String help;
+	private final double scale;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param name	Metric name
+	 * @param help	Description
+	 * @param scale	Multiplier converting the recorded values to the exported unit
+	 */
+	Histogram(String name, String help, double scale) {
+		this.name = name;
+		this.help = help;
+		this.scale = scale;
+	}
+	
+	/**
+	 * @param value	Value to add, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		final int bucket = (value <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+	}
+	
+	/**
+	 * Record the time passed since the given start.
+	 * 
+	 * @param start	Start in nanoseconds (System.nanoTime())
+	 */
+	public void recordSince(long start) {
+		record((System.nanoTime() - start) / 1000);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getHelp() {
+		return help;
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * @return	Sum of the values in the exported unit
+	 */
+	public double getSum() {
+		return sum.get() * scale;
+	}
+	
+	/**
+	 * Approximate quantile, the upper bound of the bucket containing it.
+	 * 
+	 * @param q	Quantile (0..1)
+	 * @return	Value in the exported unit
+	 */
+	public double quantile(double q) {
+		final long total = count.get();
+		if (0 == total) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return bound(i);
+			}
+		}
+		return bound(BUCKETS - 1);
+	}
+	
+	/**
+	 * @param bucket	Bucket number
+	 * @return	Upper bound of the bucket in the exported unit
+	 */
+	private double bound(int bucket) {
+		return Math.pow(2, bucket) * scale;
+	}
+	
+	/**
+	 * Append the histogram in Prometheus text format. Empty buckets above
+	 * the highest used one are skipped.
+	 * 
+	 * @param out	Output buffer
+	 */
+	void export(StringBuilder out) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" histogram\n");
+		
+		int last = -1;
+		final long[] counts = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			if (counts[i] > 0) {
+				last = i;
+			}
+		}
+		long cumulative = 0;
+		for (int i=0; i<=last; i++) {
+			cumulative += counts[i];
+			out.append(name).append("_bucket{le=\"").append(bound(i)).append("\"} ").append(cumulative).append('\n');
+		}
+		out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+		out.append(name).append("_sum ").append(getSum()).append('\n');
+		out.append(name).append("_count ").append(cumulative).append('\n');
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the JVM's metrics. Metrics are exposed over JMX
+ * (nfdist:type=Metrics) and as Prometheus text on http://host:port/metrics.
+ */
+public class Metrics {
+	private static final Logger log = Logger.getLogger(Metrics.class);
+	private static final Map<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+	private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+	private static HttpServer server = null;
+	
+	/**
+	 * Serves the Prometheus text format.
+	 */
+	private static class PrometheusHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			final byte[] body = export().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get or create a counter.
+	 * 
+	 * @param name	Metric name
+	 * @param help	Description
+	 * @return	Counter
+	 */
+	public static synchronized Counter counter(String name, String help) {
+		Counter counter = counters.get(name);
+		if (null == counter) {
+			counter = new Counter(name, help);
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+	
+	/**
+	 * Get or create a histogram.
+	 * 
+	 * @param name	Metric name
+	 * @param help	Description
+	 * @param scale	Multiplier converting the recorded values to the exported unit
+	 * @return	Histogram
+	 */
+	public static synchronized Histogram histogram(String name, String help, double scale) {
+		Histogram histogram = histograms.get(name);
+		if (null == histogram) {
+			histogram = new Histogram(name, help, scale);
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+	
+	static Map<String, Counter> getCounters() {
+		return counters;
+	}
+	
+	static Map<String, Histogram> getHistograms() {
+		return histograms;
+	}
+	
+	/**
+	 * @return	All metrics in Prometheus text format
+	 */
+	public static String export() {
+		final StringBuilder out = new StringBuilder();
+		for (Counter counter: counters.values()) {
+			counter.export(out);
+		}
+		for (Histogram histogram: histograms.values()) {
+			histogram.export(out);
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Register the JMX bean and start the HTTP endpoint.
+	 * 
+	 * @param address	Address the HTTP endpoint is bound to
+	 * @param port	HTTP port, 0 disables the endpoint
+	 * @throws IOException
+	 */
+	public static synchronized void expose(String address, int port) throws IOException {
+		try {
+			final ObjectName name = new ObjectName("nfdist:type=Metrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), name);
+			}
+		} catch (JMException e) {
+			log.warn("Can not register metrics in JMX: " + e.getMessage());
+		}
+		
+		if (port > 0 && null == server) {
+			server = HttpServer.create(new InetSocketAddress(address, port), 0);
+			server.createContext("/metrics", new PrometheusHandler());
+			server.start();
+			log.info("Metrics available on port " + port);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read only JMX view of the metrics. Counters are exposed as they are,
+ * histograms as their count, sum and approximate median and 99th percentile.
+ */
+public class MetricsBean implements DynamicMBean {
+	private static final String[] SUFFIXES = {"_count", "_sum", "_p50", "_p99"};
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		final Counter counter = Metrics.getCounters().get(attribute);
+		if (null != counter) {
+			return counter.get();
+		}
+		for (Map.Entry<String, Histogram> e: Metrics.getHistograms().entrySet()) {
+			final Histogram h = e.getValue();
+			if (attribute.equals(e.getKey() + "_count")) {
+				return (double) h.getCount();
+			} else if (attribute.equals(e.getKey() + "_sum")) {
+				return h.getSum();
+			} else if (attribute.equals(e.getKey() + "_p50")) {
+				return h.quantile(0.5);
+			} else if (attribute.equals(e.getKey() + "_p99")) {
+				return h.quantile(0.99);
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		final AttributeList list = new AttributeList();
+		for (String name: attributes) {
+			try {
+				list.add(new Attribute(name, getAttribute(name)));
+			} catch (AttributeNotFoundException e) {
+				//skip
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		//No operations are exposed
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Counter c: Metrics.getCounters().values()) {
+			attributes.add(new MBeanAttributeInfo(c.getName(), "java.lang.Long", c.getName(), true, false, false));
+		}
+		for (Histogram h: Metrics.getHistograms().values()) {
+			for (String suffix: SUFFIXES) {
+				attributes.add(new MBeanAttributeInfo(h.getName() + suffix, "java.lang.Double", h.getHelp(), true, false, false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "nfdist metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright (c) 2013, Vytautas Krakauskas
+ *  Copyright (c) 2013, Kaunas university of technology
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package nfdist.metrics;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU time and peak resident memory of a running child process, sampled
+ * from Linux /proc. Samples are taken while the process runs, the values
+ * are lost once it exits. A thread shared by the JVM samples the started
+ * processes periodically.
+ * 
+ * The peak is the kernel's high water mark (VmHWM), so it does not depend
+ * on the page size and includes the peaks between the samples.
+ */
+public class ProcessStats {
+	//Clock ticks per second of the CPU times (USER_HZ)
+	private static final long TICKS = clockTicks();
+	//Sampling period (ms)
+	private static final long INTERVAL = 100;
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "ProcessStats");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private final long pid;
+	private long cpu = 0;
+	private long rss = 0;
+	private ScheduledFuture<?> task = null;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param proc	Child process
+	 */
+	public ProcessStats(Process proc) {
+		this.pid = pid(proc);
+	}
+	
+	/**
+	 * Ask getconf for USER_HZ, it is 100 on the common Linux builds.
+	 * 
+	 * @return	Clock ticks per second
+	 */
+	private static long clockTicks() {
+		try {
+			final Process proc = new ProcessBuilder("getconf", "CLK_TCK").start();
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			try {
+				final long ticks = Long.parseLong(reader.readLine().trim());
+				if (ticks > 0) {
+					return ticks;
+				}
+			} finally {
+				reader.close();
+				proc.waitFor();
+			}
+		} catch (Exception e) {
+			//no getconf, use the default
+		}
+		return 100;
+	}
+	
+	/**
+	 * Read a line of a file.
+	 * 
+	 * @param path	File path
+	 * @param prefix	Prefix of the line, null for the first line
+	 * @return	Line or null if there is no such line
+	 * @throws IOException	If the file can not be read
+	 */
+	private static String readLine(String path, String prefix) throws IOException {
+		final BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while (null != (line = reader.readLine())) {
+				if (null == prefix || line.startsWith(prefix)) {
+					return line;
+				}
+			}
+			return null;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Process id, Process.pid() is used if available (Java 9+),
+	 * the private pid field otherwise.
+	 * 
+	 * @param proc	Child process
+	 * @return	Process id or -1 if unknown
+	 */
+	private static long pid(Process proc) {
+		try {
+			return ((Number) Process.class.getMethod("pid").invoke(proc)).longValue();
+		} catch (Exception e) {
+			//older JVM
+		}
+		try {
+			final Field field = proc.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return field.getLong(proc);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Sample the process every INTERVAL ms until it exits or stop() is called.
+	 */
+	public synchronized void start() {
+		if (pid <= 0 || null != task) {
+			return;
+		}
+		task = timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				if (!sample()) {
+					stop();
+				}
+			}
+		}, 0, INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stop the periodic sampling.
+	 */
+	public synchronized void stop() {
+		if (null != task) {
+			task.cancel(false);
+		}
+	}
+	
+	/**
+	 * Read the current CPU time and memory usage.
+	 * 
+	 * @return	False if the process has exited or is unknown
+	 */
+	public synchronized boolean sample() {
+		if (pid <= 0) {
+			return false;
+		}
+		final String stat, hwm;
+		try {
+			stat = readLine("/proc/" + pid + "/stat", null);
+			hwm = readLine("/proc/" + pid + "/status", "VmHWM:");
+		} catch (IOException e) {
+			//exited
+			return false;
+		}
+		if (null == stat) {
+			return false;
+		}
+		
+		//Fields after the command name: state(0) ... utime(11) stime(12)
+		final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+		if (fields.length < 13) {
+			return false;
+		}
+		cpu = Math.max(cpu, (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 1000 / TICKS);
+		if (null != hwm) {
+			//VmHWM:	  1234 kB
+			rss = Math.max(rss, Long.parseLong(hwm.substring(6).trim().split("\\s+")[0]) * 1024);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return	CPU time (user+system) in milliseconds at the last sample
+	 */
+	public synchronized long getCpuMillis() {
+		return cpu;
+	}
+	
+	/**
+	 * @return	Peak resident memory in bytes at the last sample
+	 */
+	public synchronized long getPeakRss() {
+		return rss;
+	}
+}
@@ -40,8 +40,12 @@ import org.apache.zookeeper.ZooKeeper;
  */
 public class JobCommon {
 	protected static final Logger log = Logger.getLogger(JobCommon.class);
+	//Finished state of a job node, optionally followed by trace spans
+	protected static final String DONE = "done";
+	//Finished state of a job without a result
+	protected static final String FAILED = "failed";
 	protected final int MAXJOBS;
-	protected final String rootPath, newPath, activePath;
+	protected final String rootPath, newPath, activePath, workersPath, queriesPath;
 	protected final ZooKeeper zk;
 	
 	/**
@@ -66,6 +70,14 @@ public class JobCommon {
 		if (null == zk.exists(activePath, false)) {
 			zk.create(activePath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
 		}
+		workersPath = rootPath + "/" + "workers";
+		if (null == zk.exists(workersPath, false)) {
+			zk.create(workersPath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		}
+		queriesPath = rootPath + "/" + "queries";
+		if (null == zk.exists(queriesPath, false)) {
+			zk.create(queriesPath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		}
 	}
 
 }
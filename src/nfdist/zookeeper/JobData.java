@@ -30,6 +30,8 @@ package nfdist.zookeeper;
 
 import java.util.List;
 
+import nfdist.CodecPolicy;
+import nfdist.RecordOrder;
 import nfdist.JobProto.JobInfo;
 
 /**
@@ -38,6 +40,8 @@ import nfdist.JobProto.JobInfo;
 public class JobData {
 	private String path;
 	private JobInfo jobInfo;
+	private long created;
+	private long claimStart, claimEnd;
 	
 	/**
 	 * Constructor.
@@ -46,8 +50,60 @@ public class JobData {
 	 * @param jobInfo	Information provided by the manager
 	 */
 	public JobData(String path, JobInfo jobInfo) {
+		this(path, jobInfo, 0);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param path	Jobs node on ZooKeeper
+	 * @param jobInfo	Information provided by the manager
+	 * @param created	Creation time of the job request (ms since epoch)
+	 */
+	public JobData(String path, JobInfo jobInfo, long created) {
 		this.path = path;
 		this.jobInfo = jobInfo;
+		this.created = created;
+	}
+	
+	/**
+	 * Set the time it took to claim the job.
+	 * 
+	 * @param start	Start (ms since epoch)
+	 * @param end	End (ms since epoch)
+	 */
+	void claimed(long start, long end) {
+		this.claimStart = start;
+		this.claimEnd = end;
+	}
+	
+	public long getClaimStart() {
+		return claimStart;
+	}
+	
+	public long getClaimEnd() {
+		return claimEnd;
+	}
+	
+	/**
+	 * @return	Trace id or null if the query is not traced
+	 */
+	public String getTrace() {
+		return jobInfo.hasTrace() ? jobInfo.getTrace() : null;
+	}
+	
+	/**
+	 * @return	Query node name or null if the Manager does not create one
+	 */
+	public String getQuery() {
+		return jobInfo.hasQuery() ? jobInfo.getQuery() : null;
+	}
+	
+	/**
+	 * @return	Creation time of the job request (ms since epoch), 0 if unknown
+	 */
+	public long getCreated() {
+		return created;
 	}
 	
 	/**
@@ -77,4 +133,74 @@ public class JobData {
 	public List<String> getArgs() {
 		return jobInfo.getArgsList();
 	}
+	
+	/**
+	 * @return	True if a distinct count was requested
+	 */
+	public boolean isDistinct() {
+		return jobInfo.hasDistinct();
+	}
+	
+	/**
+	 * @return	Comma separated distinct count key tags
+	 */
+	public String getDistinct() {
+		return jobInfo.getDistinct();
+	}
+	
+	/**
+	 * @return	HyperLogLog precision of the distinct count, 0 if not set
+	 */
+	public int getPrecision() {
+		return jobInfo.getPrecision();
+	}
+	
+	/**
+	 * @return	Distinct count time bucket (ms since epoch)
+	 */
+	public long getBucket() {
+		return jobInfo.getBucket();
+	}
+	
+	/**
+	 * @return	Compression of the results
+	 */
+	public String getCodec() {
+		return jobInfo.hasCodec() ? jobInfo.getCodec() : CodecPolicy.LZO;
+	}
+	
+	/**
+	 * @return	Order the result should be sorted in or null
+	 */
+	public RecordOrder getOrder() {
+		return jobInfo.hasOrder() ? RecordOrder.parse(jobInfo.getOrder()) : null;
+	}
+	
+	/**
+	 * @return	Number of records kept of the sorted result, 0 for all
+	 */
+	public long getLimit() {
+		return jobInfo.getLimit();
+	}
+	
+	/**
+	 * @return	True if only a range of the file's data blocks should be processed
+	 */
+	public boolean isSplit() {
+		return jobInfo.hasLength();
+	}
+	
+	/**
+	 * @return	Offset of the split's first data block
+	 */
+	public long getOffset() {
+		return jobInfo.getOffset();
+	}
+	
+	/**
+	 * @return	Length of the split in bytes
+	 */
+	public long getLength() {
+		return jobInfo.getLength();
+	}
 }
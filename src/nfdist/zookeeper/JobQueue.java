@@ -32,6 +32,8 @@ import java.io.IOException;
 import java.util.List;
 
 import nfdist.JobProto.JobInfo;
+import nfdist.metrics.Histogram;
+import nfdist.metrics.Metrics;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.zookeeper.CreateMode;
@@ -40,6 +42,7 @@ import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
 
 /**
  * Worker's job queue
@@ -50,6 +53,8 @@ public class JobQueue extends JobCommon {
 	private final String myName;
 	
 	private static final int TIMEOUT = 10000;
+	private static final Histogram CLAIM = Metrics.histogram("nfdist_worker_claim_seconds",
+			"Time to lock the queue, find and activate a job", Histogram.MICROS);
 	
 	/**
 	 * Notifies when new jobs become available
@@ -94,10 +99,13 @@ public class JobQueue extends JobCommon {
 	public JobData take() throws InterruptedException, KeeperException, IOException {
 		Lock l = new Lock(zk, rootPath);
 		JobData jobData;
+		long start, startMs;
 		
 		synchronized (mutex) {
 			while (true) {
 				log.debug("Searching for a job...");
+				start = System.nanoTime();
+				startMs = System.currentTimeMillis();
 				l.lock();
 				
 				jobData = get();
@@ -105,6 +113,8 @@ public class JobQueue extends JobCommon {
 					activate(jobData.getId());
 					log.debug("Unlocking and finishing take()");
 					l.unlock();
+					CLAIM.recordSince(start);
+					jobData.claimed(startMs, System.currentTimeMillis());
 					return jobData;
 				} else {
 					log.debug("Unlocking and waiting...");
@@ -116,7 +126,8 @@ public class JobQueue extends JobCommon {
 	}
 
 	/**
-	 * Try to get job information.
+	 * Try to get job information. Jobs listing this Worker first (e.g. it
+	 * caches the data in memory) are preferred to those it only stores.
 	 * 
 	 * @return	JobData if job is available or null.
 	 * @throws IOException
@@ -128,14 +139,16 @@ public class JobQueue extends JobCommon {
 		String jobPath;
 		JobInfo jobInfo;
 		List<String> servers;
+		final Stat stat = new Stat();
 
 		final List<String> list = zk.getChildren(newPath, watcher);
+		JobData other = null;
 
 		for (String job: list) {
 			jobPath = newPath+"/"+job;
 			
 			try {
-				data = zk.getData(jobPath, false, null);
+				data = zk.getData(jobPath, false, stat);
 			} catch (KeeperException.NoNodeException e) {
 				//Job got canceled?
 				return null;
@@ -144,16 +157,20 @@ public class JobQueue extends JobCommon {
 			if (null != data) {
 				jobInfo = JobInfo.parseFrom(data);
 				servers = jobInfo.getServerList();
-				for (String s: servers) {
-					if (myName.equals(s)) {
-						log.debug("Found a job: "+job);
-						return new JobData(jobPath, jobInfo);
-					} else {
-						log.debug("No local data, skipping job: "+job);
-					}
+				if (!servers.isEmpty() && myName.equals(servers.get(0))) {
+					log.debug("Found a job: "+job);
+					return new JobData(jobPath, jobInfo, stat.getCtime());
+				} else if (!servers.contains(myName)) {
+					log.debug("No local data, skipping job: "+job);
+				} else if (null == other) {
+					other = new JobData(jobPath, jobInfo, stat.getCtime());
 				}
 			}
 		}
+		if (null != other) {
+			log.debug("Found a job: "+other.getId());
+			return other;
+		}
 		log.debug("No jobs available at the moment.");
 		return null;
 	}
@@ -179,6 +196,48 @@ public class JobQueue extends JobCommon {
 		zk.create(activePath+"/"+id, null, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
 	}
 
+	/**
+	 * Watch the active job node, it is removed if the Manager cancels the job.
+	 * 
+	 * @param id		Job id
+	 * @param watcher	Watcher to notify
+	 * @return	False if the job is already canceled
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public boolean watch(String id, Watcher watcher) throws KeeperException, InterruptedException {
+		return (null != zk.exists(activePath+"/"+id, watcher));
+	}
+	
+	/**
+	 * Watch the query node of a job. It is removed when the Manager finishes
+	 * or aborts the query, or by ZooKeeper when the Manager's session ends.
+	 * 
+	 * @param query		Query node name, null if the job has none
+	 * @param watcher	Watcher to notify
+	 * @return	False if the query is already gone
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public boolean watchQuery(String query, Watcher watcher) throws KeeperException, InterruptedException {
+		return (null == query || null != zk.exists(queriesPath+"/"+query, watcher));
+	}
+	
+	/**
+	 * Remove the active node of a canceled job.
+	 * 
+	 * @param id	Job id
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void remove(String id) throws KeeperException, InterruptedException {
+		try {
+			zk.delete(activePath+"/"+id, -1);
+		} catch (KeeperException.NoNodeException e) {
+			//Removed by the Manager
+		}
+	}
+	
 	/**
 	 * Mark job as finished.
 	 * 
@@ -187,7 +246,20 @@ public class JobQueue extends JobCommon {
 	 * @throws InterruptedException
 	 */
 	public void finish(String id) throws KeeperException, InterruptedException {
-		zk.setData(activePath+"/"+id, "done".getBytes(), 0);
+		finish(id, null);
+	}
+	
+	/**
+	 * Mark job as finished and return its trace spans to the Manager.
+	 * 
+	 * @param id	Job id
+	 * @param spans	Encoded spans or null
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void finish(String id, String spans) throws KeeperException, InterruptedException {
+		final String data = (null == spans) ? DONE : DONE + "\n" + spans;
+		zk.setData(activePath+"/"+id, data.getBytes(), 0);
 	}
 
 	/**
@@ -198,7 +270,24 @@ public class JobQueue extends JobCommon {
 	 * @throws InterruptedException
 	 */
 	public void failed(String id) throws KeeperException, InterruptedException {
-		zk.setData(activePath+"/"+id, "failed".getBytes(), 0);
+		zk.setData(activePath+"/"+id, FAILED.getBytes(), 0);
+	}
+	
+	/**
+	 * Publish Worker's status (e.g. its concurrency limit) for operators.
+	 * The node is removed when the Worker disconnects.
+	 * 
+	 * @param status	Status line
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public void publish(String status) throws KeeperException, InterruptedException {
+		final String path = workersPath+"/"+myName;
+		try {
+			zk.setData(path, status.getBytes(), -1);
+		} catch (KeeperException.NoNodeException e) {
+			zk.create(path, status.getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		}
 	}
 	
 }
@@ -29,9 +29,18 @@
 package nfdist.zookeeper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nfdist.AdaptiveLimit;
+import nfdist.Trace;
+import nfdist.metrics.Counter;
+import nfdist.metrics.Histogram;
+import nfdist.metrics.Metrics;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.zookeeper.CreateMode;
@@ -41,27 +50,131 @@ import org.apache.zookeeper.ZooDefs.Ids;
 
 /**
  * Managers job queue
+ * 
+ * The number of active+waiting jobs is limited by a window which is
+ * adjusted like a TCP congestion window. Each round (a window worth of
+ * completed jobs) the average completion latency is compared to the lowest
+ * one seen: the window doubles (slow start) or grows by one while the
+ * latency stays flat and shrinks once jobs start to queue up at Workers.
+ * A permit is returned once the Combiner takes the job's result, so a slow
+ * Combiner also throttles the job creation.
+ * 
+ * Jobs may be created with a lower bound of their records' sort keys, in
+ * ascending order of the bounds. The lowest bound of the jobs not taken by
+ * the Combiner yet is the watermark below which merged records can be
+ * written before all jobs are finished.
+ * 
+ * ZooKeeper events are only queued by the event thread, they are handled
+ * by the dispatcher thread of the JobRequest. A path is queued at most once
+ * and only registered jobs are queued, so the queue is bounded by the window.
  */
 public class JobRequest extends JobCommon {
+	//Latency ratios to the base latency
+	private static final double FLAT = 1.25;
+	private static final double QUEUEING = 2.0;
+	private static final double DECREASE = 0.75;
+	private static final Histogram LATENCY = Metrics.histogram("nfdist_manager_job_latency_seconds",
+			"Time from the job creation until a Worker finished it", Histogram.MICROS);
+	private static final Histogram COMBINE_WAIT = Metrics.histogram("nfdist_manager_combine_wait_seconds",
+			"Time a finished job waited for the Combiner", Histogram.MICROS);
+	//Host name of the Manager's spans
+	public static final String MANAGER = "manager";
+	private static final Counter CREATED = Metrics.counter("nfdist_manager_jobs_total",
+			"Jobs created");
 	
-	private final HashMap<String, Integer> active = new HashMap<String, Integer>();
+	//Job id -> creation time (ms)
+	private final HashMap<String, Long> active = new HashMap<String, Long>();
+	//Lower bounds of the sort keys of the jobs not taken by the Combiner
+	private final HashMap<String, Long> bounds = new HashMap<String, Long>();
+	private long createdBound = Long.MIN_VALUE;
 	private final ArrayBlockingQueue<String> completed;
-	private boolean canceled=false;
-	private Integer activeCount=0;
-	private int completedCount=0;
+	//Job id -> completion time (ns)
+	private final ConcurrentHashMap<String, Long> finished = new ConcurrentHashMap<String, Long>();
+	private final AdaptiveLimit window;
+	private final ArrayBlockingQueue<String> events;
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Thread dispatcher;
+	private final String queryPath;
+	private Trace trace = null;
+	private volatile boolean canceled=false;
+	private int activeCount=0;
+	private volatile int completedCount=0;
+	private volatile int failedCount=0;
+	
+	//Congestion control state
+	private boolean slowStart = true;
+	private long baseLatency = Long.MAX_VALUE;
+	private long roundLatency = 0;
+	private int roundCount = 0;
+	
+	/**
+	 * Handles the queued ZooKeeper events.
+	 */
+	private class Dispatcher implements Runnable {
+		@Override
+		public void run() {
+			String path;
+			while (true) {
+				try {
+					path = events.take();
+					//Events arriving from now on are queued again
+					pending.remove(path);
+					completeIfFinished(path);
+				} catch (InterruptedException e) {
+					return;
+				} catch (KeeperException e) {
+					log.error("Unhandled exception: "+e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+	}
 	
 	/**
 	 * Reduce number of active jobs
+	 * 
+	 * @param release	True if the job's window permit should be returned
 	 */
-	private synchronized void countDown() {
+	private synchronized void countDown(boolean release) {
 		activeCount--;
-		synchronized (activeCount) {
-			activeCount.notify();
+		if (release) {
+			window.release();
 		}
 		
 		//check if all jobs completed
 		if (0 == activeCount) {
-			this.notify();
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Adjust the window once a round of jobs is completed.
+	 * 
+	 * @param latency	Time from the job's creation to its completion (ms)
+	 */
+	private synchronized void sample(long latency) {
+		roundLatency += latency;
+		roundCount++;
+		if (roundCount < window.getLimit()) {
+			return;
+		}
+		
+		final long avg = roundLatency / roundCount;
+		roundLatency = 0;
+		roundCount = 0;
+		if (avg < baseLatency) {
+			baseLatency = avg;
+		}
+		
+		final int old = window.getLimit();
+		if (avg > baseLatency * QUEUEING) {
+			slowStart = false;
+			window.decrease(DECREASE);
+		} else if (avg <= baseLatency * FLAT) {
+			window.setLimit(slowStart ? old * 2 : old + 1);
+		}
+		if (old != window.getLimit()) {
+			log.debug("Job window " + old + " -> " + window.getLimit() + " (latency " + avg + "ms, base " + baseLatency + "ms)");
 		}
 	}
 	
@@ -75,58 +188,76 @@ public class JobRequest extends JobCommon {
 	/**
 	 * Registers a job 
 	 * @param name	ZooKeeper node name
+	 * @param bound	Lower bound of the sort keys of its records
 	 */
-	private synchronized void registerJob(String name) {
-		active.put(Tools.nodeName(name), 1);
+	private synchronized void registerJob(String name, long bound) {
+		active.put(Tools.nodeName(name), System.currentTimeMillis());
+		bounds.put(Tools.nodeName(name), bound);
+		createdBound = bound;
 		activeCount++;
 	}
 
 	/**
-	 * Removes finished job from the register of active jobs 
-	 * @param path	ZooKeeper node name
+	 * Removes canceled job from the register of active jobs 
+	 * @param path		ZooKeeper node name
+	 * @return	False if the job was already removed (e.g. finished)
+	 */
+	private synchronized boolean removeJob(String path) {
+		if (null == active.remove(Tools.nodeName(path))) {
+			return false;
+		}
+		bounds.remove(Tools.nodeName(path));
+		countDown(true);
+		return true;
+	}
+	
+	/**
+	 * Removes finished job from the register of active jobs and passes it
+	 * to the Combiner. The window permit is returned once the Combiner takes it.
+	 * 
+	 * @param path		ZooKeeper node name
+	 * @return	False if the job was already removed (e.g. canceled)
 	 */
-	private synchronized void removeJob(String path) {
-		active.remove(Tools.nodeName(path));
-		countDown();
+	private synchronized boolean finishJob(String path) {
+		final String id = Tools.nodeName(path);
+		final Long created = active.remove(id);
+		if (null == created) {
+			return false;
+		}
+		final long latency = System.currentTimeMillis() - created;
+		LATENCY.record(latency * 1000);
+		sample(latency);
+		finished.put(id, System.nanoTime());
+		
+		//Queue before counting down, so allDone() never misses the result
+		completedCount++;
+		completed.add(id);
+		countDown(false);
+		return true;
 	}
 
 	/**
 	 * Check if job is finished and continue watching the node
 	 * 
 	 * @param path	ZooKeeper node name
-	 * @return	True if job is completed
+	 * @return	Node's data if job is completed or null
 	 * @throws InterruptedException
 	 * @throws KeeperException
 	 */
 	//
-	private boolean isFinished(String path) throws InterruptedException, KeeperException {
+	private String isFinished(String path) throws InterruptedException, KeeperException {
 		final byte[] bytes = zk.getData(path, true, null);
 		if (null != bytes) {
 			String data = new String(bytes);
-			if (data.equals("done")) {
-				return true;
+			if (data.equals(DONE) || data.startsWith(DONE + "\n")) {
+				return data;
 			}
-			else if (data.equals("failed")) {
-				//TODO: better handle failures
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	/**
-	 * Limit number of maximum active jobs. If the limit is reached, blocks until an active job finishes.
-	 */
-	private void checkLimit() {
-		synchronized (activeCount) {
-			while (activeCount >= MAXJOBS) {
-				try {
-					activeCount.wait(100);
-				} catch (InterruptedException e) {
-					//ignore
-				}
+			else if (data.equals(FAILED)) {
+				//Finished without a result
+				return data;
 			}
 		}
+		return null;
 	}
 	
 	/**
@@ -139,39 +270,133 @@ public class JobRequest extends JobCommon {
 	 */
 	public JobRequest(ZooKeeper zk, Configuration config) throws KeeperException, InterruptedException {
 		super(zk, config);
-		completed = new ArrayBlockingQueue<String>(MAXJOBS);
+		final int max = config.getInt("jobs.window.max");
+		window = new AdaptiveLimit(MAXJOBS, config.getInt("jobs.window.min"), max);
+		completed = new ArrayBlockingQueue<String>(max);
+		events = new ArrayBlockingQueue<String>(max);
+		
+		dispatcher = new Thread(new Dispatcher(), Thread.currentThread().getName()+"-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		
+		//Workers stop the jobs once it is gone, also if the Manager dies
+		queryPath = zk.create(queriesPath+"/", null, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+	}
+	
+	/**
+	 * @return	Query node name, set it in the jobs
+	 */
+	public String getQuery() {
+		return Tools.nodeName(queryPath);
+	}
+	
+	/**
+	 * Remove the query node, Workers cancel the query's running jobs.
+	 * 
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	private void removeQuery() throws KeeperException, InterruptedException {
+		try {
+			zk.delete(queryPath, -1);
+		} catch (KeeperException.NoNodeException e) {
+			//already removed
+		}
+	}
+	
+	/**
+	 * Collect spans of the jobs, should be set before the jobs are created.
+	 * 
+	 * @param trace	Query's trace
+	 */
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+	}
+	
+	/**
+	 * Queue a ZooKeeper event of a job's node, it never blocks.
+	 * Should be called by the ZooKeeper's event thread.
+	 * 
+	 * @param path	Path to a ZooKeeper's node
+	 */
+	public void signal(String path) {
+		if (!isRegistered(path) || !pending.add(path)) {
+			return;
+		}
+		if (!events.offer(path)) {
+			//Only possible if the window was exceeded
+			pending.remove(path);
+			log.error("Event queue is full, event dropped: "+path);
+		}
+	}
+	
+	/**
+	 * Stop the dispatcher and cancel the jobs still running on Workers,
+	 * the JobRequest can not be used anymore.
+	 */
+	public void close() {
+		dispatcher.interrupt();
+		try {
+			removeQuery();
+		} catch (KeeperException e) {
+			log.warn("Can not remove the query node " + queryPath + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while removing the query node " + queryPath);
+		}
 	}
 
 	/**
 	 * Creates a new job
 	 * 
 	 * @param data	Serialized job parameters
+	 * @return	False if the processing was canceled and the job was not created
 	 * @throws KeeperException
 	 * @throws InterruptedException
 	 */
-	public void create(byte[] data) throws KeeperException, InterruptedException {
+	public boolean create(byte[] data) throws KeeperException, InterruptedException {
+		return create(data, Long.MIN_VALUE);
+	}
+	
+	/**
+	 * Creates a new job whose records do not sort below the bound. Jobs must
+	 * be created in ascending order of their bounds.
+	 * 
+	 * @param data	Serialized job parameters
+	 * @param bound	Lower bound of the sort keys of its records,
+	 * 				Long.MIN_VALUE if it is unknown
+	 * @return	False if the processing was canceled and the job was not created
+	 * @throws KeeperException
+	 * @throws InterruptedException
+	 */
+	public boolean create(byte[] data, long bound) throws KeeperException, InterruptedException {
 		//limit active jobs
-		checkLimit();
+		window.acquire();
+		if (canceled) {
+			window.release();
+			return false;
+		}
 		
 		final String name = zk.create(newPath+"/", data, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
 		final String id = Tools.nodeName(name);
-		registerJob(name);
+		registerJob(name, bound);
+		CREATED.inc();
 		log.debug(id + " job created.");
 		
 		//Watch for job activation
 		String activeName = activePath+"/"+id;
 		if (zk.exists(activeName, true) != null) {
 			log.debug("Job already active:"+activeName);
-			completeIfFinished(activeName);
+			signal(activeName);
 		}
+		return true;
 	}
 
 	/**
 	 * @param path	ZooKeeper's node name
 	 * @return	True if job was registered by this Manager
 	 */
-	public boolean isRegistered(String path) {
-			return (active.get(Tools.nodeName(path)) > 0 ? true : false);
+	public synchronized boolean isRegistered(String path) {
+		return active.containsKey(Tools.nodeName(path));
 	}
 
 	/**
@@ -181,6 +406,13 @@ public class JobRequest extends JobCommon {
 		return completed.isEmpty() && (0 == activeCount);
 	}
 	
+	/**
+	 * @return	Number of jobs which failed, their results are missing
+	 */
+	public int getFailedCount() {
+		return failedCount;
+	}
+	
 	/**
 	 * @return	Number of completed jobs waiting for combiner.
 	 */
@@ -195,7 +427,53 @@ public class JobRequest extends JobCommon {
 	 * @throws InterruptedException
 	 */
 	public String takeCompleted() throws InterruptedException {
-		return completed.take(); 
+		return taken(completed.take());
+	}
+	
+	/**
+	 * Takes a completed job if there is one, see takeCompleted().
+	 * 
+	 * @return Completed job id or null
+	 */
+	public String pollCompleted() {
+		final String id = completed.poll();
+		return null == id ? null : taken(id);
+	}
+	
+	/**
+	 * Return the window permit of a job taken by the Combiner.
+	 * 
+	 * @param id	Job id
+	 * @return	Job id
+	 */
+	private String taken(String id) {
+		synchronized (this) {
+			bounds.remove(id);
+		}
+		window.release();
+		final Long done = finished.remove(id);
+		if (null != done) {
+			COMBINE_WAIT.recordSince(done);
+			if (null != trace) {
+				final long now = System.currentTimeMillis();
+				trace.add("wait", MANAGER, id, now - (System.nanoTime() - done) / 1000000, now);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Jobs created later do not sort below the bound of the last created
+	 * job, so it is included too.
+	 * 
+	 * @return	Lowest bound of the jobs not taken by the Combiner yet
+	 */
+	public synchronized long getWatermark() {
+		long watermark = createdBound;
+		for (long bound: bounds.values()) {
+			watermark = Math.min(watermark, bound);
+		}
+		return watermark;
 	}
 
 	/**
@@ -204,39 +482,73 @@ public class JobRequest extends JobCommon {
 	 * @throws InterruptedException
 	 * @throws KeeperException
 	 */
-	public void completeIfFinished(String path) throws InterruptedException, KeeperException {
-		// isCompleted also (re)creates the watch
-		if (isFinished(path)) {
+	private void completeIfFinished(String path) throws InterruptedException, KeeperException {
+		final String data;
+		try {
+			// isFinished also (re)creates the watch
+			data = isFinished(path);
+			if (null == data) {
+				return;
+			}
 			log.debug("Job finished: "+path);
 			zk.delete(path, -1);
-			removeJob(path);
-			completed.put(Tools.nodeName(path));
-			completedCount++;
+		} catch (KeeperException.NoNodeException e) {
+			//Job was canceled
+			return;
+		}
+		
+		//Canceled jobs are cleaned up by the canceler
+		final boolean finished = finishJob(path);
+		if (finished && data.equals(FAILED)) {
+			failedCount++;
+			log.warn(Tools.nodeName(path) + " job failed, its result is missing.");
+		}
+		if (finished && null != trace) {
+			final int spans = data.indexOf('\n');
+			if (spans > 0) {
+				trace.addAll(data.substring(spans + 1));
+			}
 		}
 	}
 	
 	/**
-	 * Cancel all waiting jobs.
+	 * Cancel all waiting and running jobs. Workers watch their active job
+	 * nodes and the query node and stop processing once one is removed.
+	 * 
+	 * @return	Ids of the jobs which were canceled after they had been
+	 * 			started, their results might still appear and should be removed.
 	 * @throws KeeperException
 	 * @throws InterruptedException
 	 */
-	public void cancelAll() throws KeeperException, InterruptedException {
+	public List<String> cancelAll() throws KeeperException, InterruptedException {
 		canceled = true;
+		removeQuery();
 		final Lock l = new Lock(zk, rootPath);
+		final List<String> started = new ArrayList<String>();
 		
 		l.lock();
 		final List<String> ids = getRegistered();
 		log.debug("Canceling remaining job requests.");
 		for (String id: ids) {
 			try {
-				//try removing the job request
-				zk.delete(newPath+"/"+id, -1);
-				//also remove from the job map
-				removeJob(id);
-				log.debug(id + " job canceled.");
-			} catch (KeeperException.NoNodeException e) {
-				//job already started, ignore
-				continue;
+				try {
+					//try removing the job request
+					zk.delete(newPath+"/"+id, -1);
+					//also remove from the job map
+					removeJob(id);
+					log.debug(id + " job canceled.");
+				} catch (KeeperException.NoNodeException e) {
+					//job already started, signal the Worker to stop it
+					try {
+						zk.delete(activePath+"/"+id, -1);
+					} catch (KeeperException.NoNodeException e2) {
+						//job just finished
+					}
+					if (removeJob(id)) {
+						started.add(id);
+						log.debug(id + " running job canceled.");
+					}
+				}
 			} catch (KeeperException e) {
 				l.unlock();
 				throw e;
@@ -246,6 +558,14 @@ public class JobRequest extends JobCommon {
 			}
 		}
 		l.unlock();
+		return started;
+	}
+	
+	/**
+	 * @return	Current limit of active+waiting jobs
+	 */
+	public int getWindow() {
+		return window.getLimit();
 	}
 	
 	/**
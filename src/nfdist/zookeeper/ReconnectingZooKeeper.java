@@ -31,6 +31,9 @@ package nfdist.zookeeper;
 import java.io.IOException;
 import java.util.List;
 
+import nfdist.metrics.Counter;
+import nfdist.metrics.Metrics;
+
 import org.apache.commons.configuration.Configuration;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
@@ -46,6 +49,8 @@ import org.apache.zookeeper.data.Stat;
  */
 public class ReconnectingZooKeeper extends ZooKeeper {
 	private static final Logger log = Logger.getLogger(Lock.class);
+	private static final Counter RETRIES = Metrics.counter("nfdist_zookeeper_retries_total",
+			"ZooKeeper operations retried after a connection loss");
 
 	/**
 	 * Constructor.
@@ -65,6 +70,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.create(path, data, acl, createMode);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -78,6 +84,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				break;
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -90,6 +97,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.exists(path, watch);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -103,6 +111,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.exists(path, watcher);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -115,6 +124,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.getChildren(path, watch);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -127,6 +137,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.getChildren(path, watcher);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -139,6 +150,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.getData(path, watch, stat);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}
@@ -151,6 +163,7 @@ public class ReconnectingZooKeeper extends ZooKeeper {
 				return super.setData(path, data, version);
 			} catch (KeeperException.ConnectionLossException e) {
 				log.debug("Connection lost, retrying...");
+				RETRIES.inc();
 				Thread.sleep(100);
 			}
 		}